@@ -0,0 +1,230 @@
+/* $Id$ */
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.manifoldcf.agents.output.elasticsearch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Sends a number of index and delete operations as one _bulk request. The
+ * response lists the outcome of each operation in request order, and each
+ * outcome is recorded against the corresponding item.
+ */
+public class ElasticSearchBulk extends ElasticSearchConnection
+{
+
+  public final static String ACTION_INDEX = "index";
+  public final static String ACTION_DELETE = "delete";
+
+  /** One operation in a bulk request, and its outcome. */
+  public static class Item
+  {
+    private final String action;
+    private final String documentURI;
+    private final byte[] source;
+
+    private volatile boolean done = false;
+    private Result result = Result.UNKNOWN;
+    private String resultDescription = "";
+    private Throwable exception = null;
+
+    /** @param action is ACTION_INDEX or ACTION_DELETE.
+     * @param documentURI is the document's URI, which is its id in the index.
+     * @param source is the UTF-8 JSON source of the document to index, or null
+     *          for a delete. */
+    public Item(String action, String documentURI, byte[] source)
+    {
+      this.action = action;
+      this.documentURI = documentURI;
+      this.source = source;
+    }
+
+    public String getAction()
+    {
+      return action;
+    }
+
+    public String getDocumentURI()
+    {
+      return documentURI;
+    }
+
+    /** @return the number of bytes this item adds to a bulk request, roughly. */
+    public long getLength()
+    {
+      return ((source == null) ? 0 : source.length) + documentURI.length()
+          + 64;
+    }
+
+    protected void setResult(Result result, String resultDescription)
+    {
+      this.result = result;
+      if (resultDescription != null)
+        this.resultDescription = resultDescription;
+      done = true;
+    }
+
+    protected void setException(Throwable exception)
+    {
+      this.exception = exception;
+      done = true;
+    }
+
+    public boolean isDone()
+    {
+      return done;
+    }
+
+    public Result getResult()
+    {
+      return result;
+    }
+
+    public String getResultDescription()
+    {
+      return resultDescription;
+    }
+
+    public Throwable getException()
+    {
+      return exception;
+    }
+  }
+
+  public ElasticSearchBulk(HttpClient client, List<Item> items,
+      ElasticSearchConfig config) throws ManifoldCFException
+  {
+    super(config, client);
+
+    StringBuffer url = getApiUrl("_bulk", false);
+    PostMethod post = new PostMethod(url.toString());
+    post.setRequestEntity(new ByteArrayRequestEntity(makeRequestBody(items,
+        config), "application/json; charset=UTF-8"));
+    call(post);
+
+    try
+    {
+      recordResults(items, getResponse());
+    } catch (ManifoldCFException e)
+    {
+      setResult(Result.ERROR, e.getMessage());
+      throw e;
+    }
+  }
+
+  /** Build the body of a _bulk request: for each item, a line of metadata,
+   * followed by a line with the source if there is one.
+   * 
+   * @param items are the operations.
+   * @param config is the configuration, which supplies the type.
+   * @return the body, encoded as UTF-8. */
+  public static byte[] makeRequestBody(List<Item> items,
+      ElasticSearchConfig config) throws ManifoldCFException
+  {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try
+    {
+      for (Item item : items)
+      {
+        // The index itself comes from the URL
+        String metadata = "{" + ElasticSearchIndex.jsonStringEscape(item.getAction())
+            + ":{\"_type\":" + ElasticSearchIndex.jsonStringEscape(config.getIndexType())
+            + ",\"_id\":" + ElasticSearchIndex.jsonStringEscape(item.getDocumentURI())
+            + "}}\n";
+        body.write(metadata.getBytes("UTF-8"));
+        if (item.source != null)
+        {
+          body.write(item.source);
+          body.write('\n');
+        }
+      }
+    } catch (IOException e)
+    {
+      throw new ManifoldCFException(e.getMessage(), e);
+    }
+    return body.toByteArray();
+  }
+
+  /** Record the outcome of each operation from the response to a _bulk
+   * request.
+   * 
+   * @param items are the operations, in the order they were sent.
+   * @param response is the response body. */
+  public static void recordResults(List<Item> items, String response)
+      throws ManifoldCFException
+  {
+    try
+    {
+      JSONArray results = new JSONObject(response).getJSONArray("items");
+      if (results.length() != items.size())
+        throw new ManifoldCFException("Bulk response has "
+            + results.length() + " items, but the request had "
+            + items.size());
+      for (int i = 0; i < items.size(); i++)
+        recordItemResult(items.get(i), results.getJSONObject(i));
+    } catch (JSONException e)
+    {
+      throw new ManifoldCFException("Unparseable bulk response: "
+          + e.getMessage(), e);
+    }
+  }
+
+  /** Record the outcome of one operation, which looks like
+   * {"index":{"_id":...,"ok":true}} or {"delete":{"_id":...,"error":...}}. */
+  private static void recordItemResult(Item item, JSONObject wrapper)
+      throws JSONException
+  {
+    JSONObject result = wrapper.optJSONObject(item.getAction());
+    if (result == null)
+    {
+      item.setResult(Result.ERROR, "No result for " + item.getAction());
+      return;
+    }
+    if (result.has("error"))
+    {
+      item.setResult(Result.ERROR, result.get("error").toString());
+      return;
+    }
+    if (result.has("ok") && !result.getBoolean("ok"))
+    {
+      item.setResult(Result.ERROR, null);
+      return;
+    }
+    int status = result.optInt("status", 200);
+    // Deleting a document that isn't there is not a failure
+    if (status >= 300
+        && !(status == 404 && ACTION_DELETE.equals(item.getAction())))
+    {
+      item.setResult(Result.ERROR, "Status " + status);
+      return;
+    }
+    item.setResult(Result.OK, null);
+  }
+
+}
@@ -0,0 +1,202 @@
+/* $Id$ */
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.manifoldcf.agents.output.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+
+/**
+ * Groups the index and delete operations of many worker threads into _bulk
+ * requests. Each thread adds its operation and waits. A request is sent by the
+ * thread whose operation fills it (by count or by size), or, if it does not fill
+ * in time, by the first thread whose wait runs out. Every thread then picks up
+ * the outcome of its own operation.
+ *
+ * There is one batcher per index and type, since each worker thread uses its
+ * own connector instance.
+ */
+public class ElasticSearchBulkBatcher
+{
+
+  private final static Map<String, ElasticSearchBulkBatcher> batchers = new HashMap<String, ElasticSearchBulkBatcher>();
+
+  private final ElasticSearchConfig config;
+  private final int bulkSize;
+  private final long maxBytes;
+  private final long bulkWait;
+
+  /** The request currently being filled, or null */
+  private Batch currentBatch = null;
+
+  /** Find or create the batcher for the index a configuration describes. */
+  public static ElasticSearchBulkBatcher getBatcher(ElasticSearchConfig config)
+  {
+    String key = config.getUniqueIndexIdentifier() + "/"
+        + config.getIndexType() + "/" + config.getBulkSize() + "/"
+        + config.getBulkMaxBytes() + "/" + config.getBulkWait();
+    synchronized (batchers)
+    {
+      ElasticSearchBulkBatcher rval = batchers.get(key);
+      if (rval == null)
+      {
+        rval = new ElasticSearchBulkBatcher(config);
+        batchers.put(key, rval);
+      }
+      return rval;
+    }
+  }
+
+  protected ElasticSearchBulkBatcher(ElasticSearchConfig config)
+  {
+    this.config = config;
+    this.bulkSize = config.getBulkSize();
+    this.maxBytes = config.getBulkMaxBytes();
+    this.bulkWait = config.getBulkWait();
+  }
+
+  /** Add an operation, and wait until the request it is part of has been sent.
+   * On return, the item describes the outcome.
+   *
+   * @param item is the operation.
+   * @param client is the client to use if this thread ends up sending a
+   *          request. */
+  public void addItem(ElasticSearchBulk.Item item, HttpClient client)
+      throws ManifoldCFException
+  {
+    Batch batch;
+    Batch previous = null;
+    Batch full = null;
+    synchronized (this)
+    {
+      // If this item would push the current request over the size limit, close
+      // that request off first
+      if (currentBatch != null
+          && currentBatch.byteCount + item.getLength() > maxBytes)
+      {
+        previous = currentBatch;
+        previous.taken = true;
+        currentBatch = null;
+      }
+      if (currentBatch == null)
+        currentBatch = new Batch(System.currentTimeMillis() + bulkWait);
+      batch = currentBatch;
+      batch.items.add(item);
+      batch.byteCount += item.getLength();
+      if (batch.items.size() >= bulkSize || batch.byteCount >= maxBytes)
+      {
+        batch.taken = true;
+        currentBatch = null;
+        full = batch;
+      }
+    }
+
+    if (previous != null)
+      send(previous, client);
+    if (full != null)
+      send(full, client);
+
+    while (true)
+    {
+      Batch expired = null;
+      synchronized (this)
+      {
+        if (item.isDone())
+          return;
+        try
+        {
+          if (batch.taken)
+            // Someone else is sending it
+            wait();
+          else
+          {
+            long remaining = batch.deadline - System.currentTimeMillis();
+            if (remaining > 0L)
+              wait(remaining);
+            else
+            {
+              // Nobody filled it in time, so we send it
+              if (currentBatch == batch)
+                currentBatch = null;
+              batch.taken = true;
+              expired = batch;
+            }
+          }
+        } catch (InterruptedException e)
+        {
+          throw new ManifoldCFException("Interrupted: " + e.getMessage(),
+              ManifoldCFException.INTERRUPTED);
+        }
+      }
+      if (expired != null)
+        send(expired, client);
+    }
+  }
+
+  /** Send a request, and hand the outcomes to the waiting threads. */
+  private void send(Batch batch, HttpClient client)
+  {
+    try
+    {
+      sendRequest(batch.items, client);
+    } catch (Throwable e)
+    {
+      // Whatever went wrong applies to every item that has no outcome yet
+      for (ElasticSearchBulk.Item item : batch.items)
+      {
+        if (!item.isDone())
+          item.setException(e);
+      }
+    }
+    synchronized (this)
+    {
+      notifyAll();
+    }
+  }
+
+  /** Send one _bulk request, recording the outcome of each operation.
+   *
+   * @param items are the operations.
+   * @param client is the client to send with. */
+  protected void sendRequest(List<ElasticSearchBulk.Item> items,
+      HttpClient client) throws ManifoldCFException
+  {
+    new ElasticSearchBulk(client, items, config);
+  }
+
+  /** A request being filled */
+  private static class Batch
+  {
+    final List<ElasticSearchBulk.Item> items = new ArrayList<ElasticSearchBulk.Item>();
+    final long deadline;
+    long byteCount = 0L;
+    boolean taken = false;
+
+    Batch(long deadline)
+    {
+      this.deadline = deadline;
+    }
+  }
+
+}
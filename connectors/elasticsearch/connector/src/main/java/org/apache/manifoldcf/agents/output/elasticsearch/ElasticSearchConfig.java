@@ -33,7 +33,8 @@ public class ElasticSearchConfig extends ElasticSearchParam
   /** Parameters used for the configuration */
   final private static ParameterEnum[] CONFIGURATIONLIST =
   { ParameterEnum.SERVERLOCATION, ParameterEnum.INDEXNAME,
-      ParameterEnum.INDEXTYPE};
+      ParameterEnum.INDEXTYPE, ParameterEnum.BULKSIZE,
+      ParameterEnum.BULKMAXBYTES, ParameterEnum.BULKWAIT};
 
   /** Build a set of ElasticSearchParameters by reading ConfigParams. If the
    * value returned by ConfigParams.getParameter is null, the default value is
@@ -90,4 +91,35 @@ public class ElasticSearchConfig extends ElasticSearchParam
     return get(ParameterEnum.INDEXTYPE);
   }
 
+  /** @return the maximum number of documents per bulk request; 1 or less means
+   *  one request per document. */
+  final public int getBulkSize()
+  {
+    return getIntParameter(ParameterEnum.BULKSIZE);
+  }
+
+  /** @return the maximum size of a bulk request, in bytes. */
+  final public long getBulkMaxBytes()
+  {
+    return getIntParameter(ParameterEnum.BULKMAXBYTES);
+  }
+
+  /** @return how long a document may wait for its bulk request to fill, in
+   *  milliseconds. */
+  final public long getBulkWait()
+  {
+    return getIntParameter(ParameterEnum.BULKWAIT);
+  }
+
+  private int getIntParameter(ParameterEnum param)
+  {
+    try
+    {
+      return Integer.parseInt(get(param).trim());
+    } catch (NumberFormatException e)
+    {
+      return Integer.parseInt(param.defaultValue);
+    }
+  }
+
 }
@@ -318,6 +318,22 @@ public class ElasticSearchConnector extends BaseOutputConnector
   {
     ElasticSearchConfig config = getConfigParameters(null);
     InputStream inputStream = document.getBinaryStream();
+    // The content is base64 encoded, so it grows by a third
+    if (config.getBulkSize() > 1
+        && document.getBinaryLength() / 3L * 4L < config.getBulkMaxBytes())
+    {
+      long startTime = System.currentTimeMillis();
+      ElasticSearchBulk.Item item = new ElasticSearchBulk.Item(
+          ElasticSearchBulk.ACTION_INDEX, documentURI,
+          ElasticSearchIndex.buildSource(document, inputStream));
+      bulkOperation(item, config);
+      activities.recordActivity(startTime, ELASTICSEARCH_INDEXATION_ACTIVITY,
+        document.getBinaryLength(), documentURI, item.getResult().name(),
+        item.getResultDescription());
+      if (item.getResult() != Result.OK)
+        return DOCUMENTSTATUS_REJECTED;
+      return DOCUMENTSTATUS_ACCEPTED;
+    }
     long startTime = System.currentTimeMillis();
     ElasticSearchIndex oi = new ElasticSearchIndex(client, documentURI, 
         document, inputStream, config);
@@ -334,13 +350,41 @@ public class ElasticSearchConnector extends BaseOutputConnector
       IOutputRemoveActivity activities) throws ManifoldCFException,
       ServiceInterruption
   {
+    ElasticSearchConfig config = getConfigParameters(null);
     long startTime = System.currentTimeMillis();
+    if (config.getBulkSize() > 1)
+    {
+      ElasticSearchBulk.Item item = new ElasticSearchBulk.Item(
+          ElasticSearchBulk.ACTION_DELETE, documentURI, null);
+      bulkOperation(item, config);
+      activities.recordActivity(startTime, ELASTICSEARCH_DELETION_ACTIVITY, null,
+          documentURI, item.getResult().name(), item.getResultDescription());
+      return;
+    }
     ElasticSearchDelete od = new ElasticSearchDelete(client, documentURI,
-        getConfigParameters(null));
+        config);
     activities.recordActivity(startTime, ELASTICSEARCH_DELETION_ACTIVITY, null,
         documentURI, od.getResult().name(), od.getResultDescription());
   }
 
+  /** Hand an operation to the bulk batcher for the index, and wait for its
+   * outcome. A failure of the whole request is rethrown. */
+  private void bulkOperation(ElasticSearchBulk.Item item,
+      ElasticSearchConfig config) throws ManifoldCFException
+  {
+    ElasticSearchBulkBatcher.getBatcher(config).addItem(item, client);
+    Throwable e = item.getException();
+    if (e == null)
+      return;
+    if (e instanceof ManifoldCFException)
+      throw (ManifoldCFException) e;
+    if (e instanceof Error)
+      throw (Error) e;
+    if (e instanceof RuntimeException)
+      throw (RuntimeException) e;
+    throw new ManifoldCFException(e.getMessage(), e);
+  }
+
   @Override
   public String check() throws ManifoldCFException
   {
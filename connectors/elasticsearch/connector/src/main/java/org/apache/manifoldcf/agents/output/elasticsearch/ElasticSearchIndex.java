@@ -19,9 +19,11 @@
 
 package org.apache.manifoldcf.agents.output.elasticsearch;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.Iterator;
 
@@ -69,43 +71,7 @@ public class ElasticSearchIndex extends ElasticSearchConnection
       PrintWriter pw = new PrintWriter(out);
       try
       {
-        pw.print("{");
-        Iterator<String> i = document.getFields();
-        boolean existentFields = false;
-        while (i.hasNext()){
-          String fieldName = i.next();
-          String[] fieldValues = document.getFieldAsStrings(fieldName);
-          if(fieldValues.length>1){
-            for(int j=0; j<fieldValues.length; j++){
-              String fieldValue = fieldValues[j];
-              pw.print("\""+fieldName+"\" : \""+fieldValue+"\"");
-              if(j<fieldValues.length-1){
-                pw.print(",");
-              }
-              existentFields = true;
-            }
-          } else if(fieldValues.length==1){
-            String fieldValue = fieldValues[0];
-            pw.print("\""+fieldName+"\" : \""+fieldValue+"\"");
-            if(i.hasNext()){
-              pw.print(",");
-            }
-            existentFields = true;
-          }
-        }
-        
-        if(inputStream!=null){
-          if(existentFields){
-            pw.print(",");
-          }
-          pw.print("\"type\" : \"attachment\",");
-          pw.print("\"file\" : \"");
-          Base64 base64 = new Base64();
-          base64.encodeStream(inputStream, pw);
-          pw.print("\"");
-        }
-        
-        pw.print("}");
+        writeSource(pw, document, inputStream);
       } catch (ManifoldCFException e)
       {
         throw new IOException(e.getMessage());
@@ -116,6 +82,121 @@ public class ElasticSearchIndex extends ElasticSearchConnection
     }
   }
 
+  /** Write the JSON source of a document, all on one line.
+   * 
+   * @param pw is where to write it.
+   * @param document is the document.
+   * @param inputStream is the document's content, or null. */
+  protected static void writeSource(PrintWriter pw, RepositoryDocument document,
+      InputStream inputStream) throws ManifoldCFException, IOException
+  {
+    pw.print("{");
+    Iterator<String> i = document.getFields();
+    boolean existentFields = false;
+    while (i.hasNext()){
+      String fieldName = i.next();
+      String[] fieldValues = document.getFieldAsStrings(fieldName);
+      if(fieldValues.length == 0){
+        continue;
+      }
+      if(existentFields){
+        pw.print(",");
+      }
+      pw.print(jsonStringEscape(fieldName)+" : ");
+      // A repeated key would be a duplicate, so several values go in an array
+      if(fieldValues.length == 1){
+        pw.print(jsonStringEscape(fieldValues[0]));
+      } else {
+        pw.print("[");
+        for(int j=0; j<fieldValues.length; j++){
+          if(j > 0){
+            pw.print(",");
+          }
+          pw.print(jsonStringEscape(fieldValues[j]));
+        }
+        pw.print("]");
+      }
+      existentFields = true;
+    }
+
+    if(inputStream!=null){
+      if(existentFields){
+        pw.print(",");
+      }
+      pw.print("\"type\" : \"attachment\",");
+      pw.print("\"file\" : \"");
+      Base64 base64 = new Base64();
+      base64.encodeStream(inputStream, pw);
+      pw.print("\"");
+    }
+
+    pw.print("}");
+  }
+
+  /** Build the JSON source of a document in memory, encoded as UTF-8, so that
+   * it can go into a bulk request.
+   * 
+   * @param document is the document.
+   * @param inputStream is the document's content, or null.
+   * @return the source. */
+  public static byte[] buildSource(RepositoryDocument document,
+      InputStream inputStream) throws ManifoldCFException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try
+    {
+      PrintWriter pw = new PrintWriter(new OutputStreamWriter(bytes, "UTF-8"));
+      writeSource(pw, document, inputStream);
+      pw.flush();
+    } catch (IOException e)
+    {
+      throw new ManifoldCFException(e.getMessage(), e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** Quote and escape a string as a JSON string literal. */
+  protected static String jsonStringEscape(String value)
+  {
+    StringBuilder sb = new StringBuilder(value.length() + 2);
+    sb.append('"');
+    for (int i = 0; i < value.length(); i++)
+    {
+      char c = value.charAt(i);
+      switch (c)
+      {
+      case '"':
+        sb.append("\\\"");
+        break;
+      case '\\':
+        sb.append("\\\\");
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      case '\r':
+        sb.append("\\r");
+        break;
+      case '\t':
+        sb.append("\\t");
+        break;
+      default:
+        if (c < 0x20)
+        {
+          String hex = Integer.toHexString(c);
+          sb.append("\\u");
+          for (int j = hex.length(); j < 4; j++)
+            sb.append('0');
+          sb.append(hex);
+        }
+        else
+          sb.append(c);
+      }
+    }
+    sb.append('"');
+    return sb.toString();
+  }
+
   public ElasticSearchIndex(HttpClient client, String documentURI, RepositoryDocument document, 
       InputStream inputStream, ElasticSearchConfig config) throws ManifoldCFException
   {
@@ -39,6 +39,12 @@ public class ElasticSearchParam extends HashMap<ParameterEnum, String>
 
 		INDEXTYPE("generictype"),
 
+		BULKSIZE("0"),
+
+		BULKMAXBYTES("5242880"),
+
+		BULKWAIT("1000"),
+
 		FIELDLIST(""),
 
 		MAXFILESIZE("16777216"),
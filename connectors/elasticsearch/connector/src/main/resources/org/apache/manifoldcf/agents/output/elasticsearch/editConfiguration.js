@@ -39,6 +39,27 @@ function checkConfig() {
       return false;
     }
   }
+  if (editconnection.bulksize) {
+    if (!isInteger(editconnection.bulksize.value)) {
+      alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('ElasticSearchConnector.PleaseSupplyValidBulkSize'))");
+      editconnection.bulksize.focus();
+      return false;
+    }
+  }
+  if (editconnection.bulkmaxbytes) {
+    if (!isInteger(editconnection.bulkmaxbytes.value)) {
+      alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('ElasticSearchConnector.PleaseSupplyValidBulkMaxBytes'))");
+      editconnection.bulkmaxbytes.focus();
+      return false;
+    }
+  }
+  if (editconnection.bulkwait) {
+    if (!isInteger(editconnection.bulkwait.value)) {
+      alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('ElasticSearchConnector.PleaseSupplyValidBulkWait'))");
+      editconnection.bulkwait.focus();
+      return false;
+    }
+  }
   return true;
 }
 
@@ -67,6 +88,30 @@ function checkConfigForSave() {
       return false;
     }
   }
+  if (editconnection.bulksize) {
+    if (!isInteger(editconnection.bulksize.value)) {
+      alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('ElasticSearchConnector.PleaseSupplyValidBulkSize'))");
+      SelectTab("$Encoder.javascriptBodyEscape($ResourceBundle.getString('ElasticSearchConnector.Parameters'))");
+      editconnection.bulksize.focus();
+      return false;
+    }
+  }
+  if (editconnection.bulkmaxbytes) {
+    if (!isInteger(editconnection.bulkmaxbytes.value)) {
+      alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('ElasticSearchConnector.PleaseSupplyValidBulkMaxBytes'))");
+      SelectTab("$Encoder.javascriptBodyEscape($ResourceBundle.getString('ElasticSearchConnector.Parameters'))");
+      editconnection.bulkmaxbytes.focus();
+      return false;
+    }
+  }
+  if (editconnection.bulkwait) {
+    if (!isInteger(editconnection.bulkwait.value)) {
+      alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('ElasticSearchConnector.PleaseSupplyValidBulkWait'))");
+      SelectTab("$Encoder.javascriptBodyEscape($ResourceBundle.getString('ElasticSearchConnector.Parameters'))");
+      editconnection.bulkwait.focus();
+      return false;
+    }
+  }
   return true;
 }
 //-->
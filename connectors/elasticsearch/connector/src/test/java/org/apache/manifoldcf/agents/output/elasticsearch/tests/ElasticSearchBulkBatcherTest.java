@@ -0,0 +1,214 @@
+/* $Id$ */
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.output.elasticsearch.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.manifoldcf.core.interfaces.ConfigParams;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.apache.manifoldcf.agents.output.elasticsearch.ElasticSearchBulk;
+import org.apache.manifoldcf.agents.output.elasticsearch.ElasticSearchBulkBatcher;
+import org.apache.manifoldcf.agents.output.elasticsearch.ElasticSearchConfig;
+import org.apache.manifoldcf.agents.output.elasticsearch.ElasticSearchConnection.Result;
+import org.apache.manifoldcf.agents.output.elasticsearch.ElasticSearchParam.ParameterEnum;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Check when the batcher sends its _bulk requests, and that every waiting
+ * thread gets the outcome of its own operation. Requests are answered here
+ * rather than sent. */
+public class ElasticSearchBulkBatcherTest
+{
+
+  /** Bytes of source per item; each item counts as this plus its URI plus 64 */
+  protected final static int sourceLength = 100;
+
+  @Test
+  public void fullRequestsGoAtOnce() throws Exception
+  {
+    // The wait is far longer than the test, so only the count can send
+    RecordingBatcher batcher = new RecordingBatcher(makeConfig(3, 1000000L,
+        600000L));
+    List<ElasticSearchBulk.Item> items = addConcurrently(batcher, 6);
+    assertEquals(2, batcher.requestSizes.size());
+    assertEquals(new Integer(3), batcher.requestSizes.get(0));
+    assertEquals(new Integer(3), batcher.requestSizes.get(1));
+    checkAllOK(items);
+  }
+
+  @Test
+  public void sizeLimitSplitsRequests() throws Exception
+  {
+    ElasticSearchBulk.Item sample = makeItem(0);
+    // Room for two items but not three
+    long maxBytes = sample.getLength() * 5L / 2L;
+    RecordingBatcher batcher = new RecordingBatcher(makeConfig(100, maxBytes,
+        200L));
+    List<ElasticSearchBulk.Item> items = addConcurrently(batcher, 10);
+    int total = 0;
+    for (int i = 0; i < batcher.requestSizes.size(); i++)
+    {
+      assertTrue(batcher.requestBytes.get(i).longValue() <= maxBytes);
+      total += batcher.requestSizes.get(i).intValue();
+    }
+    assertEquals(10, total);
+    assertTrue(batcher.requestSizes.size() >= 5);
+    checkAllOK(items);
+  }
+
+  @Test
+  public void partialRequestGoesAfterWait() throws Exception
+  {
+    RecordingBatcher batcher = new RecordingBatcher(makeConfig(100, 1000000L,
+        200L));
+    long startTime = System.currentTimeMillis();
+    List<ElasticSearchBulk.Item> items = addConcurrently(batcher, 2);
+    long elapsed = System.currentTimeMillis() - startTime;
+    assertTrue("Returned after " + elapsed + " ms", elapsed >= 150L);
+    int total = 0;
+    for (Integer size : batcher.requestSizes)
+      total += size.intValue();
+    assertEquals(2, total);
+    checkAllOK(items);
+  }
+
+  @Test
+  public void failureReachesEveryItem() throws Exception
+  {
+    RecordingBatcher batcher = new RecordingBatcher(makeConfig(4, 1000000L,
+        600000L));
+    batcher.fail = true;
+    List<ElasticSearchBulk.Item> items = addConcurrently(batcher, 4);
+    for (ElasticSearchBulk.Item item : items)
+    {
+      assertTrue(item.isDone());
+      assertNotNull(item.getException());
+    }
+  }
+
+  protected static ElasticSearchConfig makeConfig(int bulkSize, long maxBytes,
+      long bulkWait)
+  {
+    ConfigParams params = new ConfigParams();
+    params.setParameter(ParameterEnum.BULKSIZE.name(),
+        Integer.toString(bulkSize));
+    params.setParameter(ParameterEnum.BULKMAXBYTES.name(),
+        Long.toString(maxBytes));
+    params.setParameter(ParameterEnum.BULKWAIT.name(), Long.toString(bulkWait));
+    return new ElasticSearchConfig(params);
+  }
+
+  protected static ElasticSearchBulk.Item makeItem(int number)
+  {
+    byte[] source = new byte[sourceLength];
+    java.util.Arrays.fill(source, (byte) ' ');
+    return new ElasticSearchBulk.Item(ElasticSearchBulk.ACTION_INDEX,
+        "http://localhost/document" + (1000 + number), source);
+  }
+
+  /** Add items from separate threads, as worker threads do, and wait for
+   * them all. */
+  protected static List<ElasticSearchBulk.Item> addConcurrently(
+      final ElasticSearchBulkBatcher batcher, int count) throws Exception
+  {
+    final List<ElasticSearchBulk.Item> items = new ArrayList<ElasticSearchBulk.Item>();
+    final Throwable[] errors = new Throwable[count];
+    Thread[] threads = new Thread[count];
+    for (int i = 0; i < count; i++)
+    {
+      final ElasticSearchBulk.Item item = makeItem(i);
+      final int index = i;
+      items.add(item);
+      threads[i] = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            batcher.addItem(item, null);
+          } catch (Throwable e)
+          {
+            errors[index] = e;
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (int i = 0; i < count; i++)
+    {
+      threads[i].join(30000L);
+      assertFalse("Thread " + i + " still waiting", threads[i].isAlive());
+      if (errors[i] != null)
+        throw new Exception("Thread " + i + " failed: "
+            + errors[i].getMessage(), errors[i]);
+    }
+    return items;
+  }
+
+  protected static void checkAllOK(List<ElasticSearchBulk.Item> items)
+  {
+    for (ElasticSearchBulk.Item item : items)
+    {
+      assertTrue(item.isDone());
+      assertNull(item.getException());
+      assertEquals(Result.OK, item.getResult());
+    }
+  }
+
+  /** A batcher that answers each request itself, noting what it held */
+  protected static class RecordingBatcher extends ElasticSearchBulkBatcher
+  {
+    public final List<Integer> requestSizes = new ArrayList<Integer>();
+    public final List<Long> requestBytes = new ArrayList<Long>();
+    public boolean fail = false;
+
+    public RecordingBatcher(ElasticSearchConfig config)
+    {
+      super(config);
+    }
+
+    protected void sendRequest(List<ElasticSearchBulk.Item> items,
+        HttpClient client) throws ManifoldCFException
+    {
+      long byteCount = 0L;
+      StringBuilder response = new StringBuilder("{\"items\":[");
+      for (int i = 0; i < items.size(); i++)
+      {
+        ElasticSearchBulk.Item item = items.get(i);
+        byteCount += item.getLength();
+        if (i > 0)
+          response.append(",");
+        response.append("{\"index\":{\"_id\":\"").append(item.getDocumentURI())
+            .append("\",\"ok\":true}}");
+      }
+      response.append("]}");
+      synchronized (this)
+      {
+        requestSizes.add(new Integer(items.size()));
+        requestBytes.add(new Long(byteCount));
+      }
+      if (fail)
+        throw new ManifoldCFException("Connection refused");
+      ElasticSearchBulk.recordResults(items, response.toString());
+    }
+  }
+
+}
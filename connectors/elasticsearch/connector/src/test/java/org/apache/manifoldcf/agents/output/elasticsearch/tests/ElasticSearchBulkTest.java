@@ -0,0 +1,156 @@
+/* $Id$ */
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.output.elasticsearch.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.manifoldcf.core.interfaces.ConfigParams;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
+import org.apache.manifoldcf.agents.output.elasticsearch.ElasticSearchBulk;
+import org.apache.manifoldcf.agents.output.elasticsearch.ElasticSearchConfig;
+import org.apache.manifoldcf.agents.output.elasticsearch.ElasticSearchConnection.Result;
+import org.apache.manifoldcf.agents.output.elasticsearch.ElasticSearchIndex;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Check the _bulk request body, the parsing of the response, and the JSON
+ * source of a document. */
+public class ElasticSearchBulkTest
+{
+
+  @Test
+  public void recordsEachOutcome() throws Exception
+  {
+    List<ElasticSearchBulk.Item> items = new ArrayList<ElasticSearchBulk.Item>();
+    items.add(index("http://a"));
+    items.add(delete("http://b"));
+    items.add(index("http://c"));
+    items.add(index("http://d"));
+    items.add(index("http://e"));
+    items.add(delete("http://f"));
+    items.add(index("http://g"));
+    ElasticSearchBulk.recordResults(items, "{\"took\":5,\"items\":["
+        + "{\"index\":{\"_id\":\"http://a\",\"ok\":true}},"
+        // A document that isn't there has nothing to delete
+        + "{\"delete\":{\"_id\":\"http://b\",\"status\":404}},"
+        + "{\"index\":{\"_id\":\"http://c\",\"error\":\"MapperParsingException[failed]\"}},"
+        + "{\"index\":{\"_id\":\"http://d\",\"ok\":false}},"
+        + "{\"index\":{\"_id\":\"http://e\",\"status\":500}},"
+        + "{\"delete\":{\"_id\":\"http://f\",\"status\":200}},"
+        // Answered as the wrong kind of operation
+        + "{\"delete\":{\"_id\":\"http://g\",\"ok\":true}}]}");
+    Result[] expected = new Result[]{Result.OK, Result.OK, Result.ERROR,
+        Result.ERROR, Result.ERROR, Result.OK, Result.ERROR};
+    for (int i = 0; i < expected.length; i++)
+    {
+      assertTrue(items.get(i).isDone());
+      assertEquals("Item " + i, expected[i], items.get(i).getResult());
+    }
+    assertEquals("MapperParsingException[failed]", items.get(2)
+        .getResultDescription());
+  }
+
+  @Test
+  public void countMismatchFails() throws Exception
+  {
+    List<ElasticSearchBulk.Item> items = new ArrayList<ElasticSearchBulk.Item>();
+    items.add(index("http://a"));
+    items.add(index("http://b"));
+    try
+    {
+      ElasticSearchBulk.recordResults(items,
+          "{\"items\":[{\"index\":{\"_id\":\"http://a\",\"ok\":true}}]}");
+      fail("Expected an exception");
+    } catch (ManifoldCFException e)
+    {
+      // Expected
+    }
+    assertFalse(items.get(1).isDone());
+  }
+
+  @Test
+  public void unparseableResponseFails() throws Exception
+  {
+    List<ElasticSearchBulk.Item> items = new ArrayList<ElasticSearchBulk.Item>();
+    items.add(index("http://a"));
+    try
+    {
+      ElasticSearchBulk.recordResults(items, "<html>Bad gateway</html>");
+      fail("Expected an exception");
+    } catch (ManifoldCFException e)
+    {
+      // Expected
+    }
+  }
+
+  @Test
+  public void requestBody() throws Exception
+  {
+    List<ElasticSearchBulk.Item> items = new ArrayList<ElasticSearchBulk.Item>();
+    items.add(new ElasticSearchBulk.Item(ElasticSearchBulk.ACTION_INDEX,
+        "http://a/\"quoted\"", "{\"title\" : \"A\"}".getBytes("UTF-8")));
+    items.add(delete("http://b"));
+    String body = new String(ElasticSearchBulk.makeRequestBody(items,
+        new ElasticSearchConfig(new ConfigParams())), "UTF-8");
+    String[] lines = body.split("\n");
+    assertEquals(3, lines.length);
+    assertTrue(body.endsWith("\n"));
+    JSONObject metadata = new JSONObject(lines[0]).getJSONObject("index");
+    assertEquals("generictype", metadata.getString("_type"));
+    assertEquals("http://a/\"quoted\"", metadata.getString("_id"));
+    assertEquals("A", new JSONObject(lines[1]).getString("title"));
+    assertEquals("http://b", new JSONObject(lines[2]).getJSONObject("delete")
+        .getString("_id"));
+  }
+
+  @Test
+  public void multiValuedFieldsAreArrays() throws Exception
+  {
+    RepositoryDocument document = new RepositoryDocument();
+    document.addField("author", new String[]{"Smith", "Jones"});
+    document.addField("title", "One title");
+    document.addField("empty", new String[0]);
+    JSONObject source = new JSONObject(new String(
+        ElasticSearchIndex.buildSource(document, null), "UTF-8"));
+    JSONArray authors = source.getJSONArray("author");
+    assertEquals(2, authors.length());
+    assertEquals("Smith", authors.getString(0));
+    assertEquals("Jones", authors.getString(1));
+    assertEquals("One title", source.getString("title"));
+    assertFalse(source.has("empty"));
+  }
+
+  protected static ElasticSearchBulk.Item index(String documentURI)
+      throws Exception
+  {
+    return new ElasticSearchBulk.Item(ElasticSearchBulk.ACTION_INDEX,
+        documentURI, "{}".getBytes("UTF-8"));
+  }
+
+  protected static ElasticSearchBulk.Item delete(String documentURI)
+  {
+    return new ElasticSearchBulk.Item(ElasticSearchBulk.ACTION_DELETE,
+        documentURI, null);
+  }
+
+}
@@ -25,6 +25,9 @@ import org.apache.manifoldcf.crawler.system.Logging;
 import org.apache.manifoldcf.crawler.system.ManifoldCF;
 import java.util.*;
 import java.io.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.apache.commons.httpclient.*;
 import org.apache.commons.httpclient.methods.*;
@@ -53,6 +56,80 @@ public class ThrottledFetcher
   /** The read chunk length */
   protected static final int READ_CHUNK_LENGTH = 4096;
 
+  /** Content encodings that fetches ask for, and that response bodies are decoded from */
+  protected static final String ACCEPT_ENCODING = "gzip, deflate";
+
+  /** Find the content encoding of a response that getResponseBodyStream() will undo.
+  *@param contentEncoding is the Content-Encoding header value, or null.
+  *@return "gzip" or "deflate", or null if the body is to be handed back as it is.
+  */
+  protected static String findDecodedEncoding(String contentEncoding)
+  {
+    if (contentEncoding == null)
+      return null;
+    contentEncoding = contentEncoding.trim().toLowerCase();
+    if (contentEncoding.equals("gzip") || contentEncoding.equals("x-gzip"))
+      return "gzip";
+    if (contentEncoding.equals("deflate"))
+      return "deflate";
+    return null;
+  }
+
+  /** Wrap a response body stream so that its content encoding is undone.  The stream passed in should be the
+  * throttled one, so that throttling and fetch byte counts go by the bytes actually transferred.
+  *@param is is the body stream.
+  *@param decodedEncoding is the value returned by findDecodedEncoding(), or null.
+  *@return the decoded stream.
+  */
+  protected static InputStream decodeStream(InputStream is, String decodedEncoding)
+    throws IOException
+  {
+    if (decodedEncoding == null)
+      return is;
+    // Look at the start of the body.  An empty body is not valid gzip or deflate data, but there is nothing to decode anyway.
+    PushbackInputStream pis = new PushbackInputStream(is,2);
+    byte[] start = new byte[2];
+    int startLength = 0;
+    while (startLength < start.length)
+    {
+      int amt = pis.read(start,startLength,start.length-startLength);
+      if (amt == -1)
+        break;
+      startLength += amt;
+    }
+    pis.unread(start,0,startLength);
+    if (startLength == 0)
+      return pis;
+    if (decodedEncoding.equals("gzip"))
+      return new GZIPInputStream(pis);
+    // Servers disagree about whether "deflate" means zlib-wrapped data or raw deflate data, so tell them apart by the zlib header.
+    boolean zlibHeader = startLength == 2 && (start[0] & 0x0f) == 8 && ((((int)start[0] & 0xff) << 8) + ((int)start[1] & 0xff)) % 31 == 0;
+    return new DeflateInputStream(pis,!zlibHeader);
+  }
+
+  /** Inflating stream that releases its inflater when closed.
+  */
+  protected static class DeflateInputStream extends InflaterInputStream
+  {
+    public DeflateInputStream(InputStream is, boolean raw)
+    {
+      super(is,new Inflater(raw));
+    }
+
+    public void close()
+      throws IOException
+    {
+      try
+      {
+        super.close();
+      }
+      finally
+      {
+        inf.end();
+      }
+    }
+  }
+
   /** This counter keeps track of the total outstanding handles across everything, because we do try to control that */
   protected static int globalHandleCount = 0;
   /** This is the lock object for that global handle counter */
@@ -604,6 +681,7 @@ public class ThrottledFetcher
         // Set all appropriate headers
         fetchMethod.setRequestHeader("User-Agent",userAgent);
         fetchMethod.setRequestHeader("From",from);
+        fetchMethod.setRequestHeader("Accept-Encoding",ACCEPT_ENCODING);
         if (lastETag != null)
           fetchMethod.setRequestHeader("ETag",lastETag);
         if (lastModified != null)
@@ -806,7 +884,7 @@ public class ThrottledFetcher
         InputStream bodyStream = fetchMethod.getResponseBodyAsStream();
         if (bodyStream == null)
           throw new ManifoldCFException("Failed to set up body response stream");
-        return new ThrottledInputstream(this,server,bodyStream,minimumMillisecondsPerBytePerServer,dataSession);
+        return decodeStream(new ThrottledInputstream(this,server,bodyStream,minimumMillisecondsPerBytePerServer,dataSession),getDecodedEncoding());
       }
       catch (IOException e)
       {
@@ -818,6 +896,25 @@ public class ThrottledFetcher
       }
     }
 
+    /** Get the content encoding that the response body is decoded from, if any.
+    *@return "gzip" or "deflate", or null if the body is handed back as it was sent.
+    */
+    protected String getDecodedEncoding()
+    {
+      Header h = fetchMethod.getResponseHeader("Content-Encoding");
+      if (h == null)
+        return null;
+      return findDecodedEncoding(h.getValue());
+    }
+
+    /** Check whether a header describes the encoded body.  Once the body has been decoded, such headers no
+    * longer apply to it, and are not reported.
+    */
+    protected boolean isEncodingHeader(String headerName)
+    {
+      return headerName.equalsIgnoreCase("Content-Encoding") || headerName.equalsIgnoreCase("Content-Length");
+    }
+
     /** Get a specified response header, if it exists.
     *@param headerName is the name of the header.
     *@return the header value, or null if it doesn't exist.
@@ -825,6 +922,8 @@ public class ThrottledFetcher
     public String getResponseHeader(String headerName)
       throws ManifoldCFException, ServiceInterruption
     {
+      if (isEncodingHeader(headerName) && getDecodedEncoding() != null)
+        return null;
       Header h = fetchMethod.getResponseHeader(headerName);
       if (h == null)
         return null;
@@ -924,7 +1023,7 @@ public class ThrottledFetcher
       int count = read(byteArray,0,1);
       if (count == -1)
         return count;
-      return (int)byteArray[0];
+      return ((int)byteArray[0]) & 0xff;
     }
 
     /** Read lots of bytes.
@@ -0,0 +1,273 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.output.solr;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.agents.system.*;
+
+import java.util.*;
+
+/** Collects documents from concurrent ingestion threads into multi-document update requests.
+* Each thread adds its document and waits.  A batch is sent by the thread whose document fills it, or, if it does not
+* fill up in time, by the first thread whose wait runs out.  The result for each document is then handed back to the
+* thread that added it.
+*
+* There is one batcher per Solr target, shared by all the posters that send to it, since each worker thread uses its
+* own connector instance.
+*/
+public class DocumentBatcher
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The batchers, keyed by target */
+  protected final static Map<String,DocumentBatcher> batchers = new HashMap<String,DocumentBatcher>();
+
+  /** The number of documents per batch */
+  protected final int batchSize;
+  /** How long a document may wait for its batch to fill, in milliseconds */
+  protected final long batchWait;
+
+  /** The batch currently being filled, or null */
+  protected Batch currentBatch = null;
+
+  /** Find or create the batcher for a target.
+  *@param key describes the target, including everything that must be the same for documents to share a request.
+  *@param batchSize is the number of documents per batch.
+  *@param batchWait is the longest time a document should wait for its batch to fill.
+  *@return the batcher.
+  */
+  public static DocumentBatcher getBatcher(String key, int batchSize, long batchWait)
+  {
+    key = key + "/" + Integer.toString(batchSize) + "/" + Long.toString(batchWait);
+    synchronized (batchers)
+    {
+      DocumentBatcher rval = batchers.get(key);
+      if (rval == null)
+      {
+        rval = new DocumentBatcher(batchSize,batchWait);
+        batchers.put(key,rval);
+      }
+      return rval;
+    }
+  }
+
+  /** Constructor.
+  */
+  protected DocumentBatcher(int batchSize, long batchWait)
+  {
+    this.batchSize = batchSize;
+    this.batchWait = batchWait;
+  }
+
+  /** Add a document to a batch, and wait until the batch has been sent.  On return, the entry describes the outcome
+  * for this document.
+  *@param entry is the document.
+  *@param poster is the poster to use if this thread ends up sending the batch.
+  */
+  public void addDocument(BatchEntry entry, HttpPoster poster)
+    throws ManifoldCFException
+  {
+    Batch batchToSend = null;
+    synchronized (this)
+    {
+      if (currentBatch == null)
+        currentBatch = new Batch(System.currentTimeMillis() + batchWait);
+      Batch batch = currentBatch;
+      batch.entries.add(entry);
+      if (batch.entries.size() >= batchSize)
+      {
+        // We filled it, so we send it
+        currentBatch = null;
+        batchToSend = batch;
+      }
+      else
+      {
+        try
+        {
+          while (!batch.taken)
+          {
+            long remaining = batch.deadline - System.currentTimeMillis();
+            if (remaining <= 0L)
+            {
+              // Nobody filled it in time, so we send it
+              if (currentBatch == batch)
+                currentBatch = null;
+              batch.taken = true;
+              batchToSend = batch;
+              break;
+            }
+            wait(remaining);
+          }
+        }
+        catch (InterruptedException e)
+        {
+          throw new ManifoldCFException("Interrupted: "+e.getMessage(),ManifoldCFException.INTERRUPTED);
+        }
+      }
+      if (batchToSend != null)
+        batchToSend.taken = true;
+    }
+
+    if (batchToSend != null)
+    {
+      try
+      {
+        if (Logging.ingest.isDebugEnabled())
+          Logging.ingest.debug("Sending batch of "+Integer.toString(batchToSend.entries.size())+" documents");
+        poster.sendBatch(batchToSend.entries);
+      }
+      catch (Throwable e)
+      {
+        // Whatever went wrong applies to every document that has no outcome yet
+        int i = 0;
+        while (i < batchToSend.entries.size())
+        {
+          BatchEntry other = batchToSend.entries.get(i++);
+          if (!other.isDone())
+            other.setException(e);
+        }
+      }
+      synchronized (this)
+      {
+        notifyAll();
+      }
+      return;
+    }
+
+    // Someone else is sending our batch; wait for our outcome
+    synchronized (this)
+    {
+      try
+      {
+        while (!entry.isDone())
+          wait();
+      }
+      catch (InterruptedException e)
+      {
+        throw new ManifoldCFException("Interrupted: "+e.getMessage(),ManifoldCFException.INTERRUPTED);
+      }
+    }
+  }
+
+  /** A batch being filled */
+  protected static class Batch
+  {
+    public final List<BatchEntry> entries = new ArrayList<BatchEntry>();
+    public final long deadline;
+    public boolean taken = false;
+
+    public Batch(long deadline)
+    {
+      this.deadline = deadline;
+    }
+  }
+
+  /** One document in a batch, and its outcome.
+  */
+  public static class BatchEntry
+  {
+    protected final String documentURI;
+    protected final byte[] documentXML;
+
+    protected volatile boolean done = false;
+    protected boolean accepted = false;
+    protected Throwable exception = null;
+    protected Long activityStart = null;
+    protected String activityCode = null;
+    protected String activityDetails = null;
+
+    /** Constructor.
+    *@param documentURI is the document's URI.
+    *@param documentXML is the document, as a UTF-8 encoded update &lt;doc&gt; element.
+    */
+    public BatchEntry(String documentURI, byte[] documentXML)
+    {
+      this.documentURI = documentURI;
+      this.documentXML = documentXML;
+    }
+
+    public String getDocumentURI()
+    {
+      return documentURI;
+    }
+
+    public byte[] getDocumentXML()
+    {
+      return documentXML;
+    }
+
+    /** Record the outcome of a request that got a response.
+    */
+    public void setResult(boolean accepted, long activityStart, String activityCode, String activityDetails)
+    {
+      this.accepted = accepted;
+      this.activityStart = new Long(activityStart);
+      this.activityCode = activityCode;
+      this.activityDetails = activityDetails;
+      this.done = true;
+    }
+
+    /** Record an activity for a request that failed, before the exception is set.
+    */
+    public void setActivity(long activityStart, String activityCode, String activityDetails)
+    {
+      this.activityStart = new Long(activityStart);
+      this.activityCode = activityCode;
+      this.activityDetails = activityDetails;
+    }
+
+    public void setException(Throwable exception)
+    {
+      this.exception = exception;
+      this.done = true;
+    }
+
+    public boolean isDone()
+    {
+      return done;
+    }
+
+    public boolean getAccepted()
+    {
+      return accepted;
+    }
+
+    public Throwable getException()
+    {
+      return exception;
+    }
+
+    public Long getActivityStart()
+    {
+      return activityStart;
+    }
+
+    public String getActivityCode()
+    {
+      return activityCode;
+    }
+
+    public String getActivityDetails()
+    {
+      return activityDetails;
+    }
+  }
+
+}
@@ -0,0 +1,383 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.output.solr;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.agents.system.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Pool of persistent (HTTP/1.1 keep-alive) connections to one Solr host.
+* There is one pool per protocol, host, port, and keystore, shared by all the posters that talk to that host, and the
+* pool can limit the number of connections that are open to the host at any one time; by default it does not.  Connections are handed back to the pool
+* after a request only if the response said the connection could be kept alive and the response was read completely;
+* idle connections are closed once they have been unused for a while, or if the server has closed them.
+*/
+public class HttpConnectionPool
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** Idle connections unused for longer than this are closed rather than reused.  This must be well below the
+  * server's own keep-alive timeout, so that we rarely write a request onto a connection the server is closing. */
+  protected final static long IDLE_EXPIRATION = 30000L;
+
+  /** Idle connections unused for longer than this are checked for having been closed by the server before they are
+  * reused.  The check costs a short blocking read, so connections handed straight back out are not checked; a write
+  * onto one the server has just closed fails like any other IO error, and the request is retried. */
+  protected final static long STALE_CHECK_IDLE_TIME = 2000L;
+
+  /** Output buffer size for a connection */
+  protected final static int OUTPUT_BUFFER_SIZE = 8192;
+
+  /** The pools, keyed by protocol, host, port, and keystore */
+  protected final static Map<String,HttpConnectionPool> pools = new HashMap<String,HttpConnectionPool>();
+
+  /** Protocol */
+  protected final String protocol;
+  /** Host */
+  protected final String host;
+  /** Port */
+  protected final int port;
+  /** Secure socket factory, if any */
+  protected final javax.net.ssl.SSLSocketFactory socketFactory;
+  /** The maximum number of connections to the host, or zero for no limit */
+  protected int maxConnections;
+
+  /** Idle connections, most recently used last */
+  protected final LinkedList<HttpConnection> idleConnections = new LinkedList<HttpConnection>();
+  /** The number of open connections, idle or in use */
+  protected int openCount = 0;
+
+  /** Find or create the pool for a host.
+  *@param protocol is the protocol ("http" or "https").
+  *@param host is the host name.
+  *@param port is the port.
+  *@param keystoreData is the keystore the socket factory was built from, or null.
+  *@param socketFactory is the secure socket factory to use for https.
+  *@param maxConnections is the maximum number of connections to the host, or zero for no limit.
+  *@return the pool.
+  */
+  public static HttpConnectionPool getPool(String protocol, String host, int port, String keystoreData,
+    javax.net.ssl.SSLSocketFactory socketFactory, int maxConnections)
+  {
+    String key = protocol + "://" + host + ":" + Integer.toString(port) + ((keystoreData == null)?"":"/"+keystoreData);
+    synchronized (pools)
+    {
+      HttpConnectionPool pool = pools.get(key);
+      if (pool == null)
+      {
+        pool = new HttpConnectionPool(protocol,host,port,socketFactory,maxConnections);
+        pools.put(key,pool);
+      }
+      else
+        pool.setMaxConnections(maxConnections);
+      return pool;
+    }
+  }
+
+  /** Close idle connections that have expired, in all pools.
+  *@param currentTime is the current time.
+  */
+  public static void closeIdleConnections(long currentTime)
+  {
+    HttpConnectionPool[] poolArray;
+    synchronized (pools)
+    {
+      poolArray = pools.values().toArray(new HttpConnectionPool[0]);
+    }
+    int i = 0;
+    while (i < poolArray.length)
+    {
+      poolArray[i++].expireIdleConnections(currentTime);
+    }
+  }
+
+  /** Constructor.
+  */
+  protected HttpConnectionPool(String protocol, String host, int port, javax.net.ssl.SSLSocketFactory socketFactory, int maxConnections)
+  {
+    this.protocol = protocol;
+    this.host = host;
+    this.port = port;
+    this.socketFactory = socketFactory;
+    this.maxConnections = (maxConnections < 0)?0:maxConnections;
+  }
+
+  /** Change the connection limit.
+  */
+  protected synchronized void setMaxConnections(int maxConnections)
+  {
+    this.maxConnections = (maxConnections < 0)?0:maxConnections;
+    notifyAll();
+  }
+
+  /** Get a connection, reusing an idle one if possible.  Waits if the host's connection limit has been reached, but
+  * no longer than the socket timeout.
+  *@param timeoutMilliseconds is the socket timeout to use for the request.
+  *@param retryInterval is how long to wait before retrying, if no connection becomes free in time.
+  *@return the connection, which must be handed back via release().
+  */
+  public HttpConnection acquire(long timeoutMilliseconds, long retryInterval)
+    throws IOException, ManifoldCFException, ServiceInterruption
+  {
+    long giveUpTime = System.currentTimeMillis() + timeoutMilliseconds;
+    while (true)
+    {
+      HttpConnection candidate = null;
+      synchronized (this)
+      {
+        while (true)
+        {
+          if (idleConnections.size() > 0)
+          {
+            candidate = idleConnections.removeLast();
+            break;
+          }
+          if (maxConnections == 0 || openCount < maxConnections)
+          {
+            openCount++;
+            break;
+          }
+          long waitTime = giveUpTime - System.currentTimeMillis();
+          if (waitTime <= 0L)
+          {
+            long currentTime = System.currentTimeMillis();
+            throw new ServiceInterruption("Timed out waiting for one of the "+Integer.toString(maxConnections)+
+              " connections to "+host+":"+Integer.toString(port)+" to become free; ingestion will be retried again later",
+              null,currentTime + retryInterval,currentTime + 2L * 60L * 60000L,-1,true);
+          }
+          try
+          {
+            wait(waitTime);
+          }
+          catch (InterruptedException e)
+          {
+            throw new InterruptedIOException("Interrupted waiting for a connection");
+          }
+        }
+      }
+
+      if (candidate != null)
+      {
+        // Check the idle connection outside of the lock, since that involves the socket
+        long idleTime = System.currentTimeMillis() - candidate.getLastUsed();
+        if (idleTime < IDLE_EXPIRATION && (idleTime < STALE_CHECK_IDLE_TIME || !candidate.isStale()))
+        {
+          candidate.setTimeout(timeoutMilliseconds);
+          return candidate;
+        }
+        discard(candidate);
+        continue;
+      }
+
+      // We reserved a slot for a new connection
+      boolean succeeded = false;
+      try
+      {
+        HttpConnection rval = new HttpConnection(createSocket());
+        rval.setTimeout(timeoutMilliseconds);
+        succeeded = true;
+        return rval;
+      }
+      finally
+      {
+        if (!succeeded)
+        {
+          synchronized (this)
+          {
+            openCount--;
+            notifyAll();
+          }
+        }
+      }
+    }
+  }
+
+  /** Hand back a connection.
+  *@param connection is the connection.
+  *@param reusable is true if the last response allows the connection to be kept alive, and was read completely.
+  */
+  public void release(HttpConnection connection, boolean reusable)
+  {
+    if (reusable)
+    {
+      connection.setLastUsed(System.currentTimeMillis());
+      synchronized (this)
+      {
+        idleConnections.addLast(connection);
+        notifyAll();
+      }
+    }
+    else
+      discard(connection);
+  }
+
+  /** Close idle connections that have expired.
+  */
+  protected void expireIdleConnections(long currentTime)
+  {
+    List<HttpConnection> expired = new ArrayList<HttpConnection>();
+    synchronized (this)
+    {
+      Iterator<HttpConnection> iter = idleConnections.iterator();
+      while (iter.hasNext())
+      {
+        HttpConnection connection = iter.next();
+        if (connection.getLastUsed() + IDLE_EXPIRATION <= currentTime)
+        {
+          iter.remove();
+          expired.add(connection);
+        }
+      }
+    }
+    int i = 0;
+    while (i < expired.size())
+    {
+      discard(expired.get(i++));
+    }
+  }
+
+  /** Close a connection and give up its slot.
+  */
+  protected void discard(HttpConnection connection)
+  {
+    connection.close();
+    synchronized (this)
+    {
+      openCount--;
+      notifyAll();
+    }
+  }
+
+  /** Create a socket in a manner consistent with all of our specified parameters.
+  */
+  protected Socket createSocket()
+    throws IOException, ManifoldCFException
+  {
+    if (protocol.equals("https") && socketFactory != null)
+    {
+      try
+      {
+        return socketFactory.createSocket(host,port);
+      }
+      catch (InterruptedIOException e)
+      {
+        throw e;
+      }
+      catch (IOException e)
+      {
+        throw new ManifoldCFException("Couldn't set up SSL connection to ingestion API: "+e.getMessage(),e);
+      }
+    }
+    return new Socket(host, port);
+  }
+
+  /** A connection to the host, with its buffered streams.
+  */
+  public static class HttpConnection
+  {
+    protected final Socket socket;
+    protected final InputStream in;
+    protected final OutputStream out;
+    protected long lastUsed = 0L;
+
+    public HttpConnection(Socket socket)
+      throws IOException
+    {
+      this.socket = socket;
+      this.in = new BufferedInputStream(socket.getInputStream());
+      this.out = new BufferedOutputStream(socket.getOutputStream(),OUTPUT_BUFFER_SIZE);
+    }
+
+    public InputStream getInputStream()
+    {
+      return in;
+    }
+
+    public OutputStream getOutputStream()
+    {
+      return out;
+    }
+
+    public void setTimeout(long timeoutMilliseconds)
+      throws IOException
+    {
+      socket.setSoTimeout((int)timeoutMilliseconds);
+    }
+
+    public long getLastUsed()
+    {
+      return lastUsed;
+    }
+
+    public void setLastUsed(long lastUsed)
+    {
+      this.lastUsed = lastUsed;
+    }
+
+    /** Check whether an idle connection can no longer be used: either the server has closed it, or there is
+    * unexpected data waiting on it.
+    */
+    public boolean isStale()
+    {
+      if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown())
+        return true;
+      try
+      {
+        if (in.available() > 0)
+          return true;
+        // Try a very short read.  A timeout means the connection is open and quiet, which is what we want.
+        socket.setSoTimeout(1);
+        try
+        {
+          in.read();
+          // Either end of stream, or data nobody asked for
+          return true;
+        }
+        catch (SocketTimeoutException e)
+        {
+          return false;
+        }
+      }
+      catch (IOException e)
+      {
+        return true;
+      }
+    }
+
+    /** Close the connection, ignoring errors.
+    */
+    public void close()
+    {
+      try
+      {
+        socket.close();
+      }
+      catch (IOException e)
+      {
+        Logging.ingest.debug("Error closing socket: "+e.getMessage(),e);
+        // Do NOT rethrow
+      }
+    }
+  }
+
+}
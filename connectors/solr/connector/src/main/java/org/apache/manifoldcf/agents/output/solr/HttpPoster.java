@@ -51,14 +51,21 @@ public class HttpPoster
   public static String ingestUserProperty = "org.apache.manifoldcf.ingest.user";
   public static String ingestPasswordProperty = "org.apache.manifoldcf.ingest.password";
   public static String ingestMaxConnectionsProperty = "org.apache.manifoldcf.ingest.maxconnections";
+  public static String ingestChunkedProperty = "org.apache.manifoldcf.ingest.chunked";
+
+  /** Poster threads that are waiting for something to do */
+  protected static List<PosterThread> idlePosterThreads = new ArrayList<PosterThread>();
+  /** How long a poster thread may sit idle before it goes away */
+  protected static final long POSTER_THREAD_IDLE_TIMEOUT = 60000L;
 
   // Chunk size for base64-encoded headers
   protected final static int HEADER_CHUNK = 4096;
 
   private String protocol;
   private String host;
-  private javax.net.ssl.SSLSocketFactory socketFactory;
   private int port;
+  private String hostHeader;
+  private HttpConnectionPool connectionPool;
   private String encodedCredentials;
   private String realm;
   private String postUpdateAction;
@@ -73,11 +80,26 @@ public class HttpPoster
   private String commitWithin;
   
   private static final String LITERAL = "literal.";
+  private static final String FMAP = "fmap.";
   private static final String NOTHING = "__NOTHING__";
   private static final String ID_METADATA = "lcf_metadata_id";
   private static final String COMMITWITHIN_METADATA = "commitWithin";
   
   private int buffersize = 32768;  // default buffer size
+  /** The maximum number of connections to keep open to one Solr host; 0 means no limit */
+  private int maxConnections = 10;
+  /** True if documents are sent with chunked transfer encoding, rather than computing the content length first */
+  private boolean chunkedPosts = true;
+  /** The number of documents per batched update request; 0 means no batching */
+  private int batchSize;
+  /** How long a document may wait for its batch to fill */
+  private long batchWait;
+  /** Documents longer than this are always sent by themselves */
+  private long batchMaxDocumentLength;
+  /** The field that receives the content of batched documents */
+  private String batchContentField;
+  /** The batcher, if batching */
+  private DocumentBatcher batcher = null;
   double sizeCoefficient = 0.0005;    // 20 ms additional timeout per 2000 bytes, pulled out of my butt
   /** the number of times we should poll for the response */
   int responseRetries = 9000;         // Long basic wait: 3 minutes.  This will also be added to by a term based on the size of the request.
@@ -129,16 +151,25 @@ public class HttpPoster
   * Initialized the http poster.
   * @param userID is the unencoded user name, or null.
   * @param password is the unencoded password, or null.
+  * @param batchSize is the number of documents per batched update request, or 0 not to batch.
+  * @param batchWait is how long, in milliseconds, a document may wait for its batch to fill.
+  * @param batchMaxDocumentLength is the length above which a document is always sent by itself.
+  * @param batchContentField is the Solr field that receives the content of batched documents.
   */
   public HttpPoster(String protocol, String server, int port, String webappName,
     String updatePath, String removePath, String statusPath,
     String realm, String userID, String password,
     String allowAttributeName, String denyAttributeName, String idAttributeName,
     IKeystoreManager keystoreManager, Long maxDocumentLength,
-    String commitWithin)
+    String commitWithin,
+    int batchSize, long batchWait, long batchMaxDocumentLength, String batchContentField)
     throws ManifoldCFException
   {
     this.commitWithin = commitWithin;
+    this.batchSize = batchSize;
+    this.batchWait = batchWait;
+    this.batchMaxDocumentLength = batchMaxDocumentLength;
+    this.batchContentField = batchContentField;
     
     this.allowAttributeName = allowAttributeName;
     this.denyAttributeName = denyAttributeName;
@@ -149,11 +180,13 @@ public class HttpPoster
     this.host = server;
     this.port = port;
     this.protocol = protocol;
+    this.hostHeader = "Host: " + server + ":" + Integer.toString(port) + "\r\n";
+    javax.net.ssl.SSLSocketFactory socketFactory;
     if (keystoreManager != null)
-      this.socketFactory = keystoreManager.getSecureSocketFactory();
+      socketFactory = keystoreManager.getSecureSocketFactory();
     else
       // Use the "trust everything" one.
-      this.socketFactory = openSecureSocketFactory;
+      socketFactory = openSecureSocketFactory;
 
     if (userID != null && userID.length() > 0 && password != null)
     {
@@ -191,6 +224,22 @@ public class HttpPoster
     x = ManifoldCF.getProperty(ingestRescheduleInterval);
     if (x != null && x.length() > 0)
       interruptionRetryTime = new Long(x).longValue();
+    x = ManifoldCF.getProperty(ingestMaxConnectionsProperty);
+    if (x != null && x.length() > 0)
+      maxConnections = new Integer(x).intValue();
+    x = ManifoldCF.getProperty(ingestChunkedProperty);
+    if (x != null && x.length() > 0)
+      chunkedPosts = x.equals("true");
+
+    // Connections are shared with all the other posters for the same host
+    String keystoreString = (keystoreManager == null)?null:keystoreManager.getString();
+    connectionPool = HttpConnectionPool.getPool(protocol,server,port,keystoreString,socketFactory,maxConnections);
+
+    // So are batches, for posters whose requests would be identical
+    if (batchSize > 1)
+      batcher = DocumentBatcher.getBatcher(protocol + "://" + server + ":" + Integer.toString(port) + postRemoveAction + "/" +
+        ((keystoreString == null)?"":keystoreString) + "/" + ((encodedCredentials == null)?"":encodedCredentials) + "/" +
+        ((commitWithin == null)?"":commitWithin),batchSize,batchWait);
   }
 
   /** Cause a commit to happen.
@@ -207,7 +256,7 @@ public class HttpPoster
       // Open a socket to ingest, and to the response stream to get the post result
       try
       {
-        CommitThread t = new CommitThread();
+        CommitTask t = new CommitTask();
         try
         {
           t.start();
@@ -297,6 +346,14 @@ public class HttpPoster
     String[] acls = convertACL(document.getACL(),authorityNameString,activities);
     String[] denyAcls = convertACL(document.getDenyACL(),authorityNameString,activities);
     
+    // Small plain text documents go in batches, if we're batching and no arguments set or map fields
+    if (batcher != null && document.getBinaryLength() <= batchMaxDocumentLength && !hasFieldArguments(arguments))
+    {
+      String text = readBatchText(documentURI,document,activities);
+      if (text != null)
+        return batchedIndexPost(documentURI,document,text,sourceTargets,shareAcls,shareDenyAcls,acls,denyAcls,activities);
+    }
+
     // This flag keeps track of whether we read anything from the input stream yet.
     // If not, we can retry here.  If so, we have to reschedule.
     boolean readFromDocumentStreamYet = false;
@@ -306,7 +363,7 @@ public class HttpPoster
     {
       try
       {
-        IngestThread t = new IngestThread(documentURI,document,arguments,sourceTargets,shareAcls,shareDenyAcls,acls,denyAcls,commitWithin);
+        IngestTask t = new IngestTask(documentURI,document,arguments,sourceTargets,shareAcls,shareDenyAcls,acls,denyAcls,commitWithin);
         try
         {
           t.start();
@@ -386,6 +443,384 @@ public class HttpPoster
 
   }
 
+  /** Read the content of a document that is small enough to batch, and decide whether it can be batched.  Batched
+  * documents skip extraction, so only plain text in a charset that can be recognized from the bytes qualifies.  If the
+  * document does not qualify, it is given an in-memory copy of its content, since the original stream has been read.
+  *@return the content as text, or null if the document must be sent on its own.
+  */
+  protected String readBatchText(String documentURI, RepositoryDocument document, IOutputAddActivity activities)
+    throws ManifoldCFException, ServiceInterruption
+  {
+    long startTime = System.currentTimeMillis();
+    byte[] content;
+    try
+    {
+      content = readInputStream(document.getBinaryStream(),document.getBinaryLength());
+    }
+    catch (InterruptedIOException e)
+    {
+      throw new ManifoldCFException("Interrupted: "+e.getMessage(),ManifoldCFException.INTERRUPTED);
+    }
+    catch (IOException ioe)
+    {
+      // Log the error
+      Logging.ingest.warn("Error reading data for transmission to Ingestion API: "+ioe.getMessage(),ioe);
+      activities.recordActivity(new Long(startTime),SolrConnector.INGEST_ACTIVITY,null,documentURI,"-1","Couldn't read document: "+ioe.getMessage());
+      long currentTime = System.currentTimeMillis();
+      throw new ServiceInterruption("IO error reading document for ingestion: "+ioe.getMessage()+"; read will be retried again later",
+        ioe,
+        currentTime + interruptionRetryTime,
+        currentTime + 2L * 60L * 60000L,
+        -1,
+        true);
+    }
+    String text = decodeBatchText(content);
+    if (text == null)
+    {
+      if (Logging.ingest.isDebugEnabled())
+        Logging.ingest.debug("Document '"+documentURI+"' is not plain text; sending it for extraction on its own");
+      document.setBinary(new ByteArrayInputStream(content),(long)content.length);
+    }
+    return text;
+  }
+
+  /** Decode document content as plain text, if it is plain text.  The charset must be identifiable from the bytes:
+  * a UTF-16 byte order mark, or else content that decodes cleanly as UTF-8 (which includes ASCII).  Content that
+  * contains NUL characters is taken to be binary, and content that starts like markup, PDF, or RTF is left for
+  * the extracting handler, even though it may be text.
+  *@return the text, or null if the content is not plain text.
+  */
+  protected static String decodeBatchText(byte[] content)
+  {
+    String charsetName = "UTF-8";
+    int offset = 0;
+    if (content.length >= 3 && (content[0] & 0xff) == 0xef && (content[1] & 0xff) == 0xbb && (content[2] & 0xff) == 0xbf)
+      offset = 3;
+    else if (content.length >= 2 && (content[0] & 0xff) == 0xfe && (content[1] & 0xff) == 0xff)
+    {
+      charsetName = "UTF-16BE";
+      offset = 2;
+    }
+    else if (content.length >= 2 && (content[0] & 0xff) == 0xff && (content[1] & 0xff) == 0xfe)
+    {
+      charsetName = "UTF-16LE";
+      offset = 2;
+    }
+
+    String text;
+    try
+    {
+      java.nio.charset.CharsetDecoder decoder = java.nio.charset.Charset.forName(charsetName).newDecoder()
+        .onMalformedInput(java.nio.charset.CodingErrorAction.REPORT)
+        .onUnmappableCharacter(java.nio.charset.CodingErrorAction.REPORT);
+      text = decoder.decode(java.nio.ByteBuffer.wrap(content,offset,content.length-offset)).toString();
+    }
+    catch (java.nio.charset.CharacterCodingException e)
+    {
+      return null;
+    }
+
+    if (text.indexOf('\u0000') != -1)
+      return null;
+    int i = 0;
+    while (i < text.length() && Character.isWhitespace(text.charAt(i)))
+    {
+      i++;
+    }
+    if (text.startsWith("<",i) || text.startsWith("%PDF",i) || text.startsWith("{\\rtf",i))
+      return null;
+    return text;
+  }
+
+  /** Check whether any of the arguments are extracting handler parameters that set (literal.*) or map (fmap.*) fields.
+  * Batched documents bypass the extracting handler, so documents with such arguments are never batched.
+  */
+  protected static boolean hasFieldArguments(Map arguments)
+  {
+    Iterator iter = arguments.keySet().iterator();
+    while (iter.hasNext())
+    {
+      String name = (String)iter.next();
+      if (name.startsWith(LITERAL) || name.startsWith(FMAP))
+        return true;
+    }
+    return false;
+  }
+
+  /** Post a document as part of a batched update request.  The document goes to the XML update handler (the one used for
+  * removals), with its content in the batch content field, rather than through the extracting update handler; so the
+  * arguments, which are extracting handler parameters, do not apply, and a document is only batched if none of them
+  * set or map fields.  This method waits until the batch has been sent.
+  *@param text is the document's content, already read and decoded by readBatchText().
+  *@return true if the ingestion was successful, or false if the ingestion is illegal.
+  */
+  protected boolean batchedIndexPost(String documentURI, RepositoryDocument document, String text, Map sourceTargets,
+    String[] shareAcls, String[] shareDenyAcls, String[] acls, String[] denyAcls, IOutputAddActivity activities)
+    throws ManifoldCFException, ServiceInterruption
+  {
+    long length = document.getBinaryLength();
+    long startTime = System.currentTimeMillis();
+    byte[] documentXML;
+    try
+    {
+      documentXML = buildBatchDocument(documentURI,document,text,sourceTargets,shareAcls,shareDenyAcls,acls,denyAcls);
+    }
+    catch (InterruptedIOException e)
+    {
+      throw new ManifoldCFException("Interrupted: "+e.getMessage(),ManifoldCFException.INTERRUPTED);
+    }
+    catch (IOException ioe)
+    {
+      // Log the error
+      Logging.ingest.warn("Error reading data for transmission to Ingestion API: "+ioe.getMessage(),ioe);
+      activities.recordActivity(new Long(startTime),SolrConnector.INGEST_ACTIVITY,null,documentURI,"-1","Couldn't read document: "+ioe.getMessage());
+      long currentTime = System.currentTimeMillis();
+      throw new ServiceInterruption("IO error reading document for ingestion: "+ioe.getMessage()+"; read will be retried again later",
+        ioe,
+        currentTime + interruptionRetryTime,
+        currentTime + 2L * 60L * 60000L,
+        -1,
+        true);
+    }
+
+    DocumentBatcher.BatchEntry entry = new DocumentBatcher.BatchEntry(documentURI,documentXML);
+    batcher.addDocument(entry,this);
+
+    // Log the activity, if any, regardless of any exception
+    if (entry.getActivityCode() != null)
+      activities.recordActivity(entry.getActivityStart(),SolrConnector.INGEST_ACTIVITY,new Long(length),documentURI,entry.getActivityCode(),entry.getActivityDetails());
+
+    Throwable thr = entry.getException();
+    if (thr != null)
+    {
+      if (thr instanceof ServiceInterruption)
+        throw (ServiceInterruption)thr;
+      if (thr instanceof ManifoldCFException)
+        throw (ManifoldCFException)thr;
+      if (thr instanceof IOException)
+      {
+        long currentTime = System.currentTimeMillis();
+        throw new ServiceInterruption("IO error ingesting document: "+thr.getMessage()+"; ingestion will be retried again later",
+          thr,
+          currentTime + interruptionRetryTime,
+          currentTime + 2L * 60L * 60000L,
+          -1,
+          true);
+      }
+      if (thr instanceof RuntimeException)
+        throw (RuntimeException)thr;
+      else
+        throw (Error)thr;
+    }
+    return entry.getAccepted();
+  }
+
+  /** Build the update &lt;doc&gt; element for a document that is to be batched.
+  *@return the element, UTF-8 encoded.
+  */
+  protected byte[] buildBatchDocument(String documentURI, RepositoryDocument document, String text, Map sourceTargets,
+    String[] shareAcls, String[] shareDenyAcls, String[] acls, String[] denyAcls)
+    throws IOException
+  {
+    StringBuilder sb = new StringBuilder("<doc>");
+    appendBatchField(sb,idAttributeName,documentURI);
+    appendBatchACLs(sb,"share",shareAcls,shareDenyAcls);
+    appendBatchACLs(sb,"document",acls,denyAcls);
+    Iterator iter = document.getFields();
+    while (iter.hasNext())
+    {
+      String fieldName = (String)iter.next();
+      String newFieldName = (String)sourceTargets.get(fieldName);
+      if (newFieldName == null)
+        newFieldName = fieldName;
+      // Make SURE we can't double up on the id field inadvertantly!
+      if (newFieldName.length() > 0)
+      {
+        if (newFieldName.toLowerCase().equals(idAttributeName.toLowerCase()))
+          newFieldName = ID_METADATA;
+        String[] values = document.getFieldAsStrings(fieldName);
+        int k = 0;
+        while (k < values.length)
+        {
+          appendBatchField(sb,newFieldName,values[k++]);
+        }
+      }
+    }
+    appendBatchField(sb,batchContentField,text);
+    sb.append("</doc>");
+    return sb.toString().getBytes("UTF-8");
+  }
+
+  /** Append the fields for an acl level to a batched document */
+  protected void appendBatchACLs(StringBuilder sb, String aclType, String[] acl, String[] denyAcl)
+  {
+    String metadataACLName = allowAttributeName + aclType;
+    int i = 0;
+    while (i < acl.length)
+    {
+      appendBatchField(sb,metadataACLName,acl[i++]);
+    }
+    String metadataDenyACLName = denyAttributeName + aclType;
+    i = 0;
+    while (i < denyAcl.length)
+    {
+      appendBatchField(sb,metadataDenyACLName,denyAcl[i++]);
+    }
+  }
+
+  /** Append a field to a batched document */
+  protected static void appendBatchField(StringBuilder sb, String fieldName, String fieldValue)
+  {
+    sb.append("<field name=\"");
+    xmlEscape(sb,fieldName);
+    sb.append("\">");
+    xmlEscape(sb,fieldValue);
+    sb.append("</field>");
+  }
+
+  /** Send a batch of documents as one update request, and record the outcome for each.  If Solr rejects the
+  * request as a whole, the documents are sent one at a time so that the one(s) at fault can be told apart.
+  */
+  protected void sendBatch(List<DocumentBatcher.BatchEntry> entries)
+    throws ManifoldCFException, ServiceInterruption, IOException
+  {
+    java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream();
+    byte[] tmp = ((commitWithin == null)?"<add>":"<add commitWithin=\""+commitWithin+"\">").getBytes("UTF-8");
+    bos.write(tmp,0,tmp.length);
+    int i = 0;
+    while (i < entries.size())
+    {
+      byte[] documentXML = entries.get(i++).getDocumentXML();
+      bos.write(documentXML,0,documentXML.length);
+    }
+    tmp = "</add>".getBytes("UTF-8");
+    bos.write(tmp,0,tmp.length);
+
+    long startTime = System.currentTimeMillis();
+    CodeDetails cd;
+    try
+    {
+      cd = updatePost(bos.toByteArray());
+    }
+    catch (ServiceInterruption si)
+    {
+      i = 0;
+      while (i < entries.size())
+      {
+        entries.get(i++).setActivity(startTime,"-2",si.getMessage());
+      }
+      throw si;
+    }
+    catch (IOException ioe)
+    {
+      i = 0;
+      while (i < entries.size())
+      {
+        entries.get(i++).setActivity(startTime,"-1",ioe.getMessage());
+      }
+      throw ioe;
+    }
+
+    int codeValue = cd.getCodeValue();
+
+    // A negative number means http error of some kind.
+    if (codeValue < 0)
+      throw new ManifoldCFException("Http protocol error");
+
+    if (codeValue == 200)
+    {
+      cd.parseIngestionResponse();
+      i = 0;
+      while (i < entries.size())
+      {
+        entries.get(i++).setResult(true,startTime,cd.getCode(),cd.getDetails());
+      }
+      return;
+    }
+
+    if (codeValue == 401)
+      throw new ManifoldCFException("Bad credentials for ingestion",ManifoldCFException.SETUP_ERROR);
+
+    if (codeValue >= 400 && codeValue < 500)
+    {
+      if (entries.size() == 1)
+      {
+        // This document will never ingest
+        entries.get(0).setResult(false,startTime,cd.getCode(),cd.getDetails());
+        return;
+      }
+      // Find out which documents were the problem
+      if (Logging.ingest.isDebugEnabled())
+        Logging.ingest.debug("Batch rejected with code "+Integer.toString(codeValue)+"; sending documents individually");
+      i = 0;
+      while (i < entries.size())
+      {
+        DocumentBatcher.BatchEntry entry = entries.get(i++);
+        try
+        {
+          List<DocumentBatcher.BatchEntry> single = new ArrayList<DocumentBatcher.BatchEntry>();
+          single.add(entry);
+          sendBatch(single);
+        }
+        catch (Throwable e)
+        {
+          entry.setException(e);
+        }
+      }
+      return;
+    }
+
+    // Transient error, so everything will need to be tried again later
+    i = 0;
+    while (i < entries.size())
+    {
+      entries.get(i++).setActivity(startTime,cd.getCode(),cd.getDetails());
+    }
+    long currentTime = System.currentTimeMillis();
+    throw new ServiceInterruption("Error "+Integer.toString(codeValue)+" from ingestion request; ingestion will be retried again later",
+      new ManifoldCFException("Ingestion HTTP error code "+Integer.toString(codeValue)),
+      currentTime + interruptionRetryTime,
+      currentTime + 2L * 60L * 60000L,
+      -1,
+      true);
+  }
+
+  /** Post an XML update request.
+  *@param requestBytes is the request, UTF-8 encoded.
+  *@return the response.
+  */
+  protected CodeDetails updatePost(byte[] requestBytes)
+    throws ManifoldCFException, ServiceInterruption, IOException
+  {
+    UpdateTask t = new UpdateTask(requestBytes);
+    try
+    {
+      t.start();
+      t.join();
+
+      Throwable thr = t.getException();
+      if (thr != null)
+      {
+        if (thr instanceof ServiceInterruption)
+          throw (ServiceInterruption)thr;
+        if (thr instanceof ManifoldCFException)
+          throw (ManifoldCFException)thr;
+        if (thr instanceof IOException)
+          throw (IOException)thr;
+        if (thr instanceof RuntimeException)
+          throw (RuntimeException)thr;
+        else
+          throw (Error)thr;
+      }
+      return t.getCodeDetails();
+    }
+    catch (InterruptedException e)
+    {
+      t.interrupt();
+      throw new ManifoldCFException("Interrupted: "+e.getMessage(),ManifoldCFException.INTERRUPTED);
+    }
+  }
+
   /** Post a check request.
   */
   public void checkPost()
@@ -400,7 +835,7 @@ public class HttpPoster
       // Open a socket to ingest, and to the response stream to get the post result
       try
       {
-        StatusThread t = new StatusThread();
+        StatusTask t = new StatusTask();
         try
         {
           t.start();
@@ -472,7 +907,7 @@ public class HttpPoster
     {
       try
       {
-        DeleteThread t = new DeleteThread(documentURI);
+        DeleteTask t = new DeleteTask(documentURI);
         try
         {
           t.start();
@@ -595,29 +1030,65 @@ public class HttpPoster
     {
       // Stream.ready() always returns false for secure sockets :-(.  So
       // we have to rely on socket timeouts to interrupt us if the server goes down.
-      String responseCode = readLine(in);
-
-      if (Logging.ingest.isDebugEnabled())
-        Logging.ingest.debug("Response code from ingest: '" + responseCode + "'");
-
-      // Read the response headers
-      String contentType = "text/plain; charset=iso-8859-1";
+      String responseCode;
+      String contentType;
+      long contentLength;
+      boolean chunked;
+      boolean keepAlive;
       while (true)
       {
-        String headerLine = readLine(in);
-        if (headerLine.length() == 0)
-          break;
-        // Look for the headers we care about, ignore the rest...
-        int spaceIndex = headerLine.indexOf(" ");
-        if (spaceIndex != -1)
+        responseCode = readLine(in);
+
+        if (Logging.ingest.isDebugEnabled())
+          Logging.ingest.debug("Response code from ingest: '" + responseCode + "'");
+
+        // HTTP/1.1 connections stay open unless the server says otherwise; HTTP/1.0 ones only if it says so
+        keepAlive = responseCode.startsWith("HTTP/1.1");
+
+        // Read the response headers
+        contentType = "text/plain; charset=iso-8859-1";
+        contentLength = -1L;
+        chunked = false;
+        while (true)
         {
-          String headerName = headerLine.substring(0,spaceIndex);
-          String headerValue = headerLine.substring(spaceIndex).trim().toLowerCase();
-          if (headerName.toLowerCase().equals("content-type:"))
+          String headerLine = readLine(in);
+          if (headerLine.length() == 0)
+            break;
+          // Look for the headers we care about, ignore the rest...
+          int colonIndex = headerLine.indexOf(":");
+          if (colonIndex != -1)
           {
-            contentType = headerValue;
+            String headerName = headerLine.substring(0,colonIndex).trim().toLowerCase();
+            String headerValue = headerLine.substring(colonIndex+1).trim().toLowerCase();
+            if (headerName.equals("content-type"))
+              contentType = headerValue;
+            else if (headerName.equals("content-length"))
+            {
+              try
+              {
+                contentLength = Long.parseLong(headerValue);
+              }
+              catch (NumberFormatException e)
+              {
+                // Treat as unknown length
+              }
+            }
+            else if (headerName.equals("transfer-encoding"))
+              chunked = (headerValue.indexOf("chunked") != -1);
+            else if (headerName.equals("connection"))
+            {
+              if (headerValue.indexOf("close") != -1)
+                keepAlive = false;
+              else if (headerValue.indexOf("keep-alive") != -1)
+                keepAlive = true;
+            }
           }
         }
+
+        // Skip interim (1xx) responses; the real one follows
+        int firstSpace = responseCode.indexOf(" ");
+        if (firstSpace == -1 || !responseCode.startsWith("1",firstSpace+1))
+          break;
       }
 
       // Now read the response data.  It's safe to assemble the data in memory.
@@ -630,7 +1101,17 @@ public class HttpPoster
       // But we can't hand the binary to the XML parser and still be able to get at the raw data.  So we
       // read the data into memory first (as binary), and then make a decision based on parseability as to whether
       // we attempt to decode it.
-      byte[] responseContent = readInputStream(in);
+      byte[] responseContent;
+      if (chunked)
+        responseContent = readChunkedInputStream(in);
+      else if (contentLength >= 0L)
+        responseContent = readInputStream(in,contentLength);
+      else
+      {
+        // The body is delimited by the end of the connection, so the connection can't be reused
+        responseContent = readInputStream(in);
+        keepAlive = false;
+      }
       
       XMLDoc doc = null;
       String rawString = null;
@@ -655,7 +1136,7 @@ public class HttpPoster
       }
 
       Logging.ingest.debug("Read of response stream complete");
-      return new CodeDetails(responseCode,doc,rawString);
+      return new CodeDetails(responseCode,doc,rawString,keepAlive);
     }
     catch (java.net.SocketTimeoutException e)
     {
@@ -687,7 +1168,7 @@ public class HttpPoster
     {
       // Return 400 error; likely a connection reset which lost us the response data, so
       // just treat it as something OK.
-      return new CodeDetails("HTTP/1.0 400 Connection Reset",null,null);
+      return new CodeDetails("HTTP/1.0 400 Connection Reset",null,null,false);
 
     }
     catch (IOException ioe)
@@ -740,6 +1221,59 @@ public class HttpPoster
     return rval;
   }
   
+  /** Read exactly the given number of bytes from an input stream into an in-memory array */
+  protected static byte[] readInputStream(InputStream is, long length)
+    throws IOException
+  {
+    if (length > Integer.MAX_VALUE)
+      throw new IOException("Response too long: "+Long.toString(length));
+    byte[] rval = new byte[(int)length];
+    int pointer = 0;
+    while (pointer < rval.length)
+    {
+      int amt = is.read(rval,pointer,rval.length-pointer);
+      if (amt == -1)
+        throw new IOException("Unexpected EOF");
+      pointer += amt;
+    }
+    return rval;
+  }
+
+  /** Read a chunked (transfer-encoded) response body into an in-memory array */
+  protected static byte[] readChunkedInputStream(InputStream is)
+    throws IOException
+  {
+    java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream();
+    while (true)
+    {
+      String sizeLine = readLine(is);
+      // Ignore any chunk extension
+      int semiIndex = sizeLine.indexOf(";");
+      if (semiIndex != -1)
+        sizeLine = sizeLine.substring(0,semiIndex);
+      long chunkSize;
+      try
+      {
+        chunkSize = Long.parseLong(sizeLine.trim(),16);
+      }
+      catch (NumberFormatException e)
+      {
+        throw new IOException("Bad chunk size: '"+sizeLine+"'");
+      }
+      if (chunkSize == 0L)
+        break;
+      byte[] chunk = readInputStream(is,chunkSize);
+      bos.write(chunk,0,chunk.length);
+      // Each chunk is followed by a CRLF
+      readLine(is);
+    }
+    // Skip the trailers
+    while (readLine(is).length() > 0)
+    {
+    }
+    return bos.toByteArray();
+  }
+
   /** Write credentials to output */
   protected void writeCredentials(OutputStream out)
     throws IOException
@@ -780,38 +1314,6 @@ public class HttpPoster
     }
   }
 
-  /** Create a socket in a manner consistent with all of our specified parameters.
-  */
-  protected Socket createSocket(long responseRetryCount)
-    throws IOException, ManifoldCFException
-  {
-    Socket socket;
-    if (protocol.equals("https") && socketFactory != null)
-    {
-      try
-      {
-        //SocketFactory factory = SSLSocketFactory.getDefault();
-        socket = socketFactory.createSocket(host,port);
-      }
-      catch (InterruptedIOException e)
-      {
-        throw e;
-      }
-      catch (IOException e)
-      {
-        throw new ManifoldCFException("Couldn't set up SSL connection to ingestion API: "+e.getMessage(),e);
-      }
-    }
-    else
-      socket = new Socket(host, port);
-
-    // Calculate the timeout we want
-    long timeoutMilliseconds = responseRetryWait * responseRetryCount;
-    socket.setSoTimeout((int)timeoutMilliseconds);
-
-    return socket;
-  }
-
   /** Byte buffer class */
   protected static class ByteBuffer
   {
@@ -852,38 +1354,117 @@ public class HttpPoster
 
   }
 
-  /** Our own trust manager, which ignores certificate issues */
-  protected static class LaxTrustManager implements X509TrustManager
+  /** Output stream that writes everything written to it as HTTP chunks, so that a request body can be sent without
+  * knowing its length in advance.  Small writes are gathered into chunks of the buffer size.
+  */
+  protected static class ChunkedOutputStream extends OutputStream
   {
-    /** Does nothing */
-    public LaxTrustManager()
+    protected final OutputStream out;
+    protected final byte[] buffer;
+    protected int bufferAmt = 0;
+
+    public ChunkedOutputStream(OutputStream out, int bufferSize)
     {
+      this.out = out;
+      this.buffer = new byte[bufferSize];
     }
 
-    /** Return a list of accepted issuers.  There are none. */
-    public java.security.cert.X509Certificate[] getAcceptedIssuers()
+    public void write(int b)
+      throws IOException
     {
-      return new java.security.cert.X509Certificate[0];
+      if (bufferAmt == buffer.length)
+        flushChunk();
+      buffer[bufferAmt++] = (byte)b;
     }
 
-    /** We have no problem with any clients */
-    public void checkClientTrusted(java.security.cert.X509Certificate[] certs, String authType)
-      throws java.security.cert.CertificateException
+    public void write(byte[] b, int off, int len)
+      throws IOException
     {
+      if (len > buffer.length - bufferAmt)
+      {
+        flushChunk();
+        if (len >= buffer.length)
+        {
+          // Too big to be worth buffering
+          writeChunk(b,off,len);
+          return;
+        }
+      }
+      System.arraycopy(b,off,buffer,bufferAmt,len);
+      bufferAmt += len;
     }
 
-    /** We have no problem with any servers */
-    public void checkServerTrusted(java.security.cert.X509Certificate[] certs, String authType)
-      throws java.security.cert.CertificateException
+    public void flush()
+      throws IOException
     {
+      flushChunk();
+      out.flush();
     }
 
-  }
+    /** Write out what is buffered, and the last (empty) chunk.  The underlying stream is not closed.
+    */
+    public void finish()
+      throws IOException
+    {
+      flushChunk();
+      byte[] tmp = "0\r\n\r\n".getBytes("ASCII");
+      out.write(tmp, 0, tmp.length);
+    }
 
-  /** Calculate the length of the preamble */
-  protected static int lengthPreamble()
-    throws IOException
-  {
+    protected void flushChunk()
+      throws IOException
+    {
+      if (bufferAmt > 0)
+      {
+        writeChunk(buffer,0,bufferAmt);
+        bufferAmt = 0;
+      }
+    }
+
+    protected void writeChunk(byte[] b, int off, int len)
+      throws IOException
+    {
+      if (len == 0)
+        return;
+      byte[] tmp = (Integer.toHexString(len)+"\r\n").getBytes("ASCII");
+      out.write(tmp, 0, tmp.length);
+      out.write(b, off, len);
+      out.write(postambleBytes, 0, postambleBytes.length);
+    }
+  }
+
+  /** Our own trust manager, which ignores certificate issues */
+  protected static class LaxTrustManager implements X509TrustManager
+  {
+    /** Does nothing */
+    public LaxTrustManager()
+    {
+    }
+
+    /** Return a list of accepted issuers.  There are none. */
+    public java.security.cert.X509Certificate[] getAcceptedIssuers()
+    {
+      return new java.security.cert.X509Certificate[0];
+    }
+
+    /** We have no problem with any clients */
+    public void checkClientTrusted(java.security.cert.X509Certificate[] certs, String authType)
+      throws java.security.cert.CertificateException
+    {
+    }
+
+    /** We have no problem with any servers */
+    public void checkServerTrusted(java.security.cert.X509Certificate[] certs, String authType)
+      throws java.security.cert.CertificateException
+    {
+    }
+
+  }
+
+  /** Calculate the length of the preamble */
+  protected static int lengthPreamble()
+    throws IOException
+  {
     return preambleBytes.length;
   }
 
@@ -1005,6 +1586,39 @@ public class HttpPoster
     }
   }
   
+  /** XML escaping, for element content and attribute values.  Characters that XML cannot represent are dropped. */
+  protected static void xmlEscape(StringBuilder sb, String input)
+  {
+    int i = 0;
+    while (i < input.length())
+    {
+      char x = input.charAt(i++);
+      if (x == '&')
+        sb.append("&amp;");
+      else if (x == '<')
+        sb.append("&lt;");
+      else if (x == '>')
+        sb.append("&gt;");
+      else if (x == '"')
+        sb.append("&quot;");
+      else if ((x < ' ' && x != '\t' && x != '\n' && x != '\r') || x == '\ufffe' || x == '\uffff')
+        continue;
+      else if (Character.isHighSurrogate(x))
+      {
+        // Surrogates are legal in XML only as a pair
+        if (i < input.length() && Character.isLowSurrogate(input.charAt(i)))
+        {
+          sb.append(x);
+          sb.append(input.charAt(i++));
+        }
+      }
+      else if (Character.isLowSurrogate(x))
+        continue;
+      else
+        sb.append(x);
+    }
+  }
+
   /** XML encoding */
   protected static String xmlEncode(String input)
   {
@@ -1014,13 +1628,159 @@ public class HttpPoster
     return sb.toString();
   }
   
-  /** Killable thread that does ingestions.
+  /** A single request to Solr, made on a poster thread on behalf of a worker thread.
   * Java 1.5 stopped permitting thread interruptions to abort socket waits.  As a result, it is impossible to get threads to shutdown cleanly that are doing
   * such waits.  So, the places where this happens are segregated in their own threads so that they can be just abandoned.
+  * Poster threads are kept and reused, rather than started for every request; one that sits idle for long enough goes away.
+  * An abandoned request keeps its poster thread until the request ends.
+  */
+  protected static abstract class PosterTask
+  {
+    private boolean done = false;
+    private boolean interruptRequested = false;
+    private Thread thread = null;
+
+    /** Make the request.  Everything thrown must be caught and kept for the caller.
+    */
+    public abstract void run();
+
+    /** Start the request on a poster thread, reusing an idle one if there is one.
+    */
+    public void start()
+    {
+      PosterThread t = null;
+      synchronized (idlePosterThreads)
+      {
+        int size = idlePosterThreads.size();
+        if (size > 0)
+          t = idlePosterThreads.remove(size-1);
+      }
+      if (t == null)
+      {
+        t = new PosterThread();
+        t.start();
+      }
+      t.execute(this);
+    }
+
+    /** Wait for the request to end.
+    */
+    public synchronized void join()
+      throws InterruptedException
+    {
+      while (!done)
+        wait();
+    }
+
+    /** Interrupt the request, if it has not ended.  The poster thread only gets the interrupt while it is still
+    * working on this request.
+    */
+    public synchronized void interrupt()
+    {
+      if (done)
+        return;
+      if (thread != null)
+        thread.interrupt();
+      else
+        interruptRequested = true;
+    }
+
+    /** Called by the poster thread as it takes the request on. */
+    protected synchronized void begin()
+    {
+      thread = Thread.currentThread();
+      if (interruptRequested)
+        thread.interrupt();
+    }
+
+    /** Called by the poster thread when the request has ended. */
+    protected synchronized void end()
+    {
+      done = true;
+      thread = null;
+      notifyAll();
+    }
+  }
+
+  /** Thread which makes requests on behalf of the worker threads.
+  */
+  protected static class PosterThread extends Thread
+  {
+    protected PosterTask task = null;
+
+    public PosterThread()
+    {
+      super();
+      setDaemon(true);
+      setName("Solr poster thread");
+    }
+
+    /** Hand this thread a request to make */
+    public synchronized void execute(PosterTask task)
+    {
+      this.task = task;
+      notifyAll();
+    }
+
+    public void run()
+    {
+      while (true)
+      {
+        PosterTask currentTask;
+        synchronized (this)
+        {
+          while (task == null)
+          {
+            try
+            {
+              wait(POSTER_THREAD_IDLE_TIMEOUT);
+            }
+            catch (InterruptedException e)
+            {
+              // Interrupts are only meant for a request being made; just keep going
+            }
+            if (task == null)
+            {
+              // Idle too long.  Leave, unless we have just been handed out.
+              synchronized (idlePosterThreads)
+              {
+                if (idlePosterThreads.remove(this))
+                  return;
+              }
+            }
+          }
+          currentTask = task;
+        }
+
+        currentTask.begin();
+        try
+        {
+          currentTask.run();
+        }
+        finally
+        {
+          synchronized (this)
+          {
+            task = null;
+          }
+          currentTask.end();
+        }
+        // An interrupt that came in just as the request ended must not carry over to the next request
+        Thread.interrupted();
+        synchronized (idlePosterThreads)
+        {
+          idlePosterThreads.add(this);
+        }
+      }
+    }
+  }
+
+  /** Killable request that does ingestions.
+  * It runs on a poster thread, so that it can be abandoned (see PosterTask).
   *
-  * This thread does a single document ingestion.
+  * This task does a single document ingestion.
   */
-  protected class IngestThread extends java.lang.Thread
+  protected class IngestTask extends PosterTask
   {
     protected String documentURI;
     protected RepositoryDocument document;
@@ -1040,11 +1800,9 @@ public class HttpPoster
     protected boolean readFromDocumentStreamYet = false;
     protected boolean rval = false;
 
-    public IngestThread(String documentURI, RepositoryDocument document, Map arguments, Map sourceTargets,
+    public IngestTask(String documentURI, RepositoryDocument document, Map arguments, Map sourceTargets,
       String[] shareAcls, String[] shareDenyAcls, String[] acls, String[] denyAcls, String commitWithin)
     {
-      super();
-      setDaemon(true);
       this.documentURI = documentURI;
       this.document = document;
       this.arguments = arguments;
@@ -1069,352 +1827,295 @@ public class HttpPoster
         // Open a socket to ingest, and to the response stream to get the post result
         try
         {
-          // Set up the socket, and the (optional) secure socket.
+          // Get a connection to the host; this may be a kept-alive one.
           long responseRetryCount = responseRetries + (long)((float)length * sizeCoefficient);
-          Socket socket = createSocket(responseRetryCount);
+          HttpConnectionPool.HttpConnection connection = connectionPool.acquire(responseRetryWait * responseRetryCount,interruptionRetryTime);
+          boolean reusable = false;
           try
           {
-            InputStream in = socket.getInputStream();
-            try
-            {
-              OutputStream out = socket.getOutputStream();
-              try
-              {
-                // Create the output stream to SOLR
-                byte[] tmp = ("POST " + postUpdateAction + " HTTP/1.0\r\n").getBytes("ASCII");
-                out.write(tmp, 0, tmp.length);
-
-                // Set all the headers
-                writeCredentials(out);
-
-                // Headers must include the following:
-                // Content-Type
-                // Content-Length
-                // The content-length is calculated using the entire body length, which therefore includes the length of all the metadata fields as well.
-
-                // Come up with a boundary.  Ideally, the boundary should be something that doesn't exist in any of the data.  In practice, that would mean
-                // scanning all such data at least twice: once to make sure we avoided all boundary collisions, and a second time to actually output the data.
-                // This is such a huge chunk of overhead, I've decided for now to just punt and pick something that's pretty unlikely.
-
-
-                // Calculate the content length.  To do this, we have to walk through the entire multipart assembly process, but calculate the length rather than output
-                // anything.
-
-                int totalLength = 0;
-                // Count the id.
-                totalLength += lengthField(LITERAL+idAttributeName,documentURI);
-                // Count the acls
-                totalLength += lengthACLs("share",shareAcls,shareDenyAcls);
-                totalLength += lengthACLs("document",acls,denyAcls);
-                // Count the arguments
-                Iterator iter = arguments.keySet().iterator();
-                while (iter.hasNext())
-                {
-                  String name = (String)iter.next();
-                  List values = (List)arguments.get(name);
-                  int j = 0;
-                  while (j < values.size())
-                  {
-                    String value = (String)values.get(j++);
-                    totalLength += lengthField(name,value);
-                  }
-                }
-                // Count the metadata.
-                iter = document.getFields();
-                while (iter.hasNext())
-                {
-                  String fieldName = (String)iter.next();
-                  String newFieldName = (String)sourceTargets.get(fieldName);
-                  if (newFieldName == null)
-                    newFieldName = fieldName;
-		  // Make SURE we can't double up on the id field inadvertantly!
-		  if (newFieldName.length() > 0)
-		  {
-		    if (newFieldName.toLowerCase().equals(idAttributeName.toLowerCase()))
-		      newFieldName = ID_METADATA;
-                    String[] values = document.getFieldAsStrings(fieldName);
-                    // We only handle strings right now!!!
-                    int k = 0;
-                    while (k < values.length)
-                    {
-                      String value = values[k++];
-                      totalLength += lengthField(LITERAL+newFieldName,value);
-                    }
-                  }
-                }
-                // Count the commitWithin parameter
-                if (commitWithin != null)
-                  totalLength += lengthField(COMMITWITHIN_METADATA,commitWithin);
-                // Count the binary data
-                totalLength += lengthPreamble();
-                totalLength += lengthBoundary("application/octet-stream","myfile",document.getFileName());
-                totalLength += length;
-                // Count the postamble
-                totalLength += lengthPostamble();
-                // Count the end marker.
-                totalLength += endBytes.length;
-
-                // Now, output the content-length header, and another newline, to start the data.
-                tmp = ("Content-Length: "+Integer.toString(totalLength)+"\r\n").getBytes("ASCII");
-                out.write(tmp, 0, tmp.length);
-
-                tmp = ("Content-Type: multipart/form-data; boundary=").getBytes("ASCII");
-                out.write(tmp, 0, tmp.length);
-                out.write(separatorBytes, 0, separatorBytes.length);
-
-                // End of headers.
-                tmp = "\r\n".getBytes("ASCII");
-                out.write(tmp, 0, tmp.length);
-
-                // Write the id field
-                writeField(out,LITERAL+idAttributeName,documentURI);
-
-		// Write the access token information
-                writeACLs(out,"share",shareAcls,shareDenyAcls);
-                writeACLs(out,"document",acls,denyAcls);
-
-                // Write the arguments
-                iter = arguments.keySet().iterator();
-                while (iter.hasNext())
-                {
-                  String name = (String)iter.next();
-                  List values = (List)arguments.get(name);
-                  int j = 0;
-                  while (j < values.size())
-                  {
-                    String value = (String)values.get(j++);
-                    writeField(out,name,value);
-                  }
-                }
+            InputStream in = connection.getInputStream();
+            OutputStream connectionOut = connection.getOutputStream();
+            // Create the output stream to SOLR
+            byte[] tmp = ("POST " + postUpdateAction + " HTTP/1.1\r\n" + hostHeader).getBytes("ASCII");
+            connectionOut.write(tmp, 0, tmp.length);
 
-                // Write the metadata, each in a field by itself
-                iter = document.getFields();
-                while (iter.hasNext())
-                {
-                  String fieldName = (String)iter.next();
-                  String newFieldName = (String)sourceTargets.get(fieldName);
-                  if (newFieldName == null)
-                    newFieldName = fieldName;
-		  if (newFieldName.length() > 0)
-		  {
-		    if (newFieldName.toLowerCase().equals(idAttributeName.toLowerCase()))
-		      newFieldName = ID_METADATA;
-                    String[] values = document.getFieldAsStrings(fieldName);
-                    // We only handle strings right now!!!
-                    int k = 0;
-                    while (k < values.length)
-                    {
-                      String value = values[k++];
-                      writeField(out,LITERAL+newFieldName,value);
-                    }
-                  }
-                }
-                
-                // Write the commitWithin parameter
-                if (commitWithin != null)
-                  writeField(out,COMMITWITHIN_METADATA,commitWithin);
+            // Set all the headers
+            writeCredentials(connectionOut);
 
-                // Write the content
-                writePreamble(out);
+            // Headers must include the following:
+            // Content-Type
+            // Content-Length or Transfer-Encoding
+            // The content-length is calculated using the entire body length, which therefore includes the length of all the metadata fields as well.
 
-                writeBoundary(out,"application/octet-stream","myfile",document.getFileName());
+            // Come up with a boundary.  Ideally, the boundary should be something that doesn't exist in any of the data.  In practice, that would mean
+            // scanning all such data at least twice: once to make sure we avoided all boundary collisions, and a second time to actually output the data.
+            // This is such a huge chunk of overhead, I've decided for now to just punt and pick something that's pretty unlikely.
 
-                // Stream the data
-                long total = 0;
-                long now, later;
-                now = System.currentTimeMillis();
-
-                byte[] bytes = new byte[buffersize];
+            if (chunkedPosts)
+            {
+              // The body is sent in chunks as it is written, so we don't need to know its length in advance.
+              tmp = ("Transfer-Encoding: chunked\r\n").getBytes("ASCII");
+              connectionOut.write(tmp, 0, tmp.length);
+            }
+            else
+            {
+              // Output the content-length header.
+              tmp = ("Content-Length: "+Long.toString(calculateContentLength(length))+"\r\n").getBytes("ASCII");
+              connectionOut.write(tmp, 0, tmp.length);
+            }
 
-                // Write out the contents of the inputstream to the socket
-                while (true)
-                {
-                  int count;
-                  // Specially catch all errors that come from reading the input stream itself.
-                  // This will help us segregate errors that come from the stream vs. those that come from the ingestion system.
-                  try
-                  {
-                    count = is.read(bytes);
-                  }
-                  catch (java.net.SocketTimeoutException ioe)
-                  {
-                    // We have to catch socket timeout exceptions specially, because they are derived from InterruptedIOException
-                    // They are otherwise just like IOExceptions
+            tmp = ("Content-Type: multipart/form-data; boundary=").getBytes("ASCII");
+            connectionOut.write(tmp, 0, tmp.length);
+            connectionOut.write(separatorBytes, 0, separatorBytes.length);
 
-                    // Log the error
-                    Logging.ingest.warn("Error reading data for transmission to Ingestion API: "+ioe.getMessage(),ioe);
+            // End of headers.
+            tmp = "\r\n".getBytes("ASCII");
+            connectionOut.write(tmp, 0, tmp.length);
 
-                    activityStart = new Long(fullStartTime);
-                    activityCode = "-1";
-                    activityDetails = "Couldn't read document: "+ioe.getMessage();
+            // Everything from here on is body
+            ChunkedOutputStream chunkedOut = null;
+            OutputStream out;
+            if (chunkedPosts)
+            {
+              chunkedOut = new ChunkedOutputStream(connectionOut,buffersize);
+              out = chunkedOut;
+            }
+            else
+              out = connectionOut;
 
-                    // If this continues, we should indeed abort the job.  Retries should not go on indefinitely either; 2 hours is plenty
-                    long currentTime = System.currentTimeMillis();
-                    throw new ServiceInterruption("IO error reading document for ingestion: "+ioe.getMessage()+"; read will be retried again later",
-                      ioe,
-                      currentTime + interruptionRetryTime,
-                      currentTime + 2L * 60L * 60000L,
-                      -1,
-                      true);
+            // Write the id field
+            writeField(out,LITERAL+idAttributeName,documentURI);
 
-                  }
-                  catch (InterruptedIOException ioe)
-                  {
-                    // If the transfer was interrupted, it may be because we are shutting down the thread.
+            // Write the access token information
+            writeACLs(out,"share",shareAcls,shareDenyAcls);
+            writeACLs(out,"document",acls,denyAcls);
 
-                    // Third-party library exceptions derived from InterruptedIOException are possible; if the stream comes from httpclient especially.
-                    // If we see one of these, we treat it as "not an interruption".
-                    if (!ioe.getClass().getName().equals("java.io.InterruptedIOException"))
-                    {
-                      // Log the error
-                      Logging.ingest.warn("Error reading data for transmission to Ingestion API: "+ioe.getMessage(),ioe);
-
-                      activityStart = new Long(fullStartTime);
-                      activityCode = "-1";
-                      activityDetails = "Couldn't read document: "+ioe.getMessage();
-
-                      // If this continues, we should indeed abort the job.  Retries should not go on indefinitely either; 2 hours is plenty
-                      long currentTime = System.currentTimeMillis();
-                      throw new ServiceInterruption("IO error reading document for ingestion: "+ioe.getMessage()+"; read will be retried again later",
-                        ioe,
-                        currentTime + interruptionRetryTime,
-                        currentTime + 2L * 60L * 60000L,
-                        -1,
-                        true);
-                    }
-                    else
-                      throw ioe;
-                  }
-                  catch (IOException ioe)
-                  {
-                    // We need to decide whether to throw a service interruption or lcf exception, based on what went wrong.
-                    // We never retry here; the cause is the repository, so there's not any point.
-
-                    // Log the error
-                    Logging.ingest.warn("Error reading data for transmission to Ingestion API: "+ioe.getMessage(),ioe);
-
-                    activityStart = new Long(fullStartTime);
-                    activityCode = "-1";
-                    activityDetails = "Couldn't read document: "+ioe.getMessage();
-
-                    // If this continues, we should indeed abort the job.  Retries should not go on indefinitely either; 2 hours is plenty
-                    long currentTime = System.currentTimeMillis();
-                    throw new ServiceInterruption("IO error reading document for ingestion: "+ioe.getMessage()+"; read will be retried again later",
-                      ioe,
-                      currentTime + interruptionRetryTime,
-                      currentTime + 2L * 60L * 60000L,
-                      -1,
-                      true);
-                  }
+            // Write the arguments
+            Iterator iter = arguments.keySet().iterator();
+            while (iter.hasNext())
+            {
+              String name = (String)iter.next();
+              List values = (List)arguments.get(name);
+              int j = 0;
+              while (j < values.size())
+              {
+                String value = (String)values.get(j++);
+                writeField(out,name,value);
+              }
+            }
 
-                  if (count == -1)
-                    break;
-                  readFromDocumentStreamYet = true;
-                  out.write(bytes,0,count);
-                  total += (long)count;
+            // Write the metadata, each in a field by itself
+            iter = document.getFields();
+            while (iter.hasNext())
+            {
+              String fieldName = (String)iter.next();
+              String newFieldName = (String)sourceTargets.get(fieldName);
+              if (newFieldName == null)
+                newFieldName = fieldName;
+              if (newFieldName.length() > 0)
+              {
+                if (newFieldName.toLowerCase().equals(idAttributeName.toLowerCase()))
+                  newFieldName = ID_METADATA;
+                String[] values = document.getFieldAsStrings(fieldName);
+                // We only handle strings right now!!!
+                int k = 0;
+                while (k < values.length)
+                {
+                  String value = values[k++];
+                  writeField(out,LITERAL+newFieldName,value);
                 }
+              }
+            }
+            
+            // Write the commitWithin parameter
+            if (commitWithin != null)
+              writeField(out,COMMITWITHIN_METADATA,commitWithin);
 
-                // Write the postamble
-                writePostamble(out);
+            // Write the content
+            writePreamble(out);
 
-                // Write the end marker
-                out.write(endBytes, 0, endBytes.length);
+            writeBoundary(out,"application/octet-stream","myfile",document.getFileName());
 
-                out.flush();
+            // Stream the data
+            long total = 0;
+            long now, later;
+            now = System.currentTimeMillis();
 
-                later = System.currentTimeMillis();
-                if (Logging.ingest.isDebugEnabled())
-                  Logging.ingest.debug("Total bytes posted: " + new Long(total).toString() + ", total time: " + (later - now));
+            byte[] bytes = new byte[buffersize];
 
-                // Now, process response
-                CodeDetails cd;
-                try
-                {
-                  cd = getResponse(in);
-                }
-                catch (ServiceInterruption si)
-                {
-                  activityStart = new Long(now);
-                  activityCode = "-2";
-                  activityDetails = si.getMessage();
-                  throw si;
-                }
+            // Write out the contents of the inputstream to the socket
+            while (true)
+            {
+              int count;
+              // Specially catch all errors that come from reading the input stream itself.
+              // This will help us segregate errors that come from the stream vs. those that come from the ingestion system.
+              try
+              {
+                count = is.read(bytes);
+              }
+              catch (java.net.SocketTimeoutException ioe)
+              {
+                // We have to catch socket timeout exceptions specially, because they are derived from InterruptedIOException
+                // They are otherwise just like IOExceptions
 
+                // Log the error
+                Logging.ingest.warn("Error reading data for transmission to Ingestion API: "+ioe.getMessage(),ioe);
 
-                activityStart = new Long(now);
-                activityBytes = new Long(length);
-                activityCode = cd.getCode();
-                activityDetails = cd.getDetails();
+                activityStart = new Long(fullStartTime);
+                activityCode = "-1";
+                activityDetails = "Couldn't read document: "+ioe.getMessage();
 
-                int codeValue = cd.getCodeValue();
+                // If this continues, we should indeed abort the job.  Retries should not go on indefinitely either; 2 hours is plenty
+                long currentTime = System.currentTimeMillis();
+                throw new ServiceInterruption("IO error reading document for ingestion: "+ioe.getMessage()+"; read will be retried again later",
+                  ioe,
+                  currentTime + interruptionRetryTime,
+                  currentTime + 2L * 60L * 60000L,
+                  -1,
+                  true);
 
-                // A negative number means http error of some kind.
-                if (codeValue < 0)
-                  throw new ManifoldCFException("Http protocol error");
+              }
+              catch (InterruptedIOException ioe)
+              {
+                // If the transfer was interrupted, it may be because we are shutting down the thread.
 
-                // 200 means we got a status document back
-                if (codeValue == 200)
+                // Third-party library exceptions derived from InterruptedIOException are possible; if the stream comes from httpclient especially.
+                // If we see one of these, we treat it as "not an interruption".
+                if (!ioe.getClass().getName().equals("java.io.InterruptedIOException"))
                 {
-                  // Look at response XML
-                  cd.parseIngestionResponse();
-                  rval = true;
-                  return;
+                  // Log the error
+                  Logging.ingest.warn("Error reading data for transmission to Ingestion API: "+ioe.getMessage(),ioe);
+
+                  activityStart = new Long(fullStartTime);
+                  activityCode = "-1";
+                  activityDetails = "Couldn't read document: "+ioe.getMessage();
+
+                  // If this continues, we should indeed abort the job.  Retries should not go on indefinitely either; 2 hours is plenty
+                  long currentTime = System.currentTimeMillis();
+                  throw new ServiceInterruption("IO error reading document for ingestion: "+ioe.getMessage()+"; read will be retried again later",
+                    ioe,
+                    currentTime + interruptionRetryTime,
+                    currentTime + 2L * 60L * 60000L,
+                    -1,
+                    true);
                 }
+                else
+                  throw ioe;
+              }
+              catch (IOException ioe)
+              {
+                // We need to decide whether to throw a service interruption or lcf exception, based on what went wrong.
+                // We never retry here; the cause is the repository, so there's not any point.
 
-                // Anything else means the document didn't ingest.
-                // There are three possibilities here:
-                // 1) The document will NEVER ingest (it's illegal), in which case a 400 or 403 will be returned, and
-                // 2) There is a transient error, in which case we will want to try again, after a wait.
-                //    If the situation is (2), then we CAN'T retry if we already read any of the stream; therefore
-                //    we are forced to throw a "service interrupted" exception, and let the caller reschedule
-                //    the ingestion.
-                // 3) Something is wrong with the setup, e.g. bad credentials.  In this case we chuck a ManifoldCFException,
-                //    since this will abort the current activity entirely.
-
-                if (codeValue == 401)
-                  throw new ManifoldCFException("Bad credentials for ingestion",ManifoldCFException.SETUP_ERROR);
-
-                if ((codeValue >= 400 && codeValue < 500) ||
-                  (codeValue == 500 && cd.getDetails() != null && cd.getDetails().indexOf("org.apache.tika.exception.TikaException") != -1))
-                {
-                  rval = false;
-                  return;
-                }
+                // Log the error
+                Logging.ingest.warn("Error reading data for transmission to Ingestion API: "+ioe.getMessage(),ioe);
+
+                activityStart = new Long(fullStartTime);
+                activityCode = "-1";
+                activityDetails = "Couldn't read document: "+ioe.getMessage();
 
                 // If this continues, we should indeed abort the job.  Retries should not go on indefinitely either; 2 hours is plenty
                 long currentTime = System.currentTimeMillis();
-                throw new ServiceInterruption("Error "+Integer.toString(codeValue)+" from ingestion request; ingestion will be retried again later",
-                  new ManifoldCFException("Ingestion HTTP error code "+Integer.toString(codeValue)),
+                throw new ServiceInterruption("IO error reading document for ingestion: "+ioe.getMessage()+"; read will be retried again later",
+                  ioe,
                   currentTime + interruptionRetryTime,
                   currentTime + 2L * 60L * 60000L,
                   -1,
                   true);
               }
-              finally
-              {
-                out.close();
-              }
+
+              if (count == -1)
+                break;
+              readFromDocumentStreamYet = true;
+              out.write(bytes,0,count);
+              total += (long)count;
             }
-            finally
+
+            // Write the postamble
+            writePostamble(out);
+
+            // Write the end marker
+            out.write(endBytes, 0, endBytes.length);
+
+            // Write the last chunk, if chunked
+            if (chunkedOut != null)
+              chunkedOut.finish();
+
+            connectionOut.flush();
+
+            later = System.currentTimeMillis();
+            if (Logging.ingest.isDebugEnabled())
+              Logging.ingest.debug("Total bytes posted: " + new Long(total).toString() + ", total time: " + (later - now));
+
+            // Now, process response
+            CodeDetails cd;
+            try
             {
-              in.close();
+              cd = getResponse(in);
             }
-          }
-          finally
-          {
-            try
+            catch (ServiceInterruption si)
             {
-              socket.close();
+              activityStart = new Long(now);
+              activityCode = "-2";
+              activityDetails = si.getMessage();
+              throw si;
             }
-            catch (InterruptedIOException e)
+            // The response has been read completely, so the connection can go back to the pool if the server allows
+            reusable = cd.isKeepAlive();
+
+
+            activityStart = new Long(now);
+            activityBytes = new Long(length);
+            activityCode = cd.getCode();
+            activityDetails = cd.getDetails();
+
+            int codeValue = cd.getCodeValue();
+
+            // A negative number means http error of some kind.
+            if (codeValue < 0)
+              throw new ManifoldCFException("Http protocol error");
+
+            // 200 means we got a status document back
+            if (codeValue == 200)
             {
-              throw e;
+              // Look at response XML
+              cd.parseIngestionResponse();
+              rval = true;
+              return;
             }
-            catch (IOException e)
+
+            // Anything else means the document didn't ingest.
+            // There are three possibilities here:
+            // 1) The document will NEVER ingest (it's illegal), in which case a 400 or 403 will be returned, and
+            // 2) There is a transient error, in which case we will want to try again, after a wait.
+            //    If the situation is (2), then we CAN'T retry if we already read any of the stream; therefore
+            //    we are forced to throw a "service interrupted" exception, and let the caller reschedule
+            //    the ingestion.
+            // 3) Something is wrong with the setup, e.g. bad credentials.  In this case we chuck a ManifoldCFException,
+            //    since this will abort the current activity entirely.
+
+            if (codeValue == 401)
+              throw new ManifoldCFException("Bad credentials for ingestion",ManifoldCFException.SETUP_ERROR);
+
+            if ((codeValue >= 400 && codeValue < 500) ||
+              (codeValue == 500 && cd.getDetails() != null && cd.getDetails().indexOf("org.apache.tika.exception.TikaException") != -1))
             {
-              Logging.ingest.debug("Error closing socket: "+e.getMessage(),e);
-              // Do NOT rethrow
+              rval = false;
+              return;
             }
+
+            // If this continues, we should indeed abort the job.  Retries should not go on indefinitely either; 2 hours is plenty
+            long currentTime = System.currentTimeMillis();
+            throw new ServiceInterruption("Error "+Integer.toString(codeValue)+" from ingestion request; ingestion will be retried again later",
+              new ManifoldCFException("Ingestion HTTP error code "+Integer.toString(codeValue)),
+              currentTime + interruptionRetryTime,
+              currentTime + 2L * 60L * 60000L,
+              -1,
+              true);
+          }
+          finally
+          {
+            connectionPool.release(connection,reusable);
           }
         }
         catch (UnsupportedEncodingException ioe)
@@ -1498,6 +2199,68 @@ public class HttpPoster
       return activityDetails;
     }
 
+    /** Calculate the content length of the multipart body.  To do this, we have to walk through the entire multipart assembly process,
+    * but calculate the length rather than output anything.
+    */
+    protected long calculateContentLength(long length)
+      throws IOException
+    {
+      long totalLength = 0L;
+      // Count the id.
+      totalLength += lengthField(LITERAL+idAttributeName,documentURI);
+      // Count the acls
+      totalLength += lengthACLs("share",shareAcls,shareDenyAcls);
+      totalLength += lengthACLs("document",acls,denyAcls);
+      // Count the arguments
+      Iterator iter = arguments.keySet().iterator();
+      while (iter.hasNext())
+      {
+        String name = (String)iter.next();
+        List values = (List)arguments.get(name);
+        int j = 0;
+        while (j < values.size())
+        {
+          String value = (String)values.get(j++);
+          totalLength += lengthField(name,value);
+        }
+      }
+      // Count the metadata.
+      iter = document.getFields();
+      while (iter.hasNext())
+      {
+        String fieldName = (String)iter.next();
+        String newFieldName = (String)sourceTargets.get(fieldName);
+        if (newFieldName == null)
+          newFieldName = fieldName;
+        // Make SURE we can't double up on the id field inadvertantly!
+        if (newFieldName.length() > 0)
+        {
+          if (newFieldName.toLowerCase().equals(idAttributeName.toLowerCase()))
+            newFieldName = ID_METADATA;
+          String[] values = document.getFieldAsStrings(fieldName);
+          // We only handle strings right now!!!
+          int k = 0;
+          while (k < values.length)
+          {
+            String value = values[k++];
+            totalLength += lengthField(LITERAL+newFieldName,value);
+          }
+        }
+      }
+      // Count the commitWithin parameter
+      if (commitWithin != null)
+        totalLength += lengthField(COMMITWITHIN_METADATA,commitWithin);
+      // Count the binary data
+      totalLength += lengthPreamble();
+      totalLength += lengthBoundary("application/octet-stream","myfile",document.getFileName());
+      totalLength += length;
+      // Count the postamble
+      totalLength += lengthPostamble();
+      // Count the end marker.
+      totalLength += endBytes.length;
+      return totalLength;
+    }
+
     public boolean getReadFromDocumentStreamYet()
     {
       return readFromDocumentStreamYet;
@@ -1509,13 +2272,100 @@ public class HttpPoster
     }
   }
 
-  /** Killable thread that does deletions.
-  * Java 1.5 stopped permitting thread interruptions to abort socket waits.  As a result, it is impossible to get threads to shutdown cleanly that are doing
-  * such waits.  So, the places where this happens are segregated in their own threads so that they can be just abandoned.
+  /** Killable request that posts an XML update request.
+  * It runs on a poster thread, so that it can be abandoned (see PosterTask).
   *
-  * This thread does a single document deletion.
+  * This task does a single update request, and leaves the interpretation of the response to the caller.
   */
-  protected class DeleteThread extends java.lang.Thread
+  protected class UpdateTask extends PosterTask
+  {
+    protected byte[] requestBytes;
+
+    protected CodeDetails response = null;
+    protected Throwable exception = null;
+
+    public UpdateTask(byte[] requestBytes)
+    {
+      this.requestBytes = requestBytes;
+    }
+
+    public void run()
+    {
+      try
+      {
+        try
+        {
+          // Get a connection to the host; this may be a kept-alive one.
+          long responseRetryCount = responseRetries + (long)((float)requestBytes.length * sizeCoefficient);
+          HttpConnectionPool.HttpConnection connection = connectionPool.acquire(responseRetryWait * responseRetryCount,interruptionRetryTime);
+          boolean reusable = false;
+          try
+          {
+            InputStream in = connection.getInputStream();
+            OutputStream out = connection.getOutputStream();
+            byte[] tmp = ("POST " + postRemoveAction + " HTTP/1.1\r\n" + hostHeader).getBytes("ASCII");
+            out.write(tmp, 0, tmp.length);
+
+            // Set all the headers
+            writeCredentials(out);
+            tmp = ("Content-Length: "+Integer.toString(requestBytes.length)+"\r\n").getBytes("ASCII");
+            out.write(tmp, 0, tmp.length);
+            tmp = ("Content-Type: text/xml; charset=UTF-8\r\n\r\n").getBytes("ASCII");
+            out.write(tmp, 0, tmp.length);
+
+            out.write(requestBytes);
+
+            out.flush();
+
+            if (Logging.ingest.isDebugEnabled())
+              Logging.ingest.debug("Update posted");
+
+            response = getResponse(in);
+            reusable = response.isKeepAlive();
+          }
+          finally
+          {
+            connectionPool.release(connection,reusable);
+          }
+        }
+        catch (UnsupportedEncodingException ioe)
+        {
+          throw new ManifoldCFException("Fatal ingestion error: "+ioe.getMessage(),ioe);
+        }
+        catch (InterruptedIOException ioe)
+        {
+          return;
+        }
+        catch (IOException ioe)
+        {
+          // Log the error
+          Logging.ingest.warn("Error communicating with Ingestion API: "+ioe.getMessage(),ioe);
+          throw ioe;
+        }
+      }
+      catch (Throwable e)
+      {
+        this.exception = e;
+      }
+    }
+
+    public Throwable getException()
+    {
+      return exception;
+    }
+
+    public CodeDetails getCodeDetails()
+    {
+      return response;
+    }
+  }
+
+  /** Killable request that does deletions.
+  * It runs on a poster thread, so that it can be abandoned (see PosterTask).
+  *
+  * This task does a single document deletion.
+  */
+  protected class DeleteTask extends PosterTask
   {
     protected String documentURI;
 
@@ -1524,10 +2374,8 @@ public class HttpPoster
     protected String activityDetails = null;
     protected Throwable exception = null;
 
-    public DeleteThread(String documentURI)
+    public DeleteTask(String documentURI)
     {
-      super();
-      setDaemon(true);
       this.documentURI = documentURI;
     }
 
@@ -1540,100 +2388,77 @@ public class HttpPoster
         // Open a socket to ingest, and to the response stream to get the post result
         try
         {
-          // Set up the socket, and the (optional) secure socket.
-          Socket socket = createSocket(responseRetries);
+          // Get a connection to the host; this may be a kept-alive one.
+          HttpConnectionPool.HttpConnection connection = connectionPool.acquire(responseRetryWait * responseRetries,interruptionRetryTime);
+          boolean reusable = false;
           try
           {
-            InputStream in = socket.getInputStream();
-            try
-            {
-              OutputStream out = socket.getOutputStream();
-              try
-              {
-                byte[] requestBytes = ("<delete><id>"+xmlEncode(documentURI)+"</id></delete>").getBytes("UTF-8");
-                long startTime = System.currentTimeMillis();
-                byte[] tmp = ("POST " + postRemoveAction + " HTTP/1.0\r\n").getBytes("ASCII");
-                out.write(tmp, 0, tmp.length);
+            InputStream in = connection.getInputStream();
+            OutputStream out = connection.getOutputStream();
+            byte[] requestBytes = ("<delete><id>"+xmlEncode(documentURI)+"</id></delete>").getBytes("UTF-8");
+            long startTime = System.currentTimeMillis();
+            byte[] tmp = ("POST " + postRemoveAction + " HTTP/1.1\r\n" + hostHeader).getBytes("ASCII");
+            out.write(tmp, 0, tmp.length);
 
-                // Set all the headers
-                writeCredentials(out);
-                tmp = ("Content-Length: "+Integer.toString(requestBytes.length)+"\r\n").getBytes("ASCII");
-                out.write(tmp, 0, tmp.length);
-                tmp = ("Content-Type: text/xml; charset=UTF-8\r\n\r\n").getBytes("ASCII");
-                out.write(tmp, 0, tmp.length);
+            // Set all the headers
+            writeCredentials(out);
+            tmp = ("Content-Length: "+Integer.toString(requestBytes.length)+"\r\n").getBytes("ASCII");
+            out.write(tmp, 0, tmp.length);
+            tmp = ("Content-Type: text/xml; charset=UTF-8\r\n\r\n").getBytes("ASCII");
+            out.write(tmp, 0, tmp.length);
 
-                out.write(requestBytes);
+            out.write(requestBytes);
 
-                out.flush();
+            out.flush();
 
-                if (Logging.ingest.isDebugEnabled())
-                  Logging.ingest.debug("Delete posted");
+            if (Logging.ingest.isDebugEnabled())
+              Logging.ingest.debug("Delete posted");
 
-                CodeDetails cd;
-                try
-                {
-                  cd = getResponse(in);
-                }
-                catch (ServiceInterruption si)
-                {
-                  activityStart = new Long(startTime);
-                  activityCode = "-2";
-                  activityDetails = si.getMessage();
-                  throw si;
-                }
+            CodeDetails cd;
+            try
+            {
+              cd = getResponse(in);
+            }
+            catch (ServiceInterruption si)
+            {
+              activityStart = new Long(startTime);
+              activityCode = "-2";
+              activityDetails = si.getMessage();
+              throw si;
+            }
+            // The response has been read completely, so the connection can go back to the pool if the server allows
+            reusable = cd.isKeepAlive();
 
-                activityStart = new Long(startTime);
-                activityCode = cd.getCode();
-                activityDetails = cd.getDetails();
+            activityStart = new Long(startTime);
+            activityCode = cd.getCode();
+            activityDetails = cd.getDetails();
 
-                int codeValue = cd.getCodeValue();
+            int codeValue = cd.getCodeValue();
 
-                if (codeValue < 0)
-                  throw new ManifoldCFException("Http protocol error");
+            if (codeValue < 0)
+              throw new ManifoldCFException("Http protocol error");
 
-                // 200 means we got an xml document back
-                if (codeValue == 200)
-                {
-                  // Look at response XML
-                  cd.parseRemovalResponse();
-                  return;
-                }
+            // 200 means we got an xml document back
+            if (codeValue == 200)
+            {
+              // Look at response XML
+              cd.parseRemovalResponse();
+              return;
+            }
 
-                // We ignore everything in the range from 400-500 now
-                if (codeValue == 401)
-                  throw new ManifoldCFException("Bad credentials for ingestion",ManifoldCFException.SETUP_ERROR);
+            // We ignore everything in the range from 400-500 now
+            if (codeValue == 401)
+              throw new ManifoldCFException("Bad credentials for ingestion",ManifoldCFException.SETUP_ERROR);
 
-                if (codeValue >= 400 && codeValue < 500)
-                  return;
+            if (codeValue >= 400 && codeValue < 500)
+              return;
 
-                // Anything else means the document didn't delete.  Throw the error.
-                throw new ManifoldCFException("Error deleting document: '"+cd.getDescription()+"'");
-              }
-              finally
-              {
-                out.close();
-              }
-            }
-            finally
-            {
-              in.close();
-            }
+            // Anything else means the document didn't delete.  Throw the error.
+            throw new ManifoldCFException("Error deleting document: '"+cd.getDescription()+"'");
           }
           finally
           {
-            try
-            {
-              socket.close();
-            }
-            catch (InterruptedIOException e)
-            {
-              throw e;
-            }
-            catch (IOException e)
-            {
-              Logging.ingest.debug("Error closing socket: "+e.getMessage(),e);
-              // Do NOT rethrow
-            }
+            connectionPool.release(connection,reusable);
           }
         }
         catch (UnsupportedEncodingException ioe)
@@ -1683,20 +2508,17 @@ public class HttpPoster
     }
   }
   
-  /** Killable thread that does a commit.
-  * Java 1.5 stopped permitting thread interruptions to abort socket waits.  As a result, it is impossible to get threads to shutdown cleanly that are doing
-  * such waits.  So, the places where this happens are segregated in their own threads so that they can be just abandoned.
+  /** Killable request that does a commit.
+  * It runs on a poster thread, so that it can be abandoned (see PosterTask).
   *
-  * This thread does a commit.
+  * This task does a commit.
   */
-  protected class CommitThread extends java.lang.Thread
+  protected class CommitTask extends PosterTask
   {
     protected Throwable exception = null;
 
-    public CommitThread()
+    public CommitTask()
     {
-      super();
-      setDaemon(true);
     }
 
     public void run()
@@ -1707,75 +2529,51 @@ public class HttpPoster
         // Open a socket to update request handler, and to the response stream to get the post result
         try
         {
-          // Set up the socket, and the (optional) secure socket.
-          Socket socket = createSocket(responseRetries);
+          // Get a connection to the host; this may be a kept-alive one.
+          HttpConnectionPool.HttpConnection connection = connectionPool.acquire(responseRetryWait * responseRetries,interruptionRetryTime);
+          boolean reusable = false;
           try
           {
-            InputStream in = socket.getInputStream();
-            try
-            {
-              OutputStream out = socket.getOutputStream();
-              try
-              {
-                // Create the output stream to GTS
-                byte[] tmp = ("GET " + postUpdateAction + "?commit=true HTTP/1.0\r\n").getBytes("ASCII");
-                out.write(tmp, 0, tmp.length);
-
-                writeCredentials(out);
+            InputStream in = connection.getInputStream();
+            OutputStream out = connection.getOutputStream();
+            // Create the output stream to GTS
+            byte[] tmp = ("GET " + postUpdateAction + "?commit=true HTTP/1.1\r\n" + hostHeader).getBytes("ASCII");
+            out.write(tmp, 0, tmp.length);
 
-                tmp = ("Content-Length: 0\r\n\r\n").getBytes("ASCII");
-                out.write(tmp, 0, tmp.length);
+            writeCredentials(out);
 
-                if (Logging.ingest.isDebugEnabled())
-                  Logging.ingest.debug("Commit request posted");
+            tmp = ("Content-Length: 0\r\n\r\n").getBytes("ASCII");
+            out.write(tmp, 0, tmp.length);
 
-                out.flush();
+            if (Logging.ingest.isDebugEnabled())
+              Logging.ingest.debug("Commit request posted");
 
-                CodeDetails cd = getResponse(in);
+            out.flush();
 
-                int codeValue = cd.getCodeValue();
-                if (codeValue < 0)
-                  throw new ManifoldCFException("Http protocol error");
+            CodeDetails cd = getResponse(in);
+            reusable = cd.isKeepAlive();
 
-                // 200 means everything went OK
-                if (codeValue == 200)
-                {
-                  cd.parseCommitResponse();
-                  return;
-                }
+            int codeValue = cd.getCodeValue();
+            if (codeValue < 0)
+              throw new ManifoldCFException("Http protocol error");
 
-                // We ignore everything in the range from 400-500 now
-                if (codeValue == 401)
-                  throw new ManifoldCFException("Bad credentials for commit request",ManifoldCFException.SETUP_ERROR);
-
-                // Anything else means the info request failed.
-                throw new ManifoldCFException("Error connecting to update request API: '"+cd.getDescription()+"'");
-              }
-              finally
-              {
-                out.close();
-              }
-            }
-            finally
+            // 200 means everything went OK
+            if (codeValue == 200)
             {
-              in.close();
+              cd.parseCommitResponse();
+              return;
             }
+
+            // We ignore everything in the range from 400-500 now
+            if (codeValue == 401)
+              throw new ManifoldCFException("Bad credentials for commit request",ManifoldCFException.SETUP_ERROR);
+
+            // Anything else means the info request failed.
+            throw new ManifoldCFException("Error connecting to update request API: '"+cd.getDescription()+"'");
           }
           finally
           {
-            try
-            {
-              socket.close();
-            }
-            catch (InterruptedIOException e)
-            {
-              throw e;
-            }
-            catch (IOException e)
-            {
-              Logging.ingest.debug("Error closing socket: "+e.getMessage(),e);
-              // Do NOT rethrow
-            }
+            connectionPool.release(connection,reusable);
           }
         }
         catch (UnsupportedEncodingException ioe)
@@ -1807,20 +2605,17 @@ public class HttpPoster
   }
 
 
-  /** Killable thread that does a status check.
-  * Java 1.5 stopped permitting thread interruptions to abort socket waits.  As a result, it is impossible to get threads to shutdown cleanly that are doing
-  * such waits.  So, the places where this happens are segregated in their own threads so that they can be just abandoned.
+  /** Killable request that does a status check.
+  * It runs on a poster thread, so that it can be abandoned (see PosterTask).
   *
-  * This thread does a status check.
+  * This task does a status check.
   */
-  protected class StatusThread extends java.lang.Thread
+  protected class StatusTask extends PosterTask
   {
     protected Throwable exception = null;
 
-    public StatusThread()
+    public StatusTask()
     {
-      super();
-      setDaemon(true);
     }
 
     public void run()
@@ -1831,75 +2626,51 @@ public class HttpPoster
         // Open a socket to ingest, and to the response stream to get the post result
         try
         {
-          // Set up the socket, and the (optional) secure socket.
-          Socket socket = createSocket(responseRetries);
+          // Get a connection to the host; this may be a kept-alive one.
+          HttpConnectionPool.HttpConnection connection = connectionPool.acquire(responseRetryWait * responseRetries,interruptionRetryTime);
+          boolean reusable = false;
           try
           {
-            InputStream in = socket.getInputStream();
-            try
-            {
-              OutputStream out = socket.getOutputStream();
-              try
-              {
-                // Create the output stream to GTS
-                byte[] tmp = ("GET " + postStatusAction + " HTTP/1.0\r\n").getBytes("ASCII");
-                out.write(tmp, 0, tmp.length);
-
-                writeCredentials(out);
+            InputStream in = connection.getInputStream();
+            OutputStream out = connection.getOutputStream();
+            // Create the output stream to GTS
+            byte[] tmp = ("GET " + postStatusAction + " HTTP/1.1\r\n" + hostHeader).getBytes("ASCII");
+            out.write(tmp, 0, tmp.length);
 
-                tmp = ("Content-Length: 0\r\n\r\n").getBytes("ASCII");
-                out.write(tmp, 0, tmp.length);
+            writeCredentials(out);
 
-                if (Logging.ingest.isDebugEnabled())
-                  Logging.ingest.debug("Status request posted");
+            tmp = ("Content-Length: 0\r\n\r\n").getBytes("ASCII");
+            out.write(tmp, 0, tmp.length);
 
-                out.flush();
+            if (Logging.ingest.isDebugEnabled())
+              Logging.ingest.debug("Status request posted");
 
-                CodeDetails cd = getResponse(in);
+            out.flush();
 
-                int codeValue = cd.getCodeValue();
-                if (codeValue < 0)
-                  throw new ManifoldCFException("Http protocol error");
-
-                // 200 means everything went OK
-                if (codeValue == 200)
-                {
-                  cd.parseStatusResponse();
-                  return;
-                }
+            CodeDetails cd = getResponse(in);
+            reusable = cd.isKeepAlive();
 
-                // We ignore everything in the range from 400-500 now
-                if (codeValue == 401)
-                  throw new ManifoldCFException("Bad credentials for ingestion",ManifoldCFException.SETUP_ERROR);
+            int codeValue = cd.getCodeValue();
+            if (codeValue < 0)
+              throw new ManifoldCFException("Http protocol error");
 
-                // Anything else means the info request failed.
-                throw new ManifoldCFException("Error connecting to ingestion API: '"+cd.getDescription()+"'");
-              }
-              finally
-              {
-                out.close();
-              }
-            }
-            finally
+            // 200 means everything went OK
+            if (codeValue == 200)
             {
-              in.close();
+              cd.parseStatusResponse();
+              return;
             }
+
+            // We ignore everything in the range from 400-500 now
+            if (codeValue == 401)
+              throw new ManifoldCFException("Bad credentials for ingestion",ManifoldCFException.SETUP_ERROR);
+
+            // Anything else means the info request failed.
+            throw new ManifoldCFException("Error connecting to ingestion API: '"+cd.getDescription()+"'");
           }
           finally
           {
-            try
-            {
-              socket.close();
-            }
-            catch (InterruptedIOException e)
-            {
-              throw e;
-            }
-            catch (IOException e)
-            {
-              Logging.ingest.debug("Error closing socket: "+e.getMessage(),e);
-              // Do NOT rethrow
-            }
+            connectionPool.release(connection,reusable);
           }
         }
         catch (UnsupportedEncodingException ioe)
@@ -1939,12 +2710,14 @@ public class HttpPoster
     protected String res;
     protected XMLDoc returnDoc;
     protected String rawString;
+    protected boolean keepAlive;
 
-    public CodeDetails(String res, XMLDoc returnDoc, String rawString)
+    public CodeDetails(String res, XMLDoc returnDoc, String rawString, boolean keepAlive)
     {
       this.res = res;
       this.returnDoc = returnDoc;
       this.rawString = rawString;
+      this.keepAlive = keepAlive;
       codeValue = -100;
       code = "-100";
       details = "Http response was improperly formed";
@@ -1991,6 +2764,12 @@ public class HttpPoster
       return returnDoc;
     }
 
+    /** Check whether the connection the response came on can be used for another request. */
+    public boolean isKeepAlive()
+    {
+      return keepAlive;
+    }
+
     public String getDescription()
       throws ManifoldCFException
     {
@@ -63,6 +63,14 @@ public class SolrConfig
   public static final String PARAM_INCLUDEDMIMETYPES = "Included mime types";
   /** Excluded mime types */
   public static final String PARAM_EXCLUDEDMIMETYPES="Excluded mime types";
+  /** Documents per batched update request; empty or 0 means no batching */
+  public static final String PARAM_BATCHSIZE = "Batch size";
+  /** Longest time a document waits for its batch to fill, in milliseconds */
+  public static final String PARAM_BATCHWAIT = "Batch wait";
+  /** Documents longer than this are never batched */
+  public static final String PARAM_BATCHMAXLENGTH = "Batch maximum document length";
+  /** Field that receives the content of batched documents */
+  public static final String PARAM_BATCHCONTENTFIELD = "Batch content field";
   /** Node describing an argument */
   public static final String NODE_ARGUMENT = "argument";
   /** Attribute with the argument name */
@@ -83,6 +83,18 @@ public class SolrConnector extends org.apache.manifoldcf.agents.output.BaseOutpu
     super.connect(configParameters);
   }
 
+  /** This method is periodically called for all connectors that are connected but not
+  * in active use.
+  */
+  @Override
+  public void poll()
+    throws ManifoldCFException
+  {
+    // Close kept-alive connections to Solr that have been idle too long
+    HttpConnectionPool.closeIdleConnections(System.currentTimeMillis());
+    super.poll();
+  }
+
   /** Close the connection.  Call this before discarding the connection.
   */
   @Override
@@ -190,6 +202,22 @@ public class SolrConnector extends org.apache.manifoldcf.agents.output.BaseOutpu
         }
       }
       
+      String batchSize = params.getParameter(SolrConfig.PARAM_BATCHSIZE);
+      if (batchSize == null || batchSize.length() == 0)
+        batchSize = "0";
+
+      String batchWait = params.getParameter(SolrConfig.PARAM_BATCHWAIT);
+      if (batchWait == null || batchWait.length() == 0)
+        batchWait = "1000";
+
+      String batchMaxLength = params.getParameter(SolrConfig.PARAM_BATCHMAXLENGTH);
+      if (batchMaxLength == null || batchMaxLength.length() == 0)
+        batchMaxLength = "65536";
+
+      String batchContentField = params.getParameter(SolrConfig.PARAM_BATCHCONTENTFIELD);
+      if (batchContentField == null || batchContentField.length() == 0)
+        batchContentField = "content";
+
       String userID = params.getParameter(SolrConfig.PARAM_USERID);
       String password = params.getObfuscatedParameter(SolrConfig.PARAM_PASSWORD);
       String realm = params.getParameter(SolrConfig.PARAM_REALM);
@@ -210,7 +238,8 @@ public class SolrConnector extends org.apache.manifoldcf.agents.output.BaseOutpu
       try
       {
         poster = new HttpPoster(protocol,server,Integer.parseInt(port),webapp,updatePath,removePath,statusPath,realm,userID,password,
-          allowAttributeName,denyAttributeName,idAttributeName,keystoreManager,maxDocumentLength,commitWithin);
+          allowAttributeName,denyAttributeName,idAttributeName,keystoreManager,maxDocumentLength,commitWithin,
+          Integer.parseInt(batchSize),Long.parseLong(batchWait),Long.parseLong(batchMaxLength),batchContentField);
       }
       catch (NumberFormatException e)
       {
@@ -654,6 +683,24 @@ public class SolrConnector extends org.apache.manifoldcf.agents.output.BaseOutpu
 "    editconnection.maxdocumentlength.focus();\n"+
 "    return false;\n"+
 "  }\n"+
+"  if (editconnection.batchsize.value != \"\" && !isInteger(editconnection.batchsize.value))\n"+
+"  {\n"+
+"    alert(\""+Messages.getBodyJavascriptString(locale,"SolrConnector.BatchSizeMustBeAnInteger")+"\");\n"+
+"    editconnection.batchsize.focus();\n"+
+"    return false;\n"+
+"  }\n"+
+"  if (editconnection.batchwait.value != \"\" && !isInteger(editconnection.batchwait.value))\n"+
+"  {\n"+
+"    alert(\""+Messages.getBodyJavascriptString(locale,"SolrConnector.BatchWaitMustBeAnInteger")+"\");\n"+
+"    editconnection.batchwait.focus();\n"+
+"    return false;\n"+
+"  }\n"+
+"  if (editconnection.batchmaxdocumentlength.value != \"\" && !isInteger(editconnection.batchmaxdocumentlength.value))\n"+
+"  {\n"+
+"    alert(\""+Messages.getBodyJavascriptString(locale,"SolrConnector.BatchMaximumDocumentLengthMustBeAnInteger")+"\");\n"+
+"    editconnection.batchmaxdocumentlength.focus();\n"+
+"    return false;\n"+
+"  }\n"+
 "  if (editconnection.commitwithin.value != \"\" && !isInteger(editconnection.commitwithin.value))\n"+
 "  {\n"+
 "    alert(\""+Messages.getBodyJavascriptString(locale,"SolrConnector.CommitWithinValueMustBeAnInteger")+"\");\n"+
@@ -728,6 +775,27 @@ public class SolrConnector extends org.apache.manifoldcf.agents.output.BaseOutpu
 "    editconnection.maxdocumentlength.focus();\n"+
 "    return false;\n"+
 "  }\n"+
+"  if (editconnection.batchsize.value != \"\" && !isInteger(editconnection.batchsize.value))\n"+
+"  {\n"+
+"    alert(\""+Messages.getBodyJavascriptString(locale,"SolrConnector.BatchSizeMustBeAnInteger")+"\");\n"+
+"    SelectTab(\""+Messages.getBodyJavascriptString(locale,"SolrConnector.Documents")+"\");\n"+
+"    editconnection.batchsize.focus();\n"+
+"    return false;\n"+
+"  }\n"+
+"  if (editconnection.batchwait.value != \"\" && !isInteger(editconnection.batchwait.value))\n"+
+"  {\n"+
+"    alert(\""+Messages.getBodyJavascriptString(locale,"SolrConnector.BatchWaitMustBeAnInteger")+"\");\n"+
+"    SelectTab(\""+Messages.getBodyJavascriptString(locale,"SolrConnector.Documents")+"\");\n"+
+"    editconnection.batchwait.focus();\n"+
+"    return false;\n"+
+"  }\n"+
+"  if (editconnection.batchmaxdocumentlength.value != \"\" && !isInteger(editconnection.batchmaxdocumentlength.value))\n"+
+"  {\n"+
+"    alert(\""+Messages.getBodyJavascriptString(locale,"SolrConnector.BatchMaximumDocumentLengthMustBeAnInteger")+"\");\n"+
+"    SelectTab(\""+Messages.getBodyJavascriptString(locale,"SolrConnector.Documents")+"\");\n"+
+"    editconnection.batchmaxdocumentlength.focus();\n"+
+"    return false;\n"+
+"  }\n"+
 "  if (editconnection.commitwithin.value != \"\" && !isInteger(editconnection.commitwithin.value))\n"+
 "  {\n"+
 "    alert(\""+Messages.getBodyJavascriptString(locale,"SolrConnector.CommitWithinValueMustBeAnInteger")+"\");\n"+
@@ -858,6 +926,22 @@ public class SolrConnector extends org.apache.manifoldcf.agents.output.BaseOutpu
     if (excludedMimeTypes == null)
       excludedMimeTypes = "";
     
+    String batchSize = parameters.getParameter(SolrConfig.PARAM_BATCHSIZE);
+    if (batchSize == null)
+      batchSize = "";
+    
+    String batchWait = parameters.getParameter(SolrConfig.PARAM_BATCHWAIT);
+    if (batchWait == null)
+      batchWait = "1000";
+    
+    String batchMaxLength = parameters.getParameter(SolrConfig.PARAM_BATCHMAXLENGTH);
+    if (batchMaxLength == null)
+      batchMaxLength = "65536";
+    
+    String batchContentField = parameters.getParameter(SolrConfig.PARAM_BATCHCONTENTFIELD);
+    if (batchContentField == null)
+      batchContentField = "content";
+    
     // "Server" tab
     // Always pass the whole keystore as a hidden.
     if (solrKeystore != null)
@@ -1049,6 +1133,30 @@ public class SolrConnector extends org.apache.manifoldcf.agents.output.BaseOutpu
 "      <textarea rows=\"10\" cols=\"20\" name=\"excludedmimetypes\">"+org.apache.manifoldcf.ui.util.Encoder.bodyEscape(excludedMimeTypes)+"</textarea>\n"+
 "    </td>\n"+
 "  </tr>\n"+
+"  <tr>\n"+
+"    <td class=\"description\"><nobr>" + Messages.getBodyString(locale,"SolrConnector.BatchSize") + "</nobr></td>\n"+
+"    <td class=\"value\">\n"+
+"      <input name=\"batchsize\" type=\"text\" size=\"16\" value=\""+org.apache.manifoldcf.ui.util.Encoder.attributeEscape(batchSize)+"\"/>\n"+
+"    </td>\n"+
+"  </tr>\n"+
+"  <tr>\n"+
+"    <td class=\"description\"><nobr>" + Messages.getBodyString(locale,"SolrConnector.BatchWait") + "</nobr></td>\n"+
+"    <td class=\"value\">\n"+
+"      <input name=\"batchwait\" type=\"text\" size=\"16\" value=\""+org.apache.manifoldcf.ui.util.Encoder.attributeEscape(batchWait)+"\"/>\n"+
+"    </td>\n"+
+"  </tr>\n"+
+"  <tr>\n"+
+"    <td class=\"description\"><nobr>" + Messages.getBodyString(locale,"SolrConnector.BatchMaximumDocumentLength") + "</nobr></td>\n"+
+"    <td class=\"value\">\n"+
+"      <input name=\"batchmaxdocumentlength\" type=\"text\" size=\"16\" value=\""+org.apache.manifoldcf.ui.util.Encoder.attributeEscape(batchMaxLength)+"\"/>\n"+
+"    </td>\n"+
+"  </tr>\n"+
+"  <tr>\n"+
+"    <td class=\"description\"><nobr>" + Messages.getBodyString(locale,"SolrConnector.BatchContentField") + "</nobr></td>\n"+
+"    <td class=\"value\">\n"+
+"      <input name=\"batchcontentfield\" type=\"text\" size=\"16\" value=\""+org.apache.manifoldcf.ui.util.Encoder.attributeEscape(batchContentField)+"\"/>\n"+
+"    </td>\n"+
+"  </tr>\n"+
 "</table>\n"
       );
     }
@@ -1057,7 +1165,11 @@ public class SolrConnector extends org.apache.manifoldcf.agents.output.BaseOutpu
       out.print(
 "<input type=\"hidden\" name=\"maxdocumentlength\" value=\""+org.apache.manifoldcf.ui.util.Encoder.attributeEscape(maxLength)+"\"/>\n"+
 "<input type=\"hidden\" name=\"includedmimetypes\" value=\""+org.apache.manifoldcf.ui.util.Encoder.attributeEscape(includedMimeTypes)+"\"/>\n"+
-"<input type=\"hidden\" name=\"excludedmimetypes\" value=\""+org.apache.manifoldcf.ui.util.Encoder.attributeEscape(excludedMimeTypes)+"\"/>\n"
+"<input type=\"hidden\" name=\"excludedmimetypes\" value=\""+org.apache.manifoldcf.ui.util.Encoder.attributeEscape(excludedMimeTypes)+"\"/>\n"+
+"<input type=\"hidden\" name=\"batchsize\" value=\""+org.apache.manifoldcf.ui.util.Encoder.attributeEscape(batchSize)+"\"/>\n"+
+"<input type=\"hidden\" name=\"batchwait\" value=\""+org.apache.manifoldcf.ui.util.Encoder.attributeEscape(batchWait)+"\"/>\n"+
+"<input type=\"hidden\" name=\"batchmaxdocumentlength\" value=\""+org.apache.manifoldcf.ui.util.Encoder.attributeEscape(batchMaxLength)+"\"/>\n"+
+"<input type=\"hidden\" name=\"batchcontentfield\" value=\""+org.apache.manifoldcf.ui.util.Encoder.attributeEscape(batchContentField)+"\"/>\n"
       );
     }
     
@@ -1296,6 +1408,22 @@ public class SolrConnector extends org.apache.manifoldcf.agents.output.BaseOutpu
     if (excludedMimeTypes != null)
       parameters.setParameter(SolrConfig.PARAM_EXCLUDEDMIMETYPES,excludedMimeTypes);
     
+    String batchSize = variableContext.getParameter("batchsize");
+    if (batchSize != null)
+      parameters.setParameter(SolrConfig.PARAM_BATCHSIZE,batchSize);
+    
+    String batchWait = variableContext.getParameter("batchwait");
+    if (batchWait != null)
+      parameters.setParameter(SolrConfig.PARAM_BATCHWAIT,batchWait);
+    
+    String batchMaxLength = variableContext.getParameter("batchmaxdocumentlength");
+    if (batchMaxLength != null)
+      parameters.setParameter(SolrConfig.PARAM_BATCHMAXLENGTH,batchMaxLength);
+    
+    String batchContentField = variableContext.getParameter("batchcontentfield");
+    if (batchContentField != null)
+      parameters.setParameter(SolrConfig.PARAM_BATCHCONTENTFIELD,batchContentField);
+    
     String commitsPresent = variableContext.getParameter("commits_present");
     if (commitsPresent != null)
     {
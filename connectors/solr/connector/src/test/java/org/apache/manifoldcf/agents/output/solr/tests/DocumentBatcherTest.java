@@ -0,0 +1,227 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.output.solr.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.output.solr.DocumentBatcher;
+import org.apache.manifoldcf.agents.output.solr.HttpPoster;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Tests for the hand-off of documents between ingestion threads in the Solr document batcher */
+public class DocumentBatcherTest
+{
+
+  @BeforeClass
+  public static void setup()
+  {
+    if (org.apache.manifoldcf.agents.system.Logging.ingest == null)
+    {
+      org.apache.manifoldcf.agents.system.Logging.ingest = Logger.getLogger("org.apache.manifoldcf.ingest");
+      org.apache.manifoldcf.agents.system.Logging.ingest.setLevel(Level.WARN);
+    }
+    // The poster reads these when it is constructed; the tests use their own batchers, not the poster's
+    System.setProperty(HttpPoster.ingestBufferSizeProperty,"32768");
+    System.setProperty(HttpPoster.ingestResponseRetryCount,"1");
+    System.setProperty(HttpPoster.ingestResponseRetryInterval,"20");
+    System.setProperty(HttpPoster.ingestRescheduleInterval,"60000");
+    System.setProperty(HttpPoster.ingestMaxConnectionsProperty,"1");
+    System.setProperty(HttpPoster.ingestChunkedProperty,"false");
+  }
+
+  @Test
+  public void fullBatchIsSentByTheThreadThatFillsIt()
+    throws Exception
+  {
+    DocumentBatcher batcher = DocumentBatcher.getBatcher("fill",3,60000L);
+    RecordingPoster poster = new RecordingPoster(null);
+    long startTime = System.currentTimeMillis();
+    AddThread[] threads = addDocuments(batcher,poster,3);
+    // Nobody should have waited for the batch deadline
+    assertTrue(System.currentTimeMillis() - startTime < 30000L);
+
+    assertEquals(1,poster.getBatchSizes().size());
+    assertEquals(new Integer(3),poster.getBatchSizes().get(0));
+    for (AddThread t : threads)
+    {
+      assertNull(t.getException());
+      assertTrue(t.getEntry().isDone());
+      assertTrue(t.getEntry().getAccepted());
+      assertEquals("OK",t.getEntry().getActivityCode());
+    }
+  }
+
+  @Test
+  public void partialBatchIsSentWhenTheWaitRunsOut()
+    throws Exception
+  {
+    DocumentBatcher batcher = DocumentBatcher.getBatcher("timeout",10,500L);
+    RecordingPoster poster = new RecordingPoster(null);
+    long startTime = System.currentTimeMillis();
+    AddThread[] threads = addDocuments(batcher,poster,2);
+    assertTrue(System.currentTimeMillis() - startTime >= 500L);
+
+    assertEquals(1,poster.getBatchSizes().size());
+    assertEquals(new Integer(2),poster.getBatchSizes().get(0));
+    for (AddThread t : threads)
+    {
+      assertNull(t.getException());
+      assertTrue(t.getEntry().getAccepted());
+    }
+
+    // The next document starts a new batch
+    addDocuments(batcher,poster,1);
+    assertEquals(2,poster.getBatchSizes().size());
+    assertEquals(new Integer(1),poster.getBatchSizes().get(1));
+  }
+
+  @Test
+  public void failureGoesToEveryDocumentWithoutAnOutcome()
+    throws Exception
+  {
+    DocumentBatcher batcher = DocumentBatcher.getBatcher("failure",3,60000L);
+    ManifoldCFException failure = new ManifoldCFException("Solr went away");
+    RecordingPoster poster = new RecordingPoster(failure);
+    AddThread[] threads = addDocuments(batcher,poster,3);
+
+    int accepted = 0;
+    for (AddThread t : threads)
+    {
+      // The batcher itself does not throw; the outcome is in the entry
+      assertNull(t.getException());
+      DocumentBatcher.BatchEntry entry = t.getEntry();
+      assertTrue(entry.isDone());
+      if (entry.getAccepted())
+      {
+        // This one got its response before the failure
+        assertNull(entry.getException());
+        accepted++;
+      }
+      else
+        assertSame(failure,entry.getException());
+    }
+    assertEquals(1,accepted);
+  }
+
+  /** Add the given number of documents at once, each from its own thread, and wait for them all to finish.
+  */
+  protected static AddThread[] addDocuments(DocumentBatcher batcher, HttpPoster poster, int count)
+    throws Exception
+  {
+    AddThread[] threads = new AddThread[count];
+    for (int i = 0; i < count; i++)
+    {
+      threads[i] = new AddThread(batcher,poster,new DocumentBatcher.BatchEntry("http://doc"+Integer.toString(i),new byte[0]));
+      threads[i].start();
+    }
+    for (AddThread t : threads)
+    {
+      t.join(60000L);
+      assertFalse("Document was never handed back",t.isAlive());
+    }
+    return threads;
+  }
+
+  /** A poster that records the batches it is asked to send, instead of sending them.
+  */
+  protected static class RecordingPoster extends HttpPoster
+  {
+    protected final ManifoldCFException failure;
+    protected final List<Integer> batchSizes = new ArrayList<Integer>();
+
+    public RecordingPoster(ManifoldCFException failure)
+      throws ManifoldCFException
+    {
+      super("http","localhost",8983,"solr","/update/extract","/update","/admin/ping",null,null,null,
+        null,null,null,null,null,null,1,0L,0L,"content");
+      this.failure = failure;
+    }
+
+    protected void sendBatch(List<DocumentBatcher.BatchEntry> entries)
+      throws ManifoldCFException
+    {
+      synchronized (batchSizes)
+      {
+        batchSizes.add(new Integer(entries.size()));
+      }
+      if (failure == null)
+      {
+        for (DocumentBatcher.BatchEntry entry : entries)
+        {
+          entry.setResult(true,0L,"OK",null);
+        }
+        return;
+      }
+      entries.get(0).setResult(true,0L,"OK",null);
+      throw failure;
+    }
+
+    public List<Integer> getBatchSizes()
+    {
+      synchronized (batchSizes)
+      {
+        return new ArrayList<Integer>(batchSizes);
+      }
+    }
+  }
+
+  protected static class AddThread extends Thread
+  {
+    protected final DocumentBatcher batcher;
+    protected final HttpPoster poster;
+    protected final DocumentBatcher.BatchEntry entry;
+    protected Throwable exception = null;
+
+    public AddThread(DocumentBatcher batcher, HttpPoster poster, DocumentBatcher.BatchEntry entry)
+    {
+      super();
+      setDaemon(true);
+      this.batcher = batcher;
+      this.poster = poster;
+      this.entry = entry;
+    }
+
+    public void run()
+    {
+      try
+      {
+        batcher.addDocument(entry,poster);
+      }
+      catch (Throwable e)
+      {
+        exception = e;
+      }
+    }
+
+    public DocumentBatcher.BatchEntry getEntry()
+    {
+      return entry;
+    }
+
+    public Throwable getException()
+    {
+      return exception;
+    }
+  }
+
+}
@@ -0,0 +1,122 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.output.solr.tests;
+
+import org.apache.manifoldcf.agents.output.solr.HttpPoster;
+
+import java.util.*;
+import org.junit.*;
+
+/** Throughput benchmark for batched Solr updates.  Concurrent threads ingest small plain text documents into the
+* stand-in server from SolrBatchingTest, first one request per document, then batched, at several batch sizes.  It
+* only prints timings, so surefire leaves it out unless the benchmark profile is active.
+*/
+public class SolrBatchingBenchmark
+{
+  protected final static int threadCount = 20;
+  protected final static int documentsPerThread = 50;
+  protected final static int[] batchSizes = new int[]{0,5,10,20};
+
+  @BeforeClass
+  public static void setup()
+    throws Exception
+  {
+    SolrBatchingTest.setup();
+    // Enough connections that unbatched requests are not held back by the pool
+    System.setProperty(HttpPoster.ingestMaxConnectionsProperty,Integer.toString(threadCount));
+  }
+
+  @AfterClass
+  public static void teardown()
+    throws Exception
+  {
+    SolrBatchingTest.teardown();
+  }
+
+  @Test
+  public void throughput()
+    throws Exception
+  {
+    // Warm up connections and code paths before measuring
+    runBenchmark(threadCount);
+    for (int batchSize : batchSizes)
+    {
+      long[] results = runBenchmark(batchSize);
+      System.out.println("Solr batching benchmark, "+threadCount+" threads, batch size "+batchSize+": "+
+        results[2]+" documents in "+results[0]+" ms, "+results[1]+" requests ("+docsPerSecond(results)+" docs/s)");
+      Assert.assertEquals((long)(threadCount*documentsPerThread),results[2]);
+    }
+  }
+
+  protected static long docsPerSecond(long[] results)
+  {
+    return (results[0] == 0L)?results[2]*1000L:results[2]*1000L/results[0];
+  }
+
+  /** Run the threads; return elapsed time, request count, and documents indexed */
+  protected static long[] runBenchmark(int batchSize)
+    throws Exception
+  {
+    final HttpPoster poster = SolrBatchingTest.makePoster(batchSize);
+    SolrBatchingTest.server.resetCounts();
+    final Throwable[] exception = new Throwable[1];
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++)
+    {
+      final int threadNumber = i;
+      threads[i] = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            for (int j = 0; j < documentsPerThread; j++)
+            {
+              if (!poster.indexPost("http://example.com/"+threadNumber+"/"+j,
+                SolrBatchingTest.makeDocument("Page "+j+" of thread "+threadNumber),
+                new HashMap(),new HashMap(),null,new SolrBatchingTest.NullAddActivity()))
+                throw new Exception("Document rejected");
+            }
+          }
+          catch (Throwable e)
+          {
+            synchronized (exception)
+            {
+              exception[0] = e;
+            }
+          }
+        }
+      };
+    }
+    long startTime = System.currentTimeMillis();
+    for (Thread thread : threads)
+    {
+      thread.start();
+    }
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+    long elapsed = System.currentTimeMillis() - startTime;
+    if (exception[0] != null)
+      throw new Exception("Ingestion failed: "+exception[0].getMessage(),exception[0]);
+    return new long[]{elapsed,SolrBatchingTest.server.getRequestCount(),SolrBatchingTest.server.getDocumentCount()};
+  }
+
+}
@@ -0,0 +1,424 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.output.solr.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.agents.output.solr.HttpPoster;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import org.junit.*;
+
+/** Check batched Solr updates end to end, against a local stand-in for Solr that charges a fixed overhead per
+* request.
+*/
+public class SolrBatchingTest
+{
+  protected final static int threadCount = 20;
+  protected final static int documentsPerThread = 10;
+  protected final static long requestOverhead = 5L;
+
+  protected static StandInServer server;
+
+  @BeforeClass
+  public static void setup()
+    throws Exception
+  {
+    if (org.apache.manifoldcf.agents.system.Logging.ingest == null)
+    {
+      org.apache.manifoldcf.agents.system.Logging.ingest = Logger.getLogger("org.apache.manifoldcf.ingest");
+      org.apache.manifoldcf.agents.system.Logging.ingest.setLevel(Level.WARN);
+    }
+    // The poster reads these when it is constructed
+    System.setProperty(HttpPoster.ingestBufferSizeProperty,"32768");
+    System.setProperty(HttpPoster.ingestResponseRetryCount,"9000");
+    System.setProperty(HttpPoster.ingestResponseRetryInterval,"20");
+    System.setProperty(HttpPoster.ingestRescheduleInterval,"60000");
+    System.setProperty(HttpPoster.ingestChunkedProperty,"true");
+    server = new StandInServer();
+    server.start();
+  }
+
+  @AfterClass
+  public static void teardown()
+    throws Exception
+  {
+    server.shutdown();
+  }
+
+  @Test
+  public void batchesShareRequests()
+    throws Exception
+  {
+    long[] unbatched = runThreads(0,new HashMap());
+    Assert.assertEquals((long)(threadCount*documentsPerThread),unbatched[1]);
+    Assert.assertEquals((long)(threadCount*documentsPerThread),unbatched[0]);
+    // Each thread has one document in flight at a time, so a batch can be no bigger than the number of threads
+    long[] batched = runThreads(threadCount,new HashMap());
+    Assert.assertEquals((long)(threadCount*documentsPerThread),batched[1]);
+    Assert.assertTrue(batched[0] * 5L < batched[1]);
+  }
+
+  @Test
+  public void fieldArgumentsPreventBatching()
+    throws Exception
+  {
+    Map arguments = new HashMap();
+    List values = new ArrayList();
+    values.add("crawler");
+    arguments.put("literal.source",values);
+    long[] counts = runThreads(threadCount,arguments);
+    Assert.assertEquals((long)(threadCount*documentsPerThread),counts[1]);
+    Assert.assertEquals((long)(threadCount*documentsPerThread),counts[0]);
+  }
+
+  @Test
+  public void rejectionInBatch()
+    throws Exception
+  {
+    final HttpPoster poster = makePoster(5);
+    final boolean[] results = new boolean[5];
+    final Throwable[] exceptions = new Throwable[5];
+    Thread[] threads = new Thread[5];
+    for (int i = 0; i < threads.length; i++)
+    {
+      final int index = i;
+      threads[i] = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            results[index] = poster.indexPost("http://example.com/"+index,makeDocument((index == 2)?"BADDOC":"Document "+index),
+              new HashMap(),new HashMap(),null,new NullAddActivity());
+          }
+          catch (Throwable e)
+          {
+            exceptions[index] = e;
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+    for (int i = 0; i < threads.length; i++)
+    {
+      Assert.assertNull(exceptions[i]);
+      Assert.assertEquals(i != 2,results[i]);
+    }
+  }
+
+  /** Run the threads; return the request count and the number of documents indexed */
+  protected static long[] runThreads(int batchSize, final Map arguments)
+    throws Exception
+  {
+    final HttpPoster poster = makePoster(batchSize);
+    server.resetCounts();
+    final Throwable[] exception = new Throwable[1];
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++)
+    {
+      final int threadNumber = i;
+      threads[i] = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            for (int j = 0; j < documentsPerThread; j++)
+            {
+              if (!poster.indexPost("http://example.com/"+threadNumber+"/"+j,makeDocument("Page "+j+" of thread "+threadNumber),
+                arguments,new HashMap(),null,new NullAddActivity()))
+                throw new Exception("Document rejected");
+            }
+          }
+          catch (Throwable e)
+          {
+            synchronized (exception)
+            {
+              exception[0] = e;
+            }
+          }
+        }
+      };
+    }
+    for (Thread thread : threads)
+    {
+      thread.start();
+    }
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+    if (exception[0] != null)
+      throw new Exception("Ingestion failed: "+exception[0].getMessage(),exception[0]);
+    return new long[]{server.getRequestCount(),server.getDocumentCount()};
+  }
+
+  protected static HttpPoster makePoster(int batchSize)
+    throws ManifoldCFException
+  {
+    return makePoster(server,batchSize);
+  }
+
+  protected static HttpPoster makePoster(StandInServer server, int batchSize)
+    throws ManifoldCFException
+  {
+    return new HttpPoster("http","localhost",server.getPort(),"solr","/update/extract","/update","/admin/ping",
+      null,null,null,"allow_token_","deny_token_","id",null,null,null,
+      batchSize,100L,65536L,"content");
+  }
+
+  protected static RepositoryDocument makeDocument(String text)
+    throws Exception
+  {
+    // Only plain text is batched; markup goes to the extracting handler
+    RepositoryDocument rd = new RepositoryDocument();
+    byte[] data = text.getBytes("UTF-8");
+    rd.setBinary(new ByteArrayInputStream(data),data.length);
+    rd.addField("title",text);
+    return rd;
+  }
+
+  protected static class NullAddActivity implements IOutputAddActivity
+  {
+    public String qualifyAccessToken(String authorityNameString, String accessToken)
+    {
+      return accessToken;
+    }
+
+    public void recordActivity(Long startTime, String activityType, Long dataSize,
+      String entityURI, String resultCode, String resultDescription)
+    {
+    }
+  }
+
+  /** Minimal HTTP/1.1 server standing in for Solr.  Every request costs a fixed overhead; a request whose body contains
+  * BADDOC is rejected with a 400, as Solr would reject a whole update request containing a bad document.
+  */
+  protected static class StandInServer extends Thread
+  {
+    protected final ServerSocket serverSocket;
+    protected long requestCount = 0L;
+    protected long documentCount = 0L;
+
+    public StandInServer()
+      throws IOException
+    {
+      serverSocket = new ServerSocket(0);
+      setDaemon(true);
+    }
+
+    public int getPort()
+    {
+      return serverSocket.getLocalPort();
+    }
+
+    public synchronized void resetCounts()
+    {
+      requestCount = 0L;
+      documentCount = 0L;
+    }
+
+    public synchronized long getRequestCount()
+    {
+      return requestCount;
+    }
+
+    public synchronized long getDocumentCount()
+    {
+      return documentCount;
+    }
+
+    public void shutdown()
+      throws IOException
+    {
+      serverSocket.close();
+    }
+
+    public void run()
+    {
+      try
+      {
+        while (true)
+        {
+          final Socket socket = serverSocket.accept();
+          Thread handler = new Thread()
+          {
+            public void run()
+            {
+              try
+              {
+                handleConnection(socket);
+              }
+              catch (IOException e)
+              {
+              }
+              finally
+              {
+                try
+                {
+                  socket.close();
+                }
+                catch (IOException e)
+                {
+                }
+              }
+            }
+          };
+          handler.setDaemon(true);
+          handler.start();
+        }
+      }
+      catch (IOException e)
+      {
+        // Closed
+      }
+    }
+
+    protected void handleConnection(Socket socket)
+      throws IOException
+    {
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+      while (true)
+      {
+        String requestLine = readLine(in);
+        if (requestLine == null)
+          return;
+        long contentLength = 0L;
+        boolean chunked = false;
+        while (true)
+        {
+          String header = readLine(in);
+          if (header == null || header.length() == 0)
+            break;
+          String lowerHeader = header.toLowerCase();
+          if (lowerHeader.startsWith("content-length:"))
+            contentLength = Long.parseLong(lowerHeader.substring(15).trim());
+          else if (lowerHeader.startsWith("transfer-encoding:") && lowerHeader.indexOf("chunked") != -1)
+            chunked = true;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (chunked)
+        {
+          while (true)
+          {
+            int size = Integer.parseInt(readLine(in).trim(),16);
+            if (size == 0)
+            {
+              readLine(in);
+              break;
+            }
+            copy(in,body,size);
+            readLine(in);
+          }
+        }
+        else
+          copy(in,body,contentLength);
+
+        String bodyString = body.toString("UTF-8");
+        int documents = 0;
+        if (requestLine.indexOf("/update/extract") != -1)
+          documents = 1;
+        else
+        {
+          int index = 0;
+          while ((index = bodyString.indexOf("<doc>",index)) != -1)
+          {
+            documents++;
+            index++;
+          }
+        }
+
+        try
+        {
+          Thread.sleep(requestOverhead);
+        }
+        catch (InterruptedException e)
+        {
+          return;
+        }
+
+        String response;
+        String status;
+        if (bodyString.indexOf("BADDOC") != -1)
+        {
+          status = "400 Bad Request";
+          response = "<html><body>Bad document</body></html>";
+          documents = 0;
+        }
+        else
+        {
+          status = "200 OK";
+          response = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><response><lst name=\"responseHeader\"><int name=\"status\">0</int>"+
+            "<int name=\"QTime\">1</int></lst><str name=\"status\">OK</str></response>";
+        }
+        synchronized (this)
+        {
+          requestCount++;
+          documentCount += documents;
+        }
+        byte[] responseBytes = response.getBytes("UTF-8");
+        out.write(("HTTP/1.1 "+status+"\r\nContent-Type: text/xml; charset=UTF-8\r\nContent-Length: "+
+          Integer.toString(responseBytes.length)+"\r\n\r\n").getBytes("ASCII"));
+        out.write(responseBytes);
+        out.flush();
+      }
+    }
+
+    protected static void copy(InputStream in, OutputStream out, long amount)
+      throws IOException
+    {
+      while (amount > 0L)
+      {
+        int x = in.read();
+        if (x == -1)
+          throw new IOException("Unexpected EOF");
+        out.write(x);
+        amount--;
+      }
+    }
+
+    protected static String readLine(InputStream in)
+      throws IOException
+    {
+      StringBuilder sb = new StringBuilder();
+      while (true)
+      {
+        int x = in.read();
+        if (x == -1)
+          return (sb.length() == 0)?null:sb.toString();
+        if (x == '\r')
+          continue;
+        if (x == '\n')
+          return sb.toString();
+        sb.append((char)x);
+      }
+    }
+  }
+
+}
@@ -66,12 +66,63 @@ public class BasicParseState
   {
   }
 
+  /** Deal with a block of characters.  This has the same effect as calling dealWithCharacter() for each one,
+  * but runs of body text, comment text, and quoted attribute values are handled a run at a time.
+  *@param buffer is the character buffer.
+  *@param offset is the offset of the first character to handle.
+  *@param length is the number of characters to handle.
+  */
+  public void dealWithCharacters(char[] buffer, int offset, int length)
+    throws ManifoldCFException
+  {
+    int end = offset + length;
+    int i = offset;
+    while (i < end)
+    {
+      int start = i;
+      switch (currentState)
+      {
+      case BASICPARSESTATE_NORMAL:
+        while (i < end && buffer[i] != '<')
+          i++;
+        if (i > start)
+          noteNormalCharacters(buffer,start,i-start);
+        if (i < end)
+        {
+          currentState = BASICPARSESTATE_SAWLEFTBRACKET;
+          i++;
+        }
+        break;
+      case BASICPARSESTATE_IN_COMMENT:
+        while (i < end && buffer[i] != '-')
+          i++;
+        if (i < end)
+        {
+          currentState = BASICPARSESTATE_SAWCOMMENTDASH;
+          i++;
+        }
+        break;
+      case BASICPARSESTATE_IN_SINGLE_QUOTES_ATTR_VALUE:
+      case BASICPARSESTATE_IN_DOUBLE_QUOTES_ATTR_VALUE:
+        char quoteChar = (currentState == BASICPARSESTATE_IN_SINGLE_QUOTES_ATTR_VALUE)?'\'':'"';
+        while (i < end && buffer[i] != quoteChar && buffer[i] != '\n' && buffer[i] != '\r')
+          i++;
+        currentValueBuffer.append(buffer,start,i-start);
+        if (i < end)
+          dealWithCharacter(buffer[i++]);
+        break;
+      default:
+        dealWithCharacter(buffer[i++]);
+        break;
+      }
+    }
+  }
+
   /** Deal with a character.  No exceptions are allowed, since those would represent syntax errors, and we don't want those to cause difficulty. */
   public void dealWithCharacter(char thisChar)
     throws ManifoldCFException
   {
     // At this level we want basic lexical analysis - that is, we deal with identifying tags and comments, that's it.
-    char thisCharLower = Character.toLowerCase(thisChar);
     switch (currentState)
     {
     case BASICPARSESTATE_NORMAL:
@@ -93,7 +144,7 @@ public class BasicParseState
         currentState = BASICPARSESTATE_IN_TAG_NAME;
         currentTagNameBuffer = new StringBuilder();
         if (!isHTMLWhitespace(thisChar))
-          currentTagNameBuffer.append(thisCharLower);
+          currentTagNameBuffer.append(Character.toLowerCase(thisChar));
       }
       break;
     case BASICPARSESTATE_SAWEXCLAMATION:
@@ -171,7 +222,7 @@ public class BasicParseState
         currentAttrMap = null;
       }
       else
-        currentTagNameBuffer.append(thisCharLower);
+        currentTagNameBuffer.append(Character.toLowerCase(thisChar));
       break;
     case BASICPARSESTATE_IN_ATTR_NAME:
       if (isHTMLWhitespace(thisChar))
@@ -227,7 +278,7 @@ public class BasicParseState
         currentAttrMap = null;
       }
       else
-        currentAttrNameBuffer.append(thisCharLower);
+        currentAttrNameBuffer.append(Character.toLowerCase(thisChar));
       break;
     case BASICPARSESTATE_IN_ATTR_LOOKING_FOR_VALUE:
       if (thisChar == '=')
@@ -254,7 +305,7 @@ public class BasicParseState
         currentAttrMap.put(currentAttrName,"");
         currentState = BASICPARSESTATE_IN_ATTR_NAME;
         currentAttrNameBuffer = new StringBuilder();
-        currentAttrNameBuffer.append(thisCharLower);
+        currentAttrNameBuffer.append(Character.toLowerCase(thisChar));
         currentAttrName = null;
       }
       break;
@@ -303,7 +354,7 @@ public class BasicParseState
         currentState = BASICPARSESTATE_NORMAL;
       }
       else if (currentTagNameBuffer != null)
-        currentTagNameBuffer.append(thisCharLower);
+        currentTagNameBuffer.append(Character.toLowerCase(thisChar));
       break;
     case BASICPARSESTATE_IN_SINGLE_QUOTES_ATTR_VALUE:
       if (thisChar == '\'' || thisChar == '\n' || thisChar == '\r')
@@ -378,6 +429,18 @@ public class BasicParseState
     throws ManifoldCFException
   {
   }
+
+  /** Note a run of characters that are not part of any tag or comment.
+  */
+  protected void noteNormalCharacters(char[] buffer, int offset, int length)
+    throws ManifoldCFException
+  {
+    int end = offset + length;
+    for (int i = offset; i < end; i++)
+    {
+      noteNormalCharacter(buffer[i]);
+    }
+  }
   
   public void finishUp()
     throws ManifoldCFException
@@ -20,6 +20,7 @@ package org.apache.manifoldcf.crawler.connectors.webcrawler;
 
 import java.util.*;
 import java.io.*;
+import java.net.*;
 import org.apache.manifoldcf.core.interfaces.*;
 import org.apache.manifoldcf.crawler.interfaces.*;
 import org.apache.manifoldcf.authorities.interfaces.*;
@@ -53,6 +54,48 @@ public class DNSManager extends org.apache.manifoldcf.core.database.BaseTable
   // Robots cache class.  Only one needed.
   protected static DNSCacheClass dnsCacheClass = new DNSCacheClass();
 
+  /** Property naming the number of seconds a successful host lookup is used for */
+  public static final String ttlProperty = "org.apache.manifoldcf.webcrawler.dns.ttl";
+  /** Property naming the number of seconds a failed host lookup is used for */
+  public static final String negativeTTLProperty = "org.apache.manifoldcf.webcrawler.dns.negativettl";
+  /** Property naming whether hosts of newly discovered links are looked up ahead of time */
+  public static final String prefetchProperty = "org.apache.manifoldcf.webcrawler.dns.prefetch";
+
+  /** Default successful lookup lifetime, in seconds */
+  protected final static int DEFAULT_TTL = 60*60*6;
+  /** Default failed lookup lifetime, in seconds */
+  protected final static int DEFAULT_NEGATIVE_TTL = 60*5;
+
+  /** The maximum number of hosts whose lookup is kept in the local cache */
+  protected final static int LOCAL_CACHE_SIZE = 20000;
+  /** The maximum number of hosts waiting to be prefetched; beyond this, prefetch requests are dropped */
+  protected final static int PREFETCH_QUEUE_SIZE = 1000;
+  /** How long the prefetch thread waits for work before exiting */
+  protected final static long PREFETCH_THREAD_IDLE_TIMEOUT = 60000L;
+
+  /** Local cache of host lookups, keyed by host name, shared by every connector instance in the process.
+  * This sits in front of the cache manager, so that a host that has already been looked up and has not yet
+  * expired needs neither cache manager locking nor a database read.  Failed lookups are kept too, until their
+  * (shorter) expiration time.  Entries are removed whenever this process writes new data for the host.
+  */
+  protected final static Map<String,DNSInfo> localDNSCache = new LinkedHashMap<String,DNSInfo>(16,0.75f,true)
+  {
+    protected boolean removeEldestEntry(Map.Entry<String,DNSInfo> eldest)
+    {
+      return size() > LOCAL_CACHE_SIZE;
+    }
+  };
+
+  /** Hosts waiting to be prefetched.  A host stays here until its lookup is done, so it is not queued twice. */
+  protected final static Set<String> prefetchQueue = new LinkedHashSet<String>();
+  /** The prefetch thread, or null if none is running.  Guarded by prefetchQueue. */
+  protected static DNSPrefetchThread prefetchThread = null;
+
+  /** Lookup lifetimes in milliseconds, and whether prefetch is on; ttl is -1 until the properties have been read */
+  protected static long ttl = -1L;
+  protected static long negativeTTL = -1L;
+  protected static boolean prefetchEnabled = false;
+
   // Database fields
   protected final static String hostField = "hostname";
   protected final static String fqdnField = "canonicalhostname";
@@ -123,6 +166,10 @@ public class DNSManager extends org.apache.manifoldcf.core.database.BaseTable
   public DNSInfo lookup(String hostName, long currentTime)
     throws ManifoldCFException
   {
+    DNSInfo rd = getLocalDNSInfo(hostName,currentTime);
+    if (rd != null)
+      return rd;
+
     // Build description objects
     HostDescription[] objectDescriptions = new HostDescription[1];
     StringSetBuffer ssb = new StringSetBuffer();
@@ -133,12 +180,97 @@ public class DNSManager extends org.apache.manifoldcf.core.database.BaseTable
     cacheManager.findObjectsAndExecute(objectDescriptions,null,exec,getTransactionID());
 
     // DNSInfo object must be built if it isn't yet present.
-    DNSInfo rd = exec.getResults();
+    rd = exec.getResults();
     if (rd == null || rd.getExpirationTime() <= currentTime)
       return null;
+    synchronized (localDNSCache)
+    {
+      localDNSCache.put(hostName,rd);
+    }
     return rd;
   }
 
+  /** Look a host name up using the JVM's resolver.  The resolver does not report record TTLs, so the
+  * result is given the configured lifetime: the normal one on success, the shorter negative one on failure.
+  *@param hostName is the host name.
+  *@param currentTime is the current time.
+  *@return the lookup result; its ip address is null if the host is unknown.
+  */
+  public static DNSInfo resolve(String hostName, long currentTime)
+    throws ManifoldCFException
+  {
+    InetAddress ip = null;
+    try
+    {
+      ip = InetAddress.getByName(hostName);
+    }
+    catch (UnknownHostException e)
+    {
+      // Host is unknown, so leave ip as null.
+    }
+    readProperties();
+    if (ip == null)
+      return new DNSInfo(null,null,currentTime + negativeTTL,hostName);
+    String fqdn = ip.getCanonicalHostName();
+    String ipAddress = ip.getHostAddress();
+    return new DNSInfo(ipAddress,fqdn,currentTime + ttl,hostName);
+  }
+
+  /** Ask for a host to be looked up in the background, so that its address is already in the local cache
+  * by the time a document on it is fetched.  This is best-effort: nothing happens if prefetch is disabled,
+  * if the host is already cached, or if too many hosts are already waiting.
+  *@param hostName is the host name.
+  *@param currentTime is the current time.
+  */
+  public static void prefetch(String hostName, long currentTime)
+    throws ManifoldCFException
+  {
+    readProperties();
+    if (!prefetchEnabled || hostName == null || hostName.length() == 0)
+      return;
+    if (getLocalDNSInfo(hostName,currentTime) != null)
+      return;
+    synchronized (prefetchQueue)
+    {
+      if (prefetchQueue.size() >= PREFETCH_QUEUE_SIZE || !prefetchQueue.add(hostName))
+        return;
+      if (prefetchThread == null)
+      {
+        prefetchThread = new DNSPrefetchThread();
+        prefetchThread.start();
+      }
+      prefetchQueue.notifyAll();
+    }
+  }
+
+  /** Get an unexpired lookup from the local cache.
+  *@return null if the local cache has nothing current for the host.
+  */
+  protected static DNSInfo getLocalDNSInfo(String hostName, long currentTime)
+  {
+    DNSInfo rd;
+    synchronized (localDNSCache)
+    {
+      rd = localDNSCache.get(hostName);
+    }
+    if (rd != null && rd.getExpirationTime() > currentTime)
+      return rd;
+    return null;
+  }
+
+  /** Read the lookup lifetimes and the prefetch switch, the first time through.
+  */
+  protected static synchronized void readProperties()
+    throws ManifoldCFException
+  {
+    if (ttl == -1L)
+    {
+      negativeTTL = 1000L * (long)ManifoldCF.getIntProperty(negativeTTLProperty,DEFAULT_NEGATIVE_TTL);
+      prefetchEnabled = ManifoldCF.getBooleanProperty(prefetchProperty,true);
+      ttl = 1000L * (long)ManifoldCF.getIntProperty(ttlProperty,DEFAULT_TTL);
+    }
+  }
+
   /** Write DNS data, replacing any existing row.
   *@param hostName is the host.
   *@param fqdn is the canonical host name.
@@ -154,6 +286,11 @@ public class DNSManager extends org.apache.manifoldcf.core.database.BaseTable
     ICacheHandle ch = cacheManager.enterCache(null,cacheKeys,getTransactionID());
     try
     {
+      synchronized (localDNSCache)
+      {
+        localDNSCache.remove(hostName);
+      }
+
       beginTransaction();
       try
       {
@@ -286,6 +423,76 @@ public class DNSManager extends org.apache.manifoldcf.core.database.BaseTable
 
   }
 
+  /** This thread looks up the hosts in the prefetch queue, one at a time, and puts the results in the local
+  * cache.  It exits after it has been idle for a while; prefetch() starts a new one when needed.
+  */
+  protected static class DNSPrefetchThread extends Thread
+  {
+    public DNSPrefetchThread()
+    {
+      super();
+      setDaemon(true);
+      setName("Web DNS prefetch thread");
+    }
+
+    public void run()
+    {
+      while (true)
+      {
+        String hostName;
+        synchronized (prefetchQueue)
+        {
+          if (prefetchQueue.size() == 0)
+          {
+            try
+            {
+              prefetchQueue.wait(PREFETCH_THREAD_IDLE_TIMEOUT);
+            }
+            catch (InterruptedException e)
+            {
+              // Nobody should be interrupting us; just keep going
+            }
+            if (prefetchQueue.size() == 0)
+            {
+              // Idle too long; leave.
+              prefetchThread = null;
+              return;
+            }
+          }
+          hostName = prefetchQueue.iterator().next();
+        }
+
+        try
+        {
+          long currentTime = System.currentTimeMillis();
+          if (getLocalDNSInfo(hostName,currentTime) == null)
+          {
+            DNSInfo info = resolve(hostName,currentTime);
+            synchronized (localDNSCache)
+            {
+              localDNSCache.put(hostName,info);
+            }
+          }
+        }
+        catch (ManifoldCFException e)
+        {
+          Logging.connectors.warn("WEB: Couldn't prefetch DNS data for host '"+hostName+"': "+e.getMessage(),e);
+        }
+        catch (RuntimeException e)
+        {
+          Logging.connectors.warn("WEB: Couldn't prefetch DNS data for host '"+hostName+"': "+e.getMessage(),e);
+        }
+        finally
+        {
+          synchronized (prefetchQueue)
+          {
+            prefetchQueue.remove(hostName);
+          }
+        }
+      }
+    }
+  }
+
   /** This is the object description for a robots host object.
   * This is the key that is used to look up cached data.
   */
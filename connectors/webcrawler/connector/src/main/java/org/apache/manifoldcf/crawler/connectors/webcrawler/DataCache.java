@@ -34,10 +34,29 @@ public class DataCache
 {
   public static final String _rcsid = "@(#)$Id: DataCache.java 988245 2010-08-23 18:39:35Z kwright $";
 
+  /** Property naming the largest document body, in bytes, that will be cached in memory rather than in a temporary file */
+  public static final String maxMemoryDocumentSizeProperty = "org.apache.manifoldcf.webcrawler.cache.maxmemorydocumentsize";
+  /** Property naming the total number of bytes of document bodies that may be cached in memory at once */
+  public static final String maxMemorySizeProperty = "org.apache.manifoldcf.webcrawler.cache.maxmemorysize";
+
+  /** Default largest in-memory document */
+  protected static final int DEFAULT_MAX_MEMORY_DOCUMENT_SIZE = 65536;
+  /** Default in-memory budget */
+  protected static final int DEFAULT_MAX_MEMORY_SIZE = 33554432;
+  /** Starting size of the buffer a body is read into */
+  protected static final int INITIAL_MEMORY_BUFFER_SIZE = 8192;
+
   // Hashmap containing the cache of files.
   // This is keyed by document identifier, and contains DocumentData objects.
   protected Map<String,DocumentData> cacheData = new HashMap<String,DocumentData>();
 
+  /** Largest in-memory document; -1 until the properties have been read */
+  protected int maxMemoryDocumentSize = -1;
+  /** In-memory budget */
+  protected long maxMemorySize = 0L;
+  /** Bytes of document bodies currently held in memory */
+  protected long memoryInUse = 0L;
+
   /** Constructor.
   */
   public DataCache()
@@ -62,7 +81,8 @@ public class DataCache
     String contentType = connection.getResponseHeader("Content-Type");
     String referralURI = connection.getResponseHeader("Location");
 
-    // Create a temporary file; that's what we will cache
+    // Small bodies are kept in memory; anything else goes to a temporary file
+    int maxMemoryDocumentSize = getMaxMemoryDocumentSize();
     try
     {
       // First, get the stream.
@@ -71,19 +91,23 @@ public class DataCache
         return null;
       try
       {
-        File tempFile = File.createTempFile("_webcache_","tmp");
+        File tempFile = null;
         try
         {
-          // Causes memory leaks if left around; there's no way to release
-          // the record specifying that the file should be deleted, even
-          // after it's removed.  So disable this and live with the occasional
-          // dangling file left as a result of shutdown or error. :-(
-          // tempFile.deleteOnExit();
-          ManifoldCF.addFile(tempFile);
-
-          // Transfer data to temporary file
+          // If the server says up front that the body is too big for memory, go straight to disk
+          byte[] memoryData = null;
+          int memoryLength = 0;
+          OutputStream os = null;
+          if (maxMemoryDocumentSize > 0 && !isLongerThan(connection.getResponseHeader("Content-Length"),maxMemoryDocumentSize))
+            memoryData = new byte[Math.min(maxMemoryDocumentSize,INITIAL_MEMORY_BUFFER_SIZE)];
+          else
+          {
+            tempFile = createCacheFile();
+            os = new FileOutputStream(tempFile);
+          }
+
+          // Transfer data to memory or to the temporary file
           long checkSum = 0L;
-          OutputStream os = new FileOutputStream(tempFile);
           try
           {
             byte[] byteArray = new byte[65536];
@@ -130,42 +154,101 @@ public class DataCache
                 checkSum = (checkSum << 5) ^ (checkSum >> 3) ^ (bytevalue << 2) ^ (bytevalue >> 3);
               }
 
-              os.write(byteArray,0,amt);
+              if (os == null)
+              {
+                if (memoryLength + amt <= maxMemoryDocumentSize)
+                {
+                  if (memoryLength + amt > memoryData.length)
+                  {
+                    byte[] newData = new byte[Math.min(maxMemoryDocumentSize,Math.max(memoryData.length * 2,memoryLength + amt))];
+                    System.arraycopy(memoryData,0,newData,0,memoryLength);
+                    memoryData = newData;
+                  }
+                  System.arraycopy(byteArray,0,memoryData,memoryLength,amt);
+                  memoryLength += amt;
+                }
+                else
+                {
+                  // Too big for memory after all; move what we have to disk
+                  tempFile = createCacheFile();
+                  os = new FileOutputStream(tempFile);
+                  os.write(memoryData,0,memoryLength);
+                  memoryData = null;
+                  os.write(byteArray,0,amt);
+                }
+              }
+              else
+                os.write(byteArray,0,amt);
               // Check if job is alive before looping
               activities.checkJobStillActive();
             }
           }
           finally
           {
-            os.close();
+            if (os != null)
+              os.close();
           }
 
+          DocumentData documentData;
+          if (os == null)
+          {
+            if (memoryLength != memoryData.length)
+            {
+              byte[] newData = new byte[memoryLength];
+              System.arraycopy(memoryData,0,newData,0,memoryLength);
+              memoryData = newData;
+            }
+            if (reserveMemory(memoryLength))
+              documentData = new DocumentData(memoryData,responseCode,contentType,referralURI);
+            else
+            {
+              // The memory budget is used up, so this one goes to disk
+              tempFile = createCacheFile();
+              os = new FileOutputStream(tempFile);
+              try
+              {
+                os.write(memoryData,0,memoryLength);
+              }
+              finally
+              {
+                os.close();
+              }
+              documentData = new DocumentData(tempFile,responseCode,contentType,referralURI);
+            }
+          }
+          else
+            documentData = new DocumentData(tempFile,responseCode,contentType,referralURI);
+
           synchronized(this)
           {
             deleteData(documentIdentifier);
-            cacheData.put(documentIdentifier,new DocumentData(tempFile,responseCode,contentType,referralURI));
+            cacheData.put(documentIdentifier,documentData);
             return new Long(checkSum).toString();
           }
 
         }
         catch (IOException e)
         {
-          ManifoldCF.deleteFile(tempFile);
+          if (tempFile != null)
+            ManifoldCF.deleteFile(tempFile);
           throw e;
         }
         catch (ManifoldCFException e)
         {
-          ManifoldCF.deleteFile(tempFile);
+          if (tempFile != null)
+            ManifoldCF.deleteFile(tempFile);
           throw e;
         }
         catch (ServiceInterruption e)
         {
-          ManifoldCF.deleteFile(tempFile);
+          if (tempFile != null)
+            ManifoldCF.deleteFile(tempFile);
           throw e;
         }
         catch (Error e)
         {
-          ManifoldCF.deleteFile(tempFile);
+          if (tempFile != null)
+            ManifoldCF.deleteFile(tempFile);
           throw e;
         }
       }
@@ -214,6 +297,16 @@ public class DataCache
     }
   }
 
+  /** Note that a conditional fetch found a document unchanged.  There is no data for such a document;
+  * its response code is 304.
+  *@param documentIdentifier is the document identifier (url).
+  */
+  public synchronized void addNotModified(String documentIdentifier)
+  {
+    deleteData(documentIdentifier);
+    cacheData.put(documentIdentifier,new DocumentData(new byte[0],org.apache.commons.httpclient.HttpStatus.SC_NOT_MODIFIED,null,null));
+  }
+
   /** Get the response code.
   *@param documentIdentifier is the document identifier.
   *@return the code.
@@ -259,7 +352,7 @@ public class DataCache
     DocumentData dd = cacheData.get(documentIdentifier);
     if (dd == null)
       return 0L;
-    return dd.getData().length();
+    return dd.getDataLength();
   }
 
   /** Fetch binary data entry from the cache.
@@ -274,7 +367,7 @@ public class DataCache
       return null;
     try
     {
-      return new FileInputStream(dd.getData());
+      return dd.getDataStream();
     }
     catch (FileNotFoundException e)
     {
@@ -290,7 +383,74 @@ public class DataCache
     DocumentData dd = cacheData.remove(documentIdentifier);
     if (dd != null)
     {
-      ManifoldCF.deleteFile(dd.getData());
+      if (dd.getData() != null)
+        ManifoldCF.deleteFile(dd.getData());
+      else
+        memoryInUse -= dd.getDataLength();
+    }
+  }
+
+  /** Get the largest document body that may be cached in memory, reading the limits from the
+  * properties the first time through.
+  *@return the size in bytes; 0 if bodies are always cached on disk.
+  */
+  protected synchronized int getMaxMemoryDocumentSize()
+    throws ManifoldCFException
+  {
+    if (maxMemoryDocumentSize == -1)
+    {
+      maxMemorySize = (long)ManifoldCF.getIntProperty(maxMemorySizeProperty,DEFAULT_MAX_MEMORY_SIZE);
+      int size = ManifoldCF.getIntProperty(maxMemoryDocumentSizeProperty,DEFAULT_MAX_MEMORY_DOCUMENT_SIZE);
+      if (size < 0 || maxMemorySize <= 0L)
+        size = 0;
+      maxMemoryDocumentSize = size;
+    }
+    return maxMemoryDocumentSize;
+  }
+
+  /** Reserve room in the in-memory budget for a document body.
+  *@param size is the body size.
+  *@return true if the body may be kept in memory.
+  */
+  protected synchronized boolean reserveMemory(long size)
+  {
+    if (memoryInUse + size > maxMemorySize)
+      return false;
+    memoryInUse += size;
+    return true;
+  }
+
+  /** Create a temporary file to cache a document body in.
+  */
+  protected static File createCacheFile()
+    throws IOException
+  {
+    File tempFile = File.createTempFile("_webcache_","tmp");
+    // Causes memory leaks if left around; there's no way to release
+    // the record specifying that the file should be deleted, even
+    // after it's removed.  So disable this and live with the occasional
+    // dangling file left as a result of shutdown or error. :-(
+    // tempFile.deleteOnExit();
+    ManifoldCF.addFile(tempFile);
+    return tempFile;
+  }
+
+  /** Check whether a Content-Length header value says the body is longer than a given size.
+  *@param contentLength is the header value, or null.
+  *@param size is the size.
+  *@return true only if the header is present, parseable, and larger than the size.
+  */
+  protected static boolean isLongerThan(String contentLength, int size)
+  {
+    if (contentLength == null)
+      return false;
+    try
+    {
+      return Long.parseLong(contentLength.trim()) > (long)size;
+    }
+    catch (NumberFormatException e)
+    {
+      return false;
     }
   }
 
@@ -301,8 +461,10 @@ public class DataCache
   */
   protected static class DocumentData
   {
-    /** The cache file for the data */
+    /** The cache file for the data, or null if the data is held in memory */
     protected File data;
+    /** The data itself, if it is small enough to be held in memory */
+    protected byte[] memoryData;
     /** The response code */
     protected int responseCode;
     /** The content-type header value */
@@ -321,12 +483,39 @@ public class DataCache
       this.referralURI = referralURI;
     }
 
-    /** Get the data */
+    /** Constructor, for data held in memory. */
+    public DocumentData(byte[] memoryData, int responseCode, String contentType, String referralURI)
+    {
+      this.data = null;
+      this.memoryData = memoryData;
+      this.responseCode = responseCode;
+      this.contentType = contentType;
+      this.referralURI = referralURI;
+    }
+
+    /** Get the data file; null if the data is held in memory */
     public File getData()
     {
       return data;
     }
 
+    /** Get the data length */
+    public long getDataLength()
+    {
+      if (memoryData != null)
+        return (long)memoryData.length;
+      return data.length();
+    }
+
+    /** Open a stream on the data */
+    public InputStream getDataStream()
+      throws FileNotFoundException
+    {
+      if (memoryData != null)
+        return new ByteArrayInputStream(memoryData);
+      return new FileInputStream(data);
+    }
+
     /** Get the response code */
     public int getResponseCode()
     {
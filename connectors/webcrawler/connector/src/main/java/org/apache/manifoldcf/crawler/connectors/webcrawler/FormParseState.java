@@ -189,4 +189,13 @@ public class FormParseState extends LinkParseState
     }
   }
 
+  @Override
+  protected void noteNormalCharacters(char[] buffer, int offset, int length)
+    throws ManifoldCFException
+  {
+    // Only option text is of interest, so most runs of text need not be looked at one character at a time
+    if (formParseState == FORMPARSESTATE_IN_OPTION)
+      super.noteNormalCharacters(buffer,offset,length);
+  }
+
 }
@@ -68,6 +68,19 @@ public interface IThrottledConnection
     String proxyHost, int proxyPort, String proxyAuthDomain, String proxyAuthUsername, String proxyAuthPassword)
     throws ManifoldCFException, ServiceInterruption;
 
+  /** Execute the fetch, conditionally.  This is the same as the above, except that validators from an
+  * earlier fetch of the same page may be supplied; if the server finds that the page has not changed since,
+  * it answers with a 304 response code and no body.
+  * @param ifNoneMatch is the entity tag from the earlier fetch, or null.
+  * @param ifModifiedSince is the last modified date from the earlier fetch, or null.
+  */
+  public void executeFetch(String urlPath, String userAgent, String from, int connectionTimeoutMilliseconds,
+    int socketTimeoutMilliseconds, boolean redirectOK, String host, FormData formData,
+    LoginCookies loginCookies,
+    String proxyHost, int proxyPort, String proxyAuthDomain, String proxyAuthUsername, String proxyAuthPassword,
+    String ifNoneMatch, String ifModifiedSince)
+    throws ManifoldCFException, ServiceInterruption;
+
   /** Get the http response code.
   *@return the response code.  This is either an HTTP response code, or one of the codes above.
   */
@@ -0,0 +1,127 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.connectors.webcrawler;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.util.*;
+
+/** This class passes everything found in an HTML document to several handlers, so that one parse of the
+* document can serve them all.  Each handler sees exactly what it would have seen had it parsed the document
+* by itself.
+*/
+public class MultiHTMLHandler implements IHTMLHandler
+{
+  protected IHTMLHandler[] handlers;
+
+  public MultiHTMLHandler(IHTMLHandler[] handlers)
+  {
+    this.handlers = handlers;
+  }
+
+  /** Inform the world of a discovered link. */
+  public void noteDiscoveredLink(String rawURL)
+    throws ManifoldCFException
+  {
+    for (int i = 0; i < handlers.length; i++)
+    {
+      handlers[i].noteDiscoveredLink(rawURL);
+    }
+  }
+
+  /** Note a meta tag */
+  public void noteMetaTag(Map tagAttributes)
+    throws ManifoldCFException
+  {
+    for (int i = 0; i < handlers.length; i++)
+    {
+      handlers[i].noteMetaTag(tagAttributes);
+    }
+  }
+
+  /** Note the start of a form */
+  public void noteFormStart(Map formAttributes)
+    throws ManifoldCFException
+  {
+    for (int i = 0; i < handlers.length; i++)
+    {
+      handlers[i].noteFormStart(formAttributes);
+    }
+  }
+
+  /** Note an input tag */
+  public void noteFormInput(Map inputAttributes)
+    throws ManifoldCFException
+  {
+    for (int i = 0; i < handlers.length; i++)
+    {
+      handlers[i].noteFormInput(inputAttributes);
+    }
+  }
+
+  /** Note the end of a form */
+  public void noteFormEnd()
+    throws ManifoldCFException
+  {
+    for (int i = 0; i < handlers.length; i++)
+    {
+      handlers[i].noteFormEnd();
+    }
+  }
+
+  /** Note discovered href */
+  public void noteAHREF(String rawURL)
+    throws ManifoldCFException
+  {
+    for (int i = 0; i < handlers.length; i++)
+    {
+      handlers[i].noteAHREF(rawURL);
+    }
+  }
+
+  /** Note discovered href */
+  public void noteLINKHREF(String rawURL)
+    throws ManifoldCFException
+  {
+    for (int i = 0; i < handlers.length; i++)
+    {
+      handlers[i].noteLINKHREF(rawURL);
+    }
+  }
+
+  /** Note discovered IMG SRC */
+  public void noteIMGSRC(String rawURL)
+    throws ManifoldCFException
+  {
+    for (int i = 0; i < handlers.length; i++)
+    {
+      handlers[i].noteIMGSRC(rawURL);
+    }
+  }
+
+  /** Note discovered FRAME SRC */
+  public void noteFRAMESRC(String rawURL)
+    throws ManifoldCFException
+  {
+    for (int i = 0; i < handlers.length; i++)
+    {
+      handlers[i].noteFRAMESRC(rawURL);
+    }
+  }
+
+}
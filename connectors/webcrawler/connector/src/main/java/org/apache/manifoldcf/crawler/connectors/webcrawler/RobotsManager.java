@@ -51,6 +51,22 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
   // Robots cache class.  Only one needed.
   protected static RobotsCacheClass robotsCacheClass = new RobotsCacheClass();
 
+  /** The maximum number of hosts whose compiled robots data is kept in the local cache */
+  protected final static int LOCAL_CACHE_SIZE = 2000;
+
+  /** Local cache of compiled robots data, keyed by host name.  This sits in front of the cache manager, so that
+  * the common case - robots data that has already been read and has not yet expired - needs no cache manager
+  * locking at all.  Entries are only used until their expiration time, and are removed whenever this process
+  * writes new robots data for the host.
+  */
+  protected final static Map<String,RobotsData> localRobotsCache = new LinkedHashMap<String,RobotsData>(16,0.75f,true)
+  {
+    protected boolean removeEldestEntry(Map.Entry<String,RobotsData> eldest)
+    {
+      return size() > LOCAL_CACHE_SIZE;
+    }
+  };
+
   // Database fields
   protected final static String hostField = "hostname";
   protected final static String robotsField = "robotsdata";
@@ -118,6 +134,41 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
     IVersionActivity activities)
     throws ManifoldCFException
   {
+    RobotsData rd = getRobotsData(hostName,currentTime,activities);
+    if (rd == null)
+      return null;
+    return new Boolean(rd.isFetchAllowed(userAgent,pathString));
+  }
+
+  /** Get the crawl delay that a host's robots.txt asks of a user agent.
+  *@param userAgent is the user agent.
+  *@param hostName is the host.
+  *@param currentTime is the time of the check.
+  *@return the delay in milliseconds; 0 if none was requested or there is no current robots data.
+  */
+  public long getCrawlDelay(String userAgent, String hostName, long currentTime, IVersionActivity activities)
+    throws ManifoldCFException
+  {
+    RobotsData rd = getRobotsData(hostName,currentTime,activities);
+    if (rd == null)
+      return 0L;
+    return rd.getCrawlDelay(userAgent);
+  }
+
+  /** Get unexpired robots data for a host, from the local cache, the cache manager, or the database.
+  *@return null if there is no current robots data for the host.
+  */
+  protected RobotsData getRobotsData(String hostName, long currentTime, IVersionActivity activities)
+    throws ManifoldCFException
+  {
+    RobotsData rd;
+    synchronized (localRobotsCache)
+    {
+      rd = localRobotsCache.get(hostName);
+    }
+    if (rd != null && rd.getExpirationTime() > currentTime)
+      return rd;
+
     // Build description objects
     HostDescription[] objectDescriptions = new HostDescription[1];
     StringSetBuffer ssb = new StringSetBuffer();
@@ -129,10 +180,14 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
 
     // We do the expiration check here, rather than in the query, so that caching
     // is possible.
-    RobotsData rd = exec.getResults();
+    rd = exec.getResults();
     if (rd == null || rd.getExpirationTime() <= currentTime)
       return null;
-    return new Boolean(rd.isFetchAllowed(userAgent,pathString));
+    synchronized (localRobotsCache)
+    {
+      localRobotsCache.put(hostName,rd);
+    }
+    return rd;
   }
 
   /** Write robots.txt, replacing any existing row.
@@ -166,6 +221,10 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
       ICacheHandle ch = cacheManager.enterCache(null,cacheKeys,getTransactionID());
       try
       {
+        synchronized (localRobotsCache)
+        {
+          localRobotsCache.remove(hostName);
+        }
 
         beginTransaction();
         try
@@ -300,6 +359,8 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
   {
     protected long expiration;
     protected ArrayList records = null;
+    /** The record that applies to each user agent seen so far, or NO_RECORD */
+    protected Map<String,Record> agentRecords = new HashMap<String,Record>();
 
     /** Constructor. */
     public RobotsData(InputStream is, long expiration, String hostName, IVersionActivity activities)
@@ -333,12 +394,59 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
     /** Check if fetch is allowed */
     public boolean isFetchAllowed(String userAgent, String pathString)
     {
-      if (records == null)
+      Record r = findRecord(userAgent);
+      if (r == null)
         return true;
 
-      boolean wasDisallowed = false;
-      boolean wasAllowed = false;
+      // Allowed always overrides disallowed
+      if (r.isAllowed(pathString))
+        return true;
+      if (r.isDisallowed(pathString))
+        return false;
 
+      // No match -> crawl allowed
+      return true;
+    }
+
+    /** Get the crawl delay for a user agent.
+    *@return the delay in milliseconds, or 0 if none.
+    */
+    public long getCrawlDelay(String userAgent)
+    {
+      Record r = findRecord(userAgent);
+      if (r == null)
+        return 0L;
+      return r.getCrawlDelay();
+    }
+
+    /** Find the record that applies to a user agent.  The answer is remembered, since a crawler
+    * presents the same user agent over and over.
+    *@return the record, or null if no record applies.
+    */
+    protected Record findRecord(String userAgent)
+    {
+      if (records == null)
+        return null;
+
+      synchronized (agentRecords)
+      {
+        Record r = agentRecords.get(userAgent);
+        if (r == null)
+        {
+          r = lookupRecord(userAgent);
+          if (r == null)
+            r = NO_RECORD;
+          agentRecords.put(userAgent,r);
+        }
+        if (r == NO_RECORD)
+          return null;
+        return r;
+      }
+    }
+
+    /** Look through the records for the one that applies to a user agent. */
+    protected Record lookupRecord(String userAgent)
+    {
       // First matching user-agent takes precedence, according to the following chunk of spec:
       // "These name tokens are used in User-agent lines in /robots.txt to
       // identify to which specific robots the record applies. The robot
@@ -349,8 +457,6 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
       // line with a "*" value, if present. If no record satisfied either
       // condition, or no records are present at all, access is unlimited."
 
-      boolean sawAgent = false;
-
       String userAgentUpper = userAgent.toUpperCase();
 
       int i = 0;
@@ -358,46 +464,16 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
       {
         Record r = (Record)records.get(i++);
         if (r.isAgentMatch(userAgentUpper,false))
-        {
-          if (r.isDisallowed(pathString))
-            wasDisallowed = true;
-          if (r.isAllowed(pathString))
-            wasAllowed = true;
-
-          sawAgent = true;
-          break;
-        }
+          return r;
       }
-      if (sawAgent == false)
+      i = 0;
+      while (i < records.size())
       {
-        i = 0;
-        while (i < records.size())
-        {
-          Record r = (Record)records.get(i++);
-          if (r.isAgentMatch("*",true))
-          {
-            if (r.isDisallowed(pathString))
-              wasDisallowed = true;
-            if (r.isAllowed(pathString))
-              wasAllowed = true;
-
-            sawAgent = true;
-            break;
-          }
-        }
+        Record r = (Record)records.get(i++);
+        if (r.isAgentMatch("*",true))
+          return r;
       }
-
-      if (sawAgent == false)
-        return true;
-
-      // Allowed always overrides disallowed
-      if (wasAllowed)
-        return true;
-      if (wasDisallowed)
-        return false;
-
-      // No match -> crawl allowed
-      return true;
+      return null;
     }
 
     /** Get expiration */
@@ -530,11 +606,14 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
           }
           else if (lowercaseLine.startsWith("crawl-delay:"))
           {
-            // We don't complain about this, but right now we don't listen to it either.
+            // Not an error without a user agent, but there's nothing to attach it to.
+            if (record != null)
+              record.setCrawlDelay(x.substring("Crawl-delay:".length()).trim());
           }
           else if (lowercaseLine.startsWith("crawl-delay"))
           {
-            // We don't complain about this, but right now we don't listen to it either.
+            if (record != null)
+              record.setCrawlDelay(x.substring("Crawl-delay".length()).trim());
           }
           else
           {
@@ -841,14 +920,19 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
 
   }
 
+  /** Placeholder for "no record applies", in the per-user-agent lookup */
+  protected final static Record NO_RECORD = new Record();
+
   /** This class represents a record in a robots.txt file.  It contains one or
-  * more user-agents, and one or more disallows.
+  * more user-agents, and one or more disallows.  The allow and disallow paths are compiled into
+  * matchers as they are added, so that checking a path does not mean trying every rule in turn.
   */
   protected static class Record
   {
     protected ArrayList userAgents = new ArrayList();
-    protected ArrayList disallows = new ArrayList();
-    protected ArrayList allows = new ArrayList();
+    protected PathMatcher disallows = new PathMatcher();
+    protected PathMatcher allows = new PathMatcher();
+    protected long crawlDelay = 0L;
 
     /** Constructor.
     */
@@ -860,21 +944,45 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
     */
     public void addAgent(String agentName)
     {
-      userAgents.add(agentName);
+      userAgents.add(agentName.toUpperCase());
     }
 
     /** Add a disallow.
     */
     public void addDisallow(String disallowPath)
     {
-      disallows.add(disallowPath);
+      disallows.addPath(disallowPath);
     }
 
     /** Add an allow.
     */
     public void addAllow(String allowPath)
     {
-      allows.add(allowPath);
+      allows.addPath(allowPath);
+    }
+
+    /** Set the crawl delay, from the value given in the file (in seconds, possibly fractional).
+    * Values that can't be understood are ignored.
+    */
+    public void setCrawlDelay(String value)
+    {
+      try
+      {
+        double seconds = Double.parseDouble(value);
+        if (seconds > 0.0)
+          crawlDelay = (long)(seconds * 1000.0);
+      }
+      catch (NumberFormatException e)
+      {
+        // Ignore it
+      }
+    }
+
+    /** Get the crawl delay, in milliseconds.
+    */
+    public long getCrawlDelay()
+    {
+      return crawlDelay;
     }
 
     /** See if user-agent matches.
@@ -884,7 +992,7 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
       int i = 0;
       while (i < userAgents.size())
       {
-        String agent = ((String)userAgents.get(i++)).toUpperCase();
+        String agent = (String)userAgents.get(i++);
         if (exactMatch && agent.trim().equals(agentNameUpper))
           return true;
         if (!exactMatch && agentNameUpper.indexOf(agent) != -1)
@@ -899,14 +1007,7 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
     */
     public boolean isDisallowed(String path)
     {
-      int i = 0;
-      while (i < disallows.size())
-      {
-        String disallow = (String)disallows.get(i++);
-        if (doesPathMatch(path,disallow))
-          return true;
-      }
-      return false;
+      return disallows.matches(path);
     }
 
     /** See if path is allowed.  Only called if user-agent has already
@@ -915,16 +1016,109 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
     */
     public boolean isAllowed(String path)
     {
+      return allows.matches(path);
+    }
+
+  }
+
+  /** This class matches a path against a set of robots path specifications at once.  The specifications
+  * are kept in a trie keyed by their literal leading characters, so a path is walked just once, and only
+  * the specifications whose literal part the path actually begins with are looked at further.  A
+  * specification that is entirely literal matches as soon as the walk reaches its end; what follows the
+  * literal part of any other (a '*' wildcard or a trailing '$') is matched with doesPathMatch().
+  */
+  protected static class PathMatcher
+  {
+    protected PathNode root = new PathNode();
+
+    /** Constructor. */
+    public PathMatcher()
+    {
+    }
+
+    /** Add a path specification. */
+    public void addPath(String spec)
+    {
+      PathNode node = root;
       int i = 0;
-      while (i < allows.size())
+      while (i < spec.length())
       {
-        String allow = (String)allows.get(i++);
-        if (doesPathMatch(path,allow))
+        char x = spec.charAt(i);
+        if (x == '*' || (x == '$' && i == spec.length() - 1))
+        {
+          node.addTail(spec.substring(i));
+          return;
+        }
+        node = node.getOrCreateChild(x);
+        i++;
+      }
+      node.prefixMatch = true;
+    }
+
+    /** See if a path matches any of the specifications. */
+    public boolean matches(String path)
+    {
+      PathNode node = root;
+      int i = 0;
+      while (true)
+      {
+        if (node.prefixMatch)
           return true;
+        if (node.tails != null)
+        {
+          int j = 0;
+          while (j < node.tails.size())
+          {
+            if (doesPathMatch(path,i,node.tails.get(j++),0))
+              return true;
+          }
+        }
+        if (i == path.length())
+          return false;
+        node = node.getChild(path.charAt(i++));
+        if (node == null)
+          return false;
       }
-      return false;
+    }
+  }
+
+  /** A node in a PathMatcher trie. */
+  protected static class PathNode
+  {
+    /** Children, keyed by the next path character */
+    protected Map<Character,PathNode> children = null;
+    /** True if an entirely literal specification ends here */
+    protected boolean prefixMatch = false;
+    /** Remaining parts of the specifications whose literal part ends here */
+    protected List<String> tails = null;
+
+    public PathNode getChild(char x)
+    {
+      if (children == null)
+        return null;
+      return children.get(Character.valueOf(x));
     }
 
+    public PathNode getOrCreateChild(char x)
+    {
+      if (children == null)
+        children = new HashMap<Character,PathNode>();
+      Character key = Character.valueOf(x);
+      PathNode rval = children.get(key);
+      if (rval == null)
+      {
+        rval = new PathNode();
+        children.put(key,rval);
+      }
+      return rval;
+    }
+
+    public void addTail(String tail)
+    {
+      if (tails == null)
+        tails = new ArrayList<String>();
+      tails.add(tail);
+    }
   }
 
 }
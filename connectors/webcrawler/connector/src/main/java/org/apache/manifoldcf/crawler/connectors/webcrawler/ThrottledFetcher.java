@@ -25,6 +25,9 @@ import org.apache.manifoldcf.crawler.system.Logging;
 import org.apache.manifoldcf.crawler.system.ManifoldCF;
 import java.util.*;
 import java.io.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.net.*;
 
 import org.apache.commons.httpclient.*;
@@ -37,6 +40,8 @@ import org.apache.commons.httpclient.auth.AuthScope;
 /** This class uses httpclient to fetch stuff from webservers.  However, it additionally controls the fetch
 * rate in two ways: first, controlling the overall bandwidth used per server, and second, limiting the number
 * of simultaneous open connections per server.
+* Each fetch is a blocking httpclient call, made on a pooled fetch thread while the worker thread that asked for it
+* waits; so there are never more fetches in progress than there are worker threads.
 * An instance of this class would very probably need to have a lifetime consistent with the long-term nature
 * of these values, and be static.
 */
@@ -63,6 +68,11 @@ public class ThrottledFetcher
   * can get pulled out of all the right pools and wind up in only the hands of one thread. */
   protected static Integer poolLock = new Integer(0);
 
+  /** Fetch threads that are waiting for something to do */
+  protected static List<ThrottledConnection.ExecuteMethodThread> idleFetchThreads = new ArrayList<ThrottledConnection.ExecuteMethodThread>();
+  /** How long a fetch thread may sit idle before it goes away */
+  protected static final long FETCH_THREAD_IDLE_TIMEOUT = 60000L;
+
   /** Current host name */
   private static String currentHost = null;
   static
@@ -83,6 +93,80 @@ public class ThrottledFetcher
   /** The read chunk length */
   protected static final int READ_CHUNK_LENGTH = 4096;
 
+  /** Content encodings that fetches ask for, and that response bodies are decoded from */
+  protected static final String ACCEPT_ENCODING = "gzip, deflate";
+
+  /** Find the content encoding of a response that getResponseBodyStream() will undo.
+  *@param contentEncoding is the Content-Encoding header value, or null.
+  *@return "gzip" or "deflate", or null if the body is to be handed back as it is.
+  */
+  protected static String findDecodedEncoding(String contentEncoding)
+  {
+    if (contentEncoding == null)
+      return null;
+    contentEncoding = contentEncoding.trim().toLowerCase();
+    if (contentEncoding.equals("gzip") || contentEncoding.equals("x-gzip"))
+      return "gzip";
+    if (contentEncoding.equals("deflate"))
+      return "deflate";
+    return null;
+  }
+
+  /** Wrap a response body stream so that its content encoding is undone.  The stream passed in should be the
+  * throttled one, so that throttling and fetch byte counts go by the bytes actually transferred.
+  *@param is is the body stream.
+  *@param decodedEncoding is the value returned by findDecodedEncoding(), or null.
+  *@return the decoded stream.
+  */
+  protected static InputStream decodeStream(InputStream is, String decodedEncoding)
+    throws IOException
+  {
+    if (decodedEncoding == null)
+      return is;
+    // Look at the start of the body.  An empty body is not valid gzip or deflate data, but there is nothing to decode anyway.
+    PushbackInputStream pis = new PushbackInputStream(is,2);
+    byte[] start = new byte[2];
+    int startLength = 0;
+    while (startLength < start.length)
+    {
+      int amt = pis.read(start,startLength,start.length-startLength);
+      if (amt == -1)
+        break;
+      startLength += amt;
+    }
+    pis.unread(start,0,startLength);
+    if (startLength == 0)
+      return pis;
+    if (decodedEncoding.equals("gzip"))
+      return new GZIPInputStream(pis);
+    // Servers disagree about whether "deflate" means zlib-wrapped data or raw deflate data, so tell them apart by the zlib header.
+    boolean zlibHeader = startLength == 2 && (start[0] & 0x0f) == 8 && ((((int)start[0] & 0xff) << 8) + ((int)start[1] & 0xff)) % 31 == 0;
+    return new DeflateInputStream(pis,!zlibHeader);
+  }
+
+  /** Inflating stream that releases its inflater when closed.
+  */
+  protected static class DeflateInputStream extends InflaterInputStream
+  {
+    public DeflateInputStream(InputStream is, boolean raw)
+    {
+      super(is,new Inflater(raw));
+    }
+
+    public void close()
+      throws IOException
+    {
+      try
+      {
+        super.close();
+      }
+      finally
+      {
+        inf.end();
+      }
+    }
+  }
+
   /** Constructor.
   */
   public ThrottledFetcher()
@@ -112,6 +196,22 @@ public class ThrottledFetcher
     ThrottleDescription throttleDescription, String[] binNames,
     int connectionLimit)
     throws ManifoldCFException
+  {
+    return getConnection(protocol,server,port,authentication,trustStore,throttleDescription,binNames,connectionLimit,0L);
+  }
+
+  /** Obtain a connection to specified protocol, server, and port, observing an additional minimum time between
+  * fetches.
+  *@param minimumMillisecondsPerFetch is the least time between fetches for every bin, whatever the throttle
+  *       description says; e.g. a crawl delay requested by the server.  Pass 0 for none.
+  *@return an IThrottledConnection object that can be used to fetch from the port.
+  */
+  public static IThrottledConnection getConnection(String protocol, String server, int port,
+    PageCredentials authentication,
+    IKeystoreManager trustStore,
+    ThrottleDescription throttleDescription, String[] binNames,
+    int connectionLimit, long minimumMillisecondsPerFetch)
+    throws ManifoldCFException
   {
     // First, create a protocol factory object, if we can
     ProtocolFactory myFactory = new ProtocolFactory();
@@ -281,6 +381,8 @@ public class ThrottledFetcher
                 //cb.sanityCheck();
                 // Get the minimum time between fetches for this bin, based on the throttle description
                 long minMillisecondsPerFetch = throttleDescription.getMinimumMillisecondsPerFetch(binName);
+                if (minMillisecondsPerFetch < minimumMillisecondsPerFetch)
+                  minMillisecondsPerFetch = minimumMillisecondsPerFetch;
                 if (cb.getLastFetchTime() + minMillisecondsPerFetch > currentTime)
                   throw new WaitException(cb.getLastFetchTime() + minMillisecondsPerFetch - currentTime);
                 i++;
@@ -800,6 +902,8 @@ public class ThrottledFetcher
         if (Logging.connectors.isDebugEnabled())
           Logging.connectors.debug("WEB: Performing a read wait on bin '"+binName+"' of "+
           new Long(waitTime).toString()+" ms.");
+        // This is called from read() on the stream the worker thread is consuming, so the thread cannot be
+        // given anything else to do while it waits; the read has to block until the bytes are allowed.
         ManifoldCF.sleep(waitTime);
       }
 
@@ -1236,25 +1340,34 @@ public class ThrottledFetcher
       }
     }
 
-    protected static class ExecuteMethodThread extends Thread
+    /** A request to execute a method, handed to an ExecuteMethodThread.  The thread that wants the
+    * method executed waits on this object for the result. */
+    protected static class ExecuteMethodRequest
     {
       protected HttpClient client;
       protected HostConfiguration hostConfiguration;
       protected HttpMethodBase executeMethod;
       protected Throwable exception = null;
       protected int rval = 0;
+      protected boolean done = false;
+      protected Thread executingThread = null;
 
-      public ExecuteMethodThread(HttpClient client, HostConfiguration hostConfiguration, HttpMethodBase executeMethod)
+      public ExecuteMethodRequest(HttpClient client, HostConfiguration hostConfiguration, HttpMethodBase executeMethod)
       {
-        super();
-        setDaemon(true);
         this.client = client;
         this.hostConfiguration = hostConfiguration;
         this.executeMethod = executeMethod;
       }
 
-      public void run()
+      /** Execute the method; called by the fetch thread */
+      public void execute()
       {
+        int rval = 0;
+        Throwable exception = null;
+        synchronized (this)
+        {
+          executingThread = Thread.currentThread();
+        }
         try
         {
           // Call the execute method appropriately
@@ -1262,21 +1375,139 @@ public class ThrottledFetcher
         }
         catch (Throwable e)
         {
-          this.exception = e;
+          exception = e;
+        }
+        synchronized (this)
+        {
+          this.rval = rval;
+          this.exception = exception;
+          done = true;
+          notifyAll();
         }
       }
 
-      public Throwable getException()
+      /** Give up on the method.  Aborting it closes its connection, which frees a fetch thread blocked on the
+      * socket; a fetch thread still waiting for a pooled connection only notices an interrupt.  The thread is only
+      * interrupted while it is still executing this request, and it clears the flag before taking another.
+      */
+      public void cancel()
+      {
+        executeMethod.abort();
+        synchronized (this)
+        {
+          if (!done && executingThread != null)
+            executingThread.interrupt();
+        }
+      }
+
+      /** Wait for the method to be executed */
+      public synchronized void waitForCompletion()
+        throws InterruptedException
+      {
+        while (!done)
+          wait();
+      }
+
+      public synchronized Throwable getException()
       {
         return exception;
       }
 
-      public int getResponse()
+      public synchronized int getResponse()
       {
         return rval;
       }
     }
 
+    /** Thread which executes methods on behalf of the worker threads, so that a worker thread can give up on a
+    * fetch that hangs.  These threads are kept and reused, rather than started for every fetch; one that sits
+    * idle for long enough goes away.  Each fetch still blocks its fetch thread and the worker thread waiting on it
+    * from start to finish, so the number of fetches in progress is still bounded by the number of worker threads.
+    */
+    protected static class ExecuteMethodThread extends Thread
+    {
+      protected ExecuteMethodRequest request = null;
+
+      public ExecuteMethodThread()
+      {
+        super();
+        setDaemon(true);
+        setName("Web fetch thread");
+      }
+
+      /** Hand this thread a request to execute */
+      public synchronized void execute(ExecuteMethodRequest request)
+      {
+        this.request = request;
+        notifyAll();
+      }
+
+      public void run()
+      {
+        while (true)
+        {
+          ExecuteMethodRequest currentRequest;
+          synchronized (this)
+          {
+            while (request == null)
+            {
+              try
+              {
+                wait(FETCH_THREAD_IDLE_TIMEOUT);
+              }
+              catch (InterruptedException e)
+              {
+                // Interrupts are only meant for a request being executed; just keep going
+              }
+              if (request == null)
+              {
+                // Idle too long.  Leave, unless we have just been handed out.
+                synchronized (idleFetchThreads)
+                {
+                  if (idleFetchThreads.remove(this))
+                    return;
+                }
+              }
+            }
+            currentRequest = request;
+          }
+
+          currentRequest.execute();
+
+          synchronized (this)
+          {
+            request = null;
+          }
+          // A cancel() that came in just as the request finished must not carry over to the next request
+          Thread.interrupted();
+          synchronized (idleFetchThreads)
+          {
+            idleFetchThreads.add(this);
+          }
+        }
+      }
+    }
+
+    /** Execute a method on a fetch thread, reusing an idle one if there is one */
+    protected static ExecuteMethodRequest startMethod(HttpClient client, HostConfiguration hostConfiguration, HttpMethodBase executeMethod)
+    {
+      ExecuteMethodRequest request = new ExecuteMethodRequest(client,hostConfiguration,executeMethod);
+      ExecuteMethodThread t = null;
+      synchronized (idleFetchThreads)
+      {
+        int size = idleFetchThreads.size();
+        if (size > 0)
+          t = idleFetchThreads.remove(size-1);
+      }
+      if (t == null)
+      {
+        t = new ExecuteMethodThread();
+        t.start();
+      }
+      t.execute(request);
+      return request;
+    }
+
     /** Execute the fetch and get the return code.  This method uses the
     * standard logging mechanism to keep track of the fetch attempt.  It also
     * signals the following conditions: ServiceInterruption (if a dynamic
@@ -1298,6 +1529,23 @@ public class ThrottledFetcher
       LoginCookies loginCookies,
       String proxyHost, int proxyPort, String proxyAuthDomain, String proxyAuthUsername, String proxyAuthPassword)
       throws ManifoldCFException, ServiceInterruption
+    {
+      executeFetch(urlPath,userAgent,from,connectionTimeoutMilliseconds,socketTimeoutMilliseconds,redirectOK,host,formData,
+        loginCookies,proxyHost,proxyPort,proxyAuthDomain,proxyAuthUsername,proxyAuthPassword,null,null);
+    }
+
+    /** Execute the fetch, conditionally.  This is the same as the above, except that validators from an
+    * earlier fetch of the same page may be supplied; if the server finds that the page has not changed since,
+    * it answers with a 304 response code and no body.
+    * @param ifNoneMatch is the entity tag from the earlier fetch, or null.
+    * @param ifModifiedSince is the last modified date from the earlier fetch, or null.
+    */
+    public void executeFetch(String urlPath, String userAgent, String from, int connectionTimeoutMilliseconds,
+      int socketTimeoutMilliseconds, boolean redirectOK, String host, FormData formData,
+      LoginCookies loginCookies,
+      String proxyHost, int proxyPort, String proxyAuthDomain, String proxyAuthUsername, String proxyAuthPassword,
+      String ifNoneMatch, String ifModifiedSince)
+      throws ManifoldCFException, ServiceInterruption
     {
       StringBuilder sb = new StringBuilder(protocol);
       sb.append("://").append(server);
@@ -1452,6 +1700,11 @@ public class ThrottledFetcher
         // Set all appropriate headers and parameters
         fetchMethod.setRequestHeader("User-Agent",userAgent);
         fetchMethod.setRequestHeader("From",from);
+        fetchMethod.setRequestHeader("Accept-Encoding",ACCEPT_ENCODING);
+        if (ifNoneMatch != null)
+          fetchMethod.setRequestHeader("If-None-Match",ifNoneMatch);
+        if (ifModifiedSince != null)
+          fetchMethod.setRequestHeader("If-Modified-Since",ifModifiedSince);
         HttpMethodParams params = fetchMethod.getParams();
         if (host != null)
         {
@@ -1498,23 +1751,23 @@ public class ThrottledFetcher
         // Fire it off!
         try
         {
-          ExecuteMethodThread t = new ExecuteMethodThread(client,clientConf,fetchMethod);
+          ExecuteMethodRequest request = startMethod(client,clientConf,fetchMethod);
           try
           {
-            t.start();
-            t.join();
-            Throwable thr = t.getException();
+            request.waitForCompletion();
+            Throwable thr = request.getException();
             if (thr != null)
             {
               throw thr;
             }
-            statusCode = t.getResponse();
+            statusCode = request.getResponse();
             if (recordEverything)
               dataSession.setResponseCode(statusCode);
           }
           catch (InterruptedException e)
           {
-            t.interrupt();
+            // Free the fetch thread promptly for reuse, whether it is reading or still waiting for a connection
+            request.cancel();
             // We need the caller to abandon any connections left around, so rethrow in a way that forces them to process the event properly.
             throw e;
           }
@@ -1680,12 +1933,15 @@ public class ThrottledFetcher
       throws ManifoldCFException, ServiceInterruption
     {
       Header[] headers = fetchMethod.getResponseHeaders();
+      boolean decoded = (getDecodedEncoding() != null);
       Map<String,List<String>> rval = new HashMap<String,List<String>>();
       int i = 0;
       while (i < headers.length)
       {
         Header h = headers[i++];
         String name = h.getName();
+        if (decoded && isEncodingHeader(name))
+          continue;
         String value = h.getValue();
         List<String> values = rval.get(name);
         if (values == null)
@@ -1698,6 +1954,25 @@ public class ThrottledFetcher
       return rval;
     }
 
+    /** Get the content encoding that the response body is decoded from, if any.
+    *@return "gzip" or "deflate", or null if the body is handed back as it was sent.
+    */
+    protected String getDecodedEncoding()
+    {
+      Header h = fetchMethod.getResponseHeader("Content-Encoding");
+      if (h == null)
+        return null;
+      return findDecodedEncoding(h.getValue());
+    }
+
+    /** Check whether a header describes the encoded body.  Once the body has been decoded, such headers no
+    * longer apply to it, and are not reported.
+    */
+    protected boolean isEncodingHeader(String headerName)
+    {
+      return headerName.equalsIgnoreCase("Content-Encoding") || headerName.equalsIgnoreCase("Content-Length");
+    }
+
     /** Get a specified response header, if it exists.
     *@param headerName is the name of the header.
     *@return the header value, or null if it doesn't exist.
@@ -1705,6 +1980,8 @@ public class ThrottledFetcher
     public String getResponseHeader(String headerName)
       throws ManifoldCFException, ServiceInterruption
     {
+      if (isEncodingHeader(headerName) && getDecodedEncoding() != null)
+        return null;
       Header h = fetchMethod.getResponseHeader(headerName);
       if (h == null)
         return null;
@@ -1731,7 +2008,7 @@ public class ThrottledFetcher
           Logging.connectors.debug("Web: Couldn't set up response stream for '"+myUrl+"', retrying");
           throw new ServiceInterruption("Failed to set up body response stream for "+myUrl,null,TIME_5MIN,-1L,2,false);
         }
-        return new ThrottledInputstream(this,bodyStream,dataSession);
+        return decodeStream(new ThrottledInputstream(this,bodyStream,dataSession),getDecodedEncoding());
       }
       catch (java.net.SocketTimeoutException e)
       {
@@ -1952,7 +2229,7 @@ public class ThrottledFetcher
       int count = read(byteArray,0,1);
       if (count == -1)
         return count;
-      return (int)byteArray[0];
+      return ((int)byteArray[0]) & 0xff;
     }
 
     /** Read lots of bytes.
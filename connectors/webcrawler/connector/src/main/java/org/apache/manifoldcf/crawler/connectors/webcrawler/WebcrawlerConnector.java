@@ -126,6 +126,13 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
   protected static final int ROBOTS_DATA = 1;
   protected static final int ROBOTS_ALL = 2;
 
+  /** Number of characters read at a time when parsing HTML */
+  protected static final int PARSE_BUFFER_SIZE = 8192;
+
+  /** The longest robots.txt crawl delay that is honored, in milliseconds.  Fetches wait inside getConnection(), so a
+  * site asking for an enormous delay would otherwise tie up worker threads. */
+  protected static final long MAX_CRAWL_DELAY = 30000L;
+
   // Relationship types
   public final static String REL_LINK = "link";
   public final static String REL_REDIRECT = "redirect";
@@ -544,6 +551,7 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
   protected static final int RESULT_NO_VERSION = 1;
   protected static final int RESULT_VERSION_NEEDED = 2;
   protected static final int RESULT_RETRY_DOCUMENT = 3;
+  protected static final int RESULT_NOT_MODIFIED = 4;
 
 
   /** Get document versions given an array of document identifiers.
@@ -640,6 +648,18 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
         else
           globalSequenceEvent = null;
 
+        // On a continuous crawl, a page that has not changed since its last fetch need not be fetched or parsed again;
+        // its links are all still queued.  (Other crawls must see the links again, or the pages they lead to would be
+        // removed at the end of the run.)  But the links a page does not report again are only kept if the job never
+        // deletes by hopcount, so that's the only time the page can go unparsed.  Login sequences are left alone; they
+        // need to see the page content.
+        String[] validators = null;
+        if (jobMode == JOBMODE_CONTINUOUS && sessionCredential == null && oldVersions[i] != null && oldVersions[i].length() > 0 &&
+          activities.checkUnchangedDocumentKeepsLinks(documentIdentifier))
+        {
+          validators = findValidators(oldVersions[i],acls,metadata,filterVersion);
+        }
+
         // This is the main 'state loop'.  The code is structured to use the finally clause from the following try to clean up any
         // events that were created within the loop.  The loop itself has two parts: document fetch, and logic to figure out what state to transition
         // to (e.g. how to process the fetched document).  A signal variable is used to signal the desired outcome.
@@ -707,23 +727,42 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
                     lc = cookieManager.readCookies(sessionCredential.getSequenceKey());
                   }
 
+                  // Honor any crawl delay robots.txt asks for, under the same conditions as the robots check itself.
+                  long crawlDelay = 0L;
+                  if (documentIdentifier.equals(currentURI) && robotsUsage >= ROBOTS_DATA)
+                  {
+                    crawlDelay = robotsManager.getCrawlDelay(userAgent,makeRobotsKey(protocol,hostName,port),currentTime,activities);
+                    if (crawlDelay > MAX_CRAWL_DELAY)
+                      crawlDelay = MAX_CRAWL_DELAY;
+                  }
+
                   // Prepare to perform the fetch, and decide what to do with the document.
                   //
                   IThrottledConnection connection = ThrottledFetcher.getConnection(protocol,ipAddress,port,
-                    credential,trustStore,throttleDescription,binNames,connectionLimit);
+                    credential,trustStore,throttleDescription,binNames,connectionLimit,crawlDelay);
                   try
                   {
                     connection.beginFetch((sessionState == SESSIONSTATE_LOGIN)?FETCH_LOGIN:FETCH_STANDARD);
                     try
                     {
 
-                      // Execute the fetch!
+                      // Execute the fetch!  Validators are only ever present outside of login sequences, so currentURI
+                      // is the document itself.
                       connection.executeFetch(url.getFile(),userAgent,from,connectionTimeoutMilliseconds,
                         socketTimeoutMilliseconds,false,hostName,formData,lc,
-                        proxyHost,proxyPort,proxyAuthDomain,proxyAuthUsername,proxyAuthPassword);
+                        proxyHost,proxyPort,proxyAuthDomain,proxyAuthUsername,proxyAuthPassword,
+                        (validators==null)?null:validators[0],(validators==null)?null:validators[1]);
                       int response = connection.getResponseCode();
 
-                      if (response == 200 || response == 302 || response == 301)
+                      if (response == HttpStatus.SC_NOT_MODIFIED && validators != null)
+                      {
+                        // Unchanged since the last fetch; the old version stands.
+                        cache.addNotModified(currentURI);
+                        contextMessage = "it was not modified";
+                        resultSignal = RESULT_NOT_MODIFIED;
+                        activityResultCode = null;
+                      }
+                      else if (response == 200 || response == 302 || response == 301)
                       {
                         // If this was part of the login sequence, update the cookies regardless of what else happens
                         if (sessionState == SESSIONSTATE_LOGIN)
@@ -828,21 +867,54 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
                     if (sessionCredential != null)
                     {
                       Iterator iterMatches = sessionCredential.findLoginParameters(currentURI);
+                      ArrayList loginParametersList = new ArrayList();
+                      while (iterMatches.hasNext())
+                      {
+                        loginParametersList.add(iterMatches.next());
+                      }
+
+                      // Parse the page just once, looking for the forms and links of all the matching rules together.
+                      FindHTMLFormHandler[] formHandlers = new FindHTMLFormHandler[loginParametersList.size()];
+                      FindHTMLHrefHandler[] hrefHandlers = new FindHTMLHrefHandler[loginParametersList.size()];
+                      ArrayList htmlHandlers = new ArrayList();
+                      int lpIndex = 0;
+                      while (lpIndex < loginParametersList.size())
+                      {
+                        LoginParameters lp = (LoginParameters)loginParametersList.get(lpIndex);
+                        if (lp != null && lp.getFormNamePattern() != null)
+                        {
+                          formHandlers[lpIndex] = new FindHTMLFormHandler(currentURI,lp.getFormNamePattern());
+                          htmlHandlers.add(formHandlers[lpIndex]);
+                        }
+                        if (lp != null && lp.getPreferredLinkPattern() != null)
+                        {
+                          hrefHandlers[lpIndex] = new FindHTMLHrefHandler(currentURI,lp.getPreferredLinkPattern());
+                          htmlHandlers.add(hrefHandlers[lpIndex]);
+                        }
+                        lpIndex++;
+                      }
+                      if (htmlHandlers.size() > 0)
+                        handleHTML(currentURI,new MultiHTMLHandler((IHTMLHandler[])htmlHandlers.toArray(new IHTMLHandler[0])));
+
                       boolean seenAnything = false;
                       boolean seenFormError = false;
                       boolean seenLinkError = false;
                       boolean seenRedirectionError = false;
-                      while (iterMatches.hasNext())
+                      lpIndex = 0;
+                      while (lpIndex < loginParametersList.size())
                       {
                         seenAnything = true;
-                        LoginParameters lp = (LoginParameters)iterMatches.next();
+                        LoginParameters lp = (LoginParameters)loginParametersList.get(lpIndex);
+                        FindHTMLFormHandler formHandler = formHandlers[lpIndex];
+                        FindHTMLHrefHandler hrefHandler = hrefHandlers[lpIndex];
+                        lpIndex++;
                         // Note that more than one of the rules may match.
                         // In that case, a clear order of precedence applies between form-style rules and link-style: form has priority.
                         // If more than one of the same kind of rule is seen, then all bets are off, a warning is displayed, and nothing is
                         // matched.
 
-                        // Parse the page; it had better match up!  Otherwise we get null back.
-                        FormData newFormData = findHTMLForm(currentURI,lp);
+                        // The page had better match up!  Otherwise we get null back.
+                        FormData newFormData = findHTMLForm(formHandler,lp);
                         if (newFormData != null)
                         {
                           if (formData != null)
@@ -861,7 +933,7 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
                         else
                         {
                           // Look for the preferred link instead.
-                          String newPreferredLink = findHTMLLinkURI(currentURI,lp);
+                          String newPreferredLink = (hrefHandler == null)?null:hrefHandler.getTargetURI();
                           if (newPreferredLink != null)
                           {
                             if (preferredLink != null)
@@ -1110,61 +1182,12 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
             break;
           case RESULT_VERSION_NEEDED:
             // Calculate version from document data, which is presumed to be present.
-            StringBuilder sb = new StringBuilder();
-
-            // Acls
-            packList(sb,acls,'+');
-            if (acls.length > 0)
-            {
-              sb.append('+');
-              pack(sb,defaultAuthorityDenyToken,'+');
-            }
-            else
-              sb.append('-');
-
-            // Now, do the metadata.  This comes in two parts: first, the canned metadata, then the header data.
-            // They're all folded into the same part of the version string.
-            int headerCount = 0;
-            Iterator<String> headerIterator = headerData.keySet().iterator();
-            while (headerIterator.hasNext())
-            {
-              String headerName = headerIterator.next();
-              if (reservedHeaders.get(headerName.toLowerCase()) == null)
-                headerCount += headerData.get(headerName).size();
-            }
-            String[] fullMetadata = new String[metadata.length + headerCount];
-            headerCount = 0;
-            headerIterator = headerData.keySet().iterator();
-            while (headerIterator.hasNext())
-            {
-              String headerName = headerIterator.next();
-              if (reservedHeaders.get(headerName.toLowerCase()) == null)
-              {
-                List<String> headerValues = headerData.get(headerName);
-                for (String headerValue : headerValues)
-                {
-                  fixedListStrings[0] = "header-"+headerName;
-                  fixedListStrings[1] = headerValue;
-                  StringBuilder newsb = new StringBuilder();
-                  packFixedList(newsb,fixedListStrings,'=');
-                  fullMetadata[headerCount++] = newsb.toString();
-                }
-              }
-            }
-            int index = 0;
-            while (index < metadata.length)
-            {
-              fullMetadata[headerCount++] = metadata[index++];
-            }
-            java.util.Arrays.sort(fullMetadata);
-            
-            packList(sb,fullMetadata,'+');
-            // Done with the parseable part!  Add the checksum.
-            sb.append(checkSum);
-            // Add the filter version
-            sb.append("+");
-            sb.append(filterVersion);
-            rval[i] = sb.toString();
+            rval[i] = makeVersionString(acls,metadata,makeHeaderMetadata(headerData),checkSum,filterVersion);
+            break;
+          case RESULT_NOT_MODIFIED:
+            if (Logging.connectors.isDebugEnabled())
+              Logging.connectors.debug("WEB: Keeping version of url '"+documentIdentifier+"'"+((contextMessage!=null)?" because "+contextMessage:""));
+            rval[i] = oldVersions[i];
             break;
           case RESULT_RETRY_DOCUMENT:
             // Document could not be processed right now.
@@ -1199,6 +1222,127 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
     return rval;
   }
 
+  /** Build the version string for a fetched document.
+  *@param acls are the forced acls, sorted.
+  *@param metadata are the packed metadata items from the document specification, sorted.
+  *@param headerMetadata are the packed metadata items made from the response headers.
+  *@param checkSum is the checksum of the document content.
+  *@param filterVersion is the version string of the url filter.
+  *@return the version string.
+  */
+  protected static String makeVersionString(String[] acls, String[] metadata, List<String> headerMetadata,
+    String checkSum, String filterVersion)
+  {
+    StringBuilder sb = new StringBuilder();
+
+    // Acls
+    packList(sb,acls,'+');
+    if (acls.length > 0)
+    {
+      sb.append('+');
+      pack(sb,defaultAuthorityDenyToken,'+');
+    }
+    else
+      sb.append('-');
+
+    // Now, do the metadata.  This comes in two parts: first, the canned metadata, then the header data.
+    // They're all folded into the same part of the version string.
+    String[] fullMetadata = new String[metadata.length + headerMetadata.size()];
+    int headerCount = 0;
+    for (String headerItem : headerMetadata)
+    {
+      fullMetadata[headerCount++] = headerItem;
+    }
+    int index = 0;
+    while (index < metadata.length)
+    {
+      fullMetadata[headerCount++] = metadata[index++];
+    }
+    java.util.Arrays.sort(fullMetadata);
+
+    packList(sb,fullMetadata,'+');
+    // Done with the parseable part!  Add the checksum.
+    sb.append(checkSum);
+    // Add the filter version
+    sb.append("+");
+    sb.append(filterVersion);
+    return sb.toString();
+  }
+
+  /** Make packed metadata items out of response headers, leaving out the ones that vary from fetch to fetch.
+  *@param headerData is the map of header names to values.
+  *@return the packed items.
+  */
+  protected static List<String> makeHeaderMetadata(Map<String,List<String>> headerData)
+  {
+    List<String> headerMetadata = new ArrayList<String>();
+    String[] fixedListStrings = new String[2];
+    Iterator<String> headerIterator = headerData.keySet().iterator();
+    while (headerIterator.hasNext())
+    {
+      String headerName = headerIterator.next();
+      if (reservedHeaders.get(headerName.toLowerCase()) == null)
+      {
+        List<String> headerValues = headerData.get(headerName);
+        for (String headerValue : headerValues)
+        {
+          fixedListStrings[0] = "header-"+headerName;
+          fixedListStrings[1] = headerValue;
+          StringBuilder newsb = new StringBuilder();
+          packFixedList(newsb,fixedListStrings,'=');
+          headerMetadata.add(newsb.toString());
+        }
+      }
+    }
+    return headerMetadata;
+  }
+
+  /** Find the validators - the entity tag and last modified date - that the response headers of a document's last
+  * fetch put into its version string.  They are only returned if the document would get that same version string
+  * again were its content unchanged; otherwise the document needs indexing afresh, and must be fetched in full.
+  *@param oldVersion is the document's last version string.
+  *@param acls are the forced acls, sorted.
+  *@param metadata are the packed metadata items from the document specification, sorted.
+  *@param filterVersion is the version string of the url filter.
+  *@return the entity tag and the last modified date, either of which may be null, or null if there are no usable validators.
+  */
+  protected static String[] findValidators(String oldVersion, String[] acls, String[] metadata, String filterVersion)
+  {
+    List<String> oldAcls = new ArrayList<String>();
+    int index = unpackList(oldAcls,oldVersion,0,'+');
+    if (index < oldVersion.length() && oldVersion.charAt(index++) == '+')
+      index = unpack(new StringBuilder(),oldVersion,index,'+');
+    List<String> oldMetadata = new ArrayList<String>();
+    index = unpackList(oldMetadata,oldVersion,index,'+');
+    int checkSumEnd = oldVersion.indexOf('+',index);
+    if (checkSumEnd == -1)
+      return null;
+    String checkSum = oldVersion.substring(index,checkSumEnd);
+
+    String eTag = null;
+    String lastModified = null;
+    List<String> headerMetadata = new ArrayList<String>();
+    String[] fixedListStrings = new String[2];
+    for (String metadataItem : oldMetadata)
+    {
+      unpackFixedList(fixedListStrings,metadataItem,0,'=');
+      if (fixedListStrings[0].startsWith("header-"))
+      {
+        headerMetadata.add(metadataItem);
+        String headerName = fixedListStrings[0].substring("header-".length());
+        if (headerName.equalsIgnoreCase("etag"))
+          eTag = fixedListStrings[1];
+        else if (headerName.equalsIgnoreCase("last-modified"))
+          lastModified = fixedListStrings[1];
+      }
+    }
+    if (eTag == null && lastModified == null)
+      return null;
+    if (!makeVersionString(acls,metadata,headerMetadata,checkSum,filterVersion).equals(oldVersion))
+      return null;
+    return new String[]{eTag,lastModified};
+  }
+
   protected static String extractContentType(String contentType)
   {
     // Some sites have multiple content types.  We just look at the LAST one in that case.
@@ -1277,6 +1421,16 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
         continue;
       }
 
+      if (cache.getResponseCode(documentIdentifier) == HttpStatus.SC_NOT_MODIFIED)
+      {
+        i++;
+        // A conditional fetch found the page unchanged, so it is indexed as it is and its links are kept.  Validators
+        // are only sent when the framework has said an unchanged page will be scanned only, so there's nothing to do.
+        if (!doScanOnly)
+          throw new ManifoldCFException("Unchanged document '"+documentIdentifier+"' unexpectedly needs indexing");
+        continue;
+      }
+
       // Now, extract links.
       // We'll call the "link extractor" series, so we can plug more stuff in over time.
       boolean indexDocument = extractLinks(documentIdentifier,activities,filter);
@@ -4961,25 +5115,10 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
       //  We uniquely can do the lookup.
       try
       {
-        // Fetch it using InetAddress
-        InetAddress ip = null;
-        try
-        {
-          ip = InetAddress.getByName(hostName);
-        }
-        catch (UnknownHostException e)
-        {
-          // Host is unknown, so leave ipAddress as null.
-        }
-        String fqdn = null;
-        String ipAddress = null;
-        if (ip != null)
-        {
-          fqdn = ip.getCanonicalHostName();
-          ipAddress = ip.getHostAddress();
-        }
-        // Write this to the cache - expiration time 6 hours
-        dnsManager.writeDNSData(hostName,fqdn,ipAddress,currentTime + 1000*60*60*6);
+        // Fetch it using InetAddress.  Failures are remembered too, but not for as long.
+        DNSManager.DNSInfo newInfo = DNSManager.resolve(hostName,currentTime);
+        String ipAddress = newInfo.getIPAddress();
+        dnsManager.writeDNSData(hostName,newInfo.getFQDN(),ipAddress,newInfo.getExpirationTime());
         if (ipAddress == null)
           return RESULTSTATUS_FALSE;
         ipAddressBuffer.append(ipAddress);
@@ -5596,19 +5735,19 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
     return handler.getTargetURI();
   }
 
-  /** Find matching HTML form data, if present.  Return null if not. */
-  protected FormData findHTMLForm(String currentURI, LoginParameters lp)
+  /** Find matching HTML form data, if present.  Return null if not.
+  *@param handler is the form handler the page was parsed with, or null if the login parameters describe no form.
+  */
+  protected FormData findHTMLForm(FindHTMLFormHandler handler, LoginParameters lp)
     throws ManifoldCFException
   {
-    if (lp == null || lp.getFormNamePattern() == null)
+    if (handler == null)
       return null;
 
     // Use the specified loginParameters to (a) find an appropriate form, if present, and (b) override what the form's default
     // form parameters would be.  This means that the override parameters are associated with the page on which the *form*
     // is found, not the page to which we are submitting the form.  This is unlike (say) Heritrix, which attaches the parameters
     // to the page that's the target of the submission.
-    FindHTMLFormHandler handler = new FindHTMLFormHandler(currentURI,lp.getFormNamePattern());
-    handleHTML(currentURI,handler);
     // Apply any overrides
     handler.applyFormOverrides(lp);
     return handler.getFormData();
@@ -5626,18 +5765,6 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
     return handler.getTargetURI();
   }
 
-  /** Find HTML link URI, if present, making sure specified preference is matched. */
-  protected String findHTMLLinkURI(String currentURI, LoginParameters lp)
-    throws ManifoldCFException
-  {
-    if (lp == null || lp.getPreferredLinkPattern() == null)
-      return null;
-
-    FindHTMLHrefHandler handler = new FindHTMLHrefHandler(currentURI,lp.getPreferredLinkPattern());
-    handleHTML(currentURI,handler);
-    return handler.getTargetURI();
-  }
-
   /** This class is the handler for redirection parsing during state transitions */
   protected class FindRedirectionHandler extends FindHandler implements IRedirectionHandler
   {
@@ -6047,6 +6174,15 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
         if (Logging.connectors.isDebugEnabled())
           Logging.connectors.debug("WEB: In "+contextDescription+" document '"+documentIdentifier+"', found link to '"+newIdentifier+"'");
         activities.addDocumentReference(newIdentifier,documentIdentifier,linkType,null,null,null,calculateDocumentEvents(activities,newIdentifier));
+        // Get the new host's address looked up while the document waits in the queue
+        try
+        {
+          DNSManager.prefetch(new URL(newIdentifier).getHost(),System.currentTimeMillis());
+        }
+        catch (MalformedURLException e)
+        {
+          // Nothing to prefetch
+        }
       }
       else
       {
@@ -7039,12 +7175,13 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
           // to do a top-down parse.  So, there is a parse state, and the code walks through the document recognizing symbols and modifying the state.
 
           FormParseState currentParseState = new FormParseState(handler);
+          char[] buffer = new char[PARSE_BUFFER_SIZE];
           while (true)
           {
-            int x = r.read();
-            if (x == -1)
+            int amt = r.read(buffer);
+            if (amt == -1)
               break;
-            currentParseState.dealWithCharacter((char)x);
+            currentParseState.dealWithCharacters(buffer,0,amt);
           }
           currentParseState.finishUp();
         }
@@ -0,0 +1,215 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.connectors.webcrawler.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.crawler.system.Logging;
+import org.apache.manifoldcf.crawler.connectors.webcrawler.*;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+
+/** Benchmark for HTML parsing.  Each page is parsed the way the connector used to parse it - one pass per
+* handler, one character at a time - and the way it does now - one buffered pass feeding all the handlers.
+* HTMLParseTest checks that both ways produce the same results.
+* The measurement follows the JMH average-time scheme: warmup iterations that are thrown away, then measured
+* iterations, reported as the mean time per parse and its standard deviation.  JMH itself is not among the build's
+* dependencies.  By default the page is a large generated one, built to look like a portal or news page (navigation
+* blocks, inline scripts, comments, entity-laden text, forms, images); to use saved real-world pages instead, point
+* the system property "org.apache.manifoldcf.webcrawler.benchmarkpages" at a directory of .html files.
+* Run it with -Pbenchmark or -Dtest=HTMLParseBenchmark.
+*/
+public class HTMLParseBenchmark
+{
+  public final static String pagesProperty = "org.apache.manifoldcf.webcrawler.benchmarkpages";
+
+  protected final static int handlerCount = 3;
+  protected final static int warmupIterations = 5;
+  protected final static int measurementIterations = 10;
+  protected final static int operationsPerIteration = 5;
+
+  @BeforeClass
+  public static void setUp()
+  {
+    // The parsers log through the connector logger, which is normally set up along with the rest of the agent
+    if (Logging.connectors == null)
+    {
+      Logging.connectors = Logger.getLogger("org.apache.manifoldcf.connectors");
+      Logging.connectors.setLevel(Level.WARN);
+    }
+  }
+
+  @Test
+  public void parseSpeed()
+    throws Exception
+  {
+    Map<String,byte[]> pages = loadPages();
+    for (String pageName : pages.keySet())
+    {
+      byte[] pageBytes = pages.get(pageName);
+      double[] separate = measure(pageBytes,false);
+      double[] together = measure(pageBytes,true);
+      System.out.println("HTML parse, "+pageName+" ("+(pageBytes.length/1024)+" KB), "+handlerCount+" handlers: one pass per handler by character "+
+        formatResult(separate)+", one buffered pass "+formatResult(together));
+    }
+  }
+
+  /** Find the pages to parse: the saved pages named by the system property, or else a generated one.
+  */
+  protected static Map<String,byte[]> loadPages()
+    throws IOException
+  {
+    Map<String,byte[]> pages = new TreeMap<String,byte[]>();
+    String directoryName = System.getProperty(pagesProperty);
+    if (directoryName != null && directoryName.length() > 0)
+    {
+      File[] files = new File(directoryName).listFiles();
+      if (files != null)
+      {
+        for (File file : files)
+        {
+          String name = file.getName().toLowerCase();
+          if (file.isFile() && (name.endsWith(".html") || name.endsWith(".htm")))
+            pages.put(file.getName(),readFile(file));
+        }
+      }
+      if (pages.size() == 0)
+        throw new IOException("No .html files found in '"+directoryName+"'");
+    }
+    else
+      pages.put("generated page",HTMLParseTest.makePage(5000).getBytes("utf-8"));
+    return pages;
+  }
+
+  protected static byte[] readFile(File file)
+    throws IOException
+  {
+    InputStream is = new FileInputStream(file);
+    try
+    {
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      byte[] buffer = new byte[65536];
+      while (true)
+      {
+        int amt = is.read(buffer);
+        if (amt == -1)
+          break;
+        os.write(buffer,0,amt);
+      }
+      return os.toByteArray();
+    }
+    finally
+    {
+      is.close();
+    }
+  }
+
+  /** Time one way of parsing a page.
+  *@return the mean milliseconds per parse over the measured iterations, and the standard deviation.
+  */
+  protected static double[] measure(byte[] pageBytes, boolean together)
+    throws Exception
+  {
+    for (int i = 0; i < warmupIterations; i++)
+    {
+      runIteration(pageBytes,together);
+    }
+    double[] times = new double[measurementIterations];
+    double sum = 0.0;
+    for (int i = 0; i < measurementIterations; i++)
+    {
+      times[i] = runIteration(pageBytes,together);
+      sum += times[i];
+    }
+    double mean = sum / (double)measurementIterations;
+    double squares = 0.0;
+    for (double time : times)
+    {
+      squares += (time - mean) * (time - mean);
+    }
+    return new double[]{mean,Math.sqrt(squares / (double)(measurementIterations - 1))};
+  }
+
+  /** Run one iteration.
+  *@return the milliseconds per parse.
+  */
+  protected static double runIteration(byte[] pageBytes, boolean together)
+    throws Exception
+  {
+    long startTime = System.nanoTime();
+    for (int j = 0; j < operationsPerIteration; j++)
+    {
+      if (together)
+        parseTogether(pageBytes);
+      else
+        parseSeparately(pageBytes);
+    }
+    return (double)(System.nanoTime() - startTime) / 1000000.0 / (double)operationsPerIteration;
+  }
+
+  protected static String formatResult(double[] result)
+  {
+    return String.format("%.2f +/- %.2f ms/op",result[0],result[1]);
+  }
+
+  /** Parse the way the connector used to: a pass per handler, reading one character at a time. */
+  protected static void parseSeparately(byte[] pageBytes)
+    throws Exception
+  {
+    for (int i = 0; i < handlerCount; i++)
+    {
+      Reader r = new InputStreamReader(new ByteArrayInputStream(pageBytes),"utf-8");
+      FormParseState parseState = new FormParseState(new HTMLParseTest.RecordingHandler());
+      while (true)
+      {
+        int x = r.read();
+        if (x == -1)
+          break;
+        parseState.dealWithCharacter((char)x);
+      }
+      parseState.finishUp();
+    }
+  }
+
+  /** Parse the way the connector does now: one buffered pass feeding all the handlers. */
+  protected static void parseTogether(byte[] pageBytes)
+    throws Exception
+  {
+    IHTMLHandler[] handlers = new IHTMLHandler[handlerCount];
+    for (int i = 0; i < handlerCount; i++)
+    {
+      handlers[i] = new HTMLParseTest.RecordingHandler();
+    }
+    Reader r = new InputStreamReader(new ByteArrayInputStream(pageBytes),"utf-8");
+    FormParseState parseState = new FormParseState(new MultiHTMLHandler(handlers));
+    char[] buffer = new char[8192];
+    while (true)
+    {
+      int amt = r.read(buffer);
+      if (amt == -1)
+        break;
+      parseState.dealWithCharacters(buffer,0,amt);
+    }
+    parseState.finishUp();
+  }
+
+}
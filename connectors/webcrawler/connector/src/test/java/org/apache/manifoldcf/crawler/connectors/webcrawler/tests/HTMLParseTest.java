@@ -0,0 +1,234 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.connectors.webcrawler.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.crawler.system.Logging;
+import org.apache.manifoldcf.crawler.connectors.webcrawler.*;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Check that parsing HTML in blocks, and for several handlers at once, gives the same results as parsing it
+* one character at a time for each handler.
+*/
+public class HTMLParseTest
+{
+  protected final static int handlerCount = 3;
+
+  @BeforeClass
+  public static void setUp()
+  {
+    // The parsers log through the connector logger, which is normally set up along with the rest of the agent
+    if (Logging.connectors == null)
+    {
+      Logging.connectors = Logger.getLogger("org.apache.manifoldcf.connectors");
+      Logging.connectors.setLevel(Level.WARN);
+    }
+  }
+
+  @Test
+  public void blockParseMatchesCharacterParse()
+    throws Exception
+  {
+    String page = makePage(200);
+    List<String> expected = parseByCharacter(page);
+    assertTrue(expected.size() > 500);
+    int[] blockSizes = new int[]{1,2,7,64,8192};
+    for (int i = 0; i < blockSizes.length; i++)
+    {
+      assertEquals("Block size "+blockSizes[i],expected,parseByBlock(page,blockSizes[i]));
+    }
+  }
+
+  @Test
+  public void multiHandlerMatchesSingleHandler()
+    throws Exception
+  {
+    String page = makePage(200);
+    List<String> expected = parseByCharacter(page);
+    RecordingHandler[] handlers = new RecordingHandler[handlerCount];
+    for (int i = 0; i < handlers.length; i++)
+    {
+      handlers[i] = new RecordingHandler();
+    }
+    parse(page,new MultiHTMLHandler(handlers),8192);
+    for (int i = 0; i < handlers.length; i++)
+    {
+      assertEquals(expected,handlers[i].events);
+    }
+  }
+
+  @Test
+  public void everySplitPointMatchesCharacterParse()
+    throws Exception
+  {
+    // Small enough to try every place a block boundary can fall
+    String page = makePage(1);
+    List<String> expected = parseByCharacter(page);
+    char[] pageChars = page.toCharArray();
+    for (int split = 0; split <= pageChars.length; split++)
+    {
+      RecordingHandler handler = new RecordingHandler();
+      FormParseState parseState = new FormParseState(handler);
+      parseState.dealWithCharacters(pageChars,0,split);
+      parseState.dealWithCharacters(pageChars,split,pageChars.length-split);
+      parseState.finishUp();
+      assertEquals("Split at "+split,expected,handler.events);
+    }
+  }
+
+  protected static List<String> parseByCharacter(String page)
+    throws Exception
+  {
+    RecordingHandler handler = new RecordingHandler();
+    FormParseState parseState = new FormParseState(handler);
+    for (int i = 0; i < page.length(); i++)
+    {
+      parseState.dealWithCharacter(page.charAt(i));
+    }
+    parseState.finishUp();
+    return handler.events;
+  }
+
+  protected static List<String> parseByBlock(String page, int blockSize)
+    throws Exception
+  {
+    RecordingHandler handler = new RecordingHandler();
+    parse(page,handler,blockSize);
+    return handler.events;
+  }
+
+  protected static void parse(String page, IHTMLHandler handler, int blockSize)
+    throws Exception
+  {
+    FormParseState parseState = new FormParseState(handler);
+    char[] pageChars = page.toCharArray();
+    for (int i = 0; i < pageChars.length; i += blockSize)
+    {
+      parseState.dealWithCharacters(pageChars,i,Math.min(blockSize,pageChars.length-i));
+    }
+    parseState.finishUp();
+  }
+
+  /** Build a page with the given number of content sections. */
+  protected static String makePage(int sectionCount)
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Transitional//EN\">\n");
+    sb.append("<html><head><title>Example &amp; Company - News</title>\n");
+    sb.append("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\"/>\n");
+    sb.append("<meta name=\"robots\" content=\"index,follow\">\n");
+    sb.append("<link rel=\"stylesheet\" href=\"/css/site.css\" type=\"text/css\"/>\n");
+    sb.append("<script type=\"text/javascript\">\n<!--\nfunction f(a,b) { if (a < b && b > 0) document.write('<a href=\"/x\">x</a>'); }\n// -->\n</script>\n");
+    sb.append("</head>\n<body class=main onload='init()'>\n");
+    sb.append("<!-- navigation -->\n<div id=\"nav\"><ul>\n");
+    for (int i = 0; i < 100; i++)
+    {
+      sb.append("<li><a href=\"/section/").append(i).append("/index.html?lang=en&amp;page=1\" title='Section ").append(i).append("'>Section ")
+        .append(i).append("</a></li>\n");
+    }
+    sb.append("</ul></div>\n");
+    sb.append("<form name=\"search\" action=\"/search\" method=\"get\"><input type=\"text\" name=\"q\" value=\"\"/>")
+      .append("<select name=\"scope\"><option value=\"all\" selected>All</option><option>Site &amp; news</option></select>")
+      .append("<textarea name=\"notes\">Some <b>text</b></textarea>")
+      .append("<input type=submit value=Search><input type=\"hidden\" name=\"sid\" value=\"a1b2c3\"></form>\n");
+    for (int i = 0; i < sectionCount; i++)
+    {
+      sb.append("<div class=\"article\" id=\"a").append(i).append("\">\n");
+      sb.append("<h2><a href=\"http://www.example.com/news/2011/").append(i).append(".html\">Headline number ").append(i).append("</a></h2>\n");
+      sb.append("<img src=\"/images/thumb").append(i).append(".jpg\" alt=\"Thumbnail &quot;").append(i).append("&quot;\" width=100 height=80 />\n");
+      sb.append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit &mdash; sed do eiusmod tempor incididunt ut labore et dolore ")
+        .append("magna aliqua. Ut enim ad minim veniam, quis nostrud exercitation ullamco laboris nisi ut aliquip ex ea commodo consequat. ")
+        .append("Duis aute irure dolor in reprehenderit in voluptate velit esse cillum dolore eu fugiat nulla pariatur &#169; 2011.</p>\n");
+      sb.append("<!-- ad slot ").append(i).append(" -- tracking -->\n");
+      if (i % 10 == 0)
+        sb.append("<script>var s = '<img src=\"/track?id=").append(i).append("\">'; s = s + 1;</script>\n");
+      if (i % 50 == 0)
+        sb.append("<frameset><frame src=\"/frames/").append(i).append(".html\"></frameset>\n");
+      sb.append("<p class=more><a href=/news/more/").append(i).append(" rel=nofollow>More...</a></p>\n");
+      sb.append("</div>\n");
+    }
+    sb.append("</body></html>\n");
+    return sb.toString();
+  }
+
+  /** Handler that records everything it is told, in order. */
+  protected static class RecordingHandler implements IHTMLHandler
+  {
+    public final List<String> events = new ArrayList<String>();
+
+    public void noteDiscoveredLink(String rawURL)
+      throws ManifoldCFException
+    {
+      events.add("link:"+rawURL);
+    }
+
+    public void noteMetaTag(Map tagAttributes)
+      throws ManifoldCFException
+    {
+      events.add("meta:"+new TreeMap(tagAttributes));
+    }
+
+    public void noteFormStart(Map formAttributes)
+      throws ManifoldCFException
+    {
+      events.add("form:"+new TreeMap(formAttributes));
+    }
+
+    public void noteFormInput(Map inputAttributes)
+      throws ManifoldCFException
+    {
+      events.add("input:"+new TreeMap(inputAttributes));
+    }
+
+    public void noteFormEnd()
+      throws ManifoldCFException
+    {
+      events.add("formend");
+    }
+
+    public void noteAHREF(String rawURL)
+      throws ManifoldCFException
+    {
+      events.add("a:"+rawURL);
+    }
+
+    public void noteLINKHREF(String rawURL)
+      throws ManifoldCFException
+    {
+      events.add("linkhref:"+rawURL);
+    }
+
+    public void noteIMGSRC(String rawURL)
+      throws ManifoldCFException
+    {
+      events.add("img:"+rawURL);
+    }
+
+    public void noteFRAMESRC(String rawURL)
+      throws ManifoldCFException
+    {
+      events.add("frame:"+rawURL);
+    }
+  }
+}
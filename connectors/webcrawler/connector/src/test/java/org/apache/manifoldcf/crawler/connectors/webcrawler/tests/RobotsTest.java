@@ -0,0 +1,364 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.connectors.webcrawler.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.system.Logging;
+import org.apache.manifoldcf.crawler.connectors.webcrawler.*;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Check robots.txt handling: path specification matching, both one specification at a time and through the
+* trie that matches a record's specifications together, choosing the record for a user agent, and crawl delays.
+*/
+public class RobotsTest
+{
+
+  /** Path, specification, and whether the specification matches the path */
+  protected final static Object[][] pathCases = new Object[][]{
+    {"/a/b","/a",Boolean.TRUE},
+    {"/a","/a/b",Boolean.FALSE},
+    {"/b","/a",Boolean.FALSE},
+    {"/a","",Boolean.TRUE},
+    {"","/",Boolean.FALSE},
+    // A wildcard stands for any number of characters, and the rest is still a prefix
+    {"/abc","/a*c",Boolean.TRUE},
+    {"/abcd","/a*c",Boolean.TRUE},
+    {"/abxd","/a*c",Boolean.FALSE},
+    {"/ac","/a*c",Boolean.TRUE},
+    {"/anything","*",Boolean.TRUE},
+    {"/a","/a***",Boolean.TRUE},
+    {"/a/b/c","/**/c",Boolean.TRUE},
+    {"/a/b","/a/*/c",Boolean.FALSE},
+    // A trailing '$' anchors the end of the path
+    {"/a.php","/*.php$",Boolean.TRUE},
+    {"/a.php?x=1","/*.php$",Boolean.FALSE},
+    {"/a.php","/a.php$",Boolean.TRUE},
+    {"/a.phpx","/a.php$",Boolean.FALSE},
+    {"/","/$",Boolean.TRUE},
+    {"/x","/$",Boolean.FALSE},
+    {"/x.php/y.php","/*.php$",Boolean.TRUE},
+    // Anywhere else a '$' is an ordinary character
+    {"/a$b","/a$b",Boolean.TRUE},
+    {"/ab","/a$b",Boolean.FALSE},
+  };
+
+  /** Agent, path, and whether the robots.txt below lets the agent fetch the path */
+  protected final static Object[][] fetchCases = new Object[][]{
+    // Agent names match as case-insensitive substrings
+    {"FooBot/1.0","/foo/x",Boolean.FALSE},
+    {"Mozilla (compatible; foobot)","/foo",Boolean.FALSE},
+    // The first matching record is the only one that applies
+    {"FooBot/1.0","/private",Boolean.TRUE},
+    {"OtherBot","/private/x",Boolean.FALSE},
+    {"OtherBot","/foo",Boolean.TRUE},
+    // An allow wins over a disallow
+    {"OtherBot","/private/public/x",Boolean.TRUE},
+    // A record may name several agents
+    {"BarBot","/x",Boolean.FALSE},
+    {"BarBot","/x.html",Boolean.TRUE},
+    {"BarBot","/x.html?q=1",Boolean.FALSE},
+    {"BazBot","/x.html",Boolean.TRUE},
+    {"BazBot","/x.htm",Boolean.FALSE},
+  };
+
+  protected final static String robotsText =
+    "# Comment line\n"+
+    "Crawl-delay: 99\n"+
+    "User-agent: FooBot\n"+
+    "Disallow: /foo # trailing comment\n"+
+    "Crawl-delay: 2.5\n"+
+    "\n"+
+    "User-agent: *\n"+
+    "Disallow: /private\n"+
+    "Allow: /private/public\n"+
+    "Crawl-delay: 10\n"+
+    "\n"+
+    "User-agent: BarBot\n"+
+    "User-agent: BazBot\n"+
+    "Disallow: /\n"+
+    "Allow: /*.html$\n"+
+    "Crawl-delay nonsense\n";
+
+  /** Value of a Crawl-delay line, and the delay in milliseconds */
+  protected final static Object[][] crawlDelayCases = new Object[][]{
+    {"1",new Long(1000L)},
+    {"0.5",new Long(500L)},
+    {"2.25",new Long(2250L)},
+    {"0",new Long(0L)},
+    {"-3",new Long(0L)},
+    {"soon",new Long(0L)},
+    {"",new Long(0L)},
+  };
+
+  @BeforeClass
+  public static void setUp()
+  {
+    // Parsing problems are logged through the connector logger
+    if (Logging.connectors == null)
+    {
+      Logging.connectors = Logger.getLogger("org.apache.manifoldcf.connectors");
+      Logging.connectors.setLevel(Level.WARN);
+    }
+  }
+
+  @Test
+  public void pathSpecifications()
+    throws Exception
+  {
+    for (Object[] pathCase : pathCases)
+    {
+      String path = (String)pathCase[0];
+      String spec = (String)pathCase[1];
+      boolean expected = ((Boolean)pathCase[2]).booleanValue();
+      assertEquals("'"+spec+"' against '"+path+"'",expected,Robots.doesPathMatch(path,spec));
+      // A matcher with just this specification agrees
+      assertEquals("Matcher for '"+spec+"' against '"+path+"'",expected,Robots.matches(new String[]{spec},path));
+    }
+  }
+
+  @Test
+  public void matcherWithManySpecifications()
+    throws Exception
+  {
+    // All the specifications from the table in one trie, so literal parts are shared and tails hang off inner nodes
+    String[] specs = new String[pathCases.length];
+    for (int i = 0; i < pathCases.length; i++)
+    {
+      specs[i] = (String)pathCases[i][1];
+    }
+    for (Object[] pathCase : pathCases)
+    {
+      String path = (String)pathCase[0];
+      boolean expected = false;
+      for (String spec : specs)
+      {
+        if (Robots.doesPathMatch(path,spec))
+          expected = true;
+      }
+      assertEquals("All specifications against '"+path+"'",expected,Robots.matches(specs,path));
+    }
+
+    specs = new String[]{"/abc","/ab*z$","/cgi-bin/","/tmp/*.log"};
+    assertTrue(Robots.matches(specs,"/abc/x"));
+    assertTrue(Robots.matches(specs,"/abyz"));
+    assertFalse(Robots.matches(specs,"/abyzq"));
+    assertFalse(Robots.matches(specs,"/ab"));
+    assertTrue(Robots.matches(specs,"/cgi-bin/run"));
+    assertFalse(Robots.matches(specs,"/cgi-bin"));
+    assertTrue(Robots.matches(specs,"/tmp/a/b.log.1"));
+    assertFalse(Robots.matches(specs,"/tmp/a/b.txt"));
+    assertFalse(Robots.matches(new String[0],"/"));
+  }
+
+  @Test
+  public void recordForEachAgent()
+    throws Exception
+  {
+    Robots.Data data = Robots.parse(robotsText);
+    for (Object[] fetchCase : fetchCases)
+    {
+      String agent = (String)fetchCase[0];
+      String path = (String)fetchCase[1];
+      boolean expected = ((Boolean)fetchCase[2]).booleanValue();
+      assertEquals(agent+" fetching '"+path+"'",expected,data.isFetchAllowed(agent,path));
+    }
+    assertEquals(2500L,data.getCrawlDelay("FooBot"));
+    assertEquals(10000L,data.getCrawlDelay("OtherBot"));
+    // A delay that can't be read is ignored, and one before any User-agent line belongs to no record
+    assertEquals(0L,data.getCrawlDelay("BarBot"));
+    assertEquals("SUCCESS",data.getStatus());
+  }
+
+  @Test
+  public void recordIsRememberedPerAgent()
+    throws Exception
+  {
+    Robots.Data data = Robots.parse(robotsText);
+    Object fooRecord = data.getRecord("FooBot/1.0");
+    assertNotNull(fooRecord);
+    assertEquals(1,data.getLookupCount());
+    assertSame(fooRecord,data.getRecord("FooBot/1.0"));
+    data.isFetchAllowed("FooBot/1.0","/foo");
+    data.getCrawlDelay("FooBot/1.0");
+    assertEquals(1,data.getLookupCount());
+    // Each distinct agent string is looked up once, even when it ends up with the same record
+    assertSame(fooRecord,data.getRecord("foobot"));
+    assertEquals(2,data.getLookupCount());
+    assertNotSame(fooRecord,data.getRecord("OtherBot"));
+    assertEquals(3,data.getLookupCount());
+
+    // An agent that no record applies to is remembered too
+    data = Robots.parse("User-agent: FooBot\nDisallow: /\n");
+    assertNull(data.getRecord("OtherBot"));
+    assertNull(data.getRecord("OtherBot"));
+    assertTrue(data.isFetchAllowed("OtherBot","/x"));
+    assertEquals(1,data.getLookupCount());
+    assertFalse(data.isFetchAllowed("FooBot","/x"));
+  }
+
+  @Test
+  public void noRobotsAllowsEverything()
+    throws Exception
+  {
+    Robots.Data data = Robots.parse(null);
+    assertNull(data.getRecord("FooBot"));
+    assertTrue(data.isFetchAllowed("FooBot","/anything"));
+    assertEquals(0L,data.getCrawlDelay("FooBot"));
+    assertEquals(0,data.getLookupCount());
+  }
+
+  @Test
+  public void crawlDelays()
+    throws Exception
+  {
+    for (Object[] crawlDelayCase : crawlDelayCases)
+    {
+      String value = (String)crawlDelayCase[0];
+      long expected = ((Long)crawlDelayCase[1]).longValue();
+      assertEquals("Crawl-delay: "+value,expected,Robots.crawlDelay(value));
+      // The same value read from a file, with and without the colon
+      Robots.Data data = Robots.parse("User-agent: *\nCrawl-delay: "+value+"\n");
+      assertEquals("Parsed Crawl-delay: "+value,expected,data.getCrawlDelay("FooBot"));
+      data = Robots.parse("User-agent: *\ncrawl-delay "+value+"\n");
+      assertEquals("Parsed crawl-delay "+value,expected,data.getCrawlDelay("FooBot"));
+    }
+  }
+
+  @Test
+  public void parseProblemsAreReported()
+    throws Exception
+  {
+    assertEquals("ERRORS",Robots.parse("Disallow: /\nUser-agent: *\nDisallow: /x\n").getStatus());
+    assertEquals("ERRORS",Robots.parse("User-agent: *\nNoindex: /x\n").getStatus());
+    assertEquals("HTML",Robots.parse("<html><body>Not found</body></html>\n").getStatus());
+  }
+
+  /** Reaches the robots classes, which are only visible to the manager and its subclasses.  Never constructed.
+  */
+  protected static class Robots extends RobotsManager
+  {
+    private Robots()
+      throws ManifoldCFException
+    {
+      super(null,null);
+    }
+
+    public static boolean doesPathMatch(String path, String spec)
+    {
+      return RobotsManager.doesPathMatch(path,spec);
+    }
+
+    public static boolean matches(String[] specs, String path)
+    {
+      PathMatcher matcher = new PathMatcher();
+      for (String spec : specs)
+      {
+        matcher.addPath(spec);
+      }
+      return matcher.matches(path);
+    }
+
+    public static long crawlDelay(String value)
+    {
+      Record record = new Record();
+      record.setCrawlDelay(value);
+      return record.getCrawlDelay();
+    }
+
+    public static Data parse(String text)
+      throws Exception
+    {
+      ActivityRecorder recorder = new ActivityRecorder();
+      IVersionActivity activities = (IVersionActivity)Proxy.newProxyInstance(IVersionActivity.class.getClassLoader(),
+        new Class[]{IVersionActivity.class},recorder);
+      InputStream is = (text == null)?null:new ByteArrayInputStream(text.getBytes("UTF-8"));
+      return new Data(is,activities,recorder);
+    }
+
+    /** Parsed robots data that counts how often a record is looked up for an agent */
+    public static class Data extends RobotsData
+    {
+      protected final ActivityRecorder recorder;
+      protected int lookupCount = 0;
+
+      public Data(InputStream is, IVersionActivity activities, ActivityRecorder recorder)
+        throws IOException, ManifoldCFException
+      {
+        super(is,Long.MAX_VALUE,"localhost",activities);
+        this.recorder = recorder;
+      }
+
+      protected Record lookupRecord(String userAgent)
+      {
+        lookupCount++;
+        return super.lookupRecord(userAgent);
+      }
+
+      public boolean isFetchAllowed(String userAgent, String path)
+      {
+        return super.isFetchAllowed(userAgent,path);
+      }
+
+      public long getCrawlDelay(String userAgent)
+      {
+        return super.getCrawlDelay(userAgent);
+      }
+
+      public Object getRecord(String userAgent)
+      {
+        return findRecord(userAgent);
+      }
+
+      public int getLookupCount()
+      {
+        return lookupCount;
+      }
+
+      /** Get the result code of the robots parse activity */
+      public String getStatus()
+      {
+        return recorder.status;
+      }
+    }
+  }
+
+  /** Stands in for the version activity the parser reports to, remembering the parse result */
+  protected static class ActivityRecorder implements InvocationHandler
+  {
+    protected String status = null;
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+    {
+      if (method.getName().equals("recordActivity"))
+        status = (String)args[4];
+      if (method.getReturnType() == Boolean.TYPE)
+        return Boolean.FALSE;
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,468 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.incrementalingest;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.agents.system.ManifoldCF;
+import java.util.*;
+import java.io.*;
+import java.security.MessageDigest;
+
+/** This class computes a hash of everything in a RepositoryDocument that an output connector can see: the
+* binary content, the metadata fields, the access tokens, and the file name.  The document's streams can only be
+* read once, so there are two ways to do it.  spoolAndHash() reads them through ahead of time, copying them to
+* temporary files that the document then reads from instead, so the hash is known before the document is handed
+* off.  hashAsRead() instead hashes the streams as the output connector reads them, so the hash is only known
+* afterwards, and only if the connector read everything.  Call discard() once the document has been handed off.
+*/
+class DocumentContentSpool
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The spooled binary content, if any */
+  protected BinaryInput binaryInput = null;
+  /** The spooled character field values */
+  protected List<CharacterInput> characterInputs = new ArrayList<CharacterInput>();
+  /** What goes into the hash, in order: strings, or streams whose length and hash are known once they are read */
+  protected List<Object> hashParts = null;
+
+  /** Constructor. */
+  public DocumentContentSpool()
+  {
+  }
+
+  /** Spool the document's streams, and compute the hash.
+  *@param outputVersion is the output version string, which is part of what the output connector sees.
+  *@param authorityName is the authority name, which is also part of what the output connector sees.
+  *@param data is the document.  Its streams are replaced by streams over the spooled copies.
+  *@return the hash value.
+  */
+  public String spoolAndHash(String outputVersion, String authorityName, RepositoryDocument data)
+    throws ManifoldCFException
+  {
+    collectHashParts(outputVersion,authorityName,data,true);
+    return getHash();
+  }
+
+  /** Arrange for the hash to be computed as the document's streams are read, without spooling them.
+  *@param outputVersion is the output version string, which is part of what the output connector sees.
+  *@param authorityName is the authority name, which is also part of what the output connector sees.
+  *@param data is the document.  Its streams are replaced by streams that hash what passes through them.
+  */
+  public void hashAsRead(String outputVersion, String authorityName, RepositoryDocument data)
+    throws ManifoldCFException
+  {
+    collectHashParts(outputVersion,authorityName,data,false);
+  }
+
+  /** Get the hash value.
+  *@return the hash, or null if there is none, or if not all of the document's streams were read to the end.
+  */
+  public String getHash()
+    throws ManifoldCFException
+  {
+    if (hashParts == null)
+      return null;
+    MessageDigest md = ManifoldCF.startHash();
+    for (Object part : hashParts)
+    {
+      if (part instanceof HashedValue)
+      {
+        String value = ((HashedValue)part).getLengthAndHash();
+        if (value == null)
+          return null;
+        addString(md,value);
+      }
+      else
+        addString(md,(String)part);
+    }
+    return ManifoldCF.getHashValue(md);
+  }
+
+  /** Work out what goes into the hash, and replace the document's streams by hashing ones.
+  *@param spool is true if the streams should be read through and copied now.
+  */
+  protected void collectHashParts(String outputVersion, String authorityName, RepositoryDocument data, boolean spool)
+    throws ManifoldCFException
+  {
+    hashParts = new ArrayList<Object>();
+    hashParts.add(outputVersion);
+    hashParts.add(authorityName);
+    hashParts.add(data.getFileName());
+
+    // Access tokens.  Order within a list does not mean anything to the index, so it is ignored.
+    addTokens(data.getACL());
+    addTokens(data.getDenyACL());
+    addTokens(data.getShareACL());
+    addTokens(data.getShareDenyACL());
+    int directoryCount = data.countDirectoryACLs();
+    hashParts.add(Integer.toString(directoryCount));
+    for (int i = 0; i < directoryCount; i++)
+    {
+      addTokens(data.getDirectoryACL(i));
+      addTokens(data.getDirectoryDenyACL(i));
+    }
+
+    // Fields, in name order.  Each value goes in as its length and hash, so that a value hashes the same
+    // whether it was supplied as a String or as a Reader.
+    List<String> fieldNames = new ArrayList<String>();
+    Iterator<String> iter = data.getFields();
+    while (iter.hasNext())
+    {
+      fieldNames.add(iter.next());
+    }
+    Collections.sort(fieldNames);
+    hashParts.add(Integer.toString(fieldNames.size()));
+    for (String fieldName : fieldNames)
+    {
+      hashParts.add(fieldName);
+      Object[] values = data.getField(fieldName);
+      hashParts.add(Integer.toString(values.length));
+      if (values instanceof Reader[])
+      {
+        Reader[] newValues = new Reader[values.length];
+        for (int i = 0; i < values.length; i++)
+        {
+          Reader value = (Reader)values[i];
+          if (value == null)
+          {
+            hashParts.add(null);
+            continue;
+          }
+          HashingReader hashingReader = new HashingReader(value,ManifoldCF.startHash());
+          hashParts.add(hashingReader);
+          if (spool)
+          {
+            CharacterInput ci = new TempFileCharacterInput(hashingReader);
+            characterInputs.add(ci);
+            newValues[i] = ci.getStream();
+          }
+          else
+            newValues[i] = hashingReader;
+        }
+        data.addField(fieldName,newValues);
+      }
+      else
+      {
+        for (int i = 0; i < values.length; i++)
+        {
+          String value = (String)values[i];
+          if (value == null)
+          {
+            hashParts.add(null);
+            continue;
+          }
+          MessageDigest valueDigest = ManifoldCF.startHash();
+          ManifoldCF.addToHash(valueDigest,value);
+          hashParts.add(Long.toString((long)value.length())+":"+ManifoldCF.getHashValue(valueDigest));
+        }
+      }
+    }
+
+    // Binary content, last.  Only the declared length is ever read, so only that much is hashed.
+    InputStream is = data.getBinaryStream();
+    if (is == null)
+      hashParts.add(null);
+    else
+    {
+      HashingInputStream hashingStream = new HashingInputStream(is,data.getBinaryLength(),ManifoldCF.startHash());
+      hashParts.add(hashingStream);
+      if (spool)
+      {
+        binaryInput = new TempFileInput(hashingStream,data.getBinaryLength());
+        data.setBinary(binaryInput.getStream(),binaryInput.getLength());
+      }
+      else
+        data.setBinary(hashingStream,data.getBinaryLength());
+    }
+  }
+
+  /** Get rid of the spooled copies.
+  */
+  public void discard()
+    throws ManifoldCFException
+  {
+    for (CharacterInput ci : characterInputs)
+    {
+      ci.discard();
+    }
+    characterInputs.clear();
+    if (binaryInput != null)
+    {
+      binaryInput.discard();
+      binaryInput = null;
+    }
+  }
+
+  /** Add a list of access tokens to the hash, ignoring their order.
+  */
+  protected void addTokens(String[] tokens)
+  {
+    if (tokens == null)
+    {
+      hashParts.add(null);
+      return;
+    }
+    String[] sortedTokens = new String[tokens.length];
+    System.arraycopy(tokens,0,sortedTokens,0,tokens.length);
+    Arrays.sort(sortedTokens);
+    hashParts.add(Integer.toString(sortedTokens.length));
+    for (String token : sortedTokens)
+    {
+      hashParts.add(token);
+    }
+  }
+
+  /** Add a string to the hash.  Each string is prefixed by its length, so that adjacent strings can't run
+  * together; null is added as "-", which can't be confused with a length.
+  */
+  protected static void addString(MessageDigest md, String value)
+    throws ManifoldCFException
+  {
+    if (value == null)
+      ManifoldCF.addToHash(md,"-");
+    else
+      ManifoldCF.addToHash(md,Integer.toString(value.length())+":"+value);
+  }
+
+  /** A stream whose length and hash are known once it has been read.
+  */
+  protected static interface HashedValue
+  {
+    /** Get the length and hash of what was read.
+    *@return the length and hash, or null if the stream was not read to the end.
+    */
+    public String getLengthAndHash()
+      throws ManifoldCFException;
+  }
+
+  /** A reader that hashes the characters that are read through it.  Characters are hashed the way
+  * ManifoldCF.addToHash() would hash them as one string, so a reader hashes the same as a String with the same
+  * characters in it.
+  */
+  protected static class HashingReader extends FilterReader implements HashedValue
+  {
+    protected final MessageDigest md;
+    protected long length = 0L;
+    protected boolean complete = false;
+    protected String lengthAndHash = null;
+    /** A high surrogate at the end of the last read, held back so that it is encoded along with its pair */
+    protected char pendingSurrogate = 0;
+    protected boolean surrogatePending = false;
+
+    public HashingReader(Reader in, MessageDigest md)
+    {
+      super(in);
+      this.md = md;
+    }
+
+    public int read()
+      throws IOException
+    {
+      char[] buffer = new char[1];
+      int amt = read(buffer,0,1);
+      if (amt == -1)
+        return -1;
+      return (int)buffer[0];
+    }
+
+    public int read(char[] cbuf, int off, int len)
+      throws IOException
+    {
+      int amt = in.read(cbuf,off,len);
+      if (amt == -1)
+      {
+        if (surrogatePending)
+        {
+          md.update(String.valueOf(pendingSurrogate).getBytes("UTF-8"));
+          surrogatePending = false;
+        }
+        complete = true;
+        return -1;
+      }
+      if (amt > 0)
+      {
+        length += (long)amt;
+        StringBuilder sb = new StringBuilder(amt + 1);
+        if (surrogatePending)
+          sb.append(pendingSurrogate);
+        sb.append(cbuf,off,amt);
+        surrogatePending = Character.isHighSurrogate(sb.charAt(sb.length()-1));
+        if (surrogatePending)
+        {
+          pendingSurrogate = sb.charAt(sb.length()-1);
+          sb.setLength(sb.length()-1);
+        }
+        md.update(sb.toString().getBytes("UTF-8"));
+      }
+      return amt;
+    }
+
+    public long skip(long n)
+      throws IOException
+    {
+      // Skipped characters still count towards the hash
+      char[] buffer = new char[(int)Math.min(n,8192L)];
+      long skipped = 0L;
+      while (skipped < n)
+      {
+        int amt = read(buffer,0,(int)Math.min(n-skipped,(long)buffer.length));
+        if (amt == -1)
+          break;
+        skipped += (long)amt;
+      }
+      return skipped;
+    }
+
+    public boolean markSupported()
+    {
+      return false;
+    }
+
+    public void mark(int readAheadLimit)
+      throws IOException
+    {
+      throw new IOException("mark() not supported");
+    }
+
+    public void reset()
+      throws IOException
+    {
+      throw new IOException("reset() not supported");
+    }
+
+    public String getLengthAndHash()
+      throws ManifoldCFException
+    {
+      if (!complete)
+        return null;
+      if (lengthAndHash == null)
+        lengthAndHash = Long.toString(length)+":"+ManifoldCF.getHashValue(md);
+      return lengthAndHash;
+    }
+  }
+
+  /** An input stream that hashes the bytes that are read through it, up to a given length.
+  */
+  protected static class HashingInputStream extends FilterInputStream implements HashedValue
+  {
+    protected final MessageDigest md;
+    protected final long limit;
+    protected long length = 0L;
+    protected boolean complete = false;
+    protected String lengthAndHash = null;
+
+    /** Constructor.
+    *@param limit is the number of bytes to read, or -1 to read to the end of the stream.
+    */
+    public HashingInputStream(InputStream in, long limit, MessageDigest md)
+    {
+      super(in);
+      this.limit = limit;
+      this.md = md;
+    }
+
+    public int read()
+      throws IOException
+    {
+      byte[] buffer = new byte[1];
+      int amt = read(buffer,0,1);
+      if (amt == -1)
+        return -1;
+      return ((int)buffer[0]) & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len)
+      throws IOException
+    {
+      if (limit >= 0L)
+      {
+        if (length >= limit)
+        {
+          complete = true;
+          return -1;
+        }
+        len = (int)Math.min((long)len,limit-length);
+      }
+      int amt = in.read(b,off,len);
+      if (amt == -1)
+      {
+        complete = true;
+        return -1;
+      }
+      md.update(b,off,amt);
+      length += (long)amt;
+      if (limit >= 0L && length >= limit)
+        complete = true;
+      return amt;
+    }
+
+    public long skip(long n)
+      throws IOException
+    {
+      // Skipped bytes still count towards the hash
+      byte[] buffer = new byte[(int)Math.min(n,8192L)];
+      long skipped = 0L;
+      while (skipped < n)
+      {
+        int amt = read(buffer,0,(int)Math.min(n-skipped,(long)buffer.length));
+        if (amt == -1)
+          break;
+        skipped += (long)amt;
+      }
+      return skipped;
+    }
+
+    public int available()
+      throws IOException
+    {
+      int rval = in.available();
+      if (limit >= 0L)
+        rval = (int)Math.min((long)rval,limit-length);
+      return rval;
+    }
+
+    public boolean markSupported()
+    {
+      return false;
+    }
+
+    public void mark(int readlimit)
+    {
+    }
+
+    public void reset()
+      throws IOException
+    {
+      throw new IOException("reset() not supported");
+    }
+
+    public String getLengthAndHash()
+      throws ManifoldCFException
+    {
+      if (!complete)
+        return null;
+      if (lengthAndHash == null)
+        lengthAndHash = Long.toString(length)+":"+ManifoldCF.getHashValue(md);
+      return lengthAndHash;
+    }
+  }
+
+}
@@ -50,6 +50,7 @@ import java.io.*;
 * <tr><td>firstingest</td><td>BIGINT</td><td></td></tr>
 * <tr><td>lastingest</td><td>BIGINT</td><td></td></tr>
 * <tr><td>authorityname</td><td>VARCHAR(32)</td><td></td></tr>
+* <tr><td>lastcontenthash</td><td>VARCHAR(40)</td><td></td></tr>
 * </table>
 * <br><br>
 * 
@@ -70,6 +71,13 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
   protected final static String firstIngestField = "firstingest";
   protected final static String lastIngestField = "lastingest";
   protected final static String authorityNameField = "authorityname";
+  protected final static String contentHashField = "lastcontenthash";
+
+  /** Property that turns on skipping of documents whose indexed content has not changed */
+  protected final static String contentHashProperty = "org.apache.manifoldcf.ingest.contenthash";
+
+  /** Number of rows converted at a time by convertDocumentHashes() */
+  protected final static int HASH_CONVERSION_BATCH = 1000;
 
   // Thread context.
   protected IThreadContext threadContext;
@@ -77,6 +85,8 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
   protected ILockManager lockManager;
   // Output connection manager
   protected IOutputConnectionManager connectionManager;
+  // True if documents whose content hash is unchanged should not be sent again
+  protected boolean useContentHash;
 
   /** Constructor.
   */
@@ -87,6 +97,7 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     this.threadContext = threadContext;
     lockManager = LockManagerFactory.make(threadContext);
     connectionManager = OutputConnectionManagerFactory.make(threadContext);
+    useContentHash = ManifoldCF.getBooleanProperty(contentHashProperty,false);
   }
 
   /** Install the incremental ingestion manager.
@@ -118,11 +129,19 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
         map.put(firstIngestField,new ColumnDescription("BIGINT",false,false,null,null,false));
         map.put(lastIngestField,new ColumnDescription("BIGINT",false,false,null,null,false));
         map.put(authorityNameField,new ColumnDescription("VARCHAR(32)",false,true,null,null,false));
+        map.put(contentHashField,new ColumnDescription("VARCHAR(40)",false,true,null,null,false));
         performCreate(map,null);
       }
       else
       {
         // This is where any schema upgrade code must go, should it be needed.
+        ColumnDescription cd = (ColumnDescription)existing.get(contentHashField);
+        if (cd == null)
+        {
+          HashMap map = new HashMap();
+          map.put(contentHashField,new ColumnDescription("VARCHAR(40)",false,true,null,null,false));
+          performAlter(map,null,null,null);
+        }
       }
 
       // Now, do indexes
@@ -173,6 +192,58 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     performDrop(null);
   }
 
+  /** Convert the document identifier hashes in the ingestion table between hexadecimal and compact form.
+  * This should only be done while no documents are being ingested.
+  *@param toCompact is true to convert to compact form, false to convert to hexadecimal form.
+  */
+  public void convertDocumentHashes(boolean toCompact)
+    throws ManifoldCFException
+  {
+    convertHashColumn(uriHashField,toCompact);
+
+    // The document key is the identifier class and the identifier hash separated by a colon, so it can't be
+    // converted by the database.  Walk through the table in id order instead, a batch at a time.
+    int fromLength = toCompact?ManifoldCF.HEX_HASH_LENGTH:ManifoldCF.COMPACT_HASH_LENGTH;
+    Long lastID = null;
+    while (true)
+    {
+      ArrayList list = new ArrayList();
+      StringBuilder sb = new StringBuilder("SELECT ");
+      sb.append(idField).append(",").append(docKeyField).append(" FROM ").append(getTableName());
+      if (lastID != null)
+      {
+        sb.append(" WHERE ").append(idField).append(">?");
+        list.add(lastID);
+      }
+      sb.append(" ORDER BY ").append(idField).append(" ASC ")
+        .append(getDBInterface().constructOffsetLimitClause(0,HASH_CONVERSION_BATCH,true));
+      IResultSet set = performQuery(sb.toString(),list,null,null);
+      if (set.getRowCount() == 0)
+        break;
+
+      ArrayList paramsList = new ArrayList();
+      for (int i = 0; i < set.getRowCount(); i++)
+      {
+        IResultRow row = set.getRow(i);
+        Long id = (Long)row.getValue(idField);
+        String docKey = (String)row.getValue(docKeyField);
+        lastID = id;
+        // Keys already in the desired form are skipped, so an interrupted conversion can be rerun
+        int hashStart = docKey.length() - fromLength;
+        if (hashStart > 0 && docKey.charAt(hashStart-1) == ':' && docKey.indexOf(':',hashStart) == -1)
+        {
+          String hash = docKey.substring(hashStart);
+          ArrayList params = new ArrayList();
+          params.add(docKey.substring(0,hashStart) + (toCompact?ManifoldCF.convertHashToCompact(hash):ManifoldCF.convertHashToHex(hash)));
+          params.add(id);
+          paramsList.add(params);
+        }
+      }
+      if (paramsList.size() > 0)
+        performModificationMultiple("UPDATE "+getTableName()+" SET "+docKeyField+"=? WHERE "+idField+"=?",paramsList,null);
+    }
+  }
+
   /** Flush all knowledge of what was ingested before.
   */
   public void clearAll()
@@ -328,7 +399,7 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
       Logging.ingest.debug("Recording document '"+docKey+"' for output connection '"+outputConnectionName+"'");
     }
 
-    performIngestion(connection,docKey,documentVersion,null,null,null,recordTime,null,activities);
+    performIngestion(connection,docKey,documentVersion,null,null,null,recordTime,null,null,activities);
   }
 
   /** Ingest a document.
@@ -367,8 +438,22 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
       Logging.ingest.debug("Ingesting document '"+docKey+"' into output connection '"+outputConnectionName+"'");
     }
 
-    return performIngestion(connection,docKey,documentVersion,outputVersion,authorityName,
-      data,ingestTime,documentURI,activities);
+    // If we're skipping unchanged content, the document's hash is needed; performIngestion() works out how to get it
+    DocumentContentSpool spool = null;
+    if (useContentHash && documentURI != null && data != null)
+    {
+      spool = new DocumentContentSpool();
+    }
+    try
+    {
+      return performIngestion(connection,docKey,documentVersion,outputVersion,authorityName,
+        data,ingestTime,documentURI,spool,activities);
+    }
+    finally
+    {
+      if (spool != null)
+        spool.discard();
+    }
   }
 
   /** Do the actual ingestion, or just record it if there's nothing to ingest. */
@@ -376,7 +461,7 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     String docKey, String documentVersion, String outputVersion,
     String authorityNameString,
     RepositoryDocument data,
-    long ingestTime, String documentURI,
+    long ingestTime, String documentURI, DocumentContentSpool spool,
     IOutputActivity activities)
     throws ManifoldCFException, ServiceInterruption
   {
@@ -385,11 +470,12 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     // First, calculate a document uri hash value
     String documentURIHash = null;
     if (documentURI != null)
-      documentURIHash = ManifoldCF.hash(documentURI);
+      documentURIHash = ManifoldCF.compactHash(documentURI);
 
     String oldURI = null;
     String oldURIHash = null;
     String oldOutputVersion = null;
+    String oldContentHash = null;
 
     
     while (true)
@@ -403,7 +489,7 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
           new UnitaryClause(docKeyField,docKey),
           new UnitaryClause(outputConnNameField,connection.getName())});
           
-        IResultSet set = performQuery("SELECT "+docURIField+","+uriHashField+","+lastOutputVersionField+" FROM "+getTableName()+
+        IResultSet set = performQuery("SELECT "+docURIField+","+uriHashField+","+lastOutputVersionField+","+contentHashField+" FROM "+getTableName()+
           " WHERE "+query,list,null,null);
 
         if (set.getRowCount() > 0)
@@ -412,6 +498,7 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
           oldURI = (String)row.getValue(docURIField);
           oldURIHash = (String)row.getValue(uriHashField);
           oldOutputVersion = (String)row.getValue(lastOutputVersionField);
+          oldContentHash = (String)row.getValue(contentHashField);
         }
         
         break;
@@ -434,6 +521,18 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
       }
     }
 
+    // If we're skipping unchanged content, the document can only be skipped if the last ingestion at this same uri left
+    // a hash behind.  Only then is it worth reading the document through ahead of time to compute its hash; otherwise the
+    // hash is computed as the output connector reads the document, so that it is there for the next ingestion.
+    String contentHash = null;
+    if (spool != null)
+    {
+      if (oldContentHash != null && documentURI.equals(oldURI))
+        contentHash = spool.spoolAndHash(outputVersion,authorityNameString,data);
+      else
+        spool.hashAsRead(outputVersion,authorityNameString,data);
+    }
+
     // If uri hashes collide, then we must be sure to eliminate only the *correct* records from the table, or we will leave
     // dangling documents around.  So, all uri searches and comparisons MUST compare the actual uri as well.
 
@@ -496,19 +595,32 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
         //  In theory, document doesn't need to be deleted, but there is no way to signal
         //  that at the moment.)
 
+        // If what the output connector would receive is exactly what it received last time, at the same uri, there is
+        // nothing to send; just record the new version.  The hash is cleared whenever an ingestion starts, so a match
+        // also means the last ingestion completed.
+        if (contentHash != null && oldContentHash != null && contentHash.equals(oldContentHash) && documentURI.equals(oldURI))
+        {
+          if (Logging.ingest.isDebugEnabled())
+            Logging.ingest.debug("Content of document '"+docKey+"' unchanged for output connection '"+connection.getName()+"'; not sending it again");
+          noteDocumentIngest(connection.getName(),docKey,documentVersion,outputVersion,authorityNameString,ingestTime,documentURI,documentURIHash,contentHash);
+          return true;
+        }
+
         // Note an ingestion before we actually try it.
         // This is a marker that says "something is there"; it has an empty version, which indicates
         // that we don't know anything about it.  That means it will be reingested when the
         // next version comes along, and will be deleted if called for also.
-        noteDocumentIngest(connection.getName(),docKey,null,null,null,ingestTime,documentURI,documentURIHash);
+        noteDocumentIngest(connection.getName(),docKey,null,null,null,ingestTime,documentURI,documentURIHash,null);
         int result = addOrReplaceDocument(connection,documentURI,outputVersion,data,authorityNameString,activities);
-        noteDocumentIngest(connection.getName(),docKey,documentVersion,outputVersion,authorityNameString,ingestTime,documentURI,documentURIHash);
+        if (spool != null && contentHash == null)
+          contentHash = spool.getHash();
+        noteDocumentIngest(connection.getName(),docKey,documentVersion,outputVersion,authorityNameString,ingestTime,documentURI,documentURIHash,contentHash);
         return result == IOutputConnector.DOCUMENTSTATUS_ACCEPTED;
       }
 
       // If we get here, it means we are noting that the document was examined, but that no change was required.  This is signaled
       // to noteDocumentIngest by having the null documentURI.
-      noteDocumentIngest(connection.getName(),docKey,documentVersion,outputVersion,authorityNameString,ingestTime,null,null);
+      noteDocumentIngest(connection.getName(),docKey,documentVersion,outputVersion,authorityNameString,ingestTime,null,null,null);
       return true;
     }
     finally
@@ -773,7 +885,7 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
         while (j < validURIArray.length)
         {
           String docDBString = validURIArray[j++];
-          String docDBHashString = ManifoldCF.hash(docDBString);
+          String docDBHashString = ManifoldCF.compactHash(docDBString);
           docURIValues.put(docDBString,docDBString);
           docURIHashValues.put(docDBHashString,docDBHashString);
         }
@@ -1303,6 +1415,7 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     // We're not going to blow away the records, but we are going to set their versions to mean, "reindex required"
     HashMap map = new HashMap();
     map.put(lastVersionField,null);
+    map.put(contentHashField,null);
     ArrayList list = new ArrayList();
     String query = buildConjunctionClause(list,new ClauseDescription[]{
       new UnitaryClause(outputConnNameField,outputConnectionName)});
@@ -1320,11 +1433,12 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
   *@param documentURI is the uri the document can be accessed at, or null (which signals that we are to record the version, but no
   * ingestion took place).
   *@param documentURIHash is the hash of the document uri.
+  *@param contentHash is the hash of the content that was sent to the output connector, or null if not known.
   */
   protected void noteDocumentIngest(String outputConnectionName,
     String docKey, String documentVersion,
     String outputVersion, String authorityNameString,
-    long ingestTime, String documentURI, String documentURIHash)
+    long ingestTime, String documentURI, String documentURIHash, String contentHash)
     throws ManifoldCFException
   {
     HashMap map = new HashMap();
@@ -1353,6 +1467,7 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
       map.put(lastVersionField,documentVersion);
       map.put(lastOutputVersionField,outputVersion);
       map.put(lastIngestField,new Long(ingestTime));
+      map.put(contentHashField,contentHash);
       if (documentURI != null)
       {
         map.put(docURIField,documentURI);
@@ -1431,6 +1546,8 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
       map.put(lastVersionField,documentVersion);
       map.put(lastOutputVersionField,outputVersion);
       map.put(lastIngestField,new Long(ingestTime));
+      if (contentHash != null)
+        map.put(contentHashField,contentHash);
       if (documentURI != null)
       {
         map.put(docURIField,documentURI);
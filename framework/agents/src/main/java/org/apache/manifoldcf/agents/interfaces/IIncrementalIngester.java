@@ -53,6 +53,13 @@ public interface IIncrementalIngester
   public void deinstall()
     throws ManifoldCFException;
 
+  /** Convert the document identifier hashes in the ingestion table between hexadecimal and compact form.
+  * This should only be done while no documents are being ingested.
+  *@param toCompact is true to convert to compact form, false to convert to hexadecimal form.
+  */
+  public void convertDocumentHashes(boolean toCompact)
+    throws ManifoldCFException;
+
   /** Flush all knowledge of what was ingested before.
   */
   public void clearAll()
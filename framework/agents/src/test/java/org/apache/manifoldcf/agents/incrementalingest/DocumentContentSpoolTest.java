@@ -0,0 +1,202 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.incrementalingest;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Check that the content hash covers what an output connector sees, and nothing else */
+public class DocumentContentSpoolTest extends org.apache.manifoldcf.agents.tests.BaseHSQLDB
+{
+  // Includes a character outside the basic plane, so that a surrogate pair can be split across reads
+  protected final static String fieldValue = "caf\u00e9 \ud83d\ude00 menu";
+  protected final static byte[] content = new byte[]{1,2,3,4,5,6,7,8,9,10};
+
+  @Test
+  public void stringAndReaderValuesHashTheSame()
+    throws Exception
+  {
+    RepositoryDocument stringDoc = makeDocument(new String[]{"a","b"});
+    stringDoc.addField("title",fieldValue);
+    RepositoryDocument readerDoc = makeDocument(new String[]{"a","b"});
+    readerDoc.addField("title",new OneCharReader(fieldValue));
+    assertEquals(spoolAndHash(stringDoc),spoolAndHash(readerDoc));
+
+    // The same holds when the reader is hashed as it is read
+    RepositoryDocument readDoc = makeDocument(new String[]{"a","b"});
+    readDoc.addField("title",new OneCharReader(fieldValue));
+    DocumentContentSpool spool = new DocumentContentSpool();
+    try
+    {
+      spool.hashAsRead("output","authority",readDoc);
+      assertEquals(fieldValue,readAll((Reader)readDoc.getField("title")[0]));
+      readAll(readDoc.getBinaryStream());
+      assertEquals(spoolAndHash(makeStringDocument()),spool.getHash());
+    }
+    finally
+    {
+      spool.discard();
+    }
+  }
+
+  @Test
+  public void accessTokenOrderIsIgnored()
+    throws Exception
+  {
+    String hash = spoolAndHash(makeDocument(new String[]{"a","b"}));
+    assertEquals(hash,spoolAndHash(makeDocument(new String[]{"b","a"})));
+    assertFalse(hash.equals(spoolAndHash(makeDocument(new String[]{"a","c"}))));
+    assertFalse(hash.equals(spoolAndHash(makeDocument(new String[]{"a"}))));
+  }
+
+  @Test
+  public void spooledDocumentReadsTheSame()
+    throws Exception
+  {
+    RepositoryDocument doc = makeDocument(new String[]{"a"});
+    doc.addField("title",new StringReader(fieldValue));
+    DocumentContentSpool spool = new DocumentContentSpool();
+    try
+    {
+      assertNotNull(spool.spoolAndHash("output","authority",doc));
+      assertEquals((long)content.length,doc.getBinaryLength());
+      assertTrue(Arrays.equals(content,readAll(doc.getBinaryStream())));
+      assertEquals(fieldValue,readAll((Reader)doc.getField("title")[0]));
+    }
+    finally
+    {
+      spool.discard();
+    }
+  }
+
+  @Test
+  public void noHashUnlessEverythingWasRead()
+    throws Exception
+  {
+    RepositoryDocument doc = makeDocument(new String[]{"a"});
+    DocumentContentSpool spool = new DocumentContentSpool();
+    spool.hashAsRead("output","authority",doc);
+    InputStream is = doc.getBinaryStream();
+    byte[] buffer = new byte[4];
+    assertEquals(4,is.read(buffer));
+    assertNull(spool.getHash());
+    readAll(is);
+    assertEquals(spoolAndHash(makeDocument(new String[]{"a"})),spool.getHash());
+  }
+
+  @Test
+  public void outputVersionIsHashed()
+    throws Exception
+  {
+    DocumentContentSpool spool = new DocumentContentSpool();
+    try
+    {
+      String otherHash = spool.spoolAndHash("otheroutput","authority",makeDocument(new String[]{"a"}));
+      assertFalse(otherHash.equals(spoolAndHash(makeDocument(new String[]{"a"}))));
+    }
+    finally
+    {
+      spool.discard();
+    }
+  }
+
+  protected static RepositoryDocument makeStringDocument()
+    throws Exception
+  {
+    RepositoryDocument doc = makeDocument(new String[]{"a","b"});
+    doc.addField("title",fieldValue);
+    return doc;
+  }
+
+  protected static RepositoryDocument makeDocument(String[] acl)
+    throws Exception
+  {
+    RepositoryDocument doc = new RepositoryDocument();
+    doc.setFileName("doc.bin");
+    doc.setACL(acl);
+    doc.setDenyACL(new String[]{"deny"});
+    doc.setBinary(new ByteArrayInputStream(content),(long)content.length);
+    return doc;
+  }
+
+  protected static String spoolAndHash(RepositoryDocument doc)
+    throws Exception
+  {
+    DocumentContentSpool spool = new DocumentContentSpool();
+    try
+    {
+      return spool.spoolAndHash("output","authority",doc);
+    }
+    finally
+    {
+      spool.discard();
+    }
+  }
+
+  protected static String readAll(Reader r)
+    throws IOException
+  {
+    StringBuilder sb = new StringBuilder();
+    char[] buffer = new char[3];
+    while (true)
+    {
+      int amt = r.read(buffer);
+      if (amt == -1)
+        break;
+      sb.append(buffer,0,amt);
+    }
+    return sb.toString();
+  }
+
+  protected static byte[] readAll(InputStream is)
+    throws IOException
+  {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte[] buffer = new byte[3];
+    while (true)
+    {
+      int amt = is.read(buffer);
+      if (amt == -1)
+        break;
+      bos.write(buffer,0,amt);
+    }
+    return bos.toByteArray();
+  }
+
+  /** A reader that hands out one character per read, whatever is asked for */
+  protected static class OneCharReader extends StringReader
+  {
+    public OneCharReader(String value)
+    {
+      super(value);
+    }
+
+    public int read(char[] cbuf, int off, int len)
+      throws IOException
+    {
+      return super.read(cbuf,off,Math.min(len,1));
+    }
+  }
+
+}
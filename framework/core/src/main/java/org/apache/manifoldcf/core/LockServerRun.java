@@ -0,0 +1,77 @@
+/* $Id$ */
+
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core;
+
+import java.io.*;
+import java.net.*;
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.system.*;
+import org.apache.manifoldcf.core.lockmanager.LockServer;
+import org.apache.manifoldcf.core.lockmanager.SocketLockManager;
+
+/**
+ * Main lock server process class.  The lock server coordinates cross-process locks for all ManifoldCF
+ * processes configured to use org.apache.manifoldcf.core.lockmanager.SocketLockManager.  It must be started
+ * before any of them, and runs until it is killed.
+ */
+public class LockServerRun
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  public static void main(String[] args)
+  {
+    if (args.length != 0)
+    {
+      System.err.println("Usage: LockServerRun");
+      System.exit(1);
+    }
+
+    try
+    {
+      ManifoldCF.initializeEnvironment();
+      String host = ManifoldCF.getProperty(SocketLockManager.lockServerHostProperty);
+      if (host == null)
+        host = SocketLockManager.DEFAULT_LOCKSERVER_HOST;
+      int port = ManifoldCF.getIntProperty(SocketLockManager.lockServerPortProperty,SocketLockManager.DEFAULT_LOCKSERVER_PORT);
+      final LockServer server = new LockServer(InetAddress.getByName(host),port);
+      Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+          public void run()
+          {
+            server.shutdown();
+          }
+        });
+      Logging.root.info("Lock server listening on "+host+":"+port);
+      System.err.println("Lock server running...");
+      server.run();
+    }
+    catch (ManifoldCFException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(2);
+    }
+    catch (IOException e)
+    {
+      Logging.root.error("Lock server exception: "+e.getMessage(),e);
+      e.printStackTrace(System.err);
+      System.exit(2);
+    }
+  }
+}
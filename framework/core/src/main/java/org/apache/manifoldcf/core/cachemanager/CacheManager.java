@@ -444,6 +444,9 @@ public class CacheManager implements ICacheManager
     // the object's timestamp!!!  We check it against the invalidation key file timestamps for the object.
     long createTime = cache.getObjectCreationTime(objectDescription);
     StringSet keys = cache.getObjectInvalidationKeys(objectDescription);
+    if (keys == null)
+      // Removed from the cache by another thread while we were looking at it
+      return null;
 
     Iterator iter = keys.getKeys();
     while (iter.hasNext())
@@ -20,37 +20,55 @@ package org.apache.manifoldcf.core.cachemanager;
 
 import org.apache.manifoldcf.core.interfaces.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /** General cache class.  This class will be statically instantiated.  It contains all the structures
 * needed to maintain a cache of objects, with both LRU flushing behavior, and timed expiration of
 * objects.
 * This cache is entirely local to a JVM and does NOT have any locking and synchronization semantics
 * cross-JVM.  That is handled at a higher level.
+*
+* There is no cache-wide lock.  Lookups go straight to a concurrent map and take no locks at all.
+* Everything else is locked at a finer grain:
+* - each object record's own monitor protects its expiration time, class, and deleted state;
+* - each object class has its own monitor protecting its LRU list;
+* - the expiration tree is split into stripes, each with its own monitor;
+* - each invalidation key's record set has its own monitor.
+* To avoid deadlock, an object record's monitor may be taken before any of the others, but never while
+* holding one of them.
 */
 public class GeneralCache
 {
   public static final String _rcsid = "@(#)$Id: GeneralCache.java 988245 2010-08-23 18:39:35Z kwright $";
 
+  /** The number of expiration tree stripes */
+  protected final static int EXPIRATION_STRIPES = 16;
+
   // This table is for looking stuff up by object description
-  protected ObjectRecordTable hashtable = new ObjectRecordTable();
-  // This table is for looking stuff up by cache key - hash table of hash tables
+  protected ConcurrentHashMap<Object,ObjectRecord> hashtable = new ConcurrentHashMap<Object,ObjectRecord>();
+  // This table is for looking stuff up by cache key
   protected InvalidationTable invalidationTable = new InvalidationTable();
   // This table keeps the running count of each object class
   protected ObjectClassTable objectClassTable = new ObjectClassTable();
-  // This structure is the general expiration tree
-  public ExpirationTree expirationTree = new ExpirationTree();
+  // These structures are the general expiration trees; each record lives in the one selected by its hash
+  protected ExpirationTree[] expirationTrees = new ExpirationTree[EXPIRATION_STRIPES];
 
   public GeneralCache()
   {
+    int i = 0;
+    while (i < expirationTrees.length)
+    {
+      expirationTrees[i++] = new ExpirationTree();
+    }
   }
 
   /** Locate an object in the cache, and return it if found.
   *@param objectDescription is the object's unique identifier.
   *@return the object if found, or null if not present in the cache.
   */
-  public synchronized Object lookup(Object objectDescription)
+  public Object lookup(Object objectDescription)
   {
-    ObjectRecord o = hashtable.lookup(objectDescription);
+    ObjectRecord o = hashtable.get(objectDescription);
     if (o == null)
       return null;
     return o.getObject();
@@ -60,9 +78,9 @@ public class GeneralCache
   *@param objectDescription is the object's unique identifier.
   *@return the creation time, or -1 if object not found.
   */
-  public synchronized long getObjectCreationTime(Object objectDescription)
+  public long getObjectCreationTime(Object objectDescription)
   {
-    ObjectRecord o = hashtable.lookup(objectDescription);
+    ObjectRecord o = hashtable.get(objectDescription);
     if (o == null)
       return -1L;
     return o.getCreationTime();
@@ -72,9 +90,9 @@ public class GeneralCache
   *@param objectDescription is the object's unique identifier.
   *@return the keys, or null if not found.
   */
-  public synchronized StringSet getObjectInvalidationKeys(Object objectDescription)
+  public StringSet getObjectInvalidationKeys(Object objectDescription)
   {
-    ObjectRecord o = hashtable.lookup(objectDescription);
+    ObjectRecord o = hashtable.get(objectDescription);
     if (o == null)
       return null;
     return o.getKeys();
@@ -84,9 +102,9 @@ public class GeneralCache
   *@param objectDescription is the object's unique identifier.
   *@return the expiration time (-1L means none).
   */
-  public synchronized long getObjectExpirationTime(Object objectDescription)
+  public long getObjectExpirationTime(Object objectDescription)
   {
-    ObjectRecord o = hashtable.lookup(objectDescription);
+    ObjectRecord o = hashtable.get(objectDescription);
     if (o == null)
       return -1L;
     return o.getObjectExpiration();
@@ -95,9 +113,9 @@ public class GeneralCache
   /** Delete a record from the cache.
   *@param objectDescription is the unique description.
   */
-  public synchronized void deleteObject(Object objectDescription)
+  public void deleteObject(Object objectDescription)
   {
-    ObjectRecord o = hashtable.lookup(objectDescription);
+    ObjectRecord o = hashtable.get(objectDescription);
     if (o != null)
       deleteEntry(o);
   }
@@ -108,12 +126,20 @@ public class GeneralCache
   *@param keys are the invalidation keys for the newly created object.
   *@param timestamp is the creation timestamp for this object (used for cross-JVM invalidation)
   */
-  public synchronized void setObject(Object objectDescription, Object object, StringSet keys, long timestamp)
+  public void setObject(Object objectDescription, Object object, StringSet keys, long timestamp)
   {
     ObjectRecord record = new ObjectRecord(objectDescription,object,keys,timestamp);
-    hashtable.add(record);
-    // Make an entry in the invalidation hash
-    invalidationTable.addKeys(keys,record);
+    // Make an entry in the invalidation hash first, so that an invalidation that runs concurrently
+    // with this method will always find the record.
+    boolean invalidated = !invalidationTable.addKeys(keys,record);
+    ObjectRecord replaced = hashtable.put(objectDescription,record);
+    if (replaced != null)
+      deleteEntry(replaced);
+    // If an invalidation got to the record before it was in the main table, it could not remove it from there.
+    if (invalidated)
+      deleteEntry(record);
+    else if (record.isDeleted())
+      hashtable.remove(objectDescription,record);
     // Object has no expiration or class yet, so don't add it to the expiration tree, or to the object
     // class trees
   }
@@ -122,23 +148,28 @@ public class GeneralCache
   *@param objectDescription is the object's unique description.
   *@param expirationTime is the object's new expiration time, in milliseconds since epoch.
   */
-  public synchronized void setObjectExpiration(Object objectDescription, long expirationTime)
+  public void setObjectExpiration(Object objectDescription, long expirationTime)
   {
     // Find existing object
-    ObjectRecord existing = hashtable.lookup(objectDescription);
+    ObjectRecord existing = hashtable.get(objectDescription);
     if (existing == null)
       return;
-    if (existing.getObjectExpiration() != -1)
+    synchronized (existing)
     {
-      // Pull the object from the expiration tree
-      expirationTree.removeEntry(existing);
-    }
-    // Set the new expiration
-    existing.setObjectExpiration(expirationTime);
-    if (expirationTime != -1)
-    {
-      //Put the object back into the expiration tree
-      expirationTree.addEntry(existing);
+      if (existing.isDeleted())
+        return;
+      if (existing.getObjectExpiration() != -1)
+      {
+        // Pull the object from the expiration tree
+        removeFromExpirationTree(existing);
+      }
+      // Set the new expiration
+      existing.setObjectExpiration(expirationTime);
+      if (expirationTime != -1)
+      {
+        //Put the object back into the expiration tree
+        addToExpirationTree(existing);
+      }
     }
   }
 
@@ -149,35 +180,50 @@ public class GeneralCache
   *@param maxCount is the maximum number of objects of the class to permit to
   * remain in the cache.
   */
-  public synchronized void setObjectClass(Object objectDescription, String objectClass,
+  public void setObjectClass(Object objectDescription, String objectClass,
     int maxCount)
   {
     // Lookup the existing object class
-    ObjectRecord existing = hashtable.lookup(objectDescription);
+    ObjectRecord existing = hashtable.get(objectDescription);
     if (existing == null)
       return;
-    if (existing.getObjectClass() != null)
-    {
-      // Pull the object from the object class expiration tree
-      objectClassTable.removeEntry(existing);
-    }
-    // Set the new object class & LRU value
-    existing.setObjectClass(objectClass);
-    if (objectClass != null)
+    synchronized (existing)
     {
-      // Put the object into the object class expiration tree
-      objectClassTable.addEntry(existing);
-
-      if (maxCount >= 0)
+      if (existing.isDeleted())
+        return;
+      if (objectClass != null && objectClass.equals(existing.getObjectClass()))
       {
-        // Now, clean up objects to meet the count
-        while (objectClassTable.getCurrentMemberCount(objectClass) > maxCount)
+        // The usual case: same class as before, so just move the object to the recent end of the LRU list
+        objectClassTable.touchEntry(existing);
+      }
+      else
+      {
+        if (existing.getObjectClass() != null)
+        {
+          // Pull the object from the object class LRU list
+          objectClassTable.removeEntry(existing);
+        }
+        // Set the new object class & LRU value
+        existing.setObjectClass(objectClass);
+        if (objectClass != null)
         {
-          ObjectRecord oldestRecord = objectClassTable.getOldestEntry(objectClass);
-          // Delete this entry from all places it lives
-          deleteEntry(oldestRecord);
+          // Put the object at the recent end of the object class LRU list
+          objectClassTable.addEntry(existing);
         }
+      }
+    }
 
+    if (objectClass != null && maxCount >= 0)
+    {
+      // Now, clean up objects to meet the count.  The oldest record is deleted without holding the class
+      // lock, so other threads can keep using the class meanwhile.
+      while (true)
+      {
+        ObjectRecord oldestRecord = objectClassTable.getOldestEntryIfOverCount(objectClass,maxCount);
+        if (oldestRecord == null)
+          break;
+        // Delete this entry from all places it lives
+        deleteEntry(oldestRecord);
       }
     }
 
@@ -187,31 +233,18 @@ public class GeneralCache
   * keys as invalidation keys to be removed from the cache.
   *@param keys is the StringSet describing the keys to invalidate.
   */
-  public synchronized void invalidateKeys(StringSet keys)
+  public void invalidateKeys(StringSet keys)
   {
     Iterator enum2 = keys.getKeys();
     while (enum2.hasNext())
     {
       String invalidateKey = (String)enum2.next();
-      Iterator enum1 = invalidationTable.getObjectRecordsForKey(invalidateKey);
-      while (enum1.hasNext())
+      ObjectRecord[] records = invalidationTable.removeKey(invalidateKey);
+      int i = 0;
+      while (i < records.length)
       {
-        ObjectRecord record = (ObjectRecord)enum1.next();
-        hashtable.remove(record);
-        // Remove from object class table
-        if (record.getObjectClass() != null)
-        {
-          objectClassTable.removeEntry(record);
-        }
-        // Remove from expiration table
-        if (record.getExpirationTime() >= 0)
-        {
-          expirationTree.removeEntry(record);
-        }
-
+        deleteEntry(records[i++]);
       }
-      // We do this last, because we are enumerating over something in here!
-      invalidationTable.removeKey(invalidateKey);
     }
   }
 
@@ -220,47 +253,95 @@ public class GeneralCache
   */
   public void expireRecords(long expireTime)
   {
-    while (true)
+    int i = 0;
+    while (i < expirationTrees.length)
     {
-      // Do the synchronizer inside the loop.  Cleanup is slower,
-      // but the cache does not get locked for long periods.
-      synchronized (this)
+      ExpirationTree expirationTree = expirationTrees[i++];
+      while (true)
       {
-        // Get the oldest record, if any
-        ObjectRecord x = expirationTree.getOldestEntry();
-        if (x == null)
-          break;
-        if (x.getExpirationTime() > expireTime)
-          break;
-        // Remove the entry
-        deleteEntry(x);
+        // Do the synchronizer inside the loop.  Cleanup is slower,
+        // but the cache does not get locked for long periods.
+        ObjectRecord x;
+        synchronized (expirationTree)
+        {
+          // Get the oldest record, if any
+          x = expirationTree.getOldestEntry();
+          if (x == null)
+            break;
+          if (x.getExpirationTime() > expireTime)
+            break;
+        }
+        // Remove the entry, unless its expiration was changed in the meantime
+        synchronized (x)
+        {
+          if (x.isDeleted())
+            continue;
+          long currentExpiration = x.getExpirationTime();
+          if (currentExpiration == -1 || currentExpiration > expireTime)
+            continue;
+          deleteEntry(x);
+        }
       }
     }
   }
 
-  /** Delete a record from the cache. NOTE WELL: This method cannot be used
-  * if the data associated with the record is currently being processed with
-  * an enumeration (for example), since it modifies the structures that the
-  * enumeration is based on!
+  /** Delete a record from the cache.  This is safe to call more than once for the same record.
   *@param record is the object record.
   */
   protected void deleteEntry(ObjectRecord record)
   {
-    // Delete from the main cache
-    hashtable.remove(record);
-    // Delete from key hash
-    invalidationTable.removeObjectRecord(record);
-    // Remove from object class table
-    if (record.getObjectClass() != null)
+    synchronized (record)
     {
-      objectClassTable.removeEntry(record);
+      if (record.isDeleted())
+        return;
+      record.setDeleted();
+      // Delete from the main cache, unless a newer record has replaced this one
+      hashtable.remove(record.getObjectDescription(),record);
+      // Delete from key hash
+      invalidationTable.removeObjectRecord(record);
+      // Remove from object class table
+      if (record.getObjectClass() != null)
+      {
+        objectClassTable.removeEntry(record);
+      }
+      // Remove from expiration table
+      if (record.getExpirationTime() >= 0)
+      {
+        removeFromExpirationTree(record);
+      }
     }
-    // Remove from expiration table
-    if (record.getExpirationTime() >= 0)
+  }
+
+  /** Add a record to its expiration tree.  Call only while synchronized on the record.
+  */
+  protected void addToExpirationTree(ObjectRecord record)
+  {
+    ExpirationTree expirationTree = getExpirationTree(record);
+    synchronized (expirationTree)
+    {
+      expirationTree.addEntry(record);
+    }
+  }
+
+  /** Remove a record from its expiration tree.  Call only while synchronized on the record.
+  */
+  protected void removeFromExpirationTree(ObjectRecord record)
+  {
+    ExpirationTree expirationTree = getExpirationTree(record);
+    synchronized (expirationTree)
     {
       expirationTree.removeEntry(record);
     }
+  }
 
+  /** Find the expiration tree stripe a record belongs in.
+  */
+  protected ExpirationTree getExpirationTree(ObjectRecord record)
+  {
+    int hash = record.hashCode();
+    // Spread the bits a little, since description hash codes are often poorly distributed in the low bits
+    hash ^= (hash >>> 16);
+    return expirationTrees[(hash & 0x7fffffff) % expirationTrees.length];
   }
 
   /** This class represents a cached object.  It has enough hooks to allow it
@@ -268,14 +349,18 @@ public class GeneralCache
   */
   protected class ObjectRecord
   {
-    protected Object objectDescription;
-    protected Object theObject;
-    protected StringSet invalidationKeys;
-    protected long creationTime;
-    protected long expirationTime = -1;
-    protected String objectClass = null;
+    protected final Object objectDescription;
+    protected final Object theObject;
+    protected final StringSet invalidationKeys;
+    protected final long creationTime;
+    // These are written only while synchronized on the record, but may be read without locking
+    protected volatile long expirationTime = -1;
+    protected volatile String objectClass = null;
+    protected volatile boolean deleted = false;
+    // These belong to the object class record's lock
     protected ObjectRecord prevLRU = null;
     protected ObjectRecord nextLRU = null;
+    // These belong to the expiration tree's lock
     protected ObjectRecord sameExpirationPrev = null;
     protected ObjectRecord sameExpirationNext = null;
 
@@ -292,6 +377,16 @@ public class GeneralCache
       return creationTime;
     }
 
+    public boolean isDeleted()
+    {
+      return deleted;
+    }
+
+    public void setDeleted()
+    {
+      deleted = true;
+    }
+
     public void setSameExpirationPrev(ObjectRecord x)
     {
       sameExpirationPrev = x;
@@ -377,45 +472,8 @@ public class GeneralCache
       return objectDescription.hashCode();
     }
 
-    public boolean equals(Object o)
-    {
-      if (!(o instanceof ObjectRecord))
-        return false;
-      ObjectRecord record = (ObjectRecord)o;
-      return objectDescription.equals(record.objectDescription);
-    }
-  }
-
-  /** This class describes a table of object records, looked up
-  * by the unique object description.
-  */
-  protected class ObjectRecordTable
-  {
-    protected HashMap hashtable = new HashMap();
-
-    public ObjectRecordTable()
-    {
-    }
-
-    public void add(ObjectRecord record)
-    {
-      hashtable.put(record.getObjectDescription(),record);
-    }
-
-    public void remove(Object objectDescription)
-    {
-      hashtable.remove(objectDescription);
-    }
-
-    public void remove(ObjectRecord record)
-    {
-      hashtable.remove(record.getObjectDescription());
-    }
-
-    public ObjectRecord lookup(Object objectDescription)
-    {
-      return (ObjectRecord)hashtable.get(objectDescription);
-    }
+    // Note well: identity equality.  A description can be cached more than once over time, and
+    // the indexes must never confuse an old record with its replacement.
   }
 
   /** This class describes a table of invalidation keys, each of which points
@@ -423,42 +481,56 @@ public class GeneralCache
   */
   protected class InvalidationTable
   {
-    protected HashMap hashtable = new HashMap();
+    protected ConcurrentHashMap<String,KeyRecordSet> hashtable = new ConcurrentHashMap<String,KeyRecordSet>();
 
     public InvalidationTable()
     {
     }
 
-    public void addKeys(StringSet keyset, ObjectRecord objectRecord)
+    /** Add a record under each of a set of keys.
+    *@return false if one of the keys was being invalidated at the same time, in which case the record
+    * should be considered invalidated too.
+    */
+    public boolean addKeys(StringSet keyset, ObjectRecord objectRecord)
     {
+      boolean rval = true;
       Iterator enum1 = keyset.getKeys();
       while (enum1.hasNext())
       {
         String key = (String)enum1.next();
-        HashMap ht = (HashMap)hashtable.get(key);
-        if (ht == null)
+        while (true)
         {
-          ht = new HashMap();
-          hashtable.put(key,ht);
+          KeyRecordSet recordSet = hashtable.get(key);
+          if (recordSet == null)
+          {
+            recordSet = new KeyRecordSet();
+            KeyRecordSet existing = hashtable.putIfAbsent(key,recordSet);
+            if (existing != null)
+              recordSet = existing;
+          }
+          int result = recordSet.add(objectRecord);
+          if (result == KeyRecordSet.ADDED)
+            break;
+          if (result == KeyRecordSet.INVALIDATED)
+          {
+            rval = false;
+            break;
+          }
+          // The set was discarded for being empty; get rid of it if it's still there, and try again
+          hashtable.remove(key,recordSet);
         }
-        ht.put(objectRecord,objectRecord);
-      }
-    }
-
-    public Iterator getObjectRecordsForKey(String key)
-    {
-      HashMap ht = (HashMap)hashtable.get(key);
-      if (ht == null)
-      {
-        ht = new HashMap();
-        hashtable.put(key,ht);
       }
-      return ht.keySet().iterator();
+      return rval;
     }
 
-    public void removeKey(String key)
+    /** Remove a key, and return the records that were filed under it.
+    */
+    public ObjectRecord[] removeKey(String key)
     {
-      hashtable.remove(key);
+      KeyRecordSet recordSet = hashtable.remove(key);
+      if (recordSet == null)
+        return new ObjectRecord[0];
+      return recordSet.invalidate();
     }
 
     public void removeObjectRecord(ObjectRecord record)
@@ -475,19 +547,73 @@ public class GeneralCache
 
     public void removeObjectRecordFromKey(String key, ObjectRecord objectRecord)
     {
-      HashMap ht = (HashMap)hashtable.get(key);
-      if (ht == null)
+      KeyRecordSet recordSet = hashtable.get(key);
+      if (recordSet == null)
         return;
-      ht.remove(objectRecord);
+      if (recordSet.remove(objectRecord))
+        hashtable.remove(key,recordSet);
     }
 
   }
 
+  /** This class is the set of records filed under a single invalidation key.
+  * Once a set has been invalidated, or discarded because it became empty, it refuses further additions,
+  * so that a record can never be filed in a set that is no longer reachable from the invalidation table.
+  */
+  protected static class KeyRecordSet
+  {
+    public final static int ADDED = 0;
+    public final static int INVALIDATED = 1;
+    public final static int DISCARDED = 2;
+
+    protected final Set<ObjectRecord> records = new HashSet<ObjectRecord>();
+    protected boolean invalidated = false;
+    protected boolean discarded = false;
+
+    public KeyRecordSet()
+    {
+    }
+
+    public synchronized int add(ObjectRecord record)
+    {
+      if (invalidated)
+        return INVALIDATED;
+      if (discarded)
+        return DISCARDED;
+      records.add(record);
+      return ADDED;
+    }
+
+    /** Remove a record.
+    *@return true if the set is now empty and has been discarded.
+    */
+    public synchronized boolean remove(ObjectRecord record)
+    {
+      records.remove(record);
+      if (records.size() == 0 && !invalidated)
+      {
+        discarded = true;
+        return true;
+      }
+      return false;
+    }
+
+    /** Mark the set invalidated, and return its contents.
+    */
+    public synchronized ObjectRecord[] invalidate()
+    {
+      invalidated = true;
+      ObjectRecord[] rval = records.toArray(new ObjectRecord[0]);
+      records.clear();
+      return rval;
+    }
+  }
+
   /** This class describes a set of object classes, each with its own LRU behavior.
   */
   protected class ObjectClassTable
   {
-    protected HashMap hashtable = new HashMap();
+    protected ConcurrentHashMap<String,ObjectClassRecord> hashtable = new ConcurrentHashMap<String,ObjectClassRecord>();
 
     public ObjectClassTable()
     {
@@ -497,44 +623,77 @@ public class GeneralCache
     */
     public void addEntry(ObjectRecord record)
     {
-      ObjectClassRecord x = (ObjectClassRecord)hashtable.get(record.getObjectClass());
+      ObjectClassRecord x = hashtable.get(record.getObjectClass());
       if (x == null)
       {
         x = new ObjectClassRecord();
-        hashtable.put(record.getObjectClass(),x);
+        ObjectClassRecord existing = hashtable.putIfAbsent(record.getObjectClass(),x);
+        if (existing != null)
+          x = existing;
+      }
+      synchronized (x)
+      {
+        x.addEntry(record);
       }
-      x.addEntry(record);
     }
 
     /** Call ONLY if there is known to be an existing record in the object class table
     */
     public void removeEntry(ObjectRecord record)
     {
-      ObjectClassRecord x = (ObjectClassRecord)hashtable.get(record.getObjectClass());
+      ObjectClassRecord x = hashtable.get(record.getObjectClass());
+      if (x == null)
+        return;
+      synchronized (x)
+      {
+        x.removeEntry(record);
+      }
+    }
+
+    /** Move a record to the most recently used end of its class's list.
+    * Call ONLY if there is known to be an existing record in the object class table
+    */
+    public void touchEntry(ObjectRecord record)
+    {
+      ObjectClassRecord x = hashtable.get(record.getObjectClass());
       if (x == null)
         return;
-      x.removeEntry(record);
+      synchronized (x)
+      {
+        x.removeEntry(record);
+        x.addEntry(record);
+      }
     }
 
     public int getCurrentMemberCount(String objectClassName)
     {
-      ObjectClassRecord x = (ObjectClassRecord)hashtable.get(objectClassName);
+      ObjectClassRecord x = hashtable.get(objectClassName);
       if (x == null)
         return 0;
-      return x.getCurrentMemberCount();
+      synchronized (x)
+      {
+        return x.getCurrentMemberCount();
+      }
     }
 
-    public ObjectRecord getOldestEntry(String objectClassName)
+    /** Get the oldest entry for a class, but only if the class has more than a given number of members.
+    */
+    public ObjectRecord getOldestEntryIfOverCount(String objectClassName, int maxCount)
     {
-      ObjectClassRecord x = (ObjectClassRecord)hashtable.get(objectClassName);
+      ObjectClassRecord x = hashtable.get(objectClassName);
       if (x == null)
         return null;
-      return x.getOldestEntry();
+      synchronized (x)
+      {
+        if (x.getCurrentMemberCount() <= maxCount)
+          return null;
+        return x.getOldestEntry();
+      }
     }
   }
 
   /** This is a helper class for the ObjectClassTable.  It maintains the data
-  * for an individual object class.
+  * for an individual object class.  Callers must synchronize on it.
   */
   protected class ObjectClassRecord
   {
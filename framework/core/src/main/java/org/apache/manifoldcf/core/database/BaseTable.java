@@ -68,6 +68,16 @@ public class BaseTable
     dbInterface.performInsert(tableName,parameterMap,invalidateKeys);
   }
 
+  /** Perform an insert operation for a number of rows at once.
+  *@param parameterMaps is the list of rows, each a map of column name/values to write.
+  *@param invalidateKeys are the cache keys that should be invalidated.
+  */
+  protected void performInsertMultiple(List parameterMaps, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    dbInterface.performInsertMultiple(tableName,parameterMaps,invalidateKeys);
+  }
+
   /** Perform an update operation.
   *@param invalidateKeys are the cache keys that should be invalidated.
   *@param parameterMap is the map of column name/values to write.
@@ -207,6 +217,32 @@ public class BaseTable
     dbInterface.performModification(query,params,invalidateKeys);
   }
 
+  /** Perform a general database modification query once for each of a number of parameter lists, as one batch.
+  *@param query is the query string.
+  *@param paramsList is the list of parameter lists, one for each execution.
+  *@param invalidateKeys are the cache keys to invalidate.
+  */
+  protected void performModificationMultiple(String query, List paramsList, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    dbInterface.performModificationMultiple(query,paramsList,invalidateKeys);
+  }
+
+  /** Convert the hashes in a column between hexadecimal and compact form.  Values already in the
+  * desired form are left alone, so an interrupted conversion can simply be run again.
+  *@param columnName is the name of the column holding hash values.
+  *@param toCompact is true to convert to compact form, false to convert to hexadecimal form.
+  */
+  protected void convertHashColumn(String columnName, boolean toCompact)
+    throws ManifoldCFException
+  {
+    int fromLength = toCompact?org.apache.manifoldcf.core.system.ManifoldCF.HEX_HASH_LENGTH:
+      org.apache.manifoldcf.core.system.ManifoldCF.COMPACT_HASH_LENGTH;
+    performModification("UPDATE "+getTableName()+" SET "+columnName+"="+
+      dbInterface.constructHashConversionClause(columnName,toCompact)+
+      " WHERE LENGTH("+columnName+")="+Integer.toString(fromLength),null,null);
+  }
+
   /** Perform a general "data fetch" query.
   *@param query is the query string.
   *@param params are the parameterized values, if needed.
@@ -236,6 +272,17 @@ public class BaseTable
     return dbInterface.performQuery(query,params,cacheKeys,queryClass,resultLimit,null);
   }
 
+  /** Perform a general "data fetch" query, returning the rows through a cursor.  Nothing is cached.
+  *@param query is the query string.
+  *@param params are the parameterized values, if needed.
+  *@return a cursor, which the caller must close.
+  */
+  protected IResultCursor performQueryCursor(String query, List params)
+    throws ManifoldCFException
+  {
+    return dbInterface.performQueryCursor(query,params,null);
+  }
+
   /** Begin a database transaction.  This method call MUST be paired with an endTransaction() call,
   * or database handles will be lost.  If the transaction should be rolled back, then signalRollback() should
   * be called before the transaction is ended.
@@ -332,6 +379,17 @@ public class BaseTable
     return dbInterface.constructCountClause(column);
   }
 
+  /** Construct a sum clause for an integer column.
+  * Most databases sum a BIGINT column into a wider numeric type, so the sum is cast back to a BIGINT, in whatever
+  * way the database requires.
+  *@param column is the column string to be summed.
+  *@return the query chunk needed.
+  */
+  public String constructSumClause(String column)
+  {
+    return dbInterface.constructSumClause(column);
+  }
+
   /** Construct a regular-expression match clause.
   * This method builds both the text part of a regular-expression match.
   *@param column is the column specifier string.
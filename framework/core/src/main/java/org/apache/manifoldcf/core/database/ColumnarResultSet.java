@@ -0,0 +1,336 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.database;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.util.*;
+
+/** A resultset that keeps its values by column, rather than as one map per row.
+* The column names are held once for the whole resultset, Long and Double columns are kept in primitive
+* arrays, and short strings that repeat within a column (status codes, for instance) are stored once.
+* A large resultset therefore takes a fraction of the memory of the equivalent RSet.
+* Rows are lightweight views onto the columns, made as they are asked for.  Values come back as the
+* same types they were added as.
+*/
+public class ColumnarResultSet implements IResultSet
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  protected final static int INITIAL_CAPACITY = 16;
+
+  /** The distinct column names */
+  protected final String[] columnNames;
+  /** Map from column name to column number */
+  protected final Map<String,Integer> columnIndex = new HashMap<String,Integer>();
+  /** For each value in an added row, the column it goes into */
+  protected final int[] valueColumns;
+  /** The columns */
+  protected final Column[] columns;
+  /** The number of rows */
+  protected int rowCount = 0;
+  /** The number of rows there is room for */
+  protected int capacity = INITIAL_CAPACITY;
+
+  /** Constructor.
+  *@param names are the column names, in the order that values will be passed to addRow().  If a name
+  * appears more than once, the last value for it wins, as it would in a map.
+  */
+  public ColumnarResultSet(String[] names)
+  {
+    List<String> distinctNames = new ArrayList<String>();
+    valueColumns = new int[names.length];
+    for (int i = 0; i < names.length; i++)
+    {
+      Integer index = columnIndex.get(names[i]);
+      if (index == null)
+      {
+        index = new Integer(distinctNames.size());
+        columnIndex.put(names[i],index);
+        distinctNames.add(names[i]);
+      }
+      valueColumns[i] = index.intValue();
+    }
+    columnNames = distinctNames.toArray(new String[0]);
+    columns = new Column[columnNames.length];
+    for (int i = 0; i < columns.length; i++)
+    {
+      columns[i] = new Column(capacity);
+    }
+  }
+
+  /** Add a row of data to the resultset.
+  *@param values are the values, in the order of the names passed to the constructor.
+  */
+  public void addRow(Object[] values)
+  {
+    if (rowCount == capacity)
+    {
+      capacity += capacity >> 1;
+      for (int i = 0; i < columns.length; i++)
+      {
+        columns[i].ensureCapacity(capacity);
+      }
+    }
+    for (int i = 0; i < values.length; i++)
+    {
+      columns[valueColumns[i]].setValue(rowCount,values[i]);
+    }
+    rowCount++;
+  }
+
+  /** Remove the last row that was added.
+  */
+  public void removeLastRow()
+  {
+    rowCount--;
+    for (int i = 0; i < columns.length; i++)
+    {
+      columns[i].setValue(rowCount,null);
+    }
+  }
+
+  /** Get a specific row in the resultset.
+  *@param rowNumber is the number of the row.
+  *@return the immutable row description, or null if there is no such row.
+  */
+  public IResultRow getRow(int rowNumber)
+  {
+    if (rowNumber < 0 || rowNumber >= rowCount)
+      return null;
+    return new ColumnarRow(rowNumber);
+  }
+
+  /** Get the number of rows in this resultset.
+  *@return the number of rows the resultset contains.
+  */
+  public int getRowCount()
+  {
+    return rowCount;
+  }
+
+  /** Get an array of all the rows.
+  * This method is NOT preferred because it requires a new
+  * array object to be constructed.
+  *@return the array.
+  */
+  public IResultRow[] getRows()
+  {
+    IResultRow[] rval = new IResultRow[rowCount];
+    for (int i = 0; i < rowCount; i++)
+    {
+      rval[i] = new ColumnarRow(i);
+    }
+    return rval;
+  }
+
+  /** A row, which reads its values out of the columns.
+  */
+  protected class ColumnarRow implements IResultRow
+  {
+    protected final int rowNumber;
+
+    public ColumnarRow(int rowNumber)
+    {
+      this.rowNumber = rowNumber;
+    }
+
+    /** Obtain the number of columns in the row.
+    *@return the number of columns that row contains.
+    */
+    public int getColumnCount()
+    {
+      return columnNames.length;
+    }
+
+    /** Obtain the set of columns for a row.
+    *@return an iterator that will list all the (String) column names stored in that row.
+    */
+    public Iterator<String> getColumns()
+    {
+      return Arrays.asList(columnNames).iterator();
+    }
+
+    /** Get the row value for a column.
+    *@param columnName is the name of the column.
+    *@return the value, or null if not present.
+    */
+    public Object getValue(String columnName)
+    {
+      Integer index = columnIndex.get(columnName);
+      if (index == null)
+        return null;
+      return columns[index.intValue()].getValue(rowNumber);
+    }
+  }
+
+  /** The values of one column.  Until the first non-null value arrives, nothing is stored.  A column
+  * whose values are all Long or all Double keeps them in a primitive array, with a bit set recording which
+  * rows are not null; a column with anything else in it keeps an object array.
+  */
+  protected static class Column
+  {
+    protected final static int TYPE_NONE = 0;
+    protected final static int TYPE_LONG = 1;
+    protected final static int TYPE_DOUBLE = 2;
+    protected final static int TYPE_OBJECT = 3;
+
+    /** Strings up to this length are shared within a column */
+    protected final static int MAX_SHARED_LENGTH = 8;
+    /** Stop sharing once a column has this many different short strings */
+    protected final static int MAX_SHARED_COUNT = 256;
+
+    protected int type = TYPE_NONE;
+    protected int capacity;
+    protected long[] longValues = null;
+    protected double[] doubleValues = null;
+    protected Object[] objectValues = null;
+    protected BitSet present = null;
+    protected Map<String,String> sharedStrings = null;
+
+    public Column(int capacity)
+    {
+      this.capacity = capacity;
+    }
+
+    public void ensureCapacity(int newCapacity)
+    {
+      capacity = newCapacity;
+      switch (type)
+      {
+      case TYPE_LONG:
+        long[] newLongValues = new long[capacity];
+        System.arraycopy(longValues,0,newLongValues,0,longValues.length);
+        longValues = newLongValues;
+        break;
+      case TYPE_DOUBLE:
+        double[] newDoubleValues = new double[capacity];
+        System.arraycopy(doubleValues,0,newDoubleValues,0,doubleValues.length);
+        doubleValues = newDoubleValues;
+        break;
+      case TYPE_OBJECT:
+        Object[] newObjectValues = new Object[capacity];
+        System.arraycopy(objectValues,0,newObjectValues,0,objectValues.length);
+        objectValues = newObjectValues;
+        break;
+      default:
+        break;
+      }
+    }
+
+    public void setValue(int rowNumber, Object value)
+    {
+      if (value == null)
+      {
+        if (type == TYPE_OBJECT)
+          objectValues[rowNumber] = null;
+        else if (type != TYPE_NONE)
+          present.clear(rowNumber);
+        return;
+      }
+
+      if (type == TYPE_NONE)
+      {
+        if (value instanceof Long)
+        {
+          type = TYPE_LONG;
+          longValues = new long[capacity];
+          present = new BitSet();
+        }
+        else if (value instanceof Double)
+        {
+          type = TYPE_DOUBLE;
+          doubleValues = new double[capacity];
+          present = new BitSet();
+        }
+        else
+        {
+          type = TYPE_OBJECT;
+          objectValues = new Object[capacity];
+          sharedStrings = new HashMap<String,String>();
+        }
+      }
+
+      if (type == TYPE_LONG && value instanceof Long)
+      {
+        longValues[rowNumber] = ((Long)value).longValue();
+        present.set(rowNumber);
+      }
+      else if (type == TYPE_DOUBLE && value instanceof Double)
+      {
+        doubleValues[rowNumber] = ((Double)value).doubleValue();
+        present.set(rowNumber);
+      }
+      else
+      {
+        if (type != TYPE_OBJECT)
+          convertToObject();
+        if (sharedStrings != null && value instanceof String && ((String)value).length() <= MAX_SHARED_LENGTH)
+          value = shareString((String)value);
+        objectValues[rowNumber] = value;
+      }
+    }
+
+    public Object getValue(int rowNumber)
+    {
+      switch (type)
+      {
+      case TYPE_LONG:
+        return present.get(rowNumber)?Long.valueOf(longValues[rowNumber]):null;
+      case TYPE_DOUBLE:
+        return present.get(rowNumber)?new Double(doubleValues[rowNumber]):null;
+      case TYPE_OBJECT:
+        return objectValues[rowNumber];
+      default:
+        return null;
+      }
+    }
+
+    /** A value of some other type arrived in a primitive column; go back to keeping objects.
+    */
+    protected void convertToObject()
+    {
+      objectValues = new Object[capacity];
+      for (int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i+1))
+      {
+        objectValues[i] = getValue(i);
+      }
+      type = TYPE_OBJECT;
+      longValues = null;
+      doubleValues = null;
+      present = null;
+      sharedStrings = new HashMap<String,String>();
+    }
+
+    protected String shareString(String value)
+    {
+      String rval = sharedStrings.get(value);
+      if (rval != null)
+        return rval;
+      if (sharedStrings.size() >= MAX_SHARED_COUNT)
+      {
+        // Too many different values for sharing to pay off
+        sharedStrings = null;
+        return value;
+      }
+      sharedStrings.put(value,value);
+      return value;
+    }
+  }
+
+}
@@ -230,6 +230,24 @@ public class DBInterfaceHSQLDB extends Database implements IDBInterface
   }
 
 
+  /** Perform an insert operation for a number of rows at once.  The rows need not all set the same columns.
+  * HSQLDB runs in-process, so rows are inserted one statement at a time, batched.
+  *@param tableName is the name of the table.
+  *@param parameterMaps is the list of rows, each a map of column name/values to write.
+  *@param invalidateKeys are the cache keys that should be
+  * invalidated.
+  */
+  public void performInsertMultiple(String tableName, List<Map<String,Object>> parameterMaps, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    List<InsertStatement> statements = buildInsertStatements(tableName,parameterMaps,false);
+    for (int i = 0; i < statements.size(); i++)
+    {
+      InsertStatement statement = statements.get(i);
+      performModificationMultiple(statement.getQuery(),statement.getParamsList(),invalidateKeys);
+    }
+  }
+
   /** Perform an update operation.
   *@param tableName is the name of the table.
   *@param invalidateKeys are the cache keys that should be invalidated.
@@ -754,6 +772,24 @@ public class DBInterfaceHSQLDB extends Database implements IDBInterface
     }
   }
 
+  /** Perform a general database modification query once for each of a number of parameter lists, as one batch.
+  *@param query is the query string.
+  *@param paramsList is the list of parameter lists, one for each execution.
+  *@param invalidateKeys are the cache keys to invalidate.
+  */
+  public void performModificationMultiple(String query, List<List> paramsList, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    try
+    {
+      executeBatch(query,paramsList,invalidateKeys);
+    }
+    catch (ManifoldCFException e)
+    {
+      throw reinterpretException(e);
+    }
+  }
+
   /** Get a table's schema.
   *@param tableName is the name of the table.
   *@param cacheKeys are the keys against which to cache the query, or null.
@@ -969,6 +1005,25 @@ public class DBInterfaceHSQLDB extends Database implements IDBInterface
     }
   }
 
+  /** Perform a general "data fetch" query, returning the rows through a cursor rather than all at once.
+  *@param query is the query string.
+  *@param params are the parameterized values, if needed.
+  *@param resultSpec is a result specification, or null for the standard treatment.
+  *@return a cursor, which the caller must close.
+  */
+  public IResultCursor performQueryCursor(String query, List params, ResultSpecification resultSpec)
+    throws ManifoldCFException
+  {
+    try
+    {
+      return executeQueryCursor(query,params,resultSpec);
+    }
+    catch (ManifoldCFException e)
+    {
+      throw reinterpretException(e);
+    }
+  }
+
   /** Construct a cast to a double value.
   * On most databases this cast needs to be explicit, but on some it is implicit (and cannot be in fact
   * specified).
@@ -991,6 +1046,30 @@ public class DBInterfaceHSQLDB extends Database implements IDBInterface
     return "CAST(COUNT("+column+") AS bigint)";
   }
 
+  /** Construct a sum clause for an integer column.
+  * Most databases sum a BIGINT column into a wider numeric type, so the sum is cast back to a BIGINT, in whatever
+  * way the database requires.
+  *@param column is the column string to be summed.
+  *@return the query chunk needed.
+  */
+  public String constructSumClause(String column)
+  {
+    return "CAST(SUM("+column+") AS bigint)";
+  }
+
+  /** Construct a hash conversion clause.
+  * This method builds an expression that converts a hash value between the 40-character hexadecimal form and
+  * the 27-character compact (unpadded base64) form.  Not all databases can do this.
+  *@param column is the column specifier string.
+  *@param toCompact is true to convert from hexadecimal to compact form, false to convert back.
+  *@return the expression chunk needed, not padded with spaces on either side.
+  */
+  public String constructHashConversionClause(String column, boolean toCompact)
+    throws ManifoldCFException
+  {
+    throw new ManifoldCFException("Hash conversion is not supported on this database");
+  }
+
   /** Construct a regular-expression match clause.
   * This method builds both the text part of a regular-expression match.
   *@param column is the column specifier string.
@@ -58,6 +58,12 @@ public abstract class Database
 
   protected final static String _TRANSACTION_ = "_TRANSACTION_";
 
+  /** The most parameters a multiple-row insert statement should have */
+  protected final static int MAX_INSERT_PARAMETERS = 1000;
+
+  /** The number of rows a cursor reads at a time */
+  protected final static int CURSOR_FETCH_SIZE = 500;
+
   public Database(IThreadContext context, String jdbcUrl, String jdbcDriverClass, String databaseName, String userName, String password)
     throws ManifoldCFException
   {
@@ -125,7 +131,31 @@ public abstract class Database
   {
     return rawLabelName;
   }
-  
+
+  /** Abstract method for reinterpreting an exception tossed by the database layer */
+  protected ManifoldCFException reinterpretException(ManifoldCFException theException)
+  {
+    return theException;
+  }
+
+  /** Get the JDBC fetch size to use for a cursor query, which is the number of rows the driver reads from
+  * the server at a time.
+  *@param ownConnection is true if the cursor has a connection to itself, or false if it shares the
+  * transaction's connection.
+  */
+  protected int getCursorFetchSize(boolean ownConnection)
+  {
+    return CURSOR_FETCH_SIZE;
+  }
+
+  /** Decide whether a cursor query must run with autocommit off for the driver to read rows
+  * incrementally.
+  */
+  protected boolean cursorNeedsTransaction()
+  {
+    return false;
+  }
+
   /** Execute arbitrary database query, and optionally cache the result.  Cached results are
   * returned for this operation if they are valid and appropriate.  Note that any cached results
   * returned were only guaranteed to be pertinent at the time the cached result was obtained; the
@@ -188,6 +218,98 @@ public abstract class Database
     return executor.getResult();
   }
 
+  /** Execute a modification statement once for each of a number of parameter lists, as a single JDBC batch.
+  * Nothing is cached.
+  * @param query is the statement to execute.
+  * @param paramsList is the list of parameter lists, one for each execution.
+  * @param invalidateKeys is the set of cache keys that the statement will invalidate, or null.  As for executeQuery(),
+  * within a transaction the invalidation only takes effect for others when the transaction is committed.
+  */
+  public void executeBatch(String query, List<List> paramsList, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    if (commitDone)
+      throw new ManifoldCFException("Commit already done");
+
+    if (Logging.db.isDebugEnabled())
+    {
+      Logging.db.debug("Requested batch of "+Integer.toString(paramsList.size())+": [" + query + "]");
+    }
+
+    if (paramsList.size() == 0)
+      return;
+
+    if (invalidateKeys == null)
+    {
+      synchronizeTransactions();
+      executeUncachedBatch(query,paramsList);
+      return;
+    }
+
+    ICacheHandle ch = cacheManager.enterCache(null,invalidateKeys,getTransactionID());
+    try
+    {
+      cacheManager.invalidateKeys(ch);
+      synchronizeTransactions();
+      executeUncachedBatch(query,paramsList);
+    }
+    finally
+    {
+      cacheManager.leaveCache(ch);
+    }
+  }
+
+  /** Execute a query, and return a cursor that reads the result rows as they are needed.  Nothing is cached.
+  * Within a transaction, the cursor uses the transaction's connection; otherwise it holds a connection of its own
+  * until it is closed.
+  * @param query is the actual query string.
+  * @param params if not null, are prepared statement parameters.
+  * @param spec is the result specification object, or null for standard.
+  * @return the cursor, which the caller must close.
+  */
+  public IResultCursor executeQueryCursor(String query, List params, ResultSpecification spec)
+    throws ManifoldCFException
+  {
+    if (commitDone)
+      throw new ManifoldCFException("Commit already done");
+
+    if (Logging.db.isDebugEnabled())
+    {
+      Logging.db.debug("Requested cursor query: [" + query + "]");
+    }
+
+    synchronizeTransactions();
+    QueryCursor cursor;
+    if (connection != null)
+      cursor = new QueryCursor(null,connection.getConnection(),query,params,spec);
+    else
+    {
+      WrappedConnection tempConnection = ConnectionFactory.getConnection(jdbcUrl,jdbcDriverClass,databaseName,userName,password);
+      try
+      {
+        initializeConnection(tempConnection.getConnection());
+      }
+      catch (ManifoldCFException e)
+      {
+        if (e.getErrorCode() != ManifoldCFException.INTERRUPTED)
+          ConnectionFactory.releaseConnection(tempConnection);
+        throw e;
+      }
+      cursor = new QueryCursor(tempConnection,tempConnection.getConnection(),query,params,spec);
+    }
+    try
+    {
+      cursor.open();
+    }
+    catch (ManifoldCFException e)
+    {
+      if (e.getErrorCode() != ManifoldCFException.INTERRUPTED)
+        cursor.close();
+      throw e;
+    }
+    return cursor;
+  }
+
   /** Get the current transaction type.  Returns "READCOMMITTED"
   * outside of a transaction.
   */
@@ -568,6 +690,141 @@ public abstract class Database
     return sb.toString();
   }
 
+  /** Turn a multiple-row insert into statements.  Rows are grouped by the columns they actually set (null values are left out,
+  * just as for a single-row insert), keeping the rows of each group in order.
+  *@param tableName is the table.
+  *@param parameterMaps are the rows.
+  *@param multipleRowValues is true if a statement may insert many rows with a multiple-row VALUES list.  If false, each
+  * statement inserts one row, and comes with one parameter list per row, to be executed as a batch.
+  *@return the statements.
+  */
+  protected static List<InsertStatement> buildInsertStatements(String tableName, List<Map<String,Object>> parameterMaps,
+    boolean multipleRowValues)
+  {
+    // Group the rows by column set
+    Map<String,List<Map<String,Object>>> groups = new LinkedHashMap<String,List<Map<String,Object>>>();
+    Map<String,List<String>> groupColumns = new HashMap<String,List<String>>();
+    for (int i = 0; i < parameterMaps.size(); i++)
+    {
+      Map<String,Object> parameterMap = parameterMaps.get(i);
+      List<String> columns = new ArrayList<String>();
+      Iterator<Map.Entry<String,Object>> it = parameterMap.entrySet().iterator();
+      while (it.hasNext())
+      {
+        Map.Entry<String,Object> e = it.next();
+        if (e.getValue() != null)
+          columns.add(e.getKey());
+      }
+      Collections.sort(columns);
+      String groupKey = columns.toString();
+      List<Map<String,Object>> group = groups.get(groupKey);
+      if (group == null)
+      {
+        group = new ArrayList<Map<String,Object>>();
+        groups.put(groupKey,group);
+        groupColumns.put(groupKey,columns);
+      }
+      group.add(parameterMap);
+    }
+
+    List<InsertStatement> rval = new ArrayList<InsertStatement>();
+    Iterator<String> groupIter = groups.keySet().iterator();
+    while (groupIter.hasNext())
+    {
+      String groupKey = groupIter.next();
+      List<Map<String,Object>> group = groups.get(groupKey);
+      List<String> columns = groupColumns.get(groupKey);
+
+      StringBuilder bf = new StringBuilder();
+      bf.append("INSERT INTO ").append(tableName).append(" (");
+      StringBuilder values = new StringBuilder("(");
+      for (int j = 0; j < columns.size(); j++)
+      {
+        if (j > 0)
+        {
+          bf.append(',');
+          values.append(',');
+        }
+        bf.append(columns.get(j));
+        values.append('?');
+      }
+      bf.append(") VALUES ");
+      values.append(')');
+      String rowValues = values.toString();
+
+      int rowsPerStatement = 1;
+      if (multipleRowValues && columns.size() > 0)
+        rowsPerStatement = Math.max(1,MAX_INSERT_PARAMETERS / columns.size());
+
+      if (rowsPerStatement == 1)
+      {
+        // One statement, executed once per row
+        List<List> paramsList = new ArrayList<List>();
+        for (int k = 0; k < group.size(); k++)
+        {
+          paramsList.add(rowParameters(group.get(k),columns));
+        }
+        rval.add(new InsertStatement(bf.toString()+rowValues,paramsList));
+      }
+      else
+      {
+        int k = 0;
+        while (k < group.size())
+        {
+          int end = Math.min(group.size(),k + rowsPerStatement);
+          StringBuilder query = new StringBuilder(bf);
+          List params = new ArrayList();
+          for (int m = k; m < end; m++)
+          {
+            if (m > k)
+              query.append(',');
+            query.append(rowValues);
+            params.addAll(rowParameters(group.get(m),columns));
+          }
+          List<List> paramsList = new ArrayList<List>();
+          paramsList.add(params);
+          rval.add(new InsertStatement(query.toString(),paramsList));
+          k = end;
+        }
+      }
+    }
+    return rval;
+  }
+
+  /** Get the parameters of a row, in column order */
+  protected static List rowParameters(Map<String,Object> parameterMap, List<String> columns)
+  {
+    List rval = new ArrayList();
+    for (int i = 0; i < columns.size(); i++)
+    {
+      rval.add(parameterMap.get(columns.get(i)));
+    }
+    return rval;
+  }
+
+  /** An insert statement, and the parameter lists it is to be executed with */
+  protected static class InsertStatement
+  {
+    protected final String query;
+    protected final List<List> paramsList;
+
+    public InsertStatement(String query, List<List> paramsList)
+    {
+      this.query = query;
+      this.paramsList = paramsList;
+    }
+
+    public String getQuery()
+    {
+      return query;
+    }
+
+    public List<List> getParamsList()
+    {
+      return paramsList;
+    }
+  }
+
   /** Class to keep track of modifications while we're in a transaction.
   */
   protected static class Modifications
@@ -603,11 +860,12 @@ public abstract class Database
     }
   }
   
-  /** Thread used to execute queries.  An instance of this thread is spun up every time a query is executed.  This is necessary because JDBC does not
-  * guarantee interruptability, and the Postgresql JDBC driver unfortunately eats all thread interrupts.  So, we fire up a thread to do each interaction with
-  * the database server, thus insuring that the owning thread remains interruptable and will therefore not block shutdown.
+  /** Task used to execute queries.  Every interaction with the database server is handed to a QueryExecutor worker thread.
+  * This is necessary because JDBC does not guarantee interruptability, and the Postgresql JDBC driver unfortunately eats all
+  * thread interrupts.  So, the actual work is done by a different thread, thus insuring that the owning thread remains
+  * interruptable and will therefore not block shutdown.
   */
-  protected class ExecuteQueryThread extends Thread
+  protected class ExecuteQueryTask extends QueryExecutor.Task
   {
     protected Connection connection;
     protected String query;
@@ -619,11 +877,10 @@ public abstract class Database
     protected Throwable exception = null;
     protected IResultSet rval = null;
 
-    public ExecuteQueryThread(Connection connection, String query, List params, boolean bResults, int maxResults,
+    public ExecuteQueryTask(Connection connection, String query, List params, boolean bResults, int maxResults,
       ResultSpecification spec, ILimitChecker returnLimit)
     {
-      super();
-      setDaemon(true);
+      super(classifyQuery(query));
       this.connection = connection;
       this.query = query;
       this.params = params;
@@ -633,7 +890,7 @@ public abstract class Database
       this.returnLimit = returnLimit;
     }
 
-    public void run()
+    protected void doWork()
     {
       try
       {
@@ -657,7 +914,62 @@ public abstract class Database
     }
   }
 
-  /** Do query execution via a subthread, so the primary thread can be interrupted */
+  /** Task used to execute a batch of modifications, for the same reasons as ExecuteQueryTask.
+  */
+  protected class ExecuteBatchTask extends QueryExecutor.Task
+  {
+    protected Connection connection;
+    protected String query;
+    protected List<List> paramsList;
+    protected Throwable exception = null;
+
+    public ExecuteBatchTask(Connection connection, String query, List<List> paramsList)
+    {
+      super(classifyQuery(query));
+      this.connection = connection;
+      this.query = query;
+      this.paramsList = paramsList;
+    }
+
+    protected void doWork()
+    {
+      try
+      {
+        executeBatchStatement(connection,query,paramsList);
+      }
+      catch (Throwable e)
+      {
+        this.exception = e;
+      }
+    }
+
+    public Throwable getException()
+    {
+      return exception;
+    }
+  }
+
+  /** Figure out the class a query should be counted under for executor statistics.
+  * This is the leading SQL keyword, e.g. SELECT or UPDATE.
+  */
+  protected static String classifyQuery(String query)
+  {
+    int start = 0;
+    while (start < query.length() && Character.isWhitespace(query.charAt(start)))
+    {
+      start++;
+    }
+    int end = start;
+    while (end < query.length() && Character.isLetter(query.charAt(end)))
+    {
+      end++;
+    }
+    if (end == start)
+      return "OTHER";
+    return query.substring(start,end).toUpperCase();
+  }
+
+  /** Do query execution via a worker thread, so the primary thread can be interrupted */
   protected IResultSet executeViaThread(Connection connection, String query, List params, boolean bResults, int maxResults,
     ResultSpecification spec, ILimitChecker returnLimit)
     throws ManifoldCFException
@@ -666,11 +978,10 @@ public abstract class Database
       // This probably means that the thread was interrupted and the connection was abandoned.  Just return null.
       return null;
 
-    ExecuteQueryThread t = new ExecuteQueryThread(connection,query,params,bResults,maxResults,spec,returnLimit);
+    ExecuteQueryTask t = new ExecuteQueryTask(connection,query,params,bResults,maxResults,spec,returnLimit);
     try
     {
-      t.start();
-      t.join();
+      QueryExecutor.getExecutor().execute(t);
       Throwable thr = t.getException();
       if (thr != null)
       {
@@ -687,13 +998,87 @@ public abstract class Database
     }
     catch (InterruptedException e)
     {
-      t.interrupt();
+      // The executor has already abandoned the task.
       // We need the caller to abandon any connections left around, so rethrow in a way that forces them to process the event properly.
       throw new ManifoldCFException(e.getMessage(),e,ManifoldCFException.INTERRUPTED);
     }
 
   }
 
+  /** Do batch execution via a worker thread, so the primary thread can be interrupted */
+  protected void executeBatchViaThread(Connection connection, String query, List<List> paramsList)
+    throws ManifoldCFException
+  {
+    if (connection == null)
+      // This probably means that the thread was interrupted and the connection was abandoned.
+      return;
+
+    ExecuteBatchTask t = new ExecuteBatchTask(connection,query,paramsList);
+    try
+    {
+      QueryExecutor.getExecutor().execute(t);
+      Throwable thr = t.getException();
+      if (thr != null)
+      {
+        if (thr instanceof ManifoldCFException)
+        {
+          // Nest the exceptions so there is a hope we actually see the context, while preserving the kind of error it is
+          ManifoldCFException me = (ManifoldCFException)thr;
+          throw new ManifoldCFException("Database exception: "+me.getMessage(),me.getCause(),me.getErrorCode());
+        }
+        else
+          throw (Error)thr;
+      }
+    }
+    catch (InterruptedException e)
+    {
+      // The executor has already abandoned the task.
+      throw new ManifoldCFException(e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+    }
+  }
+
+  /** Execute a batch, using the transaction's connection if there is one.
+  */
+  protected void executeUncachedBatch(String query, List<List> paramsList)
+    throws ManifoldCFException
+  {
+    if (connection != null)
+    {
+      try
+      {
+        executeBatchViaThread(connection.getConnection(),query,paramsList);
+      }
+      catch (ManifoldCFException e)
+      {
+        if (e.getErrorCode() == ManifoldCFException.INTERRUPTED)
+          // drop the connection object on the floor, so it cannot possibly be reused
+          connection = null;
+        throw e;
+      }
+    }
+    else
+    {
+      WrappedConnection tempConnection = ConnectionFactory.getConnection(jdbcUrl,jdbcDriverClass,databaseName,userName,password);
+      try
+      {
+        initializeConnection(tempConnection.getConnection());
+        executeBatchViaThread(tempConnection.getConnection(),query,paramsList);
+      }
+      catch (ManifoldCFException e)
+      {
+        if (e.getErrorCode() == ManifoldCFException.INTERRUPTED)
+          // drop the connection object on the floor, so it cannot possibly be reused
+          tempConnection = null;
+        throw e;
+      }
+      finally
+      {
+        if (tempConnection != null)
+          ConnectionFactory.releaseConnection(tempConnection);
+      }
+    }
+  }
+
   /** This method does NOT appear in any interface; it is here to
   * service the cache object.
   */
@@ -742,6 +1127,335 @@ public abstract class Database
   }
 
 
+  /** Task used to work a cursor, for the same reasons as ExecuteQueryTask.
+  */
+  protected class CursorTask extends QueryExecutor.Task
+  {
+    protected QueryCursor cursor;
+    protected int action;
+    protected Throwable exception = null;
+
+    public CursorTask(QueryCursor cursor, int action)
+    {
+      super(classifyQuery(cursor.query));
+      this.cursor = cursor;
+      this.action = action;
+    }
+
+    protected void doWork()
+    {
+      try
+      {
+        switch (action)
+        {
+        case QueryCursor.ACTION_OPEN:
+          cursor.doOpen();
+          break;
+        case QueryCursor.ACTION_FETCH:
+          cursor.doFetch();
+          break;
+        case QueryCursor.ACTION_CLOSE:
+          cursor.doClose();
+          break;
+        default:
+          throw new ManifoldCFException("Unknown cursor action: "+Integer.toString(action));
+        }
+      }
+      catch (Throwable e)
+      {
+        this.exception = e;
+      }
+    }
+
+    public Throwable getException()
+    {
+      return exception;
+    }
+  }
+
+  /** A cursor over the result of a query.  The statement and its resultset stay open between calls, and
+  * are only ever touched by QueryExecutor workers.  Rows are read and handed to the caller a chunk at a time.
+  */
+  protected class QueryCursor implements IResultCursor
+  {
+    protected final static int ACTION_OPEN = 0;
+    protected final static int ACTION_FETCH = 1;
+    protected final static int ACTION_CLOSE = 2;
+
+    /** The connection this cursor holds, or null if it uses the transaction's connection */
+    protected WrappedConnection ownConnection;
+    /** The JDBC connection, or null if it has been abandoned */
+    protected Connection jdbcConnection;
+    protected final String query;
+    protected final List params;
+    protected final ResultSpecification spec;
+
+    protected boolean autoCommitChanged = false;
+    protected Statement statement = null;
+    protected ResultSet rs = null;
+    protected ResultSetMetaData rsmd = null;
+    protected String[] resultCols = null;
+    protected String[] resultLabels = null;
+
+    /** The current chunk of rows */
+    protected final List<IResultRow> rows = new ArrayList<IResultRow>();
+    /** The next row in the chunk to hand out */
+    protected int rowIndex = 0;
+    protected boolean endReached = false;
+    protected boolean closed = false;
+
+    public QueryCursor(WrappedConnection ownConnection, Connection jdbcConnection, String query, List params,
+      ResultSpecification spec)
+    {
+      this.ownConnection = ownConnection;
+      this.jdbcConnection = jdbcConnection;
+      this.query = query;
+      this.params = params;
+      this.spec = spec;
+    }
+
+    /** Execute the query.
+    */
+    protected void open()
+      throws ManifoldCFException
+    {
+      runTask(ACTION_OPEN);
+    }
+
+    /** See if there is another row.
+    */
+    public boolean hasNext()
+      throws ManifoldCFException
+    {
+      while (rowIndex >= rows.size())
+      {
+        if (endReached || closed)
+          return false;
+        rows.clear();
+        rowIndex = 0;
+        runTask(ACTION_FETCH);
+      }
+      return true;
+    }
+
+    /** Get the next row, or null if there are no more.
+    */
+    public IResultRow next()
+      throws ManifoldCFException
+    {
+      if (!hasNext())
+        return null;
+      IResultRow rval = rows.get(rowIndex);
+      // Don't hold on to rows the caller has already seen
+      rows.set(rowIndex++,null);
+      return rval;
+    }
+
+    /** Close the cursor.
+    */
+    public void close()
+      throws ManifoldCFException
+    {
+      if (closed)
+        return;
+      closed = true;
+      // As a courtesy, clean up any BinaryInput objects in rows the caller never saw
+      while (rowIndex < rows.size())
+      {
+        IResultRow row = rows.get(rowIndex++);
+        Iterator iter = row.getColumns();
+        while (iter.hasNext())
+        {
+          Object o = row.getValue((String)iter.next());
+          if (o instanceof BinaryInput)
+            ((BinaryInput)o).discard();
+          else if (o instanceof CharacterInput)
+            ((CharacterInput)o).discard();
+        }
+      }
+      rows.clear();
+      try
+      {
+        runTask(ACTION_CLOSE);
+      }
+      finally
+      {
+        if (ownConnection != null)
+        {
+          ConnectionFactory.releaseConnection(ownConnection);
+          ownConnection = null;
+        }
+      }
+    }
+
+    /** Hand an action to a worker, and wait for it.
+    */
+    protected void runTask(int action)
+      throws ManifoldCFException
+    {
+      if (jdbcConnection == null)
+        // The connection was abandoned after an interruption; there is nothing more we can do with it
+        return;
+
+      CursorTask t = new CursorTask(this,action);
+      try
+      {
+        QueryExecutor.getExecutor().execute(t);
+      }
+      catch (InterruptedException e)
+      {
+        // The executor has already abandoned the task.  Drop the connection on the floor, so it cannot
+        // possibly be reused.
+        if (ownConnection == null)
+          connection = null;
+        ownConnection = null;
+        jdbcConnection = null;
+        closed = true;
+        throw new ManifoldCFException(e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+      }
+      Throwable thr = t.getException();
+      if (thr != null)
+      {
+        if (thr instanceof ManifoldCFException)
+        {
+          // Nest the exceptions so there is a hope we actually see the context, while preserving the kind of error it is
+          ManifoldCFException me = (ManifoldCFException)thr;
+          throw reinterpretException(new ManifoldCFException("Database exception: "+me.getMessage(),me.getCause(),me.getErrorCode()));
+        }
+        else
+          throw (Error)thr;
+      }
+    }
+
+    /** Execute the query.  Called only by a worker.
+    */
+    protected void doOpen()
+      throws ManifoldCFException
+    {
+      try
+      {
+        try
+        {
+          if (Logging.db.isDebugEnabled())
+            Logging.db.debug("Actual cursor query: [" + query + "]");
+
+          if (ownConnection != null && cursorNeedsTransaction() && jdbcConnection.getAutoCommit())
+          {
+            jdbcConnection.setAutoCommit(false);
+            autoCommitChanged = true;
+          }
+          int fetchSize = getCursorFetchSize(ownConnection != null);
+          if (params == null)
+          {
+            statement = jdbcConnection.createStatement();
+            statement.setFetchSize(fetchSize);
+            rs = statement.executeQuery(query);
+          }
+          else
+          {
+            PreparedStatement ps = jdbcConnection.prepareStatement(query);
+            statement = ps;
+            ps.setFetchSize(fetchSize);
+            loadPS(ps,params);
+            rs = ps.executeQuery();
+          }
+
+          rsmd = rs.getMetaData();
+          int colcount = (rsmd == null)?0:rsmd.getColumnCount();
+          if (colcount == 0)
+            throw new ManifoldCFException("Empty query, no columns returned",ManifoldCFException.GENERAL_ERROR);
+          resultCols = new String[colcount];
+          resultLabels = new String[colcount];
+          for (int i = 0; i < colcount; i++)
+          {
+            String labelName = rsmd.getColumnLabel(i+1);
+            resultCols[i] = mapLookupName(rsmd.getColumnName(i+1),labelName);
+            resultLabels[i] = mapLabelName(labelName);
+          }
+        }
+        finally
+        {
+          // We are done with any input streams
+          if (params != null)
+            cleanupParameters(params);
+        }
+      }
+      catch (java.sql.SQLException e)
+      {
+        throw new ManifoldCFException("Exception doing query: "+e.getMessage(),e,ManifoldCFException.DATABASE_CONNECTION_ERROR);
+      }
+    }
+
+    /** Read the next chunk of rows.  Called only by a worker.
+    */
+    protected void doFetch()
+      throws ManifoldCFException
+    {
+      try
+      {
+        while (rows.size() < CURSOR_FETCH_SIZE)
+        {
+          if (!rs.next())
+          {
+            endReached = true;
+            break;
+          }
+          rows.add(readRow(rs,rsmd,resultCols,resultLabels,spec));
+        }
+      }
+      catch (java.sql.SQLException e)
+      {
+        throw new ManifoldCFException("Resultset error: "+e.getMessage(),e,ManifoldCFException.DATABASE_CONNECTION_ERROR);
+      }
+    }
+
+    /** Close the resultset and statement, and put the connection back the way it was.  Called only by a worker.
+    */
+    protected void doClose()
+      throws ManifoldCFException
+    {
+      java.sql.SQLException firstException = null;
+      try
+      {
+        if (rs != null)
+          rs.close();
+      }
+      catch (java.sql.SQLException e)
+      {
+        firstException = e;
+      }
+      rs = null;
+      try
+      {
+        if (statement != null)
+          statement.close();
+      }
+      catch (java.sql.SQLException e)
+      {
+        if (firstException == null)
+          firstException = e;
+      }
+      statement = null;
+      if (autoCommitChanged)
+      {
+        autoCommitChanged = false;
+        try
+        {
+          // Nothing was changed, so there is nothing to commit
+          jdbcConnection.rollback();
+          jdbcConnection.setAutoCommit(true);
+        }
+        catch (java.sql.SQLException e)
+        {
+          if (firstException == null)
+            firstException = e;
+        }
+      }
+      if (firstException != null)
+        throw new ManifoldCFException("Exception closing cursor: "+firstException.getMessage(),firstException,ManifoldCFException.DATABASE_CONNECTION_ERROR);
+    }
+  }
+
   // These are protected helper methods
 
   /** Initialize the connection (for HSQLDB).
@@ -865,11 +1579,58 @@ public abstract class Database
     return rval;
   }
 
+  /** Run a modification statement for each of a number of parameter lists, using JDBC batching.
+  */
+  protected void executeBatchStatement(Connection connection, String query, List<List> paramsList)
+    throws ManifoldCFException
+  {
+    try
+    {
+      long queryStartTime = 0L;
+      if (Logging.db.isDebugEnabled())
+      {
+        queryStartTime = System.currentTimeMillis();
+        Logging.db.debug("Actual batch of "+Integer.toString(paramsList.size())+": [" + query + "]");
+      }
+      PreparedStatement ps = connection.prepareStatement(query);
+      try
+      {
+        for (int i = 0; i < paramsList.size(); i++)
+        {
+          loadPS(ps,paramsList.get(i));
+          ps.addBatch();
+        }
+        ps.executeBatch();
+      }
+      finally
+      {
+        ps.close();
+      }
+      if (Logging.db.isDebugEnabled())
+        Logging.db.debug("Done actual batch ("+new Long(System.currentTimeMillis()-queryStartTime).toString()+"ms): ["+query+"]");
+    }
+    catch (java.sql.SQLException e)
+    {
+      // A batch failure usually hides the real cause in the next exception
+      java.sql.SQLException cause = e.getNextException();
+      if (cause == null)
+        cause = e;
+      throw new ManifoldCFException("Exception doing batch: "+cause.getMessage(),cause,ManifoldCFException.DATABASE_CONNECTION_ERROR);
+    }
+    finally
+    {
+      for (int i = 0; i < paramsList.size(); i++)
+      {
+        cleanupParameters(paramsList.get(i));
+      }
+    }
+  }
+
   // Read data from a resultset
   protected IResultSet getData(ResultSet rs, boolean bResults, int maxResults, ResultSpecification spec, ILimitChecker returnLimit)
     throws ManifoldCFException
   {
-    RSet results = new RSet();  // might be empty but not an error
+    IResultSet results = new RSet();  // might be empty but not an error
     try
     {
       try
@@ -909,47 +1670,33 @@ public abstract class Database
               throw new ManifoldCFException("Empty query, no columns returned",ManifoldCFException.GENERAL_ERROR);
             }
 
+            // Rows are stored by column, which for large results takes much less memory than a map per row
+            ColumnarResultSet columnarResults = new ColumnarResultSet(resultLabels);
+            results = columnarResults;
             while (rs.next() && (maxResults == -1 || maxResults > 0) && (returnLimit == null || returnLimit.checkContinue()))
             {
-              Object value;
-              RRow m = new RRow();
-
-              // We have 'colcount' cols to look thru
-              for (int i = 0; i < colcount; i++)
-              {
-                String key = resultCols[i];
-                // System.out.println("Key = "+key);
-                int colnum = findColumn(rs,key);
-                value = null;
-                if (colnum > -1)
-                {
-                  value = getObject(rs,rsmd,colnum,(spec == null)?ResultSpecification.FORM_DEFAULT:spec.getForm(key.toLowerCase()));
-                }
-                //System.out.println(" Key = '"+resultLabels[i]+"', value = "+((value==null)?"NULL":value.toString()));
-                m.put(resultLabels[i], value);
-              }
+              Object[] values = readValues(rs,rsmd,resultCols,spec);
+              columnarResults.addRow(values);
 
               // See if we should include this row
               boolean include = true;
               if (returnLimit != null)
               {
-                include = returnLimit.checkInclude(m);
+                include = returnLimit.checkInclude(columnarResults.getRow(columnarResults.getRowCount()-1));
               }
 
               if (include)
               {
                 if (maxResults != -1)
                   maxResults--;
-                results.addRow(m);
               }
               else
               {
+                columnarResults.removeLastRow();
                 // As a courtesy, clean up any BinaryInput objects in the row we are skipping
-                Iterator iter = m.getColumns();
-                while (iter.hasNext())
+                for (int i = 0; i < values.length; i++)
                 {
-                  String columnName = (String)iter.next();
-                  Object colValue = m.getValue(columnName);
+                  Object colValue = values[i];
                   if (colValue instanceof BinaryInput)
                     ((BinaryInput)colValue).discard();
                   else if (colValue instanceof CharacterInput)
@@ -995,6 +1742,46 @@ public abstract class Database
     return results;
   }
 
+  /** Read the current row of a resultset.
+  *@param resultCols are the lookup names of the columns.
+  *@param resultLabels are the names the columns should have in the row.
+  */
+  protected RRow readRow(ResultSet rs, ResultSetMetaData rsmd, String[] resultCols, String[] resultLabels, ResultSpecification spec)
+    throws ManifoldCFException
+  {
+    Object[] values = readValues(rs,rsmd,resultCols,spec);
+    RRow m = new RRow();
+    for (int i = 0; i < values.length; i++)
+    {
+      m.put(resultLabels[i], values[i]);
+    }
+    return m;
+  }
+
+  /** Read the values of the current row of a resultset.
+  *@param resultCols are the lookup names of the columns.
+  *@return the values, in the same order as the columns.
+  */
+  protected Object[] readValues(ResultSet rs, ResultSetMetaData rsmd, String[] resultCols, ResultSpecification spec)
+    throws ManifoldCFException
+  {
+    Object[] values = new Object[resultCols.length];
+
+    // We have 'colcount' cols to look thru
+    for (int i = 0; i < resultCols.length; i++)
+    {
+      String key = resultCols[i];
+      int colnum = findColumn(rs,key);
+      Object value = null;
+      if (colnum > -1)
+      {
+        value = getObject(rs,rsmd,colnum,(spec == null)?ResultSpecification.FORM_DEFAULT:spec.getForm(key.toLowerCase()));
+      }
+      values[i] = value;
+    }
+    return values;
+  }
+
   // pass params to preparedStatement
   protected static void loadPS(PreparedStatement ps, List data)
     throws java.sql.SQLException, ManifoldCFException
@@ -0,0 +1,457 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.database;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.system.Logging;
+import org.apache.manifoldcf.core.system.ManifoldCF;
+
+import java.util.*;
+
+/** This class runs database interactions on a bounded set of reusable worker threads.
+* JDBC does not guarantee interruptability, and some drivers eat thread interrupts, so the thread that
+* wants a query done must never make the JDBC call itself.  Rather than starting a new thread for every
+* query, tasks are handed to an idle worker here, and the caller waits for the result in an interruptable way.
+* If the caller is interrupted, its task is abandoned: a task that has not started yet is simply dropped,
+* while the worker running a task that has started is interrupted and retired, so that it cannot tie up the pool.
+* Workers that stay idle for a while exit on their own.
+*
+* Wait time (time spent queued) and execution time are accumulated per query class, where the class is the
+* leading SQL keyword of the query.  A summary is written periodically to the perf log at debug level, and
+* is also available from getStatistics().
+*/
+public class QueryExecutor
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The default maximum number of worker threads, matching the default database handle count */
+  protected final static int DEFAULT_MAX_WORKERS = 50;
+  /** How long an idle worker waits for a new task before exiting, in milliseconds */
+  protected final static long IDLE_TIMEOUT = 60000L;
+  /** Minimum interval between statistics reports, in milliseconds */
+  protected final static long REPORT_INTERVAL = 60000L;
+
+  // Task states
+  protected final static int STATE_QUEUED = 0;
+  protected final static int STATE_RUNNING = 1;
+  protected final static int STATE_DONE = 2;
+  protected final static int STATE_ABANDONED = 3;
+
+  /** The executor instance for this JVM */
+  protected static QueryExecutor executor = null;
+
+  /** The maximum number of live (non-retired) workers */
+  protected final int maxWorkers;
+  /** Tasks waiting for a worker */
+  protected final LinkedList<Task> queue = new LinkedList<Task>();
+  /** Number of live workers */
+  protected int workerCount = 0;
+  /** Number of live workers waiting for a task */
+  protected int idleCount = 0;
+  /** Statistics, keyed by query class */
+  protected final Map<String,QueryClassStatistics> statistics = new HashMap<String,QueryClassStatistics>();
+  /** The time the statistics were last reported */
+  protected long lastReportTime = System.currentTimeMillis();
+
+  /** Constructor.
+  *@param maxWorkers is the maximum number of worker threads.
+  */
+  public QueryExecutor(int maxWorkers)
+  {
+    if (maxWorkers < 1)
+      maxWorkers = 1;
+    this.maxWorkers = maxWorkers;
+  }
+
+  /** Get the query executor for this JVM.  The number of workers is bounded by the
+  * org.apache.manifoldcf.database.maxqueryexecutors property, which defaults to the database handle count.
+  * A smaller value is raised to the handle count: every thread that holds a handle may be waiting on a query,
+  * and with fewer workers than handles, handles would sit idle while their queries queue.
+  */
+  public static synchronized QueryExecutor getExecutor()
+    throws ManifoldCFException
+  {
+    if (executor == null)
+    {
+      int maxHandles = ManifoldCF.getIntProperty(ManifoldCF.databaseHandleMaxcountProperty,DEFAULT_MAX_WORKERS);
+      int maxWorkers = ManifoldCF.getIntProperty(ManifoldCF.databaseQueryExecutorMaxcountProperty,maxHandles);
+      if (maxWorkers < maxHandles)
+      {
+        Logging.db.warn("Property "+ManifoldCF.databaseQueryExecutorMaxcountProperty+" ("+Integer.toString(maxWorkers)+
+          ") is less than "+ManifoldCF.databaseHandleMaxcountProperty+" ("+Integer.toString(maxHandles)+"); using "+
+          Integer.toString(maxHandles)+" query executors");
+        maxWorkers = maxHandles;
+      }
+      executor = new QueryExecutor(maxWorkers);
+    }
+    return executor;
+  }
+
+  /** Get a snapshot of the statistics gathered by the executor for this JVM.
+  *@return a map from query class to statistics.  The map is empty if no queries have run yet.
+  */
+  public static Map<String,QueryClassStatistics> getStatistics()
+  {
+    QueryExecutor qe;
+    synchronized (QueryExecutor.class)
+    {
+      qe = executor;
+    }
+    Map<String,QueryClassStatistics> rval = new HashMap<String,QueryClassStatistics>();
+    if (qe != null)
+    {
+      synchronized (qe)
+      {
+        Iterator<String> iter = qe.statistics.keySet().iterator();
+        while (iter.hasNext())
+        {
+          String queryClass = iter.next();
+          rval.put(queryClass,qe.statistics.get(queryClass).duplicate());
+        }
+      }
+    }
+    return rval;
+  }
+
+  /** Run a task, and wait for it to complete.
+  *@param task is the task to run.
+  */
+  public void execute(Task task)
+    throws InterruptedException
+  {
+    synchronized (this)
+    {
+      task.queueTime = System.currentTimeMillis();
+      queue.addLast(task);
+      if (queue.size() <= idleCount)
+        notify();
+      else if (workerCount < maxWorkers)
+        startWorker();
+    }
+
+    try
+    {
+      task.waitForCompletion();
+    }
+    catch (InterruptedException e)
+    {
+      abandon(task);
+      throw e;
+    }
+  }
+
+  /** Abandon a task whose caller was interrupted.
+  */
+  protected synchronized void abandon(Task task)
+  {
+    if (task.state == STATE_QUEUED)
+    {
+      queue.remove(task);
+      task.state = STATE_ABANDONED;
+    }
+    else if (task.state == STATE_RUNNING)
+    {
+      // The worker may be stuck in the driver indefinitely, so take it out of the pool
+      // and replace it if there is work that needs doing.
+      Worker worker = task.worker;
+      task.state = STATE_ABANDONED;
+      worker.retired = true;
+      workerCount--;
+      worker.interrupt();
+      if (queue.size() > idleCount && workerCount < maxWorkers)
+        startWorker();
+    }
+  }
+
+  /** Start a new worker.  Call only while synchronized on this object.
+  */
+  protected void startWorker()
+  {
+    Worker worker = new Worker();
+    workerCount++;
+    worker.start();
+  }
+
+  /** Get the next task for a worker, waiting if necessary.
+  *@return the task, or null if the worker has been idle long enough that it should exit.
+  */
+  protected synchronized Task nextTask(Worker worker)
+    throws InterruptedException
+  {
+    if (queue.size() == 0)
+    {
+      long waitUntil = System.currentTimeMillis() + IDLE_TIMEOUT;
+      idleCount++;
+      try
+      {
+        while (queue.size() == 0)
+        {
+          long waitTime = waitUntil - System.currentTimeMillis();
+          if (waitTime <= 0L)
+          {
+            workerCount--;
+            return null;
+          }
+          wait(waitTime);
+        }
+      }
+      finally
+      {
+        idleCount--;
+      }
+    }
+    Task task = queue.removeFirst();
+    task.state = STATE_RUNNING;
+    task.worker = worker;
+    task.startTime = System.currentTimeMillis();
+    return task;
+  }
+
+  /** Note that a worker has finished a task.
+  *@return true if the worker should keep going, false if it has been retired.
+  */
+  protected boolean taskDone(Worker worker, Task task)
+  {
+    long endTime = System.currentTimeMillis();
+    synchronized (this)
+    {
+      if (task.state == STATE_RUNNING)
+        task.state = STATE_DONE;
+      task.worker = null;
+      recordStatistics(task.getQueryClass(),task.startTime - task.queueTime,endTime - task.startTime);
+      if (Logging.perf.isDebugEnabled() && endTime - lastReportTime >= REPORT_INTERVAL)
+      {
+        lastReportTime = endTime;
+        reportStatistics();
+      }
+    }
+    task.signalCompletion();
+    return !worker.retired;
+  }
+
+  /** Accumulate statistics for a task.  Call only while synchronized on this object.
+  */
+  protected void recordStatistics(String queryClass, long waitTime, long executeTime)
+  {
+    QueryClassStatistics stats = statistics.get(queryClass);
+    if (stats == null)
+    {
+      stats = new QueryClassStatistics(queryClass);
+      statistics.put(queryClass,stats);
+    }
+    stats.record(waitTime,executeTime);
+  }
+
+  /** Log the current statistics.  Call only while synchronized on this object.
+  */
+  protected void reportStatistics()
+  {
+    Logging.perf.debug("Database query executor: "+Integer.toString(workerCount)+" workers ("+
+      Integer.toString(idleCount)+" idle), "+Integer.toString(queue.size())+" queued");
+    String[] queryClasses = statistics.keySet().toArray(new String[0]);
+    Arrays.sort(queryClasses);
+    for (String queryClass : queryClasses)
+    {
+      Logging.perf.debug("  "+statistics.get(queryClass).toString());
+    }
+  }
+
+  /** A unit of work for the executor.  Implementations override doWork(), and must not throw anything out of it.
+  */
+  public static abstract class Task
+  {
+    protected final String queryClass;
+    // These are all protected by the executor's monitor
+    protected int state = STATE_QUEUED;
+    protected Worker worker = null;
+    protected long queueTime = 0L;
+    protected long startTime = 0L;
+    // This is protected by the task's own monitor
+    protected boolean completed = false;
+
+    /** Constructor.
+    *@param queryClass is the class the task should be counted under in the statistics.
+    */
+    public Task(String queryClass)
+    {
+      this.queryClass = queryClass;
+    }
+
+    /** Get the query class of this task */
+    public String getQueryClass()
+    {
+      return queryClass;
+    }
+
+    /** Do the work. */
+    protected abstract void doWork();
+
+    protected synchronized void waitForCompletion()
+      throws InterruptedException
+    {
+      while (!completed)
+      {
+        wait();
+      }
+    }
+
+    protected synchronized void signalCompletion()
+    {
+      completed = true;
+      notifyAll();
+    }
+  }
+
+  /** Worker thread */
+  protected class Worker extends Thread
+  {
+    /** Set when the worker's task was abandoned; protected by the executor's monitor */
+    protected boolean retired = false;
+
+    public Worker()
+    {
+      super();
+      setDaemon(true);
+      setName("Database query executor");
+    }
+
+    public void run()
+    {
+      try
+      {
+        while (true)
+        {
+          Task task = nextTask(this);
+          if (task == null)
+            return;
+          try
+          {
+            task.doWork();
+          }
+          finally
+          {
+            if (!taskDone(this,task))
+              return;
+          }
+          // Clear any interrupt that was meant for a previous task
+          Thread.interrupted();
+        }
+      }
+      catch (InterruptedException e)
+      {
+        // Only a retired worker should be interrupted, and it has already been removed from the pool.
+      }
+      catch (Throwable e)
+      {
+        // Don't leave the pool short a worker
+        synchronized (QueryExecutor.this)
+        {
+          if (!retired)
+          {
+            retired = true;
+            workerCount--;
+          }
+        }
+        Logging.db.error("Database query executor worker exiting due to exception: "+e.getMessage(),e);
+      }
+    }
+  }
+
+  /** Accumulated statistics for one class of query.
+  */
+  public static class QueryClassStatistics
+  {
+    protected final String queryClass;
+    protected long queryCount = 0L;
+    protected long totalWaitTime = 0L;
+    protected long maxWaitTime = 0L;
+    protected long totalExecuteTime = 0L;
+    protected long maxExecuteTime = 0L;
+
+    public QueryClassStatistics(String queryClass)
+    {
+      this.queryClass = queryClass;
+    }
+
+    protected void record(long waitTime, long executeTime)
+    {
+      queryCount++;
+      totalWaitTime += waitTime;
+      if (waitTime > maxWaitTime)
+        maxWaitTime = waitTime;
+      totalExecuteTime += executeTime;
+      if (executeTime > maxExecuteTime)
+        maxExecuteTime = executeTime;
+    }
+
+    protected QueryClassStatistics duplicate()
+    {
+      QueryClassStatistics rval = new QueryClassStatistics(queryClass);
+      rval.queryCount = queryCount;
+      rval.totalWaitTime = totalWaitTime;
+      rval.maxWaitTime = maxWaitTime;
+      rval.totalExecuteTime = totalExecuteTime;
+      rval.maxExecuteTime = maxExecuteTime;
+      return rval;
+    }
+
+    public String getQueryClass()
+    {
+      return queryClass;
+    }
+
+    /** Number of tasks completed */
+    public long getQueryCount()
+    {
+      return queryCount;
+    }
+
+    /** Total time tasks spent waiting for a worker, in milliseconds */
+    public long getTotalWaitTime()
+    {
+      return totalWaitTime;
+    }
+
+    /** Longest time a task spent waiting for a worker, in milliseconds */
+    public long getMaxWaitTime()
+    {
+      return maxWaitTime;
+    }
+
+    /** Total time spent executing tasks, in milliseconds */
+    public long getTotalExecuteTime()
+    {
+      return totalExecuteTime;
+    }
+
+    /** Longest time spent executing a single task, in milliseconds */
+    public long getMaxExecuteTime()
+    {
+      return maxExecuteTime;
+    }
+
+    public String toString()
+    {
+      return queryClass+": "+Long.toString(queryCount)+" queries; wait total "+Long.toString(totalWaitTime)+
+        " ms, max "+Long.toString(maxWaitTime)+" ms; execution total "+Long.toString(totalExecuteTime)+
+        " ms, max "+Long.toString(maxExecuteTime)+" ms";
+    }
+  }
+
+}
@@ -76,6 +76,15 @@ public interface IDBInterface
   public void performInsert(String tableName, Map<String,Object> parameterMap, StringSet invalidateKeys)
     throws ManifoldCFException;
 
+  /** Perform an insert operation for a number of rows at once.  The rows need not all set the same columns.
+  *@param tableName is the name of the table.
+  *@param parameterMaps is the list of rows, each a map of column name/values to write.
+  *@param invalidateKeys are the cache keys that should be
+  * invalidated.
+  */
+  public void performInsertMultiple(String tableName, List<Map<String,Object>> parameterMaps, StringSet invalidateKeys)
+    throws ManifoldCFException;
+
   /** Perform an update operation.
   *@param tableName is the name of the table.
   *@param invalidateKeys are the cache keys that should be invalidated.
@@ -214,6 +223,14 @@ public interface IDBInterface
   public void performModification(String query, List params, StringSet invalidateKeys)
     throws ManifoldCFException;
 
+  /** Perform a general database modification query once for each of a number of parameter lists, as one batch.
+  *@param query is the query string.
+  *@param paramsList is the list of parameter lists, one for each execution.
+  *@param invalidateKeys are the cache keys to invalidate.
+  */
+  public void performModificationMultiple(String query, List<List> paramsList, StringSet invalidateKeys)
+    throws ManifoldCFException;
+
   /** Perform a general "data fetch" query.
   *@param query is the query string.
   *@param params are the parameterized values, if needed.
@@ -254,6 +271,17 @@ public interface IDBInterface
     int maxResults, ResultSpecification resultSpec, ILimitChecker returnLimit)
     throws ManifoldCFException;
 
+  /** Perform a general "data fetch" query, returning the rows through a cursor rather than all at once.
+  * Nothing is cached.  Use this for queries that may return a great many rows.  Within a transaction, the
+  * cursor reads through the transaction's connection, and must be closed before the transaction ends.
+  *@param query is the query string.
+  *@param params are the parameterized values, if needed.
+  *@param resultSpec is a result specification, or null for the standard treatment.
+  *@return a cursor, which the caller must close.
+  */
+  public IResultCursor performQueryCursor(String query, List params, ResultSpecification resultSpec)
+    throws ManifoldCFException;
+
   /** Construct a cast to a double value.
   * On most databases this cast needs to be explicit, but on some it is implicit (and cannot be in fact
   * specified).
@@ -269,7 +297,25 @@ public interface IDBInterface
   *@return the query chunk needed.
   */
   public String constructCountClause(String column);
+
+  /** Construct a sum clause for an integer column.
+  * Most databases sum a BIGINT column into a wider numeric type, so the sum is cast back to a BIGINT, in whatever
+  * way the database requires.
+  *@param column is the column string to be summed.
+  *@return the query chunk needed.
+  */
+  public String constructSumClause(String column);
   
+  /** Construct a hash conversion clause.
+  * This method builds an expression that converts a hash value between the 40-character hexadecimal form and
+  * the 27-character compact (unpadded base64) form.  Not all databases can do this.
+  *@param column is the column specifier string.
+  *@param toCompact is true to convert from hexadecimal to compact form, false to convert back.
+  *@return the expression chunk needed, not padded with spaces on either side.
+  */
+  public String constructHashConversionClause(String column, boolean toCompact)
+    throws ManifoldCFException;
+
   /** Construct a regular-expression match clause.
   * This method builds a regular-expression match expression.
   *@param column is the column specifier string.
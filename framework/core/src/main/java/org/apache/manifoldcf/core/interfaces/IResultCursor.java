@@ -0,0 +1,49 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.interfaces;
+
+/** This interface represents a forward-only cursor over the result of a query.  Unlike a resultset,
+* the rows are read from the database a few at a time as the cursor advances, so the memory needed does
+* not depend on how many rows the query returns.
+*
+* A cursor holds a database connection until it is closed, so it must always be closed, in a finally
+* block.
+*/
+public interface IResultCursor
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** See if there is another row.
+  *@return true if next() will return a row.
+  */
+  public boolean hasNext()
+    throws ManifoldCFException;
+
+  /** Get the next row.
+  *@return the immutable row description, or null if there are no more rows.
+  */
+  public IResultRow next()
+    throws ManifoldCFException;
+
+  /** Close the cursor, and give back the resources it holds.  It is harmless to close a cursor
+  * more than once.
+  */
+  public void close()
+    throws ManifoldCFException;
+}
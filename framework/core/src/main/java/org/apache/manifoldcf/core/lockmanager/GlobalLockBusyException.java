@@ -0,0 +1,50 @@
+/* $Id$ */
+
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.lockmanager;
+
+import org.apache.manifoldcf.core.interfaces.*;
+
+/** Thrown when a global lock is held by another JVM.  It carries the waiter that the lock server will
+* signal when the lock changes state.
+*/
+public class GlobalLockBusyException extends LockException
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  protected final LockClient.Waiter waiter;
+
+  /**
+  * Constructs an exception with the reason.
+  *
+  * @param reason the description of the exception
+  * @param waiter is the waiter to use to wait for a state change
+  */
+  public GlobalLockBusyException(String reason, LockClient.Waiter waiter)
+  {
+    super(reason);
+    this.waiter = waiter;
+  }
+
+  public LockClient.Waiter getWaiter()
+  {
+    return waiter;
+  }
+
+}
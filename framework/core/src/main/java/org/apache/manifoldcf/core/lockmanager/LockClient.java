@@ -0,0 +1,612 @@
+/* $Id$ */
+
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.lockmanager;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.system.Logging;
+import org.apache.manifoldcf.core.system.ManifoldCF;
+import java.util.*;
+import java.io.*;
+import java.net.*;
+
+/** A JVM's connection to a LockServer.  One instance is shared by all threads in the JVM.  Requests from
+* many threads are multiplexed over a single socket, and a reader thread matches up responses, and delivers
+* the server's lock state notifications to any waiting threads.
+*/
+public class LockClient
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** Connect timeout, in milliseconds */
+  protected final static int CONNECT_TIMEOUT = 30000;
+
+  protected final String host;
+  protected final int port;
+  /** The lock pool whose objects synchronize through this client */
+  protected final LockPool lockPool;
+
+  // Connection state; all protected by this object's monitor
+  protected Socket socket = null;
+  protected OutputStream outputStream = null;
+  protected Thread readerThread = null;
+  protected int nextRequestID = LockServer.NOTIFICATION_ID + 1;
+  /** Requests awaiting a response, keyed by request ID */
+  protected final Map<Integer,Request> pendingRequests = new HashMap<Integer,Request>();
+  /** Threads waiting to hear about a change in state of a lock, keyed by lock name */
+  protected final Map<String,List<Waiter>> lockWaiters = new HashMap<String,List<Waiter>>();
+  /** Global locks the server has granted this JVM, keyed by lock name; the value is the enter operation */
+  protected final Map<String,Integer> heldLocks = new HashMap<String,Integer>();
+  /** Locks this JVM still believes it holds, but which the server released when the connection dropped,
+  * and which have not yet been obtained again.  Keyed by lock name; the value is the enter operation. */
+  protected final Map<String,Integer> lostLocks = new HashMap<String,Integer>();
+  /** Every lock that was lost at some point while held, whether or not it has been obtained again, keyed by lock
+  * name; the value is the number of the connection loss it was last lost in.  Whoever was in one of these locks
+  * at the time is told, on leaving it, that mutual exclusion may not have held. */
+  protected final Map<String,Long> compromisedLocks = new HashMap<String,Long>();
+  /** The number of times the connection to the server has dropped */
+  protected long connectionLosses = 0L;
+
+  /** Constructor.
+  *@param host is the lock server host.
+  *@param port is the lock server port.
+  */
+  public LockClient(String host, int port)
+  {
+    this.host = host;
+    this.port = port;
+    this.lockPool = new LockPool(new SocketLockObjectFactory(this));
+  }
+
+  public String getHost()
+  {
+    return host;
+  }
+
+  public int getPort()
+  {
+    return port;
+  }
+
+  public LockPool getLockPool()
+  {
+    return lockPool;
+  }
+
+  /** Try to obtain a global lock, without waiting.
+  *@param operation is one of LockServer.OP_ENTER_READ, OP_ENTER_NONEXWRITE, or OP_ENTER_WRITE.
+  *@param lockKey is the name of the lock.
+  *@param waiter is signalled when the lock next changes state, if the lock could not be obtained.
+  *@return true if the lock was obtained.
+  */
+  public boolean enterLock(int operation, String lockKey, Waiter waiter)
+    throws ManifoldCFException, InterruptedException
+  {
+    Request r = sendRequest(operation,lockKey,null,waiter,false);
+    try
+    {
+      r.waitForResponse();
+    }
+    catch (InterruptedException e)
+    {
+      abandonRequest(r);
+      throw e;
+    }
+    return r.getResponseCode() == LockServer.RESPONSE_OK;
+  }
+
+  /** Release a global lock.  The release is sent without waiting for the server to acknowledge it, since
+  * the connection delivers requests in order.
+  *@param operation is one of LockServer.OP_LEAVE_READ, OP_LEAVE_NONEXWRITE, or OP_LEAVE_WRITE.
+  *@param lockKey is the name of the lock.
+  */
+  public void leaveLock(int operation, String lockKey)
+    throws ManifoldCFException
+  {
+    synchronized (this)
+    {
+      compromisedLocks.remove(lockKey);
+      if (lostLocks.remove(lockKey) != null)
+      {
+        // The server no longer has this lock on our behalf, so there is nothing to send
+        return;
+      }
+      heldLocks.remove(lockKey);
+    }
+    sendRequest(operation,lockKey,null,null,true);
+  }
+
+  /** Get the number of times the connection to the server has dropped so far.  A thread notes this before entering
+  * a lock, so that it can later tell whether the lock was lost while it was inside.
+  */
+  public synchronized long getConnectionLosses()
+  {
+    return connectionLosses;
+  }
+
+  /** Check whether a lock this JVM holds was lost, because the connection to the server dropped, after a given
+  * number of connection losses.
+  *@param lockKey is the name of the lock.
+  *@param connectionLosses is the value of getConnectionLosses() before the lock was entered.
+  *@return true if the lock was lost since then.
+  */
+  public synchronized boolean wasLockLostSince(String lockKey, long connectionLosses)
+  {
+    Long lostIn = compromisedLocks.get(lockKey);
+    return lostIn != null && lostIn.longValue() > connectionLosses;
+  }
+
+  /** Make sure the server holds every global lock this JVM believes it holds.  Locks that were lost when
+  * the connection dropped are obtained again if they are free; if any still cannot be obtained, an exception
+  * is thrown, and will keep being thrown until the threads holding those locks have released them.
+  * This talks to the server, so it must not be called while holding a lock object's monitor.
+  */
+  public void checkLocksIntact()
+    throws ManifoldCFException
+  {
+    Map<String,Integer> toRecover;
+    synchronized (this)
+    {
+      if (lostLocks.size() == 0)
+        return;
+      toRecover = new HashMap<String,Integer>(lostLocks);
+    }
+
+    for (Map.Entry<String,Integer> entry : toRecover.entrySet())
+    {
+      String lockKey = entry.getKey();
+      int operation = entry.getValue().intValue();
+      Request r = sendRequest(operation,lockKey,null,null,false);
+      try
+      {
+        r.waitForResponse();
+      }
+      catch (InterruptedException e)
+      {
+        abandonRequest(r);
+        throw new ManifoldCFException("Interrupted",e,ManifoldCFException.INTERRUPTED);
+      }
+      if (r.getResponseCode() != LockServer.RESPONSE_OK)
+        continue;
+      synchronized (this)
+      {
+        if (lostLocks.remove(lockKey) == null)
+        {
+          // Released locally while we were getting it back; give it up again
+          releaseIfObtained(r);
+        }
+        else
+          Logging.lock.warn("Obtained lost global lock '"+lockKey+"' again from lock server at "+host+":"+port);
+      }
+    }
+
+    synchronized (this)
+    {
+      if (lostLocks.size() > 0)
+        throw new ManifoldCFException("Global locks held by this process were lost when the connection to lock server at "+
+          host+":"+port+" dropped, and "+Integer.toString(lostLocks.size())+" of them are now held elsewhere; refusing new locks until they are released");
+    }
+  }
+
+  public void setGlobalFlag(String flagName)
+    throws ManifoldCFException
+  {
+    performRequest(LockServer.OP_SET_FLAG,flagName,null);
+  }
+
+  public void clearGlobalFlag(String flagName)
+    throws ManifoldCFException
+  {
+    performRequest(LockServer.OP_CLEAR_FLAG,flagName,null);
+  }
+
+  public boolean checkGlobalFlag(String flagName)
+    throws ManifoldCFException
+  {
+    byte[] result = performRequest(LockServer.OP_CHECK_FLAG,flagName,null);
+    return result != null && result.length > 0 && result[0] != 0;
+  }
+
+  public byte[] readData(String resourceName)
+    throws ManifoldCFException
+  {
+    return performRequest(LockServer.OP_READ_DATA,resourceName,null);
+  }
+
+  public void writeData(String resourceName, byte[] data)
+    throws ManifoldCFException
+  {
+    performRequest(LockServer.OP_WRITE_DATA,resourceName,data);
+  }
+
+  /** Send a request and wait for its response.
+  *@return the response payload.
+  */
+  protected byte[] performRequest(int operation, String key, byte[] data)
+    throws ManifoldCFException
+  {
+    Request r = sendRequest(operation,key,data,null,false);
+    try
+    {
+      r.waitForResponse();
+    }
+    catch (InterruptedException e)
+    {
+      abandonRequest(r);
+      throw new ManifoldCFException("Interrupted",e,ManifoldCFException.INTERRUPTED);
+    }
+    return r.getPayload();
+  }
+
+  /** Send a request to the server, connecting first if need be.
+  *@param abandoned is true if no one will wait for the response.
+  *@return the pending request.
+  */
+  protected synchronized Request sendRequest(int operation, String key, byte[] data, Waiter waiter, boolean abandoned)
+    throws ManifoldCFException
+  {
+    ensureConnected();
+    int requestID = nextRequestID++;
+    if (nextRequestID == Integer.MAX_VALUE)
+      nextRequestID = LockServer.NOTIFICATION_ID + 1;
+    Request r = new Request(operation,key,waiter);
+    r.abandoned = abandoned;
+    pendingRequests.put(new Integer(requestID),r);
+    try
+    {
+      ManifoldCF.writeSdword(outputStream,requestID);
+      ManifoldCF.writeByte(outputStream,operation);
+      ManifoldCF.writeString(outputStream,key);
+      ManifoldCF.writeByteArray(outputStream,data);
+      outputStream.flush();
+    }
+    catch (IOException e)
+    {
+      connectionLost(e);
+      throw new ManifoldCFException("Error communicating with lock server at "+host+":"+port+": "+e.getMessage(),e);
+    }
+    return r;
+  }
+
+  /** Give up on a request because the waiting thread was interrupted.  If the request obtained a
+  * lock, the lock is given back.
+  */
+  protected synchronized void abandonRequest(Request r)
+    throws ManifoldCFException
+  {
+    if (r.isDone())
+      releaseIfObtained(r);
+    else
+      r.abandoned = true;
+  }
+
+  /** Release a lock obtained by a request no one is waiting for. */
+  protected void releaseIfObtained(Request r)
+    throws ManifoldCFException
+  {
+    if (!r.isOk())
+      return;
+    heldLocks.remove(r.key);
+    switch (r.operation)
+    {
+    case LockServer.OP_ENTER_READ:
+      sendRequest(LockServer.OP_LEAVE_READ,r.key,null,null,true);
+      break;
+    case LockServer.OP_ENTER_NONEXWRITE:
+      sendRequest(LockServer.OP_LEAVE_NONEXWRITE,r.key,null,null,true);
+      break;
+    case LockServer.OP_ENTER_WRITE:
+      sendRequest(LockServer.OP_LEAVE_WRITE,r.key,null,null,true);
+      break;
+    default:
+      break;
+    }
+  }
+
+  protected static boolean isEnterOperation(int operation)
+  {
+    return operation == LockServer.OP_ENTER_READ ||
+      operation == LockServer.OP_ENTER_NONEXWRITE ||
+      operation == LockServer.OP_ENTER_WRITE;
+  }
+
+  protected void ensureConnected()
+    throws ManifoldCFException
+  {
+    if (socket != null)
+      return;
+    Socket newSocket = new Socket();
+    try
+    {
+      newSocket.setTcpNoDelay(true);
+      newSocket.connect(new InetSocketAddress(host,port),CONNECT_TIMEOUT);
+      outputStream = new BufferedOutputStream(newSocket.getOutputStream());
+      final InputStream is = new BufferedInputStream(newSocket.getInputStream());
+      final Socket readerSocket = newSocket;
+      readerThread = new Thread()
+        {
+          public void run()
+          {
+            readResponses(readerSocket,is);
+          }
+        };
+      readerThread.setName("Lock client reader");
+      readerThread.setDaemon(true);
+      socket = newSocket;
+      readerThread.start();
+    }
+    catch (InterruptedIOException e)
+    {
+      closeQuietly(newSocket);
+      throw new ManifoldCFException("Interrupted: "+e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+    }
+    catch (IOException e)
+    {
+      closeQuietly(newSocket);
+      throw new ManifoldCFException("Could not connect to lock server at "+host+":"+port+": "+e.getMessage(),e);
+    }
+  }
+
+  /** Reader thread body: read responses and notifications until the connection goes away. */
+  protected void readResponses(Socket readerSocket, InputStream is)
+  {
+    try
+    {
+      while (true)
+      {
+        int requestID = ManifoldCF.readSdword(is);
+        int responseCode = ManifoldCF.readByte(is);
+        byte[] payload = ManifoldCF.readByteArray(is);
+        processResponse(requestID,responseCode,payload);
+      }
+    }
+    catch (IOException e)
+    {
+      synchronized (this)
+      {
+        if (socket == readerSocket)
+          connectionLost(e);
+      }
+    }
+    catch (ManifoldCFException e)
+    {
+      synchronized (this)
+      {
+        if (socket == readerSocket)
+          connectionLost(e);
+      }
+    }
+  }
+
+  protected synchronized void processResponse(int requestID, int responseCode, byte[] payload)
+    throws ManifoldCFException
+  {
+    if (requestID == LockServer.NOTIFICATION_ID)
+    {
+      if (responseCode == LockServer.RESPONSE_NOTIFY)
+        signalWaiters(decode(payload));
+      return;
+    }
+    Request r = pendingRequests.remove(new Integer(requestID));
+    if (r == null)
+      return;
+    r.setResponse(responseCode,payload);
+    if (responseCode == LockServer.RESPONSE_OK && isEnterOperation(r.operation))
+      heldLocks.put(r.key,new Integer(r.operation));
+    if (responseCode == LockServer.RESPONSE_ERROR)
+      Logging.lock.error("Lock server reported an error for '"+r.key+"': "+decode(payload));
+    if (r.abandoned)
+    {
+      releaseIfObtained(r);
+      return;
+    }
+    if (responseCode == LockServer.RESPONSE_BUSY && r.waiter != null)
+    {
+      // Register before any later notification can be processed
+      List<Waiter> waiters = lockWaiters.get(r.key);
+      if (waiters == null)
+      {
+        waiters = new ArrayList<Waiter>();
+        lockWaiters.put(r.key,waiters);
+      }
+      waiters.add(r.waiter);
+    }
+    r.signal();
+  }
+
+  protected void signalWaiters(String lockKey)
+  {
+    List<Waiter> waiters = lockWaiters.remove(lockKey);
+    if (waiters == null)
+      return;
+    for (Waiter waiter : waiters)
+    {
+      waiter.signal();
+    }
+  }
+
+  /** Tear down a broken connection.  The server releases all locks this JVM held, so those are marked as lost:
+  * no new locks are granted until they have been obtained again or released, and releasing one throws.
+  * Everyone waiting is woken up; the next request will try to reconnect.
+  */
+  protected synchronized void connectionLost(Exception e)
+  {
+    if (socket == null)
+      return;
+    Logging.lock.error("Lost connection to lock server at "+host+":"+port+"; "+Integer.toString(heldLocks.size())+
+      " global locks held by this process have been released by the server: "+e.getMessage(),e);
+    connectionLosses++;
+    Long lostIn = new Long(connectionLosses);
+    lostLocks.putAll(heldLocks);
+    for (String lockKey : heldLocks.keySet())
+    {
+      compromisedLocks.put(lockKey,lostIn);
+    }
+    heldLocks.clear();
+    closeQuietly(socket);
+    socket = null;
+    outputStream = null;
+    readerThread = null;
+    for (Request r : pendingRequests.values())
+    {
+      r.setError("Lost connection to lock server: "+e.getMessage());
+      r.signal();
+    }
+    pendingRequests.clear();
+    for (List<Waiter> waiters : lockWaiters.values())
+    {
+      for (Waiter waiter : waiters)
+      {
+        waiter.signal();
+      }
+    }
+    lockWaiters.clear();
+  }
+
+  protected static void closeQuietly(Socket s)
+  {
+    try
+    {
+      s.close();
+    }
+    catch (IOException e)
+    {
+      // Nothing more to do
+    }
+  }
+
+  protected static String decode(byte[] payload)
+  {
+    if (payload == null)
+      return null;
+    try
+    {
+      return new String(payload,"utf-8");
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new RuntimeException("No utf-8 encoding: "+e.getMessage(),e);
+    }
+  }
+
+  /** Something a thread can wait on until a lock it could not get changes state.
+  */
+  public static class Waiter
+  {
+    protected boolean signalled = false;
+
+    public Waiter()
+    {
+    }
+
+    public synchronized void signal()
+    {
+      signalled = true;
+      notifyAll();
+    }
+
+    /** Wait until signalled, or until the maximum time has elapsed.
+    *@param maxWait is the maximum time to wait, in milliseconds.
+    */
+    public synchronized void waitForSignal(long maxWait)
+      throws InterruptedException
+    {
+      if (!signalled)
+        wait(maxWait);
+    }
+  }
+
+  /** A request that has been sent to the server.
+  */
+  protected static class Request
+  {
+    protected final int operation;
+    protected final String key;
+    protected final Waiter waiter;
+    /** Set when no thread is waiting for the response; protected by the client's monitor */
+    protected boolean abandoned = false;
+    protected boolean done = false;
+    protected int responseCode = LockServer.RESPONSE_ERROR;
+    protected byte[] payload = null;
+    protected String errorMessage = null;
+
+    public Request(int operation, String key, Waiter waiter)
+    {
+      this.operation = operation;
+      this.key = key;
+      this.waiter = waiter;
+    }
+
+    public synchronized void setResponse(int responseCode, byte[] payload)
+    {
+      this.responseCode = responseCode;
+      this.payload = payload;
+      if (responseCode == LockServer.RESPONSE_ERROR)
+        errorMessage = decode(payload);
+      done = true;
+    }
+
+    public synchronized void setError(String errorMessage)
+    {
+      this.responseCode = LockServer.RESPONSE_ERROR;
+      this.errorMessage = errorMessage;
+      done = true;
+    }
+
+    public synchronized void signal()
+    {
+      notifyAll();
+    }
+
+    public synchronized boolean isDone()
+    {
+      return done;
+    }
+
+    public synchronized boolean isOk()
+    {
+      return done && responseCode == LockServer.RESPONSE_OK;
+    }
+
+    public synchronized void waitForResponse()
+      throws InterruptedException
+    {
+      while (!done)
+      {
+        wait();
+      }
+    }
+
+    public synchronized int getResponseCode()
+      throws ManifoldCFException
+    {
+      if (responseCode == LockServer.RESPONSE_ERROR)
+        throw new ManifoldCFException("Lock server error for '"+key+"': "+errorMessage);
+      return responseCode;
+    }
+
+    public synchronized byte[] getPayload()
+      throws ManifoldCFException
+    {
+      getResponseCode();
+      return payload;
+    }
+  }
+
+}
@@ -41,11 +41,16 @@ public class LockManager implements ILockManager
 
   // These are for locks (which cross JVM boundaries)
   protected HashMap localLocks = new HashMap();
-  protected static LockPool myLocks = new LockPool();
+  protected LockPool myLocks;
 
   // These are for critical sections (which do not cross JVM boundaries)
   protected HashMap localSections = new HashMap();
-  protected static LockPool mySections = new LockPool();
+  protected static LockPool mySections = new LockPool(new LockObjectFactory());
+
+  // The shared lock pool for file-based (or, if there's no synch directory, JVM-local) locks,
+  // along with the synch directory it was built for
+  protected static LockPool fileLocks = null;
+  protected static File fileLocksDirectory = null;
 
   // This is the directory used for cross-JVM synchronization, or null if off
   protected File synchDirectory = null;
@@ -59,6 +64,42 @@ public class LockManager implements ILockManager
       if (!synchDirectory.isDirectory())
         throw new ManifoldCFException("Property "+synchDirectoryProperty+" must point to an existing, writeable directory!",ManifoldCFException.SETUP_ERROR);
     }
+    myLocks = getFileLockPool(synchDirectory);
+  }
+
+  /** Constructor for implementations which synchronize across JVMs by some means other than
+  * a synchronization directory.
+  *@param lockPool is the (shared) pool that the cross-JVM lock objects come from.
+  */
+  protected LockManager(LockPool lockPool)
+  {
+    myLocks = lockPool;
+  }
+
+  /** Get the shared pool of lock objects for a given synchronization directory.
+  *@param synchDirectory is the synchronization directory, or null if locks are local to this JVM.
+  *@return the lock pool.
+  */
+  protected static synchronized LockPool getFileLockPool(File synchDirectory)
+  {
+    if (fileLocks == null || !sameFile(synchDirectory,fileLocksDirectory))
+    {
+      LockObjectFactory factory;
+      if (synchDirectory == null)
+        factory = new LockObjectFactory();
+      else
+        factory = new FileLockObjectFactory(synchDirectory);
+      fileLocks = new LockPool(factory);
+      fileLocksDirectory = synchDirectory;
+    }
+    return fileLocks;
+  }
+
+  protected static boolean sameFile(File a, File b)
+  {
+    if (a == null || b == null)
+      return a == b;
+    return a.equals(b);
   }
 
   /** Calculate the name of a flag resource.
@@ -322,7 +363,7 @@ public class LockManager implements ILockManager
     // to know if we already have a a read lock.
     while (true)
     {
-      LockObject lo = myLocks.getObject(lockKey,synchDirectory);
+      LockObject lo = myLocks.getObject(lockKey);
       try
       {
         lo.enterNonExWriteLock();
@@ -372,7 +413,7 @@ public class LockManager implements ILockManager
     // to know if we already have a a read lock.
     while (true)
     {
-      LockObject lo = myLocks.getObject(lockKey,synchDirectory);
+      LockObject lo = myLocks.getObject(lockKey);
       try
       {
         synchronized (lo)
@@ -426,7 +467,7 @@ public class LockManager implements ILockManager
     {
       while (true)
       {
-        LockObject lo = myLocks.getObject(lockKey,synchDirectory);
+        LockObject lo = myLocks.getObject(lockKey);
         try
         {
           lo.leaveNonExWriteLock();
@@ -495,7 +536,7 @@ public class LockManager implements ILockManager
     // it's illegal.
     while (true)
     {
-      LockObject lo = myLocks.getObject(lockKey,synchDirectory);
+      LockObject lo = myLocks.getObject(lockKey);
       try
       {
         lo.enterWriteLock();
@@ -545,7 +586,7 @@ public class LockManager implements ILockManager
     // it's illegal.
     while (true)
     {
-      LockObject lo = myLocks.getObject(lockKey,synchDirectory);
+      LockObject lo = myLocks.getObject(lockKey);
       try
       {
         synchronized (lo)
@@ -594,7 +635,7 @@ public class LockManager implements ILockManager
     {
       while (true)
       {
-        LockObject lo = myLocks.getObject(lockKey,synchDirectory);
+        LockObject lo = myLocks.getObject(lockKey);
         try
         {
           lo.leaveWriteLock();
@@ -655,7 +696,7 @@ public class LockManager implements ILockManager
     // We don't own a local read lock.  Get one.
     while (true)
     {
-      LockObject lo = myLocks.getObject(lockKey,synchDirectory);
+      LockObject lo = myLocks.getObject(lockKey);
       try
       {
         lo.enterReadLock();
@@ -697,7 +738,7 @@ public class LockManager implements ILockManager
     // We don't own a local read lock.  Get one.
     while (true)
     {
-      LockObject lo = myLocks.getObject(lockKey,synchDirectory);
+      LockObject lo = myLocks.getObject(lockKey);
       try
       {
         synchronized (lo)
@@ -746,7 +787,7 @@ public class LockManager implements ILockManager
     {
       while (true)
       {
-        LockObject lo = myLocks.getObject(lockKey,synchDirectory);
+        LockObject lo = myLocks.getObject(lockKey);
         try
         {
           lo.leaveReadLock();
@@ -869,7 +910,7 @@ public class LockManager implements ILockManager
             // We don't own a local write lock.  Get one.
             while (true)
             {
-              LockObject lo = myLocks.getObject(lockKey,synchDirectory);
+              LockObject lo = myLocks.getObject(lockKey);
               try
               {
                 lo.enterWriteLock();
@@ -897,7 +938,7 @@ public class LockManager implements ILockManager
             // We don't own a local write lock.  Get one.
             while (true)
             {
-              LockObject lo = myLocks.getObject(lockKey,synchDirectory);
+              LockObject lo = myLocks.getObject(lockKey);
               try
               {
                 lo.enterNonExWriteLock();
@@ -918,7 +959,7 @@ public class LockManager implements ILockManager
             // We don't own a local read lock.  Get one.
             while (true)
             {
-              LockObject lo = myLocks.getObject(lockKey,synchDirectory);
+              LockObject lo = myLocks.getObject(lockKey);
               try
               {
                 lo.enterReadLock();
@@ -1055,7 +1096,7 @@ public class LockManager implements ILockManager
             // We don't own a local write lock.  Get one.
             while (true)
             {
-              LockObject lo = myLocks.getObject(lockKey,synchDirectory);
+              LockObject lo = myLocks.getObject(lockKey);
               synchronized (lo)
               {
                 try
@@ -1086,7 +1127,7 @@ public class LockManager implements ILockManager
             // We don't own a local write lock.  Get one.
             while (true)
             {
-              LockObject lo = myLocks.getObject(lockKey,synchDirectory);
+              LockObject lo = myLocks.getObject(lockKey);
               synchronized (lo)
               {
                 try
@@ -1110,7 +1151,7 @@ public class LockManager implements ILockManager
             // We don't own a local read lock.  Get one.
             while (true)
             {
-              LockObject lo = myLocks.getObject(lockKey,synchDirectory);
+              LockObject lo = myLocks.getObject(lockKey);
               synchronized (lo)
               {
                 try
@@ -1256,7 +1297,7 @@ public class LockManager implements ILockManager
     // We don't own a local read lock.  Get one.
     while (true)
     {
-      LockObject lo = mySections.getObject(sectionKey,null);
+      LockObject lo = mySections.getObject(sectionKey);
       try
       {
         lo.enterReadLock();
@@ -1289,7 +1330,7 @@ public class LockManager implements ILockManager
     {
       while (true)
       {
-        LockObject lo = mySections.getObject(sectionKey,null);
+        LockObject lo = mySections.getObject(sectionKey);
         try
         {
           lo.leaveReadLock();
@@ -1353,7 +1394,7 @@ public class LockManager implements ILockManager
     // to know if we already have a a read lock.
     while (true)
     {
-      LockObject lo = mySections.getObject(sectionKey,null);
+      LockObject lo = mySections.getObject(sectionKey);
       try
       {
         lo.enterNonExWriteLock();
@@ -1389,7 +1430,7 @@ public class LockManager implements ILockManager
     {
       while (true)
       {
-        LockObject lo = mySections.getObject(sectionKey,null);
+        LockObject lo = mySections.getObject(sectionKey);
         try
         {
           lo.leaveNonExWriteLock();
@@ -1453,7 +1494,7 @@ public class LockManager implements ILockManager
     // it's illegal.
     while (true)
     {
-      LockObject lo = mySections.getObject(sectionKey,null);
+      LockObject lo = mySections.getObject(sectionKey);
       try
       {
         lo.enterWriteLock();
@@ -1487,7 +1528,7 @@ public class LockManager implements ILockManager
     {
       while (true)
       {
-        LockObject lo = mySections.getObject(sectionKey,null);
+        LockObject lo = mySections.getObject(sectionKey);
         try
         {
           lo.leaveWriteLock();
@@ -1558,7 +1599,7 @@ public class LockManager implements ILockManager
             // We don't own a local write lock.  Get one.
             while (true)
             {
-              LockObject lo = mySections.getObject(lockKey,null);
+              LockObject lo = mySections.getObject(lockKey);
               try
               {
                 lo.enterWriteLock();
@@ -1586,7 +1627,7 @@ public class LockManager implements ILockManager
             // We don't own a local write lock.  Get one.
             while (true)
             {
-              LockObject lo = mySections.getObject(lockKey,null);
+              LockObject lo = mySections.getObject(lockKey);
               try
               {
                 lo.enterNonExWriteLock();
@@ -1607,7 +1648,7 @@ public class LockManager implements ILockManager
             // We don't own a local read lock.  Get one.
             while (true)
             {
-              LockObject lo = mySections.getObject(lockKey,null);
+              LockObject lo = mySections.getObject(lockKey);
               try
               {
                 lo.enterReadLock();
@@ -20,54 +20,28 @@ package org.apache.manifoldcf.core.lockmanager;
 
 import org.apache.manifoldcf.core.interfaces.*;
 import org.apache.manifoldcf.core.system.ManifoldCF;
-import org.apache.manifoldcf.core.system.Logging;
-import java.io.*;
 
 /** One instance of this object exists for each lock on each JVM!
+* This base class handles synchronization between threads in the same JVM only.  Implementations
+* that synchronize across JVMs extend it, and override the methods that obtain and clear the
+* corresponding global lock.
 */
 public class LockObject
 {
   public static final String _rcsid = "@(#)$Id: LockObject.java 988245 2010-08-23 18:39:35Z kwright $";
 
-  private final static int STATUS_WRITELOCKED = -1;
-
-  private LockPool lockPool;
-  private Object lockKey;
-  private File lockDirectoryName = null;
-  private File lockFileName = null;
+  protected LockPool lockPool;
+  protected Object lockKey;
   private boolean obtainedWrite = false;  // Set to true if this object already owns the permission to exclusively write
   private int obtainedRead = 0;           // Set to a count if this object already owns the permission to read
   private int obtainedNonExWrite = 0;     // Set to a count if this object already owns the permission to non-exclusively write
-  private boolean isSync;                 // True if we need to be synchronizing across JVM's
 
-  private final static String DOTLOCK = ".lock";
-  private final static String DOTFILE = ".file";
-  private final static String SLASH = "/";
   private static final String LOCKEDANOTHERTHREAD = "Locked by another thread in this JVM";
-  private static final String LOCKEDANOTHERJVM = "Locked by another JVM";
-
 
-  public LockObject(LockPool lockPool, Object lockKey, File synchDir)
+  public LockObject(LockPool lockPool, Object lockKey)
   {
     this.lockPool = lockPool;
     this.lockKey = lockKey;
-    this.isSync = (synchDir != null);
-    if (isSync)
-    {
-      // Hash the filename
-      int hashcode = lockKey.hashCode();
-      int outerDirNumber = (hashcode & (1023));
-      int innerDirNumber = ((hashcode >> 10) & (1023));
-      String fullDir = synchDir.toString();
-      if (fullDir.length() == 0 || !fullDir.endsWith(SLASH))
-        fullDir = fullDir + SLASH;
-      fullDir = fullDir + Integer.toString(outerDirNumber)+SLASH+Integer.toString(innerDirNumber);
-      (new File(fullDir)).mkdirs();
-      String filename = createFileName(lockKey);
-
-      lockDirectoryName = new File(fullDir,filename+DOTLOCK);
-      lockFileName = new File(fullDir,filename+DOTFILE);
-    }
   }
 
   public synchronized void makeInvalid()
@@ -75,16 +49,11 @@ public class LockObject
     this.lockPool = null;
   }
 
-  private static String createFileName(Object lockKey)
-  {
-    return "lock-"+ManifoldCF.safeFileName(lockKey.toString());
-  }
-
   /** This method WILL NOT BE CALLED UNLESS we are actually committing a write lock for the
   * first time for a given thread.
   */
   public void enterWriteLock()
-    throws InterruptedException, ExpiredObjectException
+    throws ManifoldCFException, InterruptedException, ExpiredObjectException
   {
     // if (lockFileName != null)
     //  System.out.println("Entering write lock for resource "+lockFileName.toString());
@@ -115,8 +84,8 @@ public class LockObject
       }
       catch (LockException le2)
       {
-        // Cross JVM lock; sleep!
-        ManifoldCF.sleep(10);
+        // Cross JVM lock; wait for it to change state
+        waitForGlobalChange(le2);
       }
     }
   }
@@ -129,7 +98,7 @@ public class LockObject
   * exclusive write area.
   */
   public synchronized void enterWriteLockNoWait()
-    throws LockException, LocalLockException, InterruptedException, ExpiredObjectException
+    throws ManifoldCFException, LockException, LocalLockException, InterruptedException, ExpiredObjectException
   {
     if (lockPool == null)
       throw new ExpiredObjectException("Invalid");
@@ -141,28 +110,12 @@ public class LockObject
     if (obtainedRead > 0 || obtainedNonExWrite > 0)
       throw new LocalLockException(LOCKEDANOTHERTHREAD);
     // Attempt to obtain a global write lock
-    if (isSync)
-    {
-      grabFileLock();
-      try
-      {
-        int status = readFile();
-        if (status != 0)
-        {
-          throw new LockException(LOCKEDANOTHERJVM);
-        }
-        writeFile(STATUS_WRITELOCKED);
-      }
-      finally
-      {
-        releaseFileLock();
-      }
-    }
+    obtainGlobalWriteLockNoWait();
     obtainedWrite = true;
   }
 
   public void leaveWriteLock()
-    throws InterruptedException, ExpiredObjectException
+    throws ManifoldCFException, InterruptedException, ExpiredObjectException
   {
     // if (lockFileName != null)
     //      System.out.println("Releasing write lock for resource "+lockFileName.toString());
@@ -178,35 +131,29 @@ public class LockObject
           if (obtainedWrite == false)
             throw new RuntimeException("JVM failure: Don't hold lock for object "+this.toString());
           obtainedWrite = false;
-          if (isSync)
+          try
           {
-            try
-            {
-              grabFileLock();
-              try
-              {
-                writeFile(0);
-              }
-              finally
-              {
-                releaseFileLock();
-              }
-            }
-            catch (LockException le)
-            {
-              obtainedWrite = true;
-              throw le;
-            }
-            catch (Error e)
-            {
-              obtainedWrite = true;
-              throw e;
-            }
-            catch (RuntimeException e)
-            {
-              obtainedWrite = true;
-              throw e;
-            }
+            clearGlobalWriteLockNoWait();
+          }
+          catch (ManifoldCFException e)
+          {
+            obtainedWrite = true;
+            throw e;
+          }
+          catch (LockException le)
+          {
+            obtainedWrite = true;
+            throw le;
+          }
+          catch (Error e)
+          {
+            obtainedWrite = true;
+            throw e;
+          }
+          catch (RuntimeException e)
+          {
+            obtainedWrite = true;
+            throw e;
           }
 
           // Lock is free, so release this object from the pool
@@ -220,7 +167,7 @@ public class LockObject
       }
       catch (LockException le)
       {
-        ManifoldCF.sleep(10);
+        waitForGlobalChange(le);
         // Loop around
       }
     }
@@ -228,7 +175,7 @@ public class LockObject
   }
 
   public void enterNonExWriteLock()
-    throws InterruptedException, ExpiredObjectException
+    throws ManifoldCFException, InterruptedException, ExpiredObjectException
   {
     while (true)
     {
@@ -256,8 +203,8 @@ public class LockObject
       }
       catch (LockException le2)
       {
-        // Cross JVM lock; sleep!
-        ManifoldCF.sleep(10);
+        // Cross JVM lock; wait for it to change state
+        waitForGlobalChange(le2);
       }
     }
   }
@@ -270,7 +217,7 @@ public class LockObject
   * exclusive write area.
   */
   public synchronized void enterNonExWriteLockNoWait()
-    throws LockException, LocalLockException, InterruptedException, ExpiredObjectException
+    throws ManifoldCFException, LockException, LocalLockException, InterruptedException, ExpiredObjectException
   {
     if (lockPool == null)
       throw new ExpiredObjectException("Invalid");
@@ -285,31 +232,13 @@ public class LockObject
       return;
     }
 
-    // Attempt to obtain a global write lock
-    if (isSync)
-    {
-      grabFileLock();
-      try
-      {
-        int status = readFile();
-        if (status >= STATUS_WRITELOCKED)
-        {
-          throw new LockException(LOCKEDANOTHERJVM);
-        }
-        if (status == 0)
-          status = STATUS_WRITELOCKED;
-        writeFile(status-1);
-      }
-      finally
-      {
-        releaseFileLock();
-      }
-    }
+    // Attempt to obtain a global non-ex write lock
+    obtainGlobalNonExWriteLockNoWait();
     obtainedNonExWrite++;
   }
 
   public void leaveNonExWriteLock()
-    throws InterruptedException, ExpiredObjectException
+    throws ManifoldCFException, InterruptedException, ExpiredObjectException
   {
     // System.out.println("Releasing non-ex-write lock for resource "+lockFileName.toString());
     while (true)
@@ -327,41 +256,29 @@ public class LockObject
           if (obtainedNonExWrite > 0)
             return;
 
-          if (isSync)
+          try
           {
-            try
-            {
-              grabFileLock();
-              try
-              {
-                int status = readFile();
-                if (status >= STATUS_WRITELOCKED)
-                  throw new RuntimeException("JVM error: File lock is not in expected state for object "+this.toString());
-                status++;
-                if (status == STATUS_WRITELOCKED)
-                  status = 0;
-                writeFile(status);
-              }
-              finally
-              {
-                releaseFileLock();
-              }
-            }
-            catch (LockException le)
-            {
-              obtainedNonExWrite++;
-              throw le;
-            }
-            catch (Error e)
-            {
-              obtainedNonExWrite++;
-              throw e;
-            }
-            catch (RuntimeException e)
-            {
-              obtainedNonExWrite++;
-              throw e;
-            }
+            clearGlobalNonExWriteLockNoWait();
+          }
+          catch (ManifoldCFException e)
+          {
+            obtainedNonExWrite++;
+            throw e;
+          }
+          catch (LockException le)
+          {
+            obtainedNonExWrite++;
+            throw le;
+          }
+          catch (Error e)
+          {
+            obtainedNonExWrite++;
+            throw e;
+          }
+          catch (RuntimeException e)
+          {
+            obtainedNonExWrite++;
+            throw e;
           }
 
           // Lock is free, so release this object from the pool
@@ -373,7 +290,7 @@ public class LockObject
       }
       catch (LockException le)
       {
-        ManifoldCF.sleep(10);
+        waitForGlobalChange(le);
         // Loop around
       }
     }
@@ -381,7 +298,7 @@ public class LockObject
   }
 
   public void enterReadLock()
-    throws InterruptedException, ExpiredObjectException
+    throws ManifoldCFException, InterruptedException, ExpiredObjectException
   {
     // if (lockFileName != null)
     //      System.out.println("Entering read lock for resource "+lockFileName.toString()+" "+toString());
@@ -412,14 +329,14 @@ public class LockObject
       }
       catch (LockException le)
       {
-        ManifoldCF.sleep(10);
+        waitForGlobalChange(le);
         // Loop around
       }
     }
   }
 
   public synchronized void enterReadLockNoWait()
-    throws LockException, LocalLockException, InterruptedException, ExpiredObjectException
+    throws ManifoldCFException, LockException, LocalLockException, InterruptedException, ExpiredObjectException
   {
     if (lockPool == null)
       throw new ExpiredObjectException("Invalid");
@@ -434,33 +351,13 @@ public class LockObject
     // Got the read token locally!
 
     // Attempt to obtain a global read lock
-    if (isSync)
-    {
-      grabFileLock();
-      try
-      {
-        int status = readFile();
-        // System.out.println(" Read "+Integer.toString(status));
-        if (status <= STATUS_WRITELOCKED)
-        {
-          throw new LockException(LOCKEDANOTHERJVM);
-        }
-        status++;
-        writeFile(status);
-        // System.out.println(" Wrote "+Integer.toString(status));
-      }
-      finally
-      {
-        releaseFileLock();
-      }
-      // System.out.println(" Exiting");
-    }
+    obtainGlobalReadLockNoWait();
 
     obtainedRead = 1;
   }
 
   public void leaveReadLock()
-    throws InterruptedException, ExpiredObjectException
+    throws ManifoldCFException, InterruptedException, ExpiredObjectException
   {
     // if (lockFileName != null)
     //      System.out.println("Leaving read lock for resource "+lockFileName.toString()+" "+toString());
@@ -482,42 +379,29 @@ public class LockObject
             //      System.out.println("Freed read lock for resource "+lockFileName.toString()+" (obtainedRead > 0)");
             return;
           }
-          if (isSync)
+          try
           {
-            try
-            {
-              grabFileLock();
-              try
-              {
-                int status = readFile();
-                // System.out.println(" Read status = "+Integer.toString(status));
-                if (status == 0)
-                  throw new RuntimeException("JVM error: File lock is not in expected state for object "+this.toString());
-                status--;
-                writeFile(status);
-                // System.out.println(" Wrote status = "+Integer.toString(status));
-              }
-              finally
-              {
-                releaseFileLock();
-              }
-              // System.out.println(" Done");
-            }
-            catch (LockException le)
-            {
-              obtainedRead++;
-              throw le;
-            }
-            catch (Error e)
-            {
-              obtainedRead++;
-              throw e;
-            }
-            catch (RuntimeException e)
-            {
-              obtainedRead++;
-              throw e;
-            }
+            clearGlobalReadLockNoWait();
+          }
+          catch (ManifoldCFException e)
+          {
+            obtainedRead++;
+            throw e;
+          }
+          catch (LockException le)
+          {
+            obtainedRead++;
+            throw le;
+          }
+          catch (Error e)
+          {
+            obtainedRead++;
+            throw e;
+          }
+          catch (RuntimeException e)
+          {
+            obtainedRead++;
+            throw e;
           }
 
           // Lock is free, so release this object from the pool
@@ -531,279 +415,72 @@ public class LockObject
       }
       catch (LockException le)
       {
-        ManifoldCF.sleep(10);
+        waitForGlobalChange(le);
         // Loop around
       }
     }
   }
 
-  private final static String FILELOCKED = "File locked";
-
-  private synchronized void grabFileLock()
-    throws LockException, InterruptedException
+  /** Obtain a global write lock, on behalf of the whole JVM.  Called only when no thread in this JVM
+  * holds any lock on this object.  The base implementation does nothing, since it does not synchronize
+  * across JVMs.
+  *@throws LockException if the lock is held by another JVM.
+  */
+  protected void obtainGlobalWriteLockNoWait()
+    throws ManifoldCFException, LockException, InterruptedException
   {
-    while (true)
-    {
-      // Try to create the lock file
-      try
-      {
-        if (lockDirectoryName.createNewFile() == false)
-          throw new LockException(FILELOCKED);
-        break;
-      }
-      catch (InterruptedIOException e)
-      {
-        throw new InterruptedException("Interrupted IO: "+e.getMessage());
-      }
-      catch (IOException e)
-      {
-        // Log this if possible
-        try
-        {
-          Logging.lock.warn("Attempt to set file lock '"+lockDirectoryName.toString()+"' failed: "+e.getMessage(),e);
-        }
-        catch (Throwable e2)
-        {
-          e.printStackTrace();
-        }
-        // Winnt sometimes throws an exception when you can't do the lock
-        ManifoldCF.sleep(100);
-        continue;
-      }
-    }
   }
 
-  private synchronized void releaseFileLock()
-    throws InterruptedException
+  /** Obtain a global non-exclusive write lock, on behalf of the whole JVM.  Called only when no thread
+  * in this JVM holds any lock on this object.
+  *@throws LockException if the lock is held by another JVM in an incompatible way.
+  */
+  protected void obtainGlobalNonExWriteLockNoWait()
+    throws ManifoldCFException, LockException, InterruptedException
   {
-    Throwable ie = null;
-    while (true)
-    {
-      try
-      {
-        if (lockDirectoryName.delete())
-          break;
-        try
-        {
-          Logging.lock.fatal("Failure deleting file lock '"+lockDirectoryName.toString()+"'");
-        }
-        catch (Throwable e2)
-        {
-          System.out.println("Failure deleting file lock '"+lockDirectoryName.toString()+"'");
-        }
-        // Fail hard
-        System.exit(-100);
-      }
-      catch (Error e)
-      {
-        // An error - must try again to delete
-        // Attempting to log this to the log may not work due to disk being full, but try anyway.
-        String message = "Error deleting file lock '"+lockDirectoryName.toString()+"': "+e.getMessage();
-        try
-        {
-          Logging.lock.error(message,e);
-        }
-        catch (Throwable e2)
-        {
-          // Ok, we failed, send it to standard out
-          System.out.println(message);
-          e.printStackTrace();
-        }
-        ie = e;
-        ManifoldCF.sleep(100);
-        continue;
-      }
-      catch (RuntimeException e)
-      {
-        // A runtime exception - try again to delete
-        // Attempting to log this to the log may not work due to disk being full, but try anyway.
-        String message = "Error deleting file lock '"+lockDirectoryName.toString()+"': "+e.getMessage();
-        try
-        {
-          Logging.lock.error(message,e);
-        }
-        catch (Throwable e2)
-        {
-          // Ok, we failed, send it to standard out
-          System.out.println(message);
-          e.printStackTrace();
-        }
-        ie = e;
-        ManifoldCF.sleep(100);
-        continue;
-      }
-    }
-
-    // Succeeded finally - but we need to rethrow any exceptions we got
-    if (ie != null)
-    {
-      if (ie instanceof InterruptedException)
-        throw (InterruptedException)ie;
-      if (ie instanceof Error)
-        throw (Error)ie;
-      if (ie instanceof RuntimeException)
-        throw (RuntimeException)ie;
-    }
+  }
 
+  /** Obtain a global read lock, on behalf of the whole JVM.  Called only when no thread in this JVM
+  * holds any lock on this object.
+  *@throws LockException if the lock is held by another JVM in an incompatible way.
+  */
+  protected void obtainGlobalReadLockNoWait()
+    throws ManifoldCFException, LockException, InterruptedException
+  {
   }
 
-  private synchronized int readFile()
-    throws InterruptedException
+  /** Clear the global write lock this JVM holds.
+  *@throws LockException if the global lock state cannot be changed right now; the caller will retry.
+  */
+  protected void clearGlobalWriteLockNoWait()
+    throws ManifoldCFException, LockException, InterruptedException
   {
-    try
-    {
-      FileReader fr = new FileReader(lockFileName);
-      try
-      {
-        BufferedReader x = new BufferedReader(fr);
-        try
-        {
-          StringBuilder sb = new StringBuilder();
-          while (true)
-          {
-            int rval = x.read();
-            if (rval == -1)
-              break;
-            sb.append((char)rval);
-          }
-          try
-          {
-            return Integer.parseInt(sb.toString());
-          }
-          catch (NumberFormatException e)
-          {
-            // We should never be in a situation where we can't parse a number we have supposedly written.
-            // But, print a stack trace and throw IOException, so we recover.
-            throw new IOException("Lock number read was not valid: "+e.getMessage());
-          }
-        }
-        finally
-        {
-          x.close();
-        }
-      }
-      catch (InterruptedIOException e)
-      {
-        throw new InterruptedException("Interrupted IO: "+e.getMessage());
-      }
-      catch (IOException e)
-      {
-        String message = "Could not read from lock file: '"+lockFileName.toString()+"'";
-        try
-        {
-          Logging.lock.error(message,e);
-        }
-        catch (Throwable e2)
-        {
-          System.out.println(message);
-          e.printStackTrace();
-        }
-        // Don't fail hard or there is no way to recover
-        throw e;
-      }
-      finally
-      {
-        fr.close();
-      }
-    }
-    catch (InterruptedIOException e)
-    {
-      throw new InterruptedException("Interrupted IO: "+e.getMessage());
-    }
-    catch (IOException e)
-    {
-      return 0;
-    }
+  }
 
+  /** Clear the global non-exclusive write lock this JVM holds.
+  *@throws LockException if the global lock state cannot be changed right now; the caller will retry.
+  */
+  protected void clearGlobalNonExWriteLockNoWait()
+    throws ManifoldCFException, LockException, InterruptedException
+  {
   }
 
-  private synchronized void writeFile(int value)
-    throws InterruptedException
+  /** Clear the global read lock this JVM holds.
+  *@throws LockException if the global lock state cannot be changed right now; the caller will retry.
+  */
+  protected void clearGlobalReadLockNoWait()
+    throws ManifoldCFException, LockException, InterruptedException
   {
-    try
-    {
-      if (value == 0)
-      {
-        if (lockFileName.delete() == false)
-          throw new IOException("Could not delete file '"+lockFileName.toString()+"'");
-      }
-      else
-      {
-        FileWriter fw = new FileWriter(lockFileName);
-        try
-        {
-          BufferedWriter x = new BufferedWriter(fw);
-          try
-          {
-            x.write(Integer.toString(value));
-          }
-          finally
-          {
-            x.close();
-          }
-        }
-        finally
-        {
-          fw.close();
-        }
-      }
-    }
-    catch (Error e)
-    {
-      // Couldn't write for some reason!  Write to BOTH stdout and the log, since we
-      // can't be sure we will succeed at the latter.
-      String message = "Couldn't write to lock file; hard error occurred.  Shutting down process; locks may be left dangling.  You must cleanup before restarting.";
-      try
-      {
-        Logging.lock.error(message,e);
-      }
-      catch (Throwable e2)
-      {
-        System.out.println(message);
-        e.printStackTrace();
-      }
-      System.exit(-100);
-    }
-    catch (RuntimeException e)
-    {
-      // Couldn't write for some reason!  Write to BOTH stdout and the log, since we
-      // can't be sure we will succeed at the latter.
-      String message = "Couldn't write to lock file; JVM error.  Shutting down process; locks may be left dangling.  You must cleanup before restarting.";
-      try
-      {
-        Logging.lock.error(message,e);
-      }
-      catch (Throwable e2)
-      {
-        System.out.println(message);
-        e.printStackTrace();
-      }
-      System.exit(-100);
-    }
-    catch (InterruptedIOException e)
-    {
-      throw new InterruptedException("Interrupted IO: "+e.getMessage());
-    }
-    catch (IOException e)
-    {
-      // Couldn't write for some reason!  Write to BOTH stdout and the log, since we
-      // can't be sure we will succeed at the latter.
-      String message = "Couldn't write to lock file; disk may be full.  Shutting down process; locks may be left dangling.  You must cleanup before restarting.";
-      try
-      {
-        Logging.lock.error(message,e);
-      }
-      catch (Throwable e2)
-      {
-        System.out.println(message);
-        e.printStackTrace();
-      }
-      System.exit(-100);
-      // Hard failure is called for
-      // throw new Error("Lock management system failure",e);
-    }
   }
 
+  /** Wait, outside of any synchronizer, before retrying a global lock operation that failed with
+  * a LockException.  The base implementation just sleeps for a short period of time.
+  *@param e is the exception that was thrown by the failed global operation.
+  */
+  protected void waitForGlobalChange(LockException e)
+    throws ManifoldCFException, InterruptedException
+  {
+    ManifoldCF.sleep(10);
+  }
 
 }
-
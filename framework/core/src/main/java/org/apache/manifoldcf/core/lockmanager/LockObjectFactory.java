@@ -0,0 +1,42 @@
+/* $Id$ */
+
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.lockmanager;
+
+/** Create lock objects for a lock pool.  This base class creates lock objects that synchronize only
+* between threads of the current JVM.
+*/
+public class LockObjectFactory
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  public LockObjectFactory()
+  {
+  }
+
+  /** Create a new lock object.
+  *@param lockPool is the pool the object will belong to.
+  *@param lockKey is the key of the lock.
+  *@return the new lock object.
+  */
+  public LockObject newLockObject(LockPool lockPool, Object lockKey)
+  {
+    return new LockObject(lockPool,lockKey);
+  }
+}
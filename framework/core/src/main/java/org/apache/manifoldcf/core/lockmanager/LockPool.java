@@ -19,20 +19,25 @@
 package org.apache.manifoldcf.core.lockmanager;
 
 import java.util.*;
-import java.io.*;
 
 public class LockPool
 {
   public static final String _rcsid = "@(#)$Id: LockPool.java 988245 2010-08-23 18:39:35Z kwright $";
 
   private HashMap myLocks = new HashMap();
+  private LockObjectFactory factory;
 
-  public synchronized LockObject getObject(Object lockKey, File synchDir)
+  public LockPool(LockObjectFactory factory)
+  {
+    this.factory = factory;
+  }
+
+  public synchronized LockObject getObject(Object lockKey)
   {
     LockObject lo = (LockObject)myLocks.get(lockKey);
     if (lo == null)
     {
-      lo = new LockObject(this,lockKey,synchDir);
+      lo = factory.newLockObject(this,lockKey);
       myLocks.put(lockKey,lo);
     }
     return lo;
@@ -0,0 +1,566 @@
+/* $Id$ */
+
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.lockmanager;
+
+import org.apache.manifoldcf.core.system.Logging;
+import org.apache.manifoldcf.core.system.ManifoldCF;
+import java.util.*;
+import java.io.*;
+import java.net.*;
+
+/** This class is the coordinator for SocketLockManager.  One instance runs in its own process, and keeps
+* the global state of all cross-JVM locks, flags, and shared data in memory.  Each ManifoldCF JVM keeps a single
+* connection open to it.  When a lock cannot be obtained, the requesting JVM is told so, and is later sent a
+* notification when the lock changes state, so that no JVM needs to poll.  Locks held by a JVM whose
+* connection goes away are released automatically.
+*/
+public class LockServer
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  // Request operations
+  public final static int OP_ENTER_READ = 1;
+  public final static int OP_ENTER_NONEXWRITE = 2;
+  public final static int OP_ENTER_WRITE = 3;
+  public final static int OP_LEAVE_READ = 4;
+  public final static int OP_LEAVE_NONEXWRITE = 5;
+  public final static int OP_LEAVE_WRITE = 6;
+  public final static int OP_SET_FLAG = 7;
+  public final static int OP_CLEAR_FLAG = 8;
+  public final static int OP_CHECK_FLAG = 9;
+  public final static int OP_READ_DATA = 10;
+  public final static int OP_WRITE_DATA = 11;
+
+  // Response codes
+  public final static int RESPONSE_OK = 0;
+  public final static int RESPONSE_BUSY = 1;
+  public final static int RESPONSE_ERROR = 2;
+  public final static int RESPONSE_NOTIFY = 3;
+
+  /** The request ID used for notifications, which do not correspond to any request */
+  public final static int NOTIFICATION_ID = 0;
+
+  // Lock status values.  Zero means free, a positive value is the number of JVMs holding read locks,
+  // and a value below STATUS_WRITELOCKED is STATUS_WRITELOCKED minus the number of JVMs holding non-ex write locks.
+  protected final static int STATUS_WRITELOCKED = -1;
+
+  // Indexes into the per-connection held lock counts
+  protected final static int HELD_READ = 0;
+  protected final static int HELD_NONEXWRITE = 1;
+  protected final static int HELD_WRITE = 2;
+
+  /** The server socket */
+  protected final ServerSocket serverSocket;
+  /** Lock status, keyed by lock name.  Free locks are not present. */
+  protected final Map<String,Integer> lockStatus = new HashMap<String,Integer>();
+  /** Connections waiting to hear about a change in a lock's state, keyed by lock name. */
+  protected final Map<String,Set<ClientConnection>> lockWatchers = new HashMap<String,Set<ClientConnection>>();
+  /** Global flags that are currently set */
+  protected final Set<String> globalFlags = new HashSet<String>();
+  /** Shared data resources */
+  protected final Map<String,byte[]> globalData = new HashMap<String,byte[]>();
+  /** Open client connections */
+  protected final Set<ClientConnection> connections = new HashSet<ClientConnection>();
+  /** Set when the server is shutting down */
+  protected volatile boolean isShutdown = false;
+
+  /** Constructor.
+  *@param bindAddress is the address to listen on.
+  *@param port is the port to listen on.
+  */
+  public LockServer(InetAddress bindAddress, int port)
+    throws IOException
+  {
+    serverSocket = new ServerSocket();
+    serverSocket.setReuseAddress(true);
+    serverSocket.bind(new InetSocketAddress(bindAddress,port));
+  }
+
+  /** Accept and service client connections, until shutdown() is called.
+  */
+  public void run()
+    throws IOException
+  {
+    while (true)
+    {
+      Socket socket;
+      try
+      {
+        socket = serverSocket.accept();
+      }
+      catch (IOException e)
+      {
+        if (isShutdown)
+          return;
+        throw e;
+      }
+      socket.setTcpNoDelay(true);
+      ClientConnection connection = new ClientConnection(socket);
+      synchronized (this)
+      {
+        if (isShutdown)
+        {
+          connection.close();
+          return;
+        }
+        connections.add(connection);
+      }
+      connection.start();
+    }
+  }
+
+  /** Shut the server down.  All connections are closed, and all state is discarded.
+  */
+  public void shutdown()
+  {
+    isShutdown = true;
+    try
+    {
+      serverSocket.close();
+    }
+    catch (IOException e)
+    {
+      Logging.lock.warn("Error closing lock server socket: "+e.getMessage(),e);
+    }
+    ClientConnection[] toClose;
+    synchronized (this)
+    {
+      toClose = connections.toArray(new ClientConnection[0]);
+    }
+    for (ClientConnection connection : toClose)
+    {
+      connection.close();
+    }
+  }
+
+  /** Process a single request from a client.  Any response and all resulting notifications are queued while
+  * holding this object's monitor, so each client sees them in the order in which the state changes took place.
+  */
+  protected synchronized void processRequest(ClientConnection connection, int requestID, int operation, String key, byte[] data)
+  {
+    if (Logging.lock.isDebugEnabled())
+      Logging.lock.debug("Lock server: request "+requestID+" operation "+operation+" for '"+key+"'");
+    switch (operation)
+    {
+    case OP_ENTER_READ:
+    case OP_ENTER_NONEXWRITE:
+    case OP_ENTER_WRITE:
+      if (enterLock(connection,operation,key))
+        connection.send(requestID,RESPONSE_OK,null);
+      else
+      {
+        // Atomically register interest, so the client hears about the next state change
+        addWatcher(key,connection);
+        connection.send(requestID,RESPONSE_BUSY,null);
+      }
+      break;
+    case OP_LEAVE_READ:
+    case OP_LEAVE_NONEXWRITE:
+    case OP_LEAVE_WRITE:
+      if (leaveLock(connection,operation,key))
+        connection.send(requestID,RESPONSE_OK,null);
+      else
+        connection.send(requestID,RESPONSE_ERROR,encode("Lock '"+key+"' is not held in the expected state by this client"));
+      break;
+    case OP_SET_FLAG:
+      globalFlags.add(key);
+      connection.send(requestID,RESPONSE_OK,null);
+      break;
+    case OP_CLEAR_FLAG:
+      globalFlags.remove(key);
+      connection.send(requestID,RESPONSE_OK,null);
+      break;
+    case OP_CHECK_FLAG:
+      connection.send(requestID,RESPONSE_OK,new byte[]{(byte)(globalFlags.contains(key)?1:0)});
+      break;
+    case OP_READ_DATA:
+      connection.send(requestID,RESPONSE_OK,globalData.get(key));
+      break;
+    case OP_WRITE_DATA:
+      if (data == null)
+        globalData.remove(key);
+      else
+        globalData.put(key,data);
+      connection.send(requestID,RESPONSE_OK,null);
+      break;
+    default:
+      connection.send(requestID,RESPONSE_ERROR,encode("Unknown lock server operation: "+operation));
+      break;
+    }
+  }
+
+  /** Try to obtain a lock on behalf of a connection.
+  *@return true if the lock was obtained, false if it is held elsewhere in an incompatible way.
+  */
+  protected boolean enterLock(ClientConnection connection, int operation, String key)
+  {
+    int status = getStatus(key);
+    int heldIndex;
+    switch (operation)
+    {
+    case OP_ENTER_READ:
+      if (status <= STATUS_WRITELOCKED)
+        return false;
+      status++;
+      heldIndex = HELD_READ;
+      break;
+    case OP_ENTER_NONEXWRITE:
+      if (status == STATUS_WRITELOCKED || status > 0)
+        return false;
+      if (status == 0)
+        status = STATUS_WRITELOCKED;
+      status--;
+      heldIndex = HELD_NONEXWRITE;
+      break;
+    default:
+      if (status != 0)
+        return false;
+      status = STATUS_WRITELOCKED;
+      heldIndex = HELD_WRITE;
+      break;
+    }
+    setStatus(key,status);
+    connection.noteObtained(key,heldIndex);
+    return true;
+  }
+
+  /** Release a lock held by a connection, and notify anyone waiting on it.
+  *@return false if the connection did not hold the lock.
+  */
+  protected boolean leaveLock(ClientConnection connection, int operation, String key)
+  {
+    int heldIndex;
+    switch (operation)
+    {
+    case OP_LEAVE_READ:
+      heldIndex = HELD_READ;
+      break;
+    case OP_LEAVE_NONEXWRITE:
+      heldIndex = HELD_NONEXWRITE;
+      break;
+    default:
+      heldIndex = HELD_WRITE;
+      break;
+    }
+    if (!connection.noteReleased(key,heldIndex))
+      return false;
+    releaseLock(key,heldIndex);
+    return true;
+  }
+
+  /** Update the status of a lock to reflect the release of one hold of the given kind, and
+  * notify watchers.
+  */
+  protected void releaseLock(String key, int heldIndex)
+  {
+    int status = getStatus(key);
+    switch (heldIndex)
+    {
+    case HELD_READ:
+      status--;
+      break;
+    case HELD_NONEXWRITE:
+      status++;
+      if (status == STATUS_WRITELOCKED)
+        status = 0;
+      break;
+    default:
+      status = 0;
+      break;
+    }
+    setStatus(key,status);
+    notifyWatchers(key);
+  }
+
+  protected int getStatus(String key)
+  {
+    Integer status = lockStatus.get(key);
+    if (status == null)
+      return 0;
+    return status.intValue();
+  }
+
+  protected void setStatus(String key, int status)
+  {
+    if (status == 0)
+      lockStatus.remove(key);
+    else
+      lockStatus.put(key,new Integer(status));
+  }
+
+  protected void addWatcher(String key, ClientConnection connection)
+  {
+    Set<ClientConnection> watchers = lockWatchers.get(key);
+    if (watchers == null)
+    {
+      watchers = new HashSet<ClientConnection>();
+      lockWatchers.put(key,watchers);
+    }
+    watchers.add(connection);
+  }
+
+  protected void notifyWatchers(String key)
+  {
+    Set<ClientConnection> watchers = lockWatchers.remove(key);
+    if (watchers == null)
+      return;
+    byte[] payload = encode(key);
+    for (ClientConnection watcher : watchers)
+    {
+      watcher.send(NOTIFICATION_ID,RESPONSE_NOTIFY,payload);
+    }
+  }
+
+  /** Forget a connection that has gone away, releasing everything it held.
+  */
+  protected synchronized void connectionClosed(ClientConnection connection)
+  {
+    if (!connections.remove(connection))
+      return;
+    Map<String,int[]> held = connection.getHeldLocks();
+    if (held.size() > 0)
+      Logging.lock.warn("Lock server: client "+connection.getDescription()+" disconnected while holding "+held.size()+" lock(s); releasing them");
+    for (Map.Entry<String,int[]> entry : held.entrySet())
+    {
+      String key = entry.getKey();
+      int[] counts = entry.getValue();
+      for (int heldIndex = 0; heldIndex < counts.length; heldIndex++)
+      {
+        for (int i = 0; i < counts[heldIndex]; i++)
+        {
+          releaseLock(key,heldIndex);
+        }
+      }
+    }
+    held.clear();
+    for (Set<ClientConnection> watchers : lockWatchers.values())
+    {
+      watchers.remove(connection);
+    }
+  }
+
+  protected static byte[] encode(String value)
+  {
+    try
+    {
+      return value.getBytes("utf-8");
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new RuntimeException("No utf-8 encoding: "+e.getMessage(),e);
+    }
+  }
+
+  /** One connected client JVM.  Requests are read and processed by one thread; responses and
+  * notifications are queued, and written by a second thread, so that no state change ever waits on a
+  * slow client.
+  */
+  protected class ClientConnection
+  {
+    protected final Socket socket;
+    protected final String description;
+    /** Locks held by this client: for each lock name, the count of read, non-ex write, and write holds. */
+    protected final Map<String,int[]> heldLocks = new HashMap<String,int[]>();
+    /** Serialized messages waiting to be written */
+    protected final LinkedList<byte[]> outbound = new LinkedList<byte[]>();
+    protected boolean isClosed = false;
+    protected final Thread readerThread;
+    protected final Thread writerThread;
+
+    public ClientConnection(Socket socket)
+    {
+      this.socket = socket;
+      this.description = socket.getRemoteSocketAddress().toString();
+      readerThread = new Thread()
+        {
+          public void run()
+          {
+            readRequests();
+          }
+        };
+      readerThread.setName("Lock server reader "+description);
+      readerThread.setDaemon(true);
+      writerThread = new Thread()
+        {
+          public void run()
+          {
+            writeResponses();
+          }
+        };
+      writerThread.setName("Lock server writer "+description);
+      writerThread.setDaemon(true);
+    }
+
+    public void start()
+    {
+      readerThread.start();
+      writerThread.start();
+    }
+
+    public String getDescription()
+    {
+      return description;
+    }
+
+    public Map<String,int[]> getHeldLocks()
+    {
+      return heldLocks;
+    }
+
+    public void noteObtained(String key, int heldIndex)
+    {
+      int[] counts = heldLocks.get(key);
+      if (counts == null)
+      {
+        counts = new int[3];
+        heldLocks.put(key,counts);
+      }
+      counts[heldIndex]++;
+    }
+
+    public boolean noteReleased(String key, int heldIndex)
+    {
+      int[] counts = heldLocks.get(key);
+      if (counts == null || counts[heldIndex] == 0)
+        return false;
+      counts[heldIndex]--;
+      if (counts[HELD_READ] == 0 && counts[HELD_NONEXWRITE] == 0 && counts[HELD_WRITE] == 0)
+        heldLocks.remove(key);
+      return true;
+    }
+
+    /** Queue a message for this client. */
+    public void send(int requestID, int responseCode, byte[] payload)
+    {
+      byte[] message;
+      try
+      {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ManifoldCF.writeSdword(bos,requestID);
+        ManifoldCF.writeByte(bos,responseCode);
+        ManifoldCF.writeByteArray(bos,payload);
+        message = bos.toByteArray();
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException("Unexpected IO exception serializing message: "+e.getMessage(),e);
+      }
+      synchronized (outbound)
+      {
+        if (isClosed)
+          return;
+        outbound.add(message);
+        outbound.notifyAll();
+      }
+    }
+
+    public void close()
+    {
+      synchronized (outbound)
+      {
+        if (isClosed)
+          return;
+        isClosed = true;
+        outbound.notifyAll();
+      }
+      try
+      {
+        socket.close();
+      }
+      catch (IOException e)
+      {
+        // Nothing to do
+      }
+      connectionClosed(this);
+    }
+
+    protected void readRequests()
+    {
+      try
+      {
+        InputStream is = new BufferedInputStream(socket.getInputStream());
+        while (true)
+        {
+          int requestID = ManifoldCF.readSdword(is);
+          int operation = ManifoldCF.readByte(is);
+          String key = ManifoldCF.readString(is);
+          byte[] data = ManifoldCF.readByteArray(is);
+          processRequest(this,requestID,operation,key,data);
+        }
+      }
+      catch (IOException e)
+      {
+        if (!isShutdown)
+          Logging.lock.debug("Lock server: connection from "+description+" ended: "+e.getMessage());
+      }
+      finally
+      {
+        close();
+      }
+    }
+
+    protected void writeResponses()
+    {
+      try
+      {
+        OutputStream os = new BufferedOutputStream(socket.getOutputStream());
+        while (true)
+        {
+          byte[] message = null;
+          synchronized (outbound)
+          {
+            if (isClosed)
+              return;
+            if (outbound.size() > 0)
+              message = outbound.removeFirst();
+          }
+          if (message != null)
+          {
+            os.write(message);
+            continue;
+          }
+          // Nothing left to write; push what we have out, then wait for more
+          os.flush();
+          synchronized (outbound)
+          {
+            while (outbound.size() == 0 && !isClosed)
+            {
+              outbound.wait();
+            }
+          }
+        }
+      }
+      catch (InterruptedException e)
+      {
+        // Exit
+      }
+      catch (IOException e)
+      {
+        if (!isShutdown)
+          Logging.lock.debug("Lock server: could not write to "+description+": "+e.getMessage());
+      }
+      finally
+      {
+        close();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,382 @@
+/* $Id$ */
+
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.lockmanager;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.system.ManifoldCF;
+import java.util.*;
+
+/** Lock manager that synchronizes across JVMs by way of a single lock server process (see LockServer),
+* rather than a synchronization directory.  Lock, critical section, flag, and shared data semantics are
+* the same as for LockManager.  Select it by setting org.apache.manifoldcf.lockmanagerclass to this class.
+*/
+public class SocketLockManager extends LockManager
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** Lock server host property */
+  public static final String lockServerHostProperty = "org.apache.manifoldcf.lockserver.host";
+  /** Lock server port property */
+  public static final String lockServerPortProperty = "org.apache.manifoldcf.lockserver.port";
+
+  /** Default lock server host */
+  public static final String DEFAULT_LOCKSERVER_HOST = "localhost";
+  /** Default lock server port */
+  public static final int DEFAULT_LOCKSERVER_PORT = 8349;
+
+  /** The client shared by all lock managers in this JVM */
+  protected static LockClient sharedClient = null;
+
+  protected final LockClient lockClient;
+  /** For each lock this thread holds, the number of lock server connection losses before it first entered it */
+  protected final Map<String,Long> lockEntries = new HashMap<String,Long>();
+
+  public SocketLockManager()
+    throws ManifoldCFException
+  {
+    this(getLockClient());
+  }
+
+  protected SocketLockManager(LockClient lockClient)
+  {
+    super(lockClient.getLockPool());
+    this.lockClient = lockClient;
+  }
+
+  /** Get the lock client for this JVM, based on the current configuration.
+  */
+  protected static synchronized LockClient getLockClient()
+    throws ManifoldCFException
+  {
+    String host = ManifoldCF.getProperty(lockServerHostProperty);
+    if (host == null)
+      host = DEFAULT_LOCKSERVER_HOST;
+    int port = ManifoldCF.getIntProperty(lockServerPortProperty,DEFAULT_LOCKSERVER_PORT);
+    if (sharedClient == null || !sharedClient.getHost().equals(host) || sharedClient.getPort() != port)
+      sharedClient = new LockClient(host,port);
+    return sharedClient;
+  }
+
+  /** Enter a write locked area.  Refused while global locks lost to a dropped lock server connection have not
+  * been obtained again.
+  *@param lockKey is the name of the lock.
+  */
+  public void enterWriteLock(String lockKey)
+    throws ManifoldCFException
+  {
+    long connectionLosses = checkLocksIntact();
+    super.enterWriteLock(lockKey);
+    noteEntered(lockKey,connectionLosses);
+  }
+
+  public void enterWriteLockNoWait(String lockKey)
+    throws ManifoldCFException, LockException
+  {
+    long connectionLosses = checkLocksIntact();
+    super.enterWriteLockNoWait(lockKey);
+    noteEntered(lockKey,connectionLosses);
+  }
+
+  /** Leave a write lock.  If the lock server released the lock while this thread was inside it, because the
+  * connection dropped, the lock is still released locally, but an exception is thrown afterwards, since some
+  * other process may have been inside the lock at the same time.
+  *@param lockKey is the name of the lock.
+  */
+  public void leaveWriteLock(String lockKey)
+    throws ManifoldCFException
+  {
+    if (releaseLock(TYPE_WRITE,lockKey))
+      throwLocksLost(new String[]{lockKey});
+  }
+
+  /** Enter a non-exclusive write locked area.  Refused while global locks lost to a dropped lock server connection
+  * have not been obtained again.
+  *@param lockKey is the name of the lock.
+  */
+  public void enterNonExWriteLock(String lockKey)
+    throws ManifoldCFException
+  {
+    long connectionLosses = checkLocksIntact();
+    super.enterNonExWriteLock(lockKey);
+    noteEntered(lockKey,connectionLosses);
+  }
+
+  public void enterNonExWriteLockNoWait(String lockKey)
+    throws ManifoldCFException, LockException
+  {
+    long connectionLosses = checkLocksIntact();
+    super.enterNonExWriteLockNoWait(lockKey);
+    noteEntered(lockKey,connectionLosses);
+  }
+
+  /** Leave a non-exclusive write lock.  If the lock server released the lock while this thread was inside it, the
+  * lock is still released locally, but an exception is thrown afterwards.
+  *@param lockKey is the name of the lock.
+  */
+  public void leaveNonExWriteLock(String lockKey)
+    throws ManifoldCFException
+  {
+    if (releaseLock(TYPE_WRITENONEX,lockKey))
+      throwLocksLost(new String[]{lockKey});
+  }
+
+  /** Enter a read locked area.  Refused while global locks lost to a dropped lock server connection have not
+  * been obtained again.  This applies even when another thread in this JVM already holds the read lock, since
+  * the server may no longer hold it on this JVM's behalf.
+  *@param lockKey is the name of the lock.
+  */
+  public void enterReadLock(String lockKey)
+    throws ManifoldCFException
+  {
+    long connectionLosses = checkLocksIntact();
+    super.enterReadLock(lockKey);
+    noteEntered(lockKey,connectionLosses);
+  }
+
+  public void enterReadLockNoWait(String lockKey)
+    throws ManifoldCFException, LockException
+  {
+    long connectionLosses = checkLocksIntact();
+    super.enterReadLockNoWait(lockKey);
+    noteEntered(lockKey,connectionLosses);
+  }
+
+  /** Leave a read lock.  If the lock server released the lock while this thread was inside it, the lock is still
+  * released locally, but an exception is thrown afterwards.  Other threads sharing the read lock are only told
+  * if they too were inside it when it was lost.
+  *@param lockKey is the name of the lock.
+  */
+  public void leaveReadLock(String lockKey)
+    throws ManifoldCFException
+  {
+    if (releaseLock(TYPE_READ,lockKey))
+      throwLocksLost(new String[]{lockKey});
+  }
+
+  /** Enter multiple locks.  Refused while global locks lost to a dropped lock server connection have not been
+  * obtained again.
+  */
+  public void enterLocks(String[] readLocks, String[] nonExWriteLocks, String[] writeLocks)
+    throws ManifoldCFException
+  {
+    long connectionLosses = checkLocksIntact();
+    super.enterLocks(readLocks,nonExWriteLocks,writeLocks);
+    noteEntered(readLocks,nonExWriteLocks,writeLocks,connectionLosses);
+  }
+
+  public void enterLocksNoWait(String[] readLocks, String[] nonExWriteLocks, String[] writeLocks)
+    throws ManifoldCFException, LockException
+  {
+    long connectionLosses = checkLocksIntact();
+    super.enterLocksNoWait(readLocks,nonExWriteLocks,writeLocks);
+    noteEntered(readLocks,nonExWriteLocks,writeLocks,connectionLosses);
+  }
+
+  /** Leave multiple locks.  Every lock is released, and then a single exception names all of those which the lock
+  * server released while this thread was inside them.
+  */
+  public void leaveLocks(String[] readLocks, String[] writeNonExLocks, String[] writeLocks)
+    throws ManifoldCFException
+  {
+    LockDescription[] lds = getSortedUniqueLocks(readLocks,writeNonExLocks,writeLocks);
+    List<String> lostKeys = new ArrayList<String>();
+    ManifoldCFException ae = null;
+    int i = lds.length;
+    while (--i >= 0)
+    {
+      LockDescription ld = lds[i];
+      try
+      {
+        if (releaseLock(ld.getType(),ld.getKey()))
+          lostKeys.add(ld.getKey());
+      }
+      catch (ManifoldCFException e)
+      {
+        ae = e;
+      }
+    }
+    if (ae != null)
+      throw ae;
+    if (lostKeys.size() > 0)
+      throwLocksLost(lostKeys.toArray(new String[0]));
+  }
+
+  /** Release every lock this thread holds, and then throw if any of them were lost while this thread was inside.
+  */
+  public void clearLocks()
+    throws ManifoldCFException
+  {
+    List<String> lostKeys = new ArrayList<String>();
+    ManifoldCFException ae = null;
+    String[] lockKeys = (String[])localLocks.keySet().toArray(new String[0]);
+    for (String lockKey : lockKeys)
+    {
+      LocalLock ll = (LocalLock)localLocks.get(lockKey);
+      try
+      {
+        boolean lost = false;
+        while (ll.hasWriteLock())
+          lost |= releaseLock(TYPE_WRITE,lockKey);
+        while (ll.hasNonExWriteLock())
+          lost |= releaseLock(TYPE_WRITENONEX,lockKey);
+        while (ll.hasReadLock())
+          lost |= releaseLock(TYPE_READ,lockKey);
+        if (lost)
+          lostKeys.add(lockKey);
+      }
+      catch (ManifoldCFException e)
+      {
+        ae = e;
+      }
+    }
+    if (ae != null)
+      throw ae;
+    if (lostKeys.size() > 0)
+      throwLocksLost(lostKeys.toArray(new String[0]));
+  }
+
+  /** Obtain again any global locks lost to a dropped lock server connection, or throw if that cannot be done.
+  * This is called before entering a lock, and never while inside a lock object's monitor, since it may need
+  * to talk to the server.
+  *@return the number of connection losses so far, to be recorded against the lock once it is entered.
+  */
+  protected long checkLocksIntact()
+    throws ManifoldCFException
+  {
+    lockClient.checkLocksIntact();
+    return lockClient.getConnectionLosses();
+  }
+
+  /** Record when this thread first entered a lock.
+  *@param lockKey is the name of the lock.
+  *@param connectionLosses is the number of connection losses before the lock was entered.
+  */
+  protected void noteEntered(String lockKey, long connectionLosses)
+  {
+    if (lockEntries.get(lockKey) == null)
+      lockEntries.put(lockKey,new Long(connectionLosses));
+  }
+
+  protected void noteEntered(String[] readLocks, String[] nonExWriteLocks, String[] writeLocks, long connectionLosses)
+  {
+    LockDescription[] lds = getSortedUniqueLocks(readLocks,nonExWriteLocks,writeLocks);
+    for (int i = 0; i < lds.length; i++)
+    {
+      noteEntered(lds[i].getKey(),connectionLosses);
+    }
+  }
+
+  /** Release one level of a lock.
+  *@param lockType is TYPE_READ, TYPE_WRITENONEX, or TYPE_WRITE.
+  *@param lockKey is the name of the lock.
+  *@return true if this thread has now left the lock altogether, and the lock server released it while
+  * this thread was inside.
+  */
+  protected boolean releaseLock(int lockType, String lockKey)
+    throws ManifoldCFException
+  {
+    // This must be checked before the release, since the last release in this JVM forgets that the lock was lost
+    Long enteredAfter = lockEntries.get(lockKey);
+    boolean lost = enteredAfter != null && lockClient.wasLockLostSince(lockKey,enteredAfter.longValue());
+    switch (lockType)
+    {
+    case TYPE_READ:
+      super.leaveReadLock(lockKey);
+      break;
+    case TYPE_WRITENONEX:
+      super.leaveNonExWriteLock(lockKey);
+      break;
+    case TYPE_WRITE:
+      super.leaveWriteLock(lockKey);
+      break;
+    }
+    LocalLock ll = (LocalLock)localLocks.get(lockKey);
+    if (ll != null && (ll.hasReadLock() || ll.hasNonExWriteLock() || ll.hasWriteLock()))
+      return false;
+    lockEntries.remove(lockKey);
+    return lost;
+  }
+
+  protected void throwLocksLost(String[] lockKeys)
+    throws ManifoldCFException
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < lockKeys.length; i++)
+    {
+      if (i > 0)
+        sb.append(", ");
+      sb.append("'").append(lockKeys[i]).append("'");
+    }
+    throw new ManifoldCFException("Global lock(s) "+sb.toString()+" were released by the lock server while this thread held them, "+
+      "because the connection to the server dropped; mutual exclusion may not have held");
+  }
+
+  /** Raise a flag.  Use this method to assert a condition, or send a global signal.  The flag will be reset when the
+  * lock server is restarted.
+  *@param flagName is the name of the flag to set.
+  */
+  public void setGlobalFlag(String flagName)
+    throws ManifoldCFException
+  {
+    lockClient.setGlobalFlag(flagName);
+  }
+
+  /** Clear a flag.  Use this method to clear a condition, or retract a global signal.
+  *@param flagName is the name of the flag to clear.
+  */
+  public void clearGlobalFlag(String flagName)
+    throws ManifoldCFException
+  {
+    lockClient.clearGlobalFlag(flagName);
+  }
+
+  /** Check the condition of a specified flag.
+  *@param flagName is the name of the flag to check.
+  *@return true if the flag is set, false otherwise.
+  */
+  public boolean checkGlobalFlag(String flagName)
+    throws ManifoldCFException
+  {
+    return lockClient.checkGlobalFlag(flagName);
+  }
+
+  /** Read data from a shared data resource.  Use this method to read any existing data, or get a null back if there is no such resource.
+  * Note well that this is not necessarily an atomic operation, and it must thus be protected by a lock.
+  *@param resourceName is the global name of the resource.
+  *@return a byte array containing the data, or null.
+  */
+  public byte[] readData(String resourceName)
+    throws ManifoldCFException
+  {
+    return lockClient.readData(resourceName);
+  }
+
+  /** Write data to a shared data resource.  Use this method to write a body of data into a shared resource.
+  * Note well that this is not necessarily an atomic operation, and it must thus be protected by a lock.
+  *@param resourceName is the global name of the resource.
+  *@param data is the byte array containing the data.  Pass null if you want to delete the resource completely.
+  */
+  public void writeData(String resourceName, byte[] data)
+    throws ManifoldCFException
+  {
+    lockClient.writeData(resourceName,data);
+  }
+
+}
@@ -0,0 +1,99 @@
+/* $Id$ */
+
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.lockmanager;
+
+import org.apache.manifoldcf.core.interfaces.*;
+
+/** Lock object that synchronizes across JVMs by way of a lock server.  Instead of polling, a thread that
+* cannot obtain the global lock waits until the server tells this JVM that the lock has changed state.
+*/
+public class SocketLockObject extends LockObject
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The longest we will wait for a notification before trying again anyway, in milliseconds */
+  protected final static long MAX_NOTIFICATION_WAIT = 10000L;
+
+  private static final String LOCKEDANOTHERJVM = "Locked by another JVM";
+
+  protected final LockClient lockClient;
+
+  public SocketLockObject(LockPool lockPool, Object lockKey, LockClient lockClient)
+  {
+    super(lockPool,lockKey);
+    this.lockClient = lockClient;
+  }
+
+  protected void obtainGlobalWriteLockNoWait()
+    throws ManifoldCFException, LockException, InterruptedException
+  {
+    obtainGlobalLock(LockServer.OP_ENTER_WRITE);
+  }
+
+  protected void obtainGlobalNonExWriteLockNoWait()
+    throws ManifoldCFException, LockException, InterruptedException
+  {
+    obtainGlobalLock(LockServer.OP_ENTER_NONEXWRITE);
+  }
+
+  protected void obtainGlobalReadLockNoWait()
+    throws ManifoldCFException, LockException, InterruptedException
+  {
+    obtainGlobalLock(LockServer.OP_ENTER_READ);
+  }
+
+  protected void clearGlobalWriteLockNoWait()
+    throws ManifoldCFException, LockException, InterruptedException
+  {
+    lockClient.leaveLock(LockServer.OP_LEAVE_WRITE,lockKey.toString());
+  }
+
+  protected void clearGlobalNonExWriteLockNoWait()
+    throws ManifoldCFException, LockException, InterruptedException
+  {
+    lockClient.leaveLock(LockServer.OP_LEAVE_NONEXWRITE,lockKey.toString());
+  }
+
+  protected void clearGlobalReadLockNoWait()
+    throws ManifoldCFException, LockException, InterruptedException
+  {
+    lockClient.leaveLock(LockServer.OP_LEAVE_READ,lockKey.toString());
+  }
+
+  /** Wait until the lock server says the lock we failed to get has changed state.
+  */
+  protected void waitForGlobalChange(LockException e)
+    throws ManifoldCFException, InterruptedException
+  {
+    if (e instanceof GlobalLockBusyException)
+      ((GlobalLockBusyException)e).getWaiter().waitForSignal(MAX_NOTIFICATION_WAIT);
+    else
+      super.waitForGlobalChange(e);
+  }
+
+  protected void obtainGlobalLock(int operation)
+    throws ManifoldCFException, LockException, InterruptedException
+  {
+    LockClient.Waiter waiter = new LockClient.Waiter();
+    if (!lockClient.enterLock(operation,lockKey.toString(),waiter))
+      throw new GlobalLockBusyException(LOCKEDANOTHERJVM,waiter);
+  }
+
+}
@@ -50,6 +50,28 @@ public class ManifoldCF
   /** Database handle cleanup */
   protected static DatabaseShutdown dbShutdown = null;
   
+  /** The length of a hash in hexadecimal form */
+  public static final int HEX_HASH_LENGTH = 40;
+  /** The length of a hash in compact form */
+  public static final int COMPACT_HASH_LENGTH = 27;
+
+  /** True if hashes are in compact form */
+  protected static boolean compactHashes = false;
+  /** Per-thread digest used by hash() */
+  protected static final ThreadLocal<MessageDigest> threadDigest = new ThreadLocal<MessageDigest>();
+  /** The base64 characters used for compact hashes */
+  protected static final char[] base64Characters = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+  /** The value of each base64 character, or -1 */
+  protected static final int[] base64Values = new int[128];
+  static
+  {
+    Arrays.fill(base64Values,-1);
+    for (int i = 0; i < base64Characters.length; i++)
+    {
+      base64Values[base64Characters[i]] = i;
+    }
+  }
+
   /** Array of cleanup hooks (for managing shutdown) */
   protected static ArrayList cleanupHooks = new ArrayList(); 
   
@@ -109,10 +131,16 @@ public class ManifoldCF
   public static final String databaseHandleMaxcountProperty = "org.apache.manifoldcf.database.maxhandles";
   /** Database handle timeout property */
   public static final String databaseHandleTimeoutProperty = "org.apache.manifoldcf.database.handletimeout";
+  /** Maximum number of threads executing database queries property */
+  public static final String databaseQueryExecutorMaxcountProperty = "org.apache.manifoldcf.database.maxqueryexecutors";
 
   // Database performance monitoring properties
   /** Elapsed time a query can take before a warning is output to the log, in seconds */
   public static final String databaseQueryMaxTimeProperty = "org.apache.manifoldcf.database.maxquerytime";
+  /** True if hashes should be stored in compact form (27 base64 characters) rather than as 40 hexadecimal
+  * characters, which saves about 32% per hash.  Hashes already in the database must be converted with the ConvertDocumentHashes command
+  * before this property is changed. */
+  public static final String compactHashesProperty = "org.apache.manifoldcf.database.compacthashes";
   
   // Log configuration properties
   /** Location of log configuration file */
@@ -216,6 +244,8 @@ public class ManifoldCF
           if (masterDatabasePassword == null)
             masterDatabasePassword = "local_pg_passwd";
 
+          compactHashes = getBooleanProperty(compactHashesProperty,false);
+
           // Register the file tracker for cleanup on shutdown
           tracker = new FileTrack();
           addShutdownHook(tracker);
@@ -493,6 +523,76 @@ public class ManifoldCF
     return encrypt(input);
   }
 
+  /** Hash a string for storage in one of the document hash columns.  The result is in compact form if the
+  * database is set up for compact hashes, and in hexadecimal form otherwise.
+  *@param input is the string to hash.
+  *@return the hash.
+  */
+  public static String compactHash(String input)
+    throws ManifoldCFException
+  {
+    return getCompactHashValue(digestString(input));
+  }
+
+  /** Check whether hashes are in compact form.
+  *@return true if hashes are 27 base64 characters, false if they are 40 hexadecimal characters.
+  */
+  public static boolean getCompactHashes()
+  {
+    return compactHashes;
+  }
+
+  /** Convert a hash from hexadecimal form to compact form.
+  *@param hexHash is the hash in hexadecimal form.
+  *@return the hash in compact form.
+  */
+  public static String convertHashToCompact(String hexHash)
+    throws ManifoldCFException
+  {
+    if (hexHash.length() % 2 != 0)
+      throw new ManifoldCFException("Bad hexadecimal hash: '"+hexHash+"'");
+    byte[] hashBytes = new byte[hexHash.length() >> 1];
+    for (int i = 0; i < hashBytes.length; i++)
+    {
+      hashBytes[i] = (byte)((readNibble(hexHash.charAt(i*2)) << 4) + readNibble(hexHash.charAt(i*2+1)));
+    }
+    return encodeCompactHash(hashBytes);
+  }
+
+  /** Convert a hash from compact form to hexadecimal form.
+  *@param compactHash is the hash in compact form.
+  *@return the hash in hexadecimal form.
+  */
+  public static String convertHashToHex(String compactHash)
+    throws ManifoldCFException
+  {
+    int byteCount = (compactHash.length() * 6) >> 3;
+    byte[] hashBytes = new byte[byteCount];
+    int accumulator = 0;
+    int bitCount = 0;
+    int byteIndex = 0;
+    for (int i = 0; i < compactHash.length(); i++)
+    {
+      char x = compactHash.charAt(i);
+      int value;
+      if (x < 128 && (value = base64Values[x]) >= 0)
+      {
+        accumulator = (accumulator << 6) + value;
+        bitCount += 6;
+        if (bitCount >= 8)
+        {
+          bitCount -= 8;
+          if (byteIndex < byteCount)
+            hashBytes[byteIndex++] = (byte)(accumulator >> bitCount);
+          accumulator &= (1 << bitCount) - 1;
+        }
+      }
+      else
+        throw new ManifoldCFException("Bad compact hash: '"+compactHash+"'");
+    }
+    return encodeHexHash(hashBytes);
+  }
+
   /** Start creating a hash
   */
   public static MessageDigest startHash()
@@ -532,15 +632,7 @@ public class ManifoldCF
     try
     {
       byte[] encryptedBytes = digest.digest();
-      StringBuilder rval = new StringBuilder();
-      int i = 0;
-      while (i < encryptedBytes.length)
-      {
-        byte x = encryptedBytes[i++];
-        rval.append(writeNibble((((int)x) >> 4) & 15));
-        rval.append(writeNibble(((int)x) & 15));
-      }
-      return rval.toString();
+      return encodeHexHash(encryptedBytes);
     }
     catch (Exception e)
     {
@@ -548,6 +640,64 @@ public class ManifoldCF
     }
   }
 
+  /** Calculate final hash value, for storage in one of the document hash columns.  The result is in compact
+  * form if the database is set up for compact hashes, and in hexadecimal form otherwise.
+  */
+  public static String getCompactHashValue(MessageDigest digest)
+    throws ManifoldCFException
+  {
+    try
+    {
+      byte[] encryptedBytes = digest.digest();
+      if (compactHashes)
+        return encodeCompactHash(encryptedBytes);
+      return encodeHexHash(encryptedBytes);
+    }
+    catch (Exception e)
+    {
+      throw new ManifoldCFException("Couldn't encrypt: "+e.getMessage(),e,ManifoldCFException.GENERAL_ERROR);
+    }
+  }
+
+  /** Write hash bytes as hexadecimal.
+  */
+  protected static String encodeHexHash(byte[] hashBytes)
+  {
+    char[] rval = new char[hashBytes.length * 2];
+    int j = 0;
+    for (int i = 0; i < hashBytes.length; i++)
+    {
+      int x = (int)hashBytes[i];
+      rval[j++] = writeNibble((x >> 4) & 15);
+      rval[j++] = writeNibble(x & 15);
+    }
+    return new String(rval);
+  }
+
+  /** Write hash bytes as base64, without padding.
+  */
+  protected static String encodeCompactHash(byte[] hashBytes)
+  {
+    char[] rval = new char[(hashBytes.length * 8 + 5) / 6];
+    int accumulator = 0;
+    int bitCount = 0;
+    int j = 0;
+    for (int i = 0; i < hashBytes.length; i++)
+    {
+      accumulator = (accumulator << 8) + (((int)hashBytes[i]) & 0xff);
+      bitCount += 8;
+      while (bitCount >= 6)
+      {
+        bitCount -= 6;
+        rval[j++] = base64Characters[(accumulator >> bitCount) & 63];
+      }
+      accumulator &= (1 << bitCount) - 1;
+    }
+    if (bitCount > 0)
+      rval[j++] = base64Characters[(accumulator << (6 - bitCount)) & 63];
+    return new String(rval);
+  }
+
   /** Perform standard one-way encryption of a string.
   *@param input is the string to encrypt.
   *@return the encrypted string.
@@ -555,9 +705,28 @@ public class ManifoldCF
   public static String encrypt(String input)
     throws ManifoldCFException
   {
-    MessageDigest hash = startHash();
+    return getHashValue(digestString(input));
+  }
+
+  /** Feed a string to this thread's digest, ready for the final hash value to be calculated.
+  *@param input is the string.
+  *@return the digest.
+  */
+  protected static MessageDigest digestString(String input)
+    throws ManifoldCFException
+  {
+    // Hashing is done for every document identifier, so each thread keeps its own digest rather than
+    // making a new one every time.  digest() resets it for the next use.
+    MessageDigest hash = threadDigest.get();
+    if (hash == null)
+    {
+      hash = startHash();
+      threadDigest.set(hash);
+    }
+    else
+      hash.reset();
     addToHash(hash,input);
-    return getHashValue(hash);
+    return hash;
   }
 
   /** Encode a string in a reversible obfuscation.
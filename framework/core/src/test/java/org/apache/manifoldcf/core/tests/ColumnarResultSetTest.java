@@ -0,0 +1,160 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.database.ColumnarResultSet;
+import org.apache.manifoldcf.core.database.RSet;
+import org.apache.manifoldcf.core.database.RRow;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Check that a columnar resultset gives back what was put into it */
+public class ColumnarResultSetTest
+{
+
+  @Test
+  public void valuesComeBackAsAdded()
+    throws Exception
+  {
+    ColumnarResultSet set = new ColumnarResultSet(new String[]{"id","weight","status","empty"});
+    // Enough rows to make the columns grow several times
+    for (int i = 0; i < 100; i++)
+    {
+      set.addRow(new Object[]{new Long(i),(i % 3 == 0)?null:new Double(i/2.0),(i % 2 == 0)?"A":"B",null});
+    }
+    assertEquals(100,set.getRowCount());
+    for (int i = 0; i < 100; i++)
+    {
+      IResultRow row = set.getRow(i);
+      assertEquals(4,row.getColumnCount());
+      assertEquals(new Long(i),row.getValue("id"));
+      if (i % 3 == 0)
+        assertNull(row.getValue("weight"));
+      else
+        assertEquals(new Double(i/2.0),row.getValue("weight"));
+      assertEquals((i % 2 == 0)?"A":"B",row.getValue("status"));
+      assertNull(row.getValue("empty"));
+      assertNull(row.getValue("nosuchcolumn"));
+    }
+    assertNull(set.getRow(100));
+    assertNull(set.getRow(-1));
+    assertEquals(100,set.getRows().length);
+  }
+
+  @Test
+  public void mixedTypesKeepEveryValue()
+    throws Exception
+  {
+    ColumnarResultSet set = new ColumnarResultSet(new String[]{"longfirst","doublefirst","longthendouble"});
+    set.addRow(new Object[]{new Long(1L),new Double(1.5),new Long(7L)});
+    set.addRow(new Object[]{null,null,null});
+    // A value of another type turns the primitive column back into objects
+    set.addRow(new Object[]{"x",new Long(3L),new Double(2.5)});
+    set.addRow(new Object[]{new Long(4L),new Double(4.5),new Long(8L)});
+
+    assertEquals(new Long(1L),set.getRow(0).getValue("longfirst"));
+    assertNull(set.getRow(1).getValue("longfirst"));
+    assertEquals("x",set.getRow(2).getValue("longfirst"));
+    assertEquals(new Long(4L),set.getRow(3).getValue("longfirst"));
+
+    assertEquals(new Double(1.5),set.getRow(0).getValue("doublefirst"));
+    assertNull(set.getRow(1).getValue("doublefirst"));
+    assertEquals(new Long(3L),set.getRow(2).getValue("doublefirst"));
+    assertEquals(new Double(4.5),set.getRow(3).getValue("doublefirst"));
+
+    assertEquals(new Long(7L),set.getRow(0).getValue("longthendouble"));
+    assertNull(set.getRow(1).getValue("longthendouble"));
+    assertEquals(new Double(2.5),set.getRow(2).getValue("longthendouble"));
+    assertEquals(new Long(8L),set.getRow(3).getValue("longthendouble"));
+  }
+
+  @Test
+  public void removedRowLeavesNothingBehind()
+    throws Exception
+  {
+    ColumnarResultSet set = new ColumnarResultSet(new String[]{"id","name"});
+    set.addRow(new Object[]{new Long(1L),"one"});
+    set.addRow(new Object[]{new Long(2L),"two"});
+    set.removeLastRow();
+    assertEquals(1,set.getRowCount());
+    assertNull(set.getRow(1));
+
+    // A shorter row in the same place must not pick up the removed row's values
+    set.addRow(new Object[]{new Long(3L)});
+    assertEquals(2,set.getRowCount());
+    assertEquals(new Long(3L),set.getRow(1).getValue("id"));
+    assertNull(set.getRow(1).getValue("name"));
+    assertEquals("one",set.getRow(0).getValue("name"));
+  }
+
+  @Test
+  public void duplicateColumnNamesKeepTheLastValue()
+    throws Exception
+  {
+    ColumnarResultSet set = new ColumnarResultSet(new String[]{"id","value","value"});
+    set.addRow(new Object[]{new Long(1L),"first","second"});
+    set.addRow(new Object[]{new Long(2L),"first",null});
+    IResultRow row = set.getRow(0);
+    assertEquals(2,row.getColumnCount());
+    Set<String> columns = new HashSet<String>();
+    Iterator<String> iter = row.getColumns();
+    while (iter.hasNext())
+    {
+      columns.add(iter.next());
+    }
+    assertEquals(new HashSet<String>(Arrays.asList(new String[]{"id","value"})),columns);
+    assertEquals("second",row.getValue("value"));
+    assertNull(set.getRow(1).getValue("value"));
+  }
+
+  @Test
+  public void sameRowsAsRSet()
+    throws Exception
+  {
+    String[] columns = new String[]{"id","dochash","status","failcount"};
+    RSet rset = new RSet();
+    ColumnarResultSet set = new ColumnarResultSet(columns);
+    for (int i = 0; i < 50; i++)
+    {
+      Object[] values = new Object[]{new Long(1300000000000L + i),"hash"+i,(i % 5 == 0)?"C":"P",
+        (i % 10 == 0)?new Long(i):null};
+      RRow row = new RRow();
+      for (int j = 0; j < columns.length; j++)
+      {
+        row.put(columns[j],values[j]);
+      }
+      rset.addRow(row);
+      set.addRow(values);
+    }
+    assertEquals(rset.getRowCount(),set.getRowCount());
+    for (int i = 0; i < rset.getRowCount(); i++)
+    {
+      IResultRow expected = rset.getRow(i);
+      IResultRow actual = set.getRow(i);
+      for (int j = 0; j < columns.length; j++)
+      {
+        assertEquals(expected.getValue(columns[j]),actual.getValue(columns[j]));
+      }
+    }
+  }
+
+}
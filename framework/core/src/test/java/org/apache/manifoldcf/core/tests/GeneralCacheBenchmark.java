@@ -0,0 +1,221 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.cachemanager.GeneralCache;
+
+import java.util.*;
+import org.junit.*;
+
+/** Contention benchmark for GeneralCache.  Each thread follows the access pattern CacheManager uses for a
+* query: a lookup, then on a hit the expiration/creation/key checks and the expiration and LRU reset, or on a miss
+* a save followed by the same reset.  A small fraction of operations invalidate keys, and one thread expires
+* records periodically.  The cache is compared against the same cache with every method serialized on one
+* monitor, which is how GeneralCache used to work.  It only prints throughput figures, so surefire leaves it out
+* unless the benchmark profile is active.
+*/
+public class GeneralCacheBenchmark
+{
+  protected final static int[] threadCounts = new int[]{1,10,50,100};
+  protected final static int descriptionCount = 20000;
+  protected final static int keyCount = 500;
+  protected final static int classCount = 4;
+  protected final static int maxPerClass = 2000;
+  protected final static long runTime = 2000L;
+
+  @Test
+  public void contention()
+    throws Exception
+  {
+    for (int threadCount : threadCounts)
+    {
+      double singleLockRate = runBenchmark(new SingleLockGeneralCache(),threadCount);
+      double rate = runBenchmark(new GeneralCache(),threadCount);
+      System.out.println("GeneralCache benchmark, "+threadCount+" threads: single monitor "+
+        (long)singleLockRate+" ops/sec, concurrent "+(long)rate+" ops/sec");
+    }
+  }
+
+  protected static double runBenchmark(final GeneralCache cache, int threadCount)
+    throws Exception
+  {
+    final long[] operations = new long[1];
+    final boolean[] stop = new boolean[1];
+
+    Thread expirer = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          while (true)
+          {
+            synchronized (stop)
+            {
+              if (stop[0])
+                return;
+            }
+            cache.expireRecords(System.currentTimeMillis());
+            Thread.sleep(10L);
+          }
+        }
+        catch (InterruptedException e)
+        {
+        }
+      }
+    };
+
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++)
+    {
+      final Random random = new Random(i);
+      threads[i] = new Thread()
+      {
+        public void run()
+        {
+          long count = 0L;
+          while (true)
+          {
+            if ((count & 0xff) == 0)
+            {
+              synchronized (stop)
+              {
+                if (stop[0])
+                  break;
+              }
+            }
+            doOperation(cache,random);
+            count++;
+          }
+          synchronized (operations)
+          {
+            operations[0] += count;
+          }
+        }
+      };
+    }
+
+    expirer.start();
+    for (Thread thread : threads)
+    {
+      thread.start();
+    }
+    Thread.sleep(runTime);
+    synchronized (stop)
+    {
+      stop[0] = true;
+    }
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+    expirer.join();
+    return (double)operations[0] * 1000.0 / (double)runTime;
+  }
+
+  protected static void doOperation(GeneralCache cache, Random random)
+  {
+    // Skew the description choice so that there is a hot set, as with real queries
+    int descriptionNumber = (random.nextInt(10) < 8)?random.nextInt(descriptionCount / 20):random.nextInt(descriptionCount);
+    String description = "description"+descriptionNumber;
+    String keyName = "key"+(descriptionNumber % keyCount);
+    String className = "class"+(descriptionNumber % classCount);
+    long currentTime = System.currentTimeMillis();
+
+    if (random.nextInt(100) == 0)
+    {
+      cache.invalidateKeys(new StringSet(keyName));
+      return;
+    }
+
+    Object o = cache.lookup(description);
+    if (o != null)
+    {
+      long expireTime = cache.getObjectExpirationTime(description);
+      if (expireTime != -1L && expireTime <= currentTime)
+      {
+        cache.deleteObject(description);
+        return;
+      }
+      cache.getObjectCreationTime(description);
+      cache.getObjectInvalidationKeys(description);
+    }
+    else
+      cache.setObject(description,description,new StringSet(keyName),currentTime);
+    cache.setObjectExpiration(description,currentTime + 300000L);
+    cache.setObjectClass(description,className,maxPerClass);
+  }
+
+  /** GeneralCache with every method serialized on a single monitor, as it was before it was made concurrent.
+  */
+  protected static class SingleLockGeneralCache extends GeneralCache
+  {
+    public synchronized Object lookup(Object objectDescription)
+    {
+      return super.lookup(objectDescription);
+    }
+
+    public synchronized long getObjectCreationTime(Object objectDescription)
+    {
+      return super.getObjectCreationTime(objectDescription);
+    }
+
+    public synchronized StringSet getObjectInvalidationKeys(Object objectDescription)
+    {
+      return super.getObjectInvalidationKeys(objectDescription);
+    }
+
+    public synchronized long getObjectExpirationTime(Object objectDescription)
+    {
+      return super.getObjectExpirationTime(objectDescription);
+    }
+
+    public synchronized void deleteObject(Object objectDescription)
+    {
+      super.deleteObject(objectDescription);
+    }
+
+    public synchronized void setObject(Object objectDescription, Object object, StringSet keys, long timestamp)
+    {
+      super.setObject(objectDescription,object,keys,timestamp);
+    }
+
+    public synchronized void setObjectExpiration(Object objectDescription, long expirationTime)
+    {
+      super.setObjectExpiration(objectDescription,expirationTime);
+    }
+
+    public synchronized void setObjectClass(Object objectDescription, String objectClass, int maxCount)
+    {
+      super.setObjectClass(objectDescription,objectClass,maxCount);
+    }
+
+    public synchronized void invalidateKeys(StringSet keys)
+    {
+      super.invalidateKeys(keys);
+    }
+
+    public synchronized void expireRecords(long expireTime)
+    {
+      super.expireRecords(expireTime);
+    }
+  }
+
+}
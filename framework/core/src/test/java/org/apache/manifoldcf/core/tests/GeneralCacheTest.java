@@ -0,0 +1,160 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.cachemanager.GeneralCache;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Tests for the local object cache */
+public class GeneralCacheTest
+{
+
+  @Test
+  public void saveAndInvalidate()
+    throws Exception
+  {
+    GeneralCache cache = new GeneralCache();
+    cache.setObject("a","A",new StringSet("key1"),1000L);
+    cache.setObjectExpiration("a",5000L);
+    cache.setObjectClass("a","class",2);
+    assertEquals("A",cache.lookup("a"));
+    assertEquals(1000L,cache.getObjectCreationTime("a"));
+    assertEquals(5000L,cache.getObjectExpirationTime("a"));
+    cache.invalidateKeys(new StringSet("key1"));
+    assertNull(cache.lookup("a"));
+  }
+
+  @Test
+  public void leastRecentlyUsedIsRemoved()
+    throws Exception
+  {
+    GeneralCache cache = new GeneralCache();
+    cache.setObject("b","B",new StringSet("key2"),1000L);
+    cache.setObjectClass("b","class",2);
+    cache.setObject("c","C",new StringSet("key2"),1000L);
+    cache.setObjectClass("c","class",2);
+    // Touching "b" makes "c" the oldest
+    cache.setObjectClass("b","class",2);
+    cache.setObject("d","D",new StringSet("key3"),1000L);
+    cache.setObjectClass("d","class",2);
+    assertEquals("B",cache.lookup("b"));
+    assertNull(cache.lookup("c"));
+    assertEquals("D",cache.lookup("d"));
+  }
+
+  @Test
+  public void expirationAndReplacement()
+    throws Exception
+  {
+    GeneralCache cache = new GeneralCache();
+    cache.setObject("b","B",new StringSet("key2"),1000L);
+    cache.setObject("d","D",new StringSet("key3"),1000L);
+    cache.setObjectExpiration("b",2000L);
+    cache.setObjectExpiration("d",4000L);
+    cache.expireRecords(3000L);
+    assertNull(cache.lookup("b"));
+    assertEquals("D",cache.lookup("d"));
+    // Replacing an object must not let the old record's cleanup remove the new one
+    cache.setObject("d","D2",new StringSet("key4"),2000L);
+    cache.expireRecords(5000L);
+    assertEquals("D2",cache.lookup("d"));
+    cache.invalidateKeys(new StringSet("key3"));
+    assertEquals("D2",cache.lookup("d"));
+    cache.invalidateKeys(new StringSet("key4"));
+    assertNull(cache.lookup("d"));
+  }
+
+  @Test
+  public void concurrentUseKeepsClassLimitAndInvalidation()
+    throws Exception
+  {
+    final GeneralCache cache = new GeneralCache();
+    final int maxPerClass = 50;
+    final int descriptionCount = 1000;
+    Thread[] threads = new Thread[10];
+    final Throwable[] failure = new Throwable[1];
+    for (int i = 0; i < threads.length; i++)
+    {
+      final Random random = new Random(i);
+      threads[i] = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            for (int j = 0; j < 20000; j++)
+            {
+              int descriptionNumber = random.nextInt(descriptionCount);
+              String description = "description"+descriptionNumber;
+              if (random.nextInt(50) == 0)
+                cache.invalidateKeys(new StringSet("key"+(descriptionNumber % 10)));
+              else if (cache.lookup(description) == null)
+                cache.setObject(description,description,new StringSet("key"+(descriptionNumber % 10)),1000L);
+              cache.setObjectClass(description,"class",maxPerClass);
+            }
+          }
+          catch (Throwable e)
+          {
+            synchronized (failure)
+            {
+              failure[0] = e;
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+    synchronized (failure)
+    {
+      if (failure[0] != null)
+        throw new Exception("Cache thread failed: "+failure[0].getMessage(),failure[0]);
+    }
+
+    int present = 0;
+    for (int i = 0; i < descriptionCount; i++)
+    {
+      Object o = cache.lookup("description"+i);
+      if (o != null)
+      {
+        assertEquals("description"+i,o);
+        present++;
+      }
+    }
+    assertTrue("Cache holds "+present+" objects of a class limited to "+maxPerClass,present <= maxPerClass);
+
+    // Every object is reachable through its key
+    for (int i = 0; i < 10; i++)
+    {
+      cache.invalidateKeys(new StringSet("key"+i));
+    }
+    for (int i = 0; i < descriptionCount; i++)
+    {
+      assertNull(cache.lookup("description"+i));
+    }
+  }
+
+}
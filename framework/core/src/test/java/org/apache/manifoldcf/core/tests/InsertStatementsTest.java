@@ -0,0 +1,210 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.database.DBInterfaceHSQLDB;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Check how a multiple-row insert is split into statements: no statement may have more than the parameter limit,
+* and every row must be written exactly once, in order.
+*/
+public class InsertStatementsTest
+{
+
+  @Test
+  public void rowCountsAroundTheLimit()
+    throws Exception
+  {
+    int maxParameters = StatementBuilder.getMaxParameters();
+    int[] columnCounts = new int[]{1,2,3,7};
+    for (int columnCount : columnCounts)
+    {
+      int rowsPerStatement = maxParameters / columnCount;
+      // Below, at, and above what one statement can hold
+      int[] rowCounts = new int[]{1,rowsPerStatement-1,rowsPerStatement,rowsPerStatement+1,2*rowsPerStatement+1};
+      for (int rowCount : rowCounts)
+      {
+        String context = columnCount+" columns, "+rowCount+" rows";
+        List<Map<String,Object>> rows = makeRows(rowCount,columnCount);
+        List<Object[]> statements = StatementBuilder.build("test",rows,true);
+        assertEquals(context,(rowCount + rowsPerStatement - 1) / rowsPerStatement,statements.size());
+        for (int i = 0; i < statements.size(); i++)
+        {
+          String query = (String)statements.get(i)[0];
+          List<List> paramsList = (List<List>)statements.get(i)[1];
+          // A multiple-row statement is run once
+          assertEquals(context,1,paramsList.size());
+          int parameterCount = paramsList.get(0).size();
+          assertTrue(context,parameterCount <= maxParameters);
+          assertEquals(context,parameterCount,countParameters(query));
+          // Only the last statement may be short
+          if (i < statements.size() - 1)
+            assertEquals(context,rowsPerStatement * columnCount,parameterCount);
+        }
+        assertEquals(context,expectedParameters(rows),writtenParameters(statements));
+      }
+    }
+  }
+
+  @Test
+  public void oneRowPerStatementWithoutMultipleRowValues()
+    throws Exception
+  {
+    List<Map<String,Object>> rows = makeRows(2500,2);
+    List<Object[]> statements = StatementBuilder.build("test",rows,false);
+    // One statement, executed once per row
+    assertEquals(1,statements.size());
+    String query = (String)statements.get(0)[0];
+    assertEquals("INSERT INTO test (c0,c1) VALUES (?,?)",query);
+    assertEquals(2500,((List<List>)statements.get(0)[1]).size());
+    assertEquals(expectedParameters(rows),writtenParameters(statements));
+  }
+
+  @Test
+  public void oneRowPerStatementWhenARowIsOverTheLimit()
+    throws Exception
+  {
+    int columnCount = StatementBuilder.getMaxParameters() + 1;
+    List<Map<String,Object>> rows = makeRows(3,columnCount);
+    List<Object[]> statements = StatementBuilder.build("test",rows,true);
+    assertEquals(1,statements.size());
+    List<List> paramsList = (List<List>)statements.get(0)[1];
+    assertEquals(3,paramsList.size());
+    assertEquals(columnCount,countParameters((String)statements.get(0)[0]));
+    assertEquals(expectedParameters(rows),writtenParameters(statements));
+  }
+
+  @Test
+  public void rowsAreGroupedByTheColumnsTheySet()
+    throws Exception
+  {
+    List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
+    for (int i = 0; i < 6; i++)
+    {
+      Map<String,Object> row = new HashMap<String,Object>();
+      row.put("id",new Long(i));
+      // Null values are left out, so odd rows set one column fewer
+      row.put("name",(i % 2 == 0)?"row"+i:null);
+      rows.add(row);
+    }
+    List<Object[]> statements = StatementBuilder.build("test",rows,true);
+    assertEquals(2,statements.size());
+    assertEquals("INSERT INTO test (id,name) VALUES (?,?),(?,?),(?,?)",statements.get(0)[0]);
+    assertEquals("INSERT INTO test (id) VALUES (?),(?),(?)",statements.get(1)[0]);
+    List evenParameters = ((List<List>)statements.get(0)[1]).get(0);
+    assertEquals(Arrays.asList(new Object[]{new Long(0),"row0",new Long(2),"row2",new Long(4),"row4"}),evenParameters);
+    List oddParameters = ((List<List>)statements.get(1)[1]).get(0);
+    assertEquals(Arrays.asList(new Object[]{new Long(1),new Long(3),new Long(5)}),oddParameters);
+  }
+
+  @Test
+  public void noRowsNoStatements()
+    throws Exception
+  {
+    assertEquals(0,StatementBuilder.build("test",new ArrayList<Map<String,Object>>(),true).size());
+  }
+
+  /** Make rows whose every value is distinct, so that a lost or repeated row shows up */
+  protected static List<Map<String,Object>> makeRows(int rowCount, int columnCount)
+  {
+    List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
+    for (int i = 0; i < rowCount; i++)
+    {
+      Map<String,Object> row = new HashMap<String,Object>();
+      for (int j = 0; j < columnCount; j++)
+      {
+        row.put("c"+j,"r"+i+"c"+j);
+      }
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  /** The parameters of all the rows, in row order and with the columns in the order the statements list them */
+  protected static List expectedParameters(List<Map<String,Object>> rows)
+  {
+    List rval = new ArrayList();
+    for (Map<String,Object> row : rows)
+    {
+      List<String> columns = new ArrayList<String>(row.keySet());
+      Collections.sort(columns);
+      for (String column : columns)
+      {
+        rval.add(row.get(column));
+      }
+    }
+    return rval;
+  }
+
+  protected static List writtenParameters(List<Object[]> statements)
+  {
+    List rval = new ArrayList();
+    for (Object[] statement : statements)
+    {
+      for (List params : (List<List>)statement[1])
+      {
+        rval.addAll(params);
+      }
+    }
+    return rval;
+  }
+
+  protected static int countParameters(String query)
+  {
+    int rval = 0;
+    for (int i = 0; i < query.length(); i++)
+    {
+      if (query.charAt(i) == '?')
+        rval++;
+    }
+    return rval;
+  }
+
+  /** Reaches the statement building that the database implementations share.  Never constructed.
+  */
+  protected static class StatementBuilder extends DBInterfaceHSQLDB
+  {
+    private StatementBuilder()
+      throws ManifoldCFException
+    {
+      super(null,null,null,null);
+    }
+
+    public static int getMaxParameters()
+    {
+      return MAX_INSERT_PARAMETERS;
+    }
+
+    /** Build the statements; each comes back as its query and its parameter lists */
+    public static List<Object[]> build(String tableName, List<Map<String,Object>> rows, boolean multipleRowValues)
+    {
+      List<Object[]> rval = new ArrayList<Object[]>();
+      for (InsertStatement statement : buildInsertStatements(tableName,rows,multipleRowValues))
+      {
+        rval.add(new Object[]{statement.getQuery(),statement.getParamsList()});
+      }
+      return rval;
+    }
+  }
+
+}
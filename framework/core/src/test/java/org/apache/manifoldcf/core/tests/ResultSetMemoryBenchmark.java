@@ -0,0 +1,174 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.database.*;
+
+import java.util.*;
+import org.junit.*;
+
+/** Heap benchmark for ColumnarResultSet.  Resultsets shaped like the jobqueue scans JobManager does are built
+* both as an RSet of RRow maps, which is how query results used to be held, and as a ColumnarResultSet, and the
+* heap each one retains is compared.  Values are made the way a JDBC driver makes them: a new String and a new
+* Long for every column of every row.  The numbers depend on the JVM and on System.gc() settling, so this is run
+* by hand with -Dtest=ResultSetMemoryBenchmark or -Pbenchmark, and ColumnarResultSetTest covers the behavior.
+*/
+public class ResultSetMemoryBenchmark
+{
+  protected final static int rowCount = 200000;
+
+  /** Columns of a full jobqueue row, as the document status report and the job cleanup queries read them */
+  protected final static String[] queueColumns = new String[]{"id","jobid","dochash","docid","status",
+    "checktime","checkaction","failtime","failcount","priorityset"};
+  /** Columns read when stuffing documents */
+  protected final static String[] stuffColumns = new String[]{"id","jobid","docid","dochash","status"};
+
+  @Test
+  public void memoryUse()
+    throws Exception
+  {
+    reportMemory("jobqueue scan",queueColumns);
+    reportMemory("document stuffing",stuffColumns);
+  }
+
+  protected static void reportMemory(String description, String[] columns)
+  {
+    // Warm up, so that class loading and JIT do not show up in the numbers
+    buildRSet(columns,1000);
+    buildColumnar(columns,1000);
+
+    long base = usedMemory();
+    IResultSet rset = buildRSet(columns,rowCount);
+    long rsetBytes = usedMemory() - base;
+    checkSame(rset,buildColumnar(columns,100),100);
+    rset = null;
+
+    base = usedMemory();
+    IResultSet columnar = buildColumnar(columns,rowCount);
+    long columnarBytes = usedMemory() - base;
+    Assert.assertEquals(rowCount,columnar.getRowCount());
+
+    System.out.println("Resultset memory, "+description+", "+rowCount+" rows: RSet "+
+      (rsetBytes/rowCount)+" bytes/row, ColumnarResultSet "+(columnarBytes/rowCount)+" bytes/row");
+  }
+
+  protected static void checkSame(IResultSet expected, IResultSet actual, int count)
+  {
+    for (int i = 0; i < count; i++)
+    {
+      IResultRow expectedRow = expected.getRow(i);
+      IResultRow actualRow = actual.getRow(i);
+      Iterator<String> iter = expectedRow.getColumns();
+      while (iter.hasNext())
+      {
+        String name = iter.next();
+        Assert.assertEquals(expectedRow.getValue(name),actualRow.getValue(name));
+      }
+    }
+  }
+
+  protected static IResultSet buildRSet(String[] columns, int count)
+  {
+    RSet set = new RSet();
+    for (int i = 0; i < count; i++)
+    {
+      Object[] values = makeRow(columns,i);
+      RRow row = new RRow();
+      for (int j = 0; j < columns.length; j++)
+      {
+        row.put(columns[j],values[j]);
+      }
+      set.addRow(row);
+    }
+    return set;
+  }
+
+  protected static IResultSet buildColumnar(String[] columns, int count)
+  {
+    ColumnarResultSet set = new ColumnarResultSet(columns);
+    for (int i = 0; i < count; i++)
+    {
+      set.addRow(makeRow(columns,i));
+    }
+    return set;
+  }
+
+  /** Make the values of a row the way the database would hand them back. */
+  protected static Object[] makeRow(String[] columns, int rowNumber)
+  {
+    Object[] values = new Object[columns.length];
+    for (int j = 0; j < columns.length; j++)
+    {
+      String name = columns[j];
+      Object value;
+      if (name.equals("id"))
+        value = new Long(1300000000000L + rowNumber);
+      else if (name.equals("jobid"))
+        value = new Long(1290000000000L + (rowNumber % 3));
+      else if (name.equals("dochash"))
+        value = new String(hashOf(rowNumber));
+      else if (name.equals("docid"))
+        value = new String("http://www.example.com/site/section"+(rowNumber % 97)+"/document"+rowNumber+".html");
+      else if (name.equals("status"))
+        value = new String((rowNumber % 5 == 0)?"C":"P");
+      else if (name.equals("checktime"))
+        value = new Long(1300000000000L + rowNumber * 1000L);
+      else if (name.equals("checkaction"))
+        value = new String("R");
+      else if (name.equals("failtime") || name.equals("failcount"))
+        value = (rowNumber % 10 == 0)?new Long(rowNumber):null;
+      else if (name.equals("priorityset"))
+        value = new Long(1300000000000L);
+      else
+        value = null;
+      values[j] = value;
+    }
+    return values;
+  }
+
+  protected static String hashOf(int value)
+  {
+    StringBuilder sb = new StringBuilder();
+    Random random = new Random(value);
+    for (int i = 0; i < 40; i++)
+    {
+      sb.append(Character.forDigit(random.nextInt(16),16));
+    }
+    return sb.toString();
+  }
+
+  protected static long usedMemory()
+  {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 4; i++)
+    {
+      System.gc();
+      try
+      {
+        Thread.sleep(100L);
+      }
+      catch (InterruptedException e)
+      {
+        break;
+      }
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
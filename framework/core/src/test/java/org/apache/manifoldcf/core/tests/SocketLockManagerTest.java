@@ -0,0 +1,235 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.lockmanager.LockClient;
+import org.apache.manifoldcf.core.lockmanager.LockServer;
+import org.apache.manifoldcf.core.lockmanager.SocketLockManager;
+
+import java.io.*;
+import java.net.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Tests for what the socket lock manager does when its connection to the lock server drops.  Two
+* clients stand in for two processes.
+*/
+public class SocketLockManagerTest extends Base
+{
+  protected LockServer server = null;
+  protected TestLockClient client1 = null;
+  protected TestLockClient client2 = null;
+
+  protected void localSetUp()
+    throws Exception
+  {
+    ServerSocket probe = new ServerSocket(0);
+    int port = probe.getLocalPort();
+    probe.close();
+    server = new LockServer(InetAddress.getByName("localhost"),port);
+    Thread serverThread = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            server.run();
+          }
+          catch (IOException e)
+          {
+            e.printStackTrace();
+          }
+        }
+      };
+    serverThread.setDaemon(true);
+    serverThread.start();
+    client1 = new TestLockClient("localhost",port);
+    client2 = new TestLockClient("localhost",port);
+  }
+
+  protected void localReset()
+    throws Exception
+  {
+  }
+
+  protected void localCleanUp()
+    throws Exception
+  {
+    if (server != null)
+      server.shutdown();
+  }
+
+  @Test
+  public void lostLockThrowsOnLeave()
+    throws Exception
+  {
+    TestLockManager holder = new TestLockManager(client1);
+    holder.enterWriteLock("a");
+    client1.dropConnection();
+
+    // The server gave the lock up when the connection went
+    TestLockManager other = new TestLockManager(client2);
+    other.enterWriteLock("a");
+    try
+    {
+      holder.leaveWriteLock("a");
+      fail("Leaving a lost lock should throw");
+    }
+    catch (ManifoldCFException e)
+    {
+      // Expected
+    }
+    other.leaveWriteLock("a");
+
+    // It was still released locally
+    holder.enterWriteLock("a");
+    holder.leaveWriteLock("a");
+  }
+
+  @Test
+  public void newLocksRefusedWhileLostLockIsHeldElsewhere()
+    throws Exception
+  {
+    TestLockManager holder = new TestLockManager(client1);
+    holder.enterWriteLock("a");
+    client1.dropConnection();
+    TestLockManager other = new TestLockManager(client2);
+    other.enterWriteLock("a");
+
+    TestLockManager second = new TestLockManager(client1);
+    try
+    {
+      second.enterWriteLock("b");
+      fail("No new lock should be granted while a lost lock is held elsewhere");
+    }
+    catch (ManifoldCFException e)
+    {
+      // Expected
+    }
+    // Critical sections never leave the JVM, so they are not affected
+    second.enterWriteCriticalSection("a");
+    second.leaveWriteCriticalSection("a");
+
+    other.leaveWriteLock("a");
+    // Releases are not acknowledged, so make a round trip to be sure the server has seen it
+    client2.checkGlobalFlag("sync");
+    // Now "a" can be obtained again, so new locks are granted
+    second.enterWriteLock("b");
+    second.leaveWriteLock("b");
+    // ... but the thread that was in "a" when it was lost is still told
+    try
+    {
+      holder.leaveWriteLock("a");
+      fail("Leaving a lost lock should throw");
+    }
+    catch (ManifoldCFException e)
+    {
+      // Expected
+    }
+  }
+
+  @Test
+  public void sharedReadLockOnlyThrowsForThreadsInsideWhenLost()
+    throws Exception
+  {
+    TestLockManager first = new TestLockManager(client1);
+    first.enterReadLock("r");
+    client1.dropConnection();
+
+    // This thread joins the read lock after it has been obtained again
+    TestLockManager second = new TestLockManager(client1);
+    second.enterReadLock("r");
+    second.leaveReadLock("r");
+    try
+    {
+      first.leaveReadLock("r");
+      fail("Leaving a lost lock should throw");
+    }
+    catch (ManifoldCFException e)
+    {
+      // Expected
+    }
+
+    // Nothing is held any more
+    TestLockManager other = new TestLockManager(client2);
+    other.enterWriteLock("r");
+    other.leaveWriteLock("r");
+  }
+
+  @Test
+  public void leaveLocksReleasesAllAndNamesLostOnes()
+    throws Exception
+  {
+    TestLockManager holder = new TestLockManager(client1);
+    holder.enterLocks(new String[]{"r"},null,new String[]{"w"});
+    client1.dropConnection();
+    try
+    {
+      holder.leaveLocks(new String[]{"r"},null,new String[]{"w"});
+      fail("Leaving lost locks should throw");
+    }
+    catch (ManifoldCFException e)
+    {
+      assertTrue(e.getMessage(),e.getMessage().indexOf("'r'") != -1);
+      assertTrue(e.getMessage(),e.getMessage().indexOf("'w'") != -1);
+    }
+
+    // Both were released, so there is nothing left to obtain again
+    holder.enterWriteLock("w");
+    holder.leaveWriteLock("w");
+    holder.enterWriteLock("r");
+    holder.leaveWriteLock("r");
+  }
+
+  /** A lock client whose connection can be broken on demand */
+  protected static class TestLockClient extends LockClient
+  {
+    public TestLockClient(String host, int port)
+    {
+      super(host,port);
+    }
+
+    /** Break the connection as a network failure would, and wait until the client has noticed.
+    */
+    public void dropConnection()
+      throws InterruptedException
+    {
+      Thread reader;
+      synchronized (this)
+      {
+        if (socket == null)
+          return;
+        closeQuietly(socket);
+        reader = readerThread;
+      }
+      reader.join(10000L);
+      assertFalse(reader.isAlive());
+    }
+  }
+
+  protected static class TestLockManager extends SocketLockManager
+  {
+    public TestLockManager(LockClient lockClient)
+    {
+      super(lockClient);
+    }
+  }
+
+}
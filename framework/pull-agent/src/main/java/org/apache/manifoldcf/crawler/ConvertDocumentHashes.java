@@ -0,0 +1,69 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.system.*;
+
+/** This class converts the document identifier hashes stored in the database between the hexadecimal
+* form and the compact form, which is about 32% smaller.  It must be run while no agents are running, and the
+* org.apache.manifoldcf.database.compacthashes property must be changed to match before they are started again.
+* The conversion can be rerun safely if it is interrupted.
+*/
+public class ConvertDocumentHashes
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  private ConvertDocumentHashes()
+  {
+  }
+
+  public static void main(String[] args)
+  {
+    if (args.length != 1 || !(args[0].equals("compact") || args[0].equals("hex")))
+    {
+      System.err.println("Usage: ConvertDocumentHashes compact|hex");
+      System.err.println("  compact: store document identifier hashes as 27 base64 characters instead of 40 hexadecimal");
+      System.err.println("           characters, which saves about 32% of the space each hash takes");
+      System.err.println("  hex:     convert compact hashes back to hexadecimal");
+      System.exit(1);
+    }
+
+    boolean toCompact = args[0].equals("compact");
+
+    try
+    {
+      ManifoldCF.initializeEnvironment();
+      IThreadContext tc = ThreadContextFactory.make();
+      IJobManager jobManager = JobManagerFactory.make(tc);
+      jobManager.convertDocumentHashes(toCompact);
+      IIncrementalIngester ingester = IncrementalIngesterFactory.make(tc);
+      ingester.convertDocumentHashes(toCompact);
+      System.err.println("Document hashes converted; now set "+ManifoldCF.compactHashesProperty+" to '"+(toCompact?"true":"false")+"'");
+    }
+    catch (Exception e)
+    {
+      e.printStackTrace();
+      System.exit(2);
+    }
+  }
+
+}
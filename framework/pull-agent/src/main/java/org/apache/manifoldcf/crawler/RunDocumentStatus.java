@@ -52,7 +52,7 @@ public class RunDocumentStatus
       System.err.println("    for ascending or descending; the legal field names are: 'identifier', 'job', 'state', 'status',");
       System.err.println("    'scheduled', 'action', 'retrycount', 'retrylimit'");
       System.err.println("<start_row> is the number of the first row to include, starting with 0");
-      System.err.println("<row_count> is the maximum number of rows to include");
+      System.err.println("<row_count> is the maximum number of rows to include, or -1 for all of them");
       System.err.println("");
       System.err.println("The printed result will be UTF-8 encoded and has the following columns, in order:");
       System.err.println("    doc_identifier, job_description, document_state, document_status,");
@@ -84,23 +84,29 @@ public class RunDocumentStatus
       int startRowValue = Integer.parseInt(startRow);
       int rowCountValue = Integer.parseInt(rowCount);
 
-      IResultSet result = jobManager.genDocumentStatus(connectionName,filter,sortOrderValue,startRowValue,rowCountValue);
-      int i = 0;
-      while (i < result.getRowCount())
+      IResultCursor result = jobManager.genDocumentStatusCursor(connectionName,filter,sortOrderValue,startRowValue,rowCountValue);
+      try
       {
-        IResultRow row = result.getRow(i++);
-        Long scheduled = (Long)row.getValue("scheduled");
-        String action = (String)row.getValue("action");
-        Long retrycount = (Long)row.getValue("retrycount");
-        Long retrylimit = (Long)row.getValue("retrylimit");
-        UTF8Stdout.println(commaEscape((String)row.getValue("identifier"))+","+
-          row.getValue("job").toString()+","+
-          row.getValue("state").toString()+","+
-          row.getValue("status").toString()+","+
-          ((scheduled==null)?"":scheduled.toString())+","+
-          ((action==null)?"":action)+","+
-          ((retrycount==null)?"":retrycount.toString())+","+
-          ((retrylimit==null)?"":retrylimit.toString()) );
+        while (result.hasNext())
+        {
+          IResultRow row = result.next();
+          Long scheduled = (Long)row.getValue("scheduled");
+          String action = (String)row.getValue("action");
+          Long retrycount = (Long)row.getValue("retrycount");
+          Long retrylimit = (Long)row.getValue("retrylimit");
+          UTF8Stdout.println(commaEscape((String)row.getValue("identifier"))+","+
+            row.getValue("job").toString()+","+
+            row.getValue("state").toString()+","+
+            row.getValue("status").toString()+","+
+            ((scheduled==null)?"":scheduled.toString())+","+
+            ((action==null)?"":action)+","+
+            ((retrycount==null)?"":retrycount.toString())+","+
+            ((retrylimit==null)?"":retrylimit.toString()) );
+        }
+      }
+      finally
+      {
+        result.close();
       }
       System.err.println("Status query done");
     }
@@ -54,7 +54,7 @@ public class RunQueueStatus
       System.err.println("    'processwaiting', 'expirewaiting', 'waitingforever'");
       System.err.println("<bucket_regexp> is the regular expression which identifies a document's bucket from its identifier");
       System.err.println("<start_row> is the number of the first row to include, starting with 0");
-      System.err.println("<row_count> is the maximum number of rows to include");
+      System.err.println("<row_count> is the maximum number of rows to include, or -1 for all of them");
       System.err.println("");
       System.err.println("The printed result is UTF-8 encoded and has the following columns, in order:");
       System.err.println("    id_bucket, inactive_count, processing_count, expiring_count, deleting_count,");
@@ -87,22 +87,28 @@ public class RunQueueStatus
       int rowCountValue = Integer.parseInt(rowCount);
       BucketDescription bucketDescription = parseBucketDescription(bucketRegexp);
 
-      IResultSet result = jobManager.genQueueStatus(connectionName,filter,sortOrderValue,bucketDescription,startRowValue,rowCountValue);
-      int i = 0;
-      while (i < result.getRowCount())
+      IResultCursor result = jobManager.genQueueStatusCursor(connectionName,filter,sortOrderValue,bucketDescription,startRowValue,rowCountValue);
+      try
       {
-        IResultRow row = result.getRow(i++);
-        UTF8Stdout.println(commaEscape((String)row.getValue("idbucket"))+","+
-          row.getValue("inactive").toString()+","+
-          row.getValue("processing").toString()+","+
-          row.getValue("expiring").toString()+","+
-          row.getValue("deleting").toString()+","+
-          row.getValue("processready").toString()+","+
-          row.getValue("expireready").toString()+","+
-          row.getValue("processwaiting").toString()+","+
-          row.getValue("expirewaiting").toString()+","+
-          row.getValue("waitingforever").toString());
+        while (result.hasNext())
+        {
+          IResultRow row = result.next();
+          UTF8Stdout.println(commaEscape((String)row.getValue("idbucket"))+","+
+            row.getValue("inactive").toString()+","+
+            row.getValue("processing").toString()+","+
+            row.getValue("expiring").toString()+","+
+            row.getValue("deleting").toString()+","+
+            row.getValue("processready").toString()+","+
+            row.getValue("expireready").toString()+","+
+            row.getValue("processwaiting").toString()+","+
+            row.getValue("expirewaiting").toString()+","+
+            row.getValue("waitingforever").toString());
 
+        }
+      }
+      finally
+      {
+        result.close();
       }
       System.err.println("Status query done");
     }
@@ -84,15 +84,21 @@ public class RunResultHistory
       int startRowValue = Integer.parseInt(startRow);
       int rowCountValue = Integer.parseInt(rowCount);
 
-      IResultSet result = connManager.genHistoryResultCodes(connectionName,filter,sortOrderValue,resultBucket,entityBucket,startRowValue,rowCountValue);
-      int i = 0;
-      while (i < result.getRowCount())
+      IResultCursor result = connManager.genHistoryResultCodesCursor(connectionName,filter,sortOrderValue,resultBucket,entityBucket,startRowValue,rowCountValue);
+      try
       {
-        IResultRow row = result.getRow(i++);
-
-        UTF8Stdout.println(commaEscape((String)row.getValue("idbucket"))+","+
-          commaEscape((String)row.getValue("resultcodebucket"))+","+
-          row.getValue("eventcount").toString());
+        while (result.hasNext())
+        {
+          IResultRow row = result.next();
+
+          UTF8Stdout.println(commaEscape((String)row.getValue("idbucket"))+","+
+            commaEscape((String)row.getValue("resultcodebucket"))+","+
+            row.getValue("eventcount").toString());
+        }
+      }
+      finally
+      {
+        result.close();
       }
       System.err.println("History query done");
     }
@@ -79,25 +79,31 @@ public class RunSimpleHistory
       int startRowValue = Integer.parseInt(startRow);
       int rowCountValue = Integer.parseInt(rowCount);
 
-      IResultSet result = connManager.genHistorySimple(connectionName,filter,sortOrderValue,startRowValue,rowCountValue);
-      int i = 0;
-      while (i < result.getRowCount())
+      IResultCursor result = connManager.genHistorySimpleCursor(connectionName,filter,sortOrderValue,startRowValue,rowCountValue);
+      try
       {
-        IResultRow row = result.getRow(i++);
-
-        Long startTimeValue = (Long)row.getValue("starttime");
-        Long elapsedTimeValue = (Long)row.getValue("elapsedtime");
-        String resultCodeValue = (String)row.getValue("resultcode");
-        String resultDescValue = (String)row.getValue("resultdesc");
-        Long bytesValue = (Long)row.getValue("bytes");
-
-        UTF8Stdout.println(commaEscape((String)row.getValue("identifier"))+","+
-          commaEscape((String)row.getValue("activity"))+","+
-          ((startTimeValue==null)?"":startTimeValue.toString())+","+
-          ((elapsedTimeValue==null)?"":elapsedTimeValue.toString())+","+
-          ((resultCodeValue==null)?"":commaEscape(resultCodeValue))+","+
-          ((resultDescValue==null)?"":commaEscape(resultDescValue))+","+
-          ((bytesValue==null)?"":bytesValue.toString()));
+        while (result.hasNext())
+        {
+          IResultRow row = result.next();
+
+          Long startTimeValue = (Long)row.getValue("starttime");
+          Long elapsedTimeValue = (Long)row.getValue("elapsedtime");
+          String resultCodeValue = (String)row.getValue("resultcode");
+          String resultDescValue = (String)row.getValue("resultdesc");
+          Long bytesValue = (Long)row.getValue("bytes");
+
+          UTF8Stdout.println(commaEscape((String)row.getValue("identifier"))+","+
+            commaEscape((String)row.getValue("activity"))+","+
+            ((startTimeValue==null)?"":startTimeValue.toString())+","+
+            ((elapsedTimeValue==null)?"":elapsedTimeValue.toString())+","+
+            ((resultCodeValue==null)?"":commaEscape(resultCodeValue))+","+
+            ((resultDescValue==null)?"":commaEscape(resultDescValue))+","+
+            ((bytesValue==null)?"":bytesValue.toString()));
+        }
+      }
+      finally
+      {
+        result.close();
       }
       System.err.println("History query done");
     }
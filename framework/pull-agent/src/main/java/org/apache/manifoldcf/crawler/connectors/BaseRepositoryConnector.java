@@ -104,6 +104,25 @@ public abstract class BaseRepositoryConnector extends org.apache.manifoldcf.core
     return new String[]{""};
   }
 
+  /** Get the bin name strings for a set of document identifiers.  This is equivalent to calling getBinNames()
+  * for each identifier in turn, but allows the crawler to compute the bins for a whole batch of documents with
+  * one connector instance.
+  *@param documentIdentifiers are the document identifiers.
+  *@return the set of bin names for each identifier, in the same order.
+  */
+  public String[][] getBinNames(String[] documentIdentifiers)
+  {
+    // Base version calls the single-document method for each identifier
+    String[][] rval = new String[documentIdentifiers.length][];
+    int i = 0;
+    while (i < documentIdentifiers.length)
+    {
+      rval[i] = getBinNames(documentIdentifiers[i]);
+      i++;
+    }
+    return rval;
+  }
+
   /** Request arbitrary connector information.
   * This method is called directly from the API in order to allow API users to perform any one of several connector-specific
   * queries.
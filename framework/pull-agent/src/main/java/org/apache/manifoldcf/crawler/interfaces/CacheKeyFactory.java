@@ -81,6 +81,33 @@ public class CacheKeyFactory extends org.apache.manifoldcf.agents.interfaces.Cac
     return "JOB_"+jobID;
   }
 
+  /** Construct a key which represents the cached hopcount distances for a job.
+  *@param jobID is the job identifier.
+  *@return the cache key.
+  */
+  public static String makeHopCountDistancesKey(String jobID)
+  {
+    return "HOPCOUNTDISTANCES_"+jobID;
+  }
+
+  /** Construct a key which represents all the cached carrydown data.
+  *@return the cache key.
+  */
+  public static String makeCarrydownsKey()
+  {
+    return "CARRYDOWNS";
+  }
+
+  /** Construct a key which represents the cached carrydown data for a child document in a job.
+  *@param jobID is the job identifier.
+  *@param childIDHash is the child document identifier hash.
+  *@return the cache key.
+  */
+  public static String makeCarrydownKey(String jobID, String childIDHash)
+  {
+    return "CARRYDOWN_"+jobID+"_"+childIDHash;
+  }
+
   /** Construct a key which represents the collective statuses of all jobs.
   *@return the cache key.
   */
@@ -63,6 +63,13 @@ public interface IJobManager
   public void deinstall()
     throws ManifoldCFException;
 
+  /** Convert the document identifier hashes in the job manager's tables between hexadecimal and compact
+  * form.  This should only be done while the crawler is not running.
+  *@param toCompact is true to convert to compact form, false to convert to hexadecimal form.
+  */
+  public void convertDocumentHashes(boolean toCompact)
+    throws ManifoldCFException;
+
   /** Export configuration */
   public void exportConfiguration(java.io.OutputStream os)
     throws java.io.IOException, ManifoldCFException;
@@ -1019,6 +1026,19 @@ public interface IJobManager
     int startRow, int rowCount)
     throws ManifoldCFException;
 
+  /** Run a 'document status' report, reading the rows through a cursor.  Use this rather than genDocumentStatus()
+  * when the report may be very large.
+  *@param connectionName is the name of the connection.
+  *@param filterCriteria are the criteria used to limit the records considered for the report.
+  *@param sortOrder is the specified sort order of the final report.
+  *@param startRow is the first row to include.
+  *@param rowCount is the number of rows to include, or -1 for all.
+  *@return a cursor over the results, which the caller must close.  The columns are as for genDocumentStatus().
+  */
+  public IResultCursor genDocumentStatusCursor(String connectionName, StatusFilterCriteria filterCriteria, SortOrder sortOrder,
+    int startRow, int rowCount)
+    throws ManifoldCFException;
+
   /** Run a 'queue status' report.
   *@param connectionName is the name of the connection.
   *@param filterCriteria are the criteria used to limit the records considered for the report.
@@ -1032,4 +1052,18 @@ public interface IJobManager
   public IResultSet genQueueStatus(String connectionName, StatusFilterCriteria filterCriteria, SortOrder sortOrder,
     BucketDescription idBucketDescription, int startRow, int rowCount)
     throws ManifoldCFException;
+
+  /** Run a 'queue status' report, reading the rows through a cursor.  Use this rather than genQueueStatus()
+  * when the report may be very large.
+  *@param connectionName is the name of the connection.
+  *@param filterCriteria are the criteria used to limit the records considered for the report.
+  *@param sortOrder is the specified sort order of the final report.
+  *@param idBucketDescription is the bucket description for generating the identifier class.
+  *@param startRow is the first row to include.
+  *@param rowCount is the number of rows to include, or -1 for all.
+  *@return a cursor over the results, which the caller must close.  The columns are as for genQueueStatus().
+  */
+  public IResultCursor genQueueStatusCursor(String connectionName, StatusFilterCriteria filterCriteria, SortOrder sortOrder,
+    BucketDescription idBucketDescription, int startRow, int rowCount)
+    throws ManifoldCFException;
 }
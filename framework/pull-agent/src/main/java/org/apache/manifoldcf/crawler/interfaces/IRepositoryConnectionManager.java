@@ -172,6 +172,28 @@ public interface IRepositoryConnectionManager
     String entityIdentifier, String resultCode, String resultDescription, String[] childIdentifiers)
     throws ManifoldCFException;
 
+  /** Start buffering history records in memory, so that recordHistory() no longer writes to the database
+  * itself.  Once buffering is on, flushHistory() must be called regularly to write the records out.
+  *@param maxRecords is the most records to hold at once; when the buffer is full, recordHistory() writes
+  *       synchronously instead.
+  */
+  public void startHistoryBuffering(int maxRecords)
+    throws ManifoldCFException;
+
+  /** Write buffered history records to the database, in batches.  If fewer than a full batch of records
+  * is waiting, this first waits up to the given time for more to arrive.
+  *@param maxWaitTime is the longest time to wait for records, in milliseconds.
+  *@return the number of records written.
+  */
+  public int flushHistory(long maxWaitTime)
+    throws ManifoldCFException;
+
+  /** Stop buffering history records.  Records still in the buffer are either written or discarded.
+  *@param discard is true if the remaining records should be thrown away rather than written.
+  */
+  public void stopHistoryBuffering(boolean discard)
+    throws ManifoldCFException;
+
   /** Generate a report, listing the start time, elapsed time, result code and description, number of bytes, and entity identifier.
   * The records selected for this report are based on the filtering criteria object passed into this method.
   * The record order is based on the sorting criteria object passed into this method.
@@ -185,6 +207,18 @@ public interface IRepositoryConnectionManager
   public IResultSet genHistorySimple(String connectionName, FilterCriteria criteria, SortOrder sort, int startRow, int maxRowCount)
     throws ManifoldCFException;
 
+  /** Generate a simple history report, reading the rows through a cursor.  Use this rather than genHistorySimple()
+  * when the report may be very large.  The columns are as for genHistorySimple().
+  *@param connectionName is the name of the connection.
+  *@param criteria is the filtering criteria, which selects the records of interest.
+  *@param sort is the sorting order, which can specify sort based on the result columns.
+  *@param startRow is the first row to include (beginning with 0)
+  *@param maxRowCount is the maximum number of rows to include, or -1 for all.
+  *@return a cursor over the results, which the caller must close.
+  */
+  public IResultCursor genHistorySimpleCursor(String connectionName, FilterCriteria criteria, SortOrder sort, int startRow, int maxRowCount)
+    throws ManifoldCFException;
+
   /** Count the number of rows specified by a given set of criteria.  This can be used to make decisions
   * as to whether a query based on those rows will complete in an acceptable amount of time.
   *@param connectionName is the name of the connection.
@@ -259,5 +293,20 @@ public interface IRepositoryConnectionManager
     BucketDescription resultCodeBucket, BucketDescription idBucket, int startRow, int maxRowCount)
     throws ManifoldCFException;
 
+  /** Generate a result code report, reading the rows through a cursor.  Use this rather than genHistoryResultCodes()
+  * when the report may be very large.  The columns are as for genHistoryResultCodes().
+  *@param connectionName is the name of the connection.
+  *@param criteria is the filtering criteria, which selects the records of interest.
+  *@param sort is the sorting order, which can specify sort based on the result columns.
+  *@param resultCodeBucket is the description of the bucket based on processed result codes.
+  *@param idBucket is the description of the bucket based on processed entity identifiers.
+  *@param startRow is the first row to include (beginning with 0)
+  *@param maxRowCount is the maximum number of rows to include, or -1 for all.
+  *@return a cursor over the results, which the caller must close.
+  */
+  public IResultCursor genHistoryResultCodesCursor(String connectionName, FilterCriteria criteria, SortOrder sort,
+    BucketDescription resultCodeBucket, BucketDescription idBucket, int startRow, int maxRowCount)
+    throws ManifoldCFException;
+
 
 }
@@ -121,6 +121,15 @@ public interface IRepositoryConnector extends IConnector
   */
   public String[] getBinNames(String documentIdentifier);
 
+  /** Get the bin name strings for a set of document identifiers.  This is equivalent to calling getBinNames()
+  * for each identifier in turn, but allows the crawler to compute the bins for a whole batch of documents with
+  * one connector instance.
+  * The connector must be connected for this method to be called.
+  *@param documentIdentifiers are the document identifiers.
+  *@return the set of bin names for each identifier, in the same order.
+  */
+  public String[][] getBinNames(String[] documentIdentifiers);
+
   /** Request arbitrary connector information.
   * This method is called directly from the API in order to allow API users to perform any one of several
   * connector-specific queries.  These are usually used to create external UI's.  The connector will be
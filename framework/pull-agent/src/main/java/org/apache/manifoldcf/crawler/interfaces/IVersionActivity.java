@@ -29,4 +29,13 @@ public interface IVersionActivity extends IHistoryActivity, IEventActivity, IAbo
 {
   public static final String _rcsid = "@(#)$Id: IVersionActivity.java 988245 2010-08-23 18:39:35Z kwright $";
 
+  /** Check whether a document would only be scanned if its version string came back unchanged, and whether it would
+  * then keep the links it had before, even those that processing does not report again.  Only if both are true may a
+  * connector skip fetching an unchanged document's content, since then nothing needs the content or the links in it.
+  *@param localIdentifier is the document identifier.
+  *@return true if an unchanged version of the document needs neither its content nor its links.
+  */
+  public boolean checkUnchangedDocumentKeepsLinks(String localIdentifier)
+    throws ManifoldCFException;
+
 }
@@ -84,6 +84,10 @@ public class QueueTracker
   /** This hash table is keyed by a String (which is the bin name), and contains a HashMap of PriorityKey objects containing that String as a bin */
   protected HashMap binDependencies = new HashMap();
 
+  /** These are the listeners that want to hear about changes to the active bin counts.  The array is replaced, never modified,
+  * so that it can be read without locking. */
+  protected volatile ActiveBinCountListener[] activeBinCountListeners = new ActiveBinCountListener[0];
+
 
   /** Constructor */
   public QueueTracker()
@@ -116,6 +120,42 @@ public class QueueTracker
     }
   }
 
+  /** Register a listener that wants to be told whenever an active bin count changes.
+  * Assignment ratings (see calculateAssignmentRating()) depend only on the active bin counts, so
+  * a listener can use this to know when a rating it has saved may be out of date.
+  *@param listener is the listener.
+  */
+  public synchronized void addActiveBinCountListener(ActiveBinCountListener listener)
+  {
+    ActiveBinCountListener[] newListeners = new ActiveBinCountListener[activeBinCountListeners.length + 1];
+    System.arraycopy(activeBinCountListeners,0,newListeners,0,activeBinCountListeners.length);
+    newListeners[activeBinCountListeners.length] = listener;
+    activeBinCountListeners = newListeners;
+  }
+
+  /** Remove an active bin count listener.
+  *@param listener is the listener.
+  */
+  public synchronized void removeActiveBinCountListener(ActiveBinCountListener listener)
+  {
+    List<ActiveBinCountListener> newListeners = new ArrayList<ActiveBinCountListener>(Arrays.asList(activeBinCountListeners));
+    newListeners.remove(listener);
+    activeBinCountListeners = newListeners.toArray(new ActiveBinCountListener[0]);
+  }
+
+  /** Tell the listeners that active bin counts have changed.  This must be called without
+  * holding the activeBinCounts lock, since listeners may need to calculate ratings.
+  */
+  protected void noteActiveBinCountsChanged(String[] binNames)
+  {
+    ActiveBinCountListener[] listeners = activeBinCountListeners;
+    int i = 0;
+    while (i < listeners.length)
+    {
+      listeners[i++].activeBinCountsChanged(binNames);
+    }
+  }
+
   /** Add an access record to the queue tracker.  This happens when a document
   * is added to the in-memory queue, and allows us to keep track of that particular event so
   * we can schedule in a way that meets our distribution goals.
@@ -271,6 +311,7 @@ public class QueueTracker
         value.increment();
       }
     }
+    noteActiveBinCountsChanged(binNames);
   }
 
   /** Assess the current minimum depth.
@@ -355,6 +396,7 @@ public class QueueTracker
         }
       }
     }
+    noteActiveBinCountsChanged(binNames);
   }
 
   /** Calculate an assignment rating for a set of bins based on what's currently in use.
@@ -829,4 +871,14 @@ public class QueueTracker
     }
   }
 
+  /** Implement this interface to be told when active bin counts change.
+  */
+  public static interface ActiveBinCountListener
+  {
+    /** Called after the active counts for a set of bins have been changed.
+    *@param binNames are the bins whose counts changed.
+    */
+    public void activeBinCountsChanged(String[] binNames);
+  }
+
 }
@@ -22,6 +22,7 @@ import java.util.*;
 
 import org.apache.manifoldcf.core.interfaces.*;
 import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.CacheKeyFactory;
 import org.apache.manifoldcf.crawler.system.Logging;
 import org.apache.manifoldcf.crawler.system.ManifoldCF;
 
@@ -74,13 +75,31 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
     isNewMap.put("E",new Integer(ISNEW_EXISTING));
   }
 
+  /** The maximum number of cached value lists */
+  protected final static int MAX_CACHED_VALUES = 10000;
+  /** Value lists whose total length (in characters) exceeds this are not cached */
+  protected final static int MAX_CACHED_VALUES_LENGTH = 16384;
+
+  // Cache statistics, for all jobs
+  protected final static Object statisticsLock = new Object();
+  protected static long cacheHits = 0L;
+  protected static long cacheMisses = 0L;
+
+  /** Thread context */
+  protected IThreadContext threadContext;
+  /** Cache manager */
+  protected ICacheManager cacheManager;
+
   /** Constructor.
+  *@param tc is the thread context.
   *@param database is the database handle.
   */
-  public Carrydown(IDBInterface database)
+  public Carrydown(IThreadContext tc, IDBInterface database)
     throws ManifoldCFException
   {
     super(database,"carrydown");
+    this.threadContext = tc;
+    cacheManager = CacheManagerFactory.make(tc);
   }
 
   /** Install or upgrade.
@@ -165,6 +184,17 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
     performDrop(null);
   }
 
+  /** Convert the hashes stored in this table between hexadecimal and compact form.
+  *@param toCompact is true to convert to compact form, false to convert to hexadecimal form.
+  */
+  public void convertHashes(boolean toCompact)
+    throws ManifoldCFException
+  {
+    convertHashColumn(parentIDHashField,toCompact);
+    convertHashColumn(childIDHashField,toCompact);
+    convertHashColumn(dataValueHashField,toCompact);
+  }
+
   /** Analyze job tables that need analysis.
   */
   public void analyzeTables()
@@ -181,10 +211,20 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
   public void deleteOwner(Long jobID)
     throws ManifoldCFException
   {
-    ArrayList list = new ArrayList();
-    String query = buildConjunctionClause(list,new ClauseDescription[]{
-      new UnitaryClause(jobIDField,jobID)});
-    performDelete("WHERE "+query,list,null);
+    // There are no per-job keys, so the values of every job's children go
+    ICacheHandle ch = cacheManager.enterCache(null,new StringSet(getCarrydownsKey()),getTransactionID());
+    try
+    {
+      ArrayList list = new ArrayList();
+      String query = buildConjunctionClause(list,new ClauseDescription[]{
+        new UnitaryClause(jobIDField,jobID)});
+      performDelete("WHERE "+query,list,null);
+      cacheManager.invalidateKeys(ch);
+    }
+    finally
+    {
+      cacheManager.leaveCache(ch);
+    }
   }
 
   // The strategy here is to leave all rows that have a given document as a parent labelled as "BASE" at the start of the
@@ -202,19 +242,30 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
   public void reset()
     throws ManifoldCFException
   {
-    // Delete "new" rows
-    HashMap map = new HashMap();
-    ArrayList list = new ArrayList();
-    String query = buildConjunctionClause(list,new ClauseDescription[]{
-      new UnitaryClause(newField,statusToString(ISNEW_NEW))});
-    performDelete("WHERE "+query,list,null);
-
-    // Convert "existing" rows to base
-    map.put(newField,statusToString(ISNEW_BASE));
-    list.clear();
-    query = buildConjunctionClause(list,new ClauseDescription[]{
-      new UnitaryClause(newField,statusToString(ISNEW_EXISTING))});
-    performUpdate(map,"WHERE "+query,list,null);
+    // Every child's values may change, so all of the cached values must go
+    ICacheHandle ch = cacheManager.enterCache(null,new StringSet(getCarrydownsKey()),getTransactionID());
+    try
+    {
+      // Delete "new" rows
+      HashMap map = new HashMap();
+      ArrayList list = new ArrayList();
+      String query = buildConjunctionClause(list,new ClauseDescription[]{
+        new UnitaryClause(newField,statusToString(ISNEW_NEW))});
+      performDelete("WHERE "+query,list,null);
+
+      // Convert "existing" rows to base
+      map.put(newField,statusToString(ISNEW_BASE));
+      list.clear();
+      query = buildConjunctionClause(list,new ClauseDescription[]{
+        new UnitaryClause(newField,statusToString(ISNEW_EXISTING))});
+      performUpdate(map,"WHERE "+query,list,null);
+
+      cacheManager.invalidateKeys(ch);
+    }
+    finally
+    {
+      cacheManager.leaveCache(ch);
+    }
   }
 
   /** Add carrydown data for a given parent/child pair.
@@ -235,6 +286,16 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
     String[][] dataNames, String[][][] dataValueHashes, Object[][][] dataValues)
     throws ManifoldCFException
   {
+    // Any child that is getting data may see new values.  Take the cache locks before we lock any rows.
+    HashMap children = new HashMap();
+    int z = 0;
+    while (z < childDocumentIDHashes.length)
+    {
+      if (dataNames[z].length > 0)
+        children.put(childDocumentIDHashes[z],childDocumentIDHashes[z]);
+      z++;
+    }
+    invalidateChildren(jobID,children);
 
     // Need to go into a transaction because we need to distinguish between update and insert.
     HashMap duplicateRemoval = new HashMap();
@@ -314,7 +375,11 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
 
     HashMap insertHappened = new HashMap();
 
-    int j = 0;
+    // The inserts go in all at once, and the updates as one batch for each form of the update statement.
+    ArrayList insertList = new ArrayList();
+    ArrayList updateParamsWithHash = new ArrayList();
+    ArrayList updateParamsWithoutHash = new ArrayList();
+
     Iterator iter = duplicateRemoval.keySet().iterator();
     while (iter.hasNext())
     {
@@ -322,13 +387,13 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
 
       String childDocumentIDHash = childDocumentRecord.getDocumentIDHash();
 
-      HashMap map = new HashMap();
       String dataName = childDocumentRecord.getDataName();
       String dataValueHash = childDocumentRecord.getDataValueHash();
       Object dataValue = childDocumentRecord.getDataValue();
 
       if (presentMap.get(childDocumentRecord) == null)
       {
+        HashMap map = new HashMap();
         map.put(jobIDField,jobID);
         map.put(parentIDHashField,parentDocumentIDHash);
         map.put(childIDHashField,childDocumentIDHash);
@@ -340,39 +405,43 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
         }
 
         map.put(newField,statusToString(ISNEW_NEW));
-        performInsert(map,null);
-        noteModifications(1,0,0);
+        insertList.add(map);
         insertHappened.put(childDocumentIDHash,new Boolean(true));
       }
       else
       {
-        sb = new StringBuilder();
-        sb.append("WHERE ").append(jobIDField).append("=? AND ")
-          .append(parentIDHashField).append("=? AND ")
-          .append(childIDHashField).append("=? AND ")
-          .append(dataNameField).append("=? AND ");
-
         ArrayList updateList = new ArrayList();
+        updateList.add(statusToString(ISNEW_EXISTING));
         updateList.add(jobID);
         updateList.add(parentDocumentIDHash);
         updateList.add(childDocumentIDHash);
         updateList.add(dataName);
         if (dataValueHash != null)
         {
-          sb.append(dataValueHashField).append("=?");
           updateList.add(dataValueHash);
+          updateParamsWithHash.add(updateList);
         }
         else
-        {
-          sb.append(dataValueHashField).append(" IS NULL");
-        }
-
-        map.put(newField,statusToString(ISNEW_EXISTING));
-        performUpdate(map,sb.toString(),updateList,null);
-        noteModifications(0,1,0);
+          updateParamsWithoutHash.add(updateList);
       }
     }
 
+    if (insertList.size() > 0)
+    {
+      performInsertMultiple(insertList,null);
+      noteModifications(insertList.size(),0,0);
+    }
+    if (updateParamsWithHash.size() > 0)
+    {
+      performModificationMultiple(buildExistingUpdate(true),updateParamsWithHash,null);
+      noteModifications(0,updateParamsWithHash.size(),0);
+    }
+    if (updateParamsWithoutHash.size() > 0)
+    {
+      performModificationMultiple(buildExistingUpdate(false),updateParamsWithoutHash,null);
+      noteModifications(0,updateParamsWithoutHash.size(),0);
+    }
+
     boolean[] rval = new boolean[childDocumentIDHashes.length];
     i = 0;
     while (i < rval.length)
@@ -384,6 +453,24 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
     return rval;
   }
 
+  /** Build the statement that marks a single existing row as "existing".
+  *@param withHash is true if the row has a data value hash, false if it is null.
+  */
+  protected String buildExistingUpdate(boolean withHash)
+  {
+    StringBuilder sb = new StringBuilder("UPDATE ");
+    sb.append(getTableName()).append(" SET ").append(newField).append("=? WHERE ")
+      .append(jobIDField).append("=? AND ")
+      .append(parentIDHashField).append("=? AND ")
+      .append(childIDHashField).append("=? AND ")
+      .append(dataNameField).append("=? AND ");
+    if (withHash)
+      sb.append(dataValueHashField).append("=?");
+    else
+      sb.append(dataValueHashField).append(" IS NULL");
+    return sb.toString();
+  }
+
   /** Do the exists check, in batch. */
   protected void performExistsCheck(Map presentMap, String query, ArrayList list)
     throws ManifoldCFException
@@ -413,6 +500,11 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
     beginTransaction();
     try
     {
+      // The children of the rows we are about to delete lose those values
+      HashMap children = new HashMap();
+      findChildren(children,jobID,parentDocumentIDHashes,statusToString(ISNEW_BASE));
+      invalidateChildren(jobID,children);
+
       int maxClause = getMaxInClause();
       StringBuilder sb = new StringBuilder();
       ArrayList list = new ArrayList();
@@ -496,6 +588,17 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
     beginTransaction();
     try
     {
+      // Both the documents themselves and their children lose values
+      HashMap children = new HashMap();
+      int z = 0;
+      while (z < documentIDHashes.length)
+      {
+        String documentIDHash = documentIDHashes[z++];
+        children.put(documentIDHash,documentIDHash);
+      }
+      findChildren(children,jobID,documentIDHashes,null);
+      invalidateChildren(jobID,children);
+
       int maxClause = maxClausePerformDeleteRecords(jobID);
       ArrayList list = new ArrayList();
       int i = 0;
@@ -562,9 +665,121 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
     noteModifications(0,0,list.size()*2);
   }
 
+  /** Find the children of the rows that belong to a set of parents.
+  *@param children is the map the child identifier hashes are added to.
+  *@param isNewStatus is the status the rows must have, or null for all rows.
+  */
+  protected void findChildren(Map children, Long jobID, String[] parentDocumentIDHashes, String isNewStatus)
+    throws ManifoldCFException
+  {
+    ClauseDescription[] fixedClauses;
+    if (isNewStatus == null)
+      fixedClauses = new ClauseDescription[]{
+        new UnitaryClause(jobIDField,jobID)};
+    else
+      fixedClauses = new ClauseDescription[]{
+        new UnitaryClause(jobIDField,jobID),
+        new UnitaryClause(newField,isNewStatus)};
+    int maxClause = findConjunctionClauseMax(fixedClauses);
+    ArrayList list = new ArrayList();
+    int i = 0;
+    while (i < parentDocumentIDHashes.length)
+    {
+      list.add(parentDocumentIDHashes[i++]);
+      if (list.size() == maxClause || i == parentDocumentIDHashes.length)
+      {
+        ArrayList newList = new ArrayList();
+        ClauseDescription[] clauses = new ClauseDescription[fixedClauses.length+1];
+        System.arraycopy(fixedClauses,0,clauses,0,fixedClauses.length);
+        clauses[fixedClauses.length] = new MultiClause(parentIDHashField,list);
+        IResultSet set = performQuery("SELECT DISTINCT "+childIDHashField+" FROM "+getTableName()+" WHERE "+
+          buildConjunctionClause(newList,clauses),newList,null,null);
+        int j = 0;
+        while (j < set.getRowCount())
+        {
+          String childIDHash = (String)set.getRow(j++).getValue(childIDHashField);
+          children.put(childIDHash,childIDHash);
+        }
+        list.clear();
+      }
+    }
+  }
+
+  /** Invalidate the cached values of a set of children.  Within a transaction, this takes effect when the
+  * transaction commits, and until then readers of those children wait.  All the keys are locked in one call,
+  * so that writers cannot deadlock against each other.
+  *@param children is a map whose keys are the child identifier hashes.
+  */
+  protected void invalidateChildren(Long jobID, Map children)
+    throws ManifoldCFException
+  {
+    if (children.size() == 0)
+      return;
+    String[] keys = new String[children.size()];
+    int i = 0;
+    Iterator iter = children.keySet().iterator();
+    while (iter.hasNext())
+    {
+      keys[i++] = getChildKey(jobID,(String)iter.next());
+    }
+    ICacheHandle ch = cacheManager.enterCache(null,new StringSet(keys),getTransactionID());
+    try
+    {
+      cacheManager.invalidateKeys(ch);
+    }
+    finally
+    {
+      cacheManager.leaveCache(ch);
+    }
+  }
+
   /** Get unique values given a document identifier, data name, an job identifier */
   public String[] getDataValues(Long jobID, String documentIdentifierHash, String dataName)
     throws ManifoldCFException
+  {
+    // Within a transaction, go straight to the table, so that the cache locks stay out of the caller's transaction.
+    if (getTransactionID() != null)
+      return readDataValues(jobID,documentIdentifierHash,dataName);
+
+    ValuesDescription description = new ValuesDescription(jobID,documentIdentifierHash,dataName);
+    ICacheHandle ch = cacheManager.enterCache(new ICacheDescription[]{description},null,null);
+    try
+    {
+      ICacheCreateHandle createHandle = cacheManager.enterCreateSection(ch);
+      try
+      {
+        String[] rval = (String[])cacheManager.lookupObject(createHandle,description);
+        if (rval != null)
+        {
+          noteCacheAccess(true);
+          return (String[])rval.clone();
+        }
+        noteCacheAccess(false);
+        rval = readDataValues(jobID,documentIdentifierHash,dataName);
+        long length = 0L;
+        int i = 0;
+        while (i < rval.length)
+        {
+          length += rval[i++].length();
+        }
+        if (length <= MAX_CACHED_VALUES_LENGTH)
+          cacheManager.saveObject(createHandle,description,rval.clone());
+        return rval;
+      }
+      finally
+      {
+        cacheManager.leaveCreateSection(createHandle);
+      }
+    }
+    finally
+    {
+      cacheManager.leaveCache(ch);
+    }
+  }
+
+  /** Read unique values given a document identifier, data name, an job identifier */
+  protected String[] readDataValues(Long jobID, String documentIdentifierHash, String dataName)
+    throws ManifoldCFException
   {
     ArrayList list = new ArrayList();
     String query = buildConjunctionClause(list,new ClauseDescription[]{
@@ -614,6 +829,59 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
     return rval;
   }
 
+  /** Get the number of carrydown value lookups that were answered from the cache, since startup.
+  */
+  public static long getCacheHits()
+  {
+    synchronized (statisticsLock)
+    {
+      return cacheHits;
+    }
+  }
+
+  /** Get the number of carrydown value lookups that had to go to the database, since startup.
+  */
+  public static long getCacheMisses()
+  {
+    synchronized (statisticsLock)
+    {
+      return cacheMisses;
+    }
+  }
+
+  /** Count a cache lookup, and log the statistics every so often.
+  */
+  protected static void noteCacheAccess(boolean hit)
+  {
+    long hits;
+    long misses;
+    synchronized (statisticsLock)
+    {
+      if (hit)
+        cacheHits++;
+      else
+        cacheMisses++;
+      hits = cacheHits;
+      misses = cacheMisses;
+    }
+    if (Logging.perf.isDebugEnabled() && (hits + misses) % 10000L == 0L)
+      Logging.perf.debug("Carrydown cache: "+Long.toString(hits)+" hits, "+Long.toString(misses)+" misses");
+  }
+
+  /** Get the invalidation key for the cached values of a child document.
+  */
+  protected static String getChildKey(Long jobID, String childIDHash)
+  {
+    return CacheKeyFactory.makeCarrydownKey(jobID.toString(),childIDHash);
+  }
+
+  /** Get the invalidation key shared by all cached values.
+  */
+  protected static String getCarrydownsKey()
+  {
+    return CacheKeyFactory.makeCarrydownsKey();
+  }
+
   /** Convert string to link status. */
   public static int stringToStatus(String status)
   {
@@ -637,6 +905,57 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
     }
   }
 
+  /** This is the description of the cached values of a data name for a child document.
+  * All of a child's cached values share one invalidation key, and all cached values share another.
+  */
+  protected static class ValuesDescription extends org.apache.manifoldcf.core.cachemanager.BaseDescription
+  {
+    protected Long jobID;
+    protected String childIDHash;
+    protected String dataName;
+    protected String criticalSectionName;
+    protected StringSet cacheKeys;
+
+    public ValuesDescription(Long jobID, String childIDHash, String dataName)
+    {
+      super("carrydownvaluecache",MAX_CACHED_VALUES);
+      this.jobID = jobID;
+      this.childIDHash = childIDHash;
+      this.dataName = dataName;
+      criticalSectionName = getClass().getName()+"-"+jobID.toString()+"-"+childIDHash+"-"+dataName;
+      cacheKeys = new StringSet(new String[]{getChildKey(jobID,childIDHash),getCarrydownsKey()});
+    }
+
+    public int hashCode()
+    {
+      return jobID.hashCode() + childIDHash.hashCode() + dataName.hashCode();
+    }
+
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof ValuesDescription))
+        return false;
+      ValuesDescription d = (ValuesDescription)o;
+      return d.jobID.equals(jobID) && d.childIDHash.equals(childIDHash) && d.dataName.equals(dataName);
+    }
+
+    public String getCriticalSectionName()
+    {
+      return criticalSectionName;
+    }
+
+    /** Get the cache keys for an object (which may or may not exist yet in
+    * the cache).  This method is called in order for cache manager to throw the correct locks.
+    * @return the object's cache keys, or null if the object should not
+    * be cached.
+    */
+    public StringSet getObjectKeys()
+    {
+      return cacheKeys;
+    }
+
+  }
+
   /** Limit checker which removes duplicate rows, based on datavaluehash */
   protected static class ResultDuplicateEliminator implements ILimitChecker
   {
@@ -22,6 +22,7 @@ import java.util.*;
 
 import org.apache.manifoldcf.core.interfaces.*;
 import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.CacheKeyFactory;
 import org.apache.manifoldcf.crawler.system.Logging;
 import org.apache.manifoldcf.crawler.system.ManifoldCF;
 
@@ -130,6 +131,9 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
   public static final int MARK_QUEUED = 1;
   public static final int MARK_DELETING = 2;
 
+  /** The largest number of distances kept in the distance cache, over all jobs */
+  protected static final int MAX_CACHED_DISTANCES = 100000;
+
   protected static Map markMap;
 
   static
@@ -147,6 +151,8 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
 
   /** Thread context */
   protected IThreadContext threadContext;
+  /** Cache manager */
+  protected ICacheManager cacheManager;
   
   /** Constructor.
   *@param database is the database handle.
@@ -156,6 +162,7 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
   {
     super(database,"hopcount");
     this.threadContext = tc;
+    cacheManager = CacheManagerFactory.make(tc);
     intrinsicLinkManager = new IntrinsicLink(database);
     deleteDepsManager = new HopDeleteDeps(database);
   }
@@ -249,6 +256,17 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
 
   }
 
+  /** Convert the hashes stored in this table between hexadecimal and compact form.
+  *@param toCompact is true to convert to compact form, false to convert to hexadecimal form.
+  */
+  public void convertHashes(boolean toCompact)
+    throws ManifoldCFException
+  {
+    deleteDepsManager.convertHashes(toCompact);
+    intrinsicLinkManager.convertHashes(toCompact);
+    convertHashColumn(parentIDHashField,toCompact);
+  }
+
   /** Go from string to mark.
   *@param value is the string.
   *@return the status value.
@@ -302,6 +320,8 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
         new UnitaryClause(jobIDField,jobID)});
       performDelete("WHERE "+query,list,null);
       noteModifications(0,0,1);
+
+      invalidateDistances(jobID);
     }
     catch (ManifoldCFException e)
     {
@@ -618,8 +638,6 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
     throws ManifoldCFException
   {
     // No transaction, since we can happily interpret whatever comes back.
-    ArrayList list = new ArrayList();
-
     int[] rval = new int[parentIdentifierHashes.length];
     HashMap rvalMap = new HashMap();
     int i = 0;
@@ -630,8 +648,86 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
       i++;
     }
 
-    int maxClause = maxClauseProcessFind(jobID,linkType);
+    // Inside a transaction, the caller has usually just processed the queue and wants definitive answers,
+    // so go straight to the table.  This also keeps the cache locks out of the caller's transaction.
+    if (getTransactionID() != null)
+    {
+      readHopCounts(rval,rvalMap,jobID,parentIdentifierHashes,linkType);
+      return rval;
+    }
+
+    // Otherwise, answer what we can from the distance cache.  Cached distances can only be invalidated by
+    // the operations that reset distances to "infinity" (see invalidateDistances()); everything else can only
+    // lower a distance, so a cached value is still a valid upper bound.
+    DistanceDescription[] descriptions = new DistanceDescription[rvalMap.size()];
     i = 0;
+    Iterator iter = rvalMap.keySet().iterator();
+    while (iter.hasNext())
+    {
+      descriptions[i++] = new DistanceDescription(jobID,linkType,(String)iter.next());
+    }
+
+    ICacheHandle ch = cacheManager.enterCache(descriptions,null,null);
+    try
+    {
+      ICacheCreateHandle createHandle = cacheManager.enterCreateSection(ch);
+      try
+      {
+        ArrayList missingList = new ArrayList();
+        i = 0;
+        while (i < descriptions.length)
+        {
+          DistanceDescription description = descriptions[i++];
+          Long distance = (Long)cacheManager.lookupObject(createHandle,description);
+          if (distance == null)
+            missingList.add(description);
+          else
+            rval[((Integer)rvalMap.get(description.getParentIDHash())).intValue()] = (int)distance.longValue();
+        }
+
+        if (missingList.size() > 0)
+        {
+          String[] missingHashes = new String[missingList.size()];
+          i = 0;
+          while (i < missingHashes.length)
+          {
+            missingHashes[i] = ((DistanceDescription)missingList.get(i)).getParentIDHash();
+            i++;
+          }
+          readHopCounts(rval,rvalMap,jobID,missingHashes,linkType);
+
+          i = 0;
+          while (i < missingList.size())
+          {
+            DistanceDescription description = (DistanceDescription)missingList.get(i++);
+            int distance = rval[((Integer)rvalMap.get(description.getParentIDHash())).intValue()];
+            // "Infinity" is not worth keeping, since it sends the caller off to process the queue, which is
+            // likely to change it.
+            if (distance != -1)
+              cacheManager.saveObject(createHandle,description,new Long((long)distance));
+          }
+        }
+      }
+      finally
+      {
+        cacheManager.leaveCreateSection(createHandle);
+      }
+    }
+    finally
+    {
+      cacheManager.leaveCache(ch);
+    }
+    return rval;
+  }
+
+  /** Read a bunch of hop-counts from the table.
+  */
+  protected void readHopCounts(int[] rval, Map rvalMap, Long jobID, String[] parentIdentifierHashes, String linkType)
+    throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    int maxClause = maxClauseProcessFind(jobID,linkType);
+    int i = 0;
     int k = 0;
     while (i < parentIdentifierHashes.length)
     {
@@ -647,8 +743,6 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
     }
     if (k > 0)
       processFind(rval,rvalMap,jobID,linkType,list);
-
-    return rval;
   }
 
   /** Find max clause count.
@@ -878,7 +972,10 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
       // distance against the distance estimate we would have given it.  If the new distance is LOWER, it gets left around
       // for queuing.
 
-      HashMap map = new HashMap();
+      // The new rows, and their delete dependencies, are written all at once afterwards.
+      ArrayList insertList = new ArrayList();
+      ArrayList dependencyOwners = new ArrayList();
+      ArrayList dependencies = new ArrayList();
       for (int i = 0; i < documentIDHashes.length; i++)
       {
         String documentIDHash = documentIDHashes[i];
@@ -901,7 +998,7 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
             // The dependencies are the old dependencies, plus the one we are about to add.
             DeleteDependency dd = new DeleteDependency(linkType,documentIDHash,sourceDocumentIDHash);
             // Build a new answer, based on the starting answer and the kind of link this is.
-            map.clear();
+            HashMap map = new HashMap();
             Long hopCountID = new Long(IDFactory.make(threadContext));
             map.put(idField,hopCountID);
             map.put(parentIDHashField,q.getDocumentIdentifierHash());
@@ -914,16 +1011,17 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
             map.put(markForDeathField,markToString(MARK_NORMAL));
             if (Logging.hopcount.isDebugEnabled())
               Logging.hopcount.debug("Inserting new record for '"+documentIDHash+"' linktype '"+affectedLinkType+"' distance "+Integer.toString(newAnswerValue)+" for job "+jobID);
-            performInsert(map,null);
-            noteModifications(1,0,0);
+            insertList.add(map);
             if (hopcountMethod != IJobDescription.HOPCOUNT_NEVERDELETE)
             {
-              deleteDepsManager.writeDependency(hopCountID,jobID,dd);
+              dependencyOwners.add(hopCountID);
+              dependencies.add(dd);
               Iterator iter2 = startingAnswer.getDeleteDependencies();
               while (iter2.hasNext())
               {
                 dd = (DeleteDependency)iter2.next();
-                deleteDepsManager.writeDependency(hopCountID,jobID,dd);
+                dependencyOwners.add(hopCountID);
+                dependencies.add(dd);
               }
             }
           }
@@ -945,6 +1043,23 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
         }
       }
 
+      if (insertList.size() > 0)
+      {
+        performInsertMultiple(insertList,null);
+        noteModifications(insertList.size(),0,0);
+      }
+      if (dependencies.size() > 0)
+      {
+        Long[] ownerIDs = new Long[dependencyOwners.size()];
+        DeleteDependency[] dds = new DeleteDependency[dependencies.size()];
+        for (int i = 0; i < dds.length; i++)
+        {
+          ownerIDs[i] = (Long)dependencyOwners.get(i);
+          dds[i] = (DeleteDependency)dependencies.get(i);
+        }
+        deleteDepsManager.writeDependencies(ownerIDs,jobID,dds);
+      }
+
       // For all the records still in the matchmap, queue them.
 
       // The query I want to run is:
@@ -1126,6 +1241,8 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
 
     sb.append(")");
 
+    invalidateDistancesIfMatching(jobID,sb.toString(),list);
+
     HashMap map = new HashMap();
     // These are whacked back to "infinity" to avoid infinite looping in a cut-off graph.
     map.put(distanceField,new Long(-1L));
@@ -1207,13 +1324,14 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
 
       int maxClause = maxClauseMarkForDocumentDelete(jobID);
       ArrayList list = new ArrayList();
+      boolean distancesInvalidated = false;
       int i = 0;
       int k = 0;
       while (i < documentHashes.length)
       {
         if (k == maxClause)
         {
-          markForDocumentDelete(jobID,list);
+          distancesInvalidated = markForDocumentDelete(jobID,list,distancesInvalidated);
           list.clear();
           k = 0;
         }
@@ -1222,7 +1340,7 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
         k++;
       }
       if (k > 0)
-        markForDocumentDelete(jobID,list);
+        markForDocumentDelete(jobID,list,distancesInvalidated);
       noteModifications(0,documentHashes.length,0);
 
       if (Logging.hopcount.isDebugEnabled())
@@ -1261,7 +1379,11 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
       new UnitaryClause("t0."+deleteDepsManager.jobIDField,jobID)});
   }
 
-  protected void markForDocumentDelete(Long jobID, ArrayList list)
+  /** Mark the hopcount rows that depend on links from a set of documents, resetting their distances.
+  *@param distancesInvalidated is true if the job's cached distances have already been invalidated.
+  *@return true if the job's cached distances have now been invalidated.
+  */
+  protected boolean markForDocumentDelete(Long jobID, ArrayList list, boolean distancesInvalidated)
     throws ManifoldCFException
   {
     StringBuilder sb = new StringBuilder("WHERE ");
@@ -1281,6 +1403,9 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
     
     sb.append("))");
 
+    if (!distancesInvalidated)
+      distancesInvalidated = invalidateDistancesIfMatching(jobID,sb.toString(),thisList);
+
     HashMap map = new HashMap();
     // These are whacked back to "infinity" to avoid infinite looping in a cut-off graph.
     map.put(distanceField,new Long(-1L));
@@ -1289,6 +1414,7 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
 
     // We do NOT do the parentID because we need to leave intrinsic links around that could be used again.
     // See CONNECTORS-501.
+    return distancesInvalidated;
   }
 
   /** Invalidate links meeting a simple criteria which have a given set of source documents.  This also runs a queue
@@ -1338,13 +1464,14 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
 
       int maxClause = maxClauseMarkForDelete(jobID);
       ArrayList list = new ArrayList();
+      boolean distancesInvalidated = false;
       int i = 0;
       int k = 0;
       while (i < sourceDocumentHashes.length)
       {
         if (k == maxClause)
         {
-          markForDelete(jobID,list,commonNewExpression,commonNewList);
+          distancesInvalidated = markForDelete(jobID,list,commonNewExpression,commonNewList,distancesInvalidated);
           list.clear();
           k = 0;
         }
@@ -1353,7 +1480,7 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
         k++;
       }
       if (k > 0)
-        markForDelete(jobID,list,commonNewExpression,commonNewList);
+        markForDelete(jobID,list,commonNewExpression,commonNewList,distancesInvalidated);
       noteModifications(0,sourceDocumentHashes.length,0);
 
       if (Logging.hopcount.isDebugEnabled())
@@ -1394,7 +1521,12 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
       new UnitaryClause("t0."+deleteDepsManager.jobIDField,jobID)});
   }
 
-  protected void markForDelete(Long jobID, ArrayList list, String commonNewExpression, ArrayList commonNewList)
+  /** Mark the hopcount rows that depend on matching links from a set of documents, resetting their distances.
+  *@param distancesInvalidated is true if the job's cached distances have already been invalidated.
+  *@return true if the job's cached distances have now been invalidated.
+  */
+  protected boolean markForDelete(Long jobID, ArrayList list, String commonNewExpression, ArrayList commonNewList,
+    boolean distancesInvalidated)
     throws ManifoldCFException
   {
     StringBuilder sb = new StringBuilder("WHERE ");
@@ -1419,11 +1551,50 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
     }
     sb.append("))");
 
+    if (!distancesInvalidated)
+      distancesInvalidated = invalidateDistancesIfMatching(jobID,sb.toString(),thisList);
+
     HashMap map = new HashMap();
     // These are whacked back to "infinity" to avoid infinite looping in a cut-off graph.
     map.put(distanceField,new Long(-1L));
     map.put(markForDeathField,markToString(MARK_DELETING));
     performUpdate(map,sb.toString(),thisList,null);
+    return distancesInvalidated;
+  }
+
+  /** Invalidate a job's cached distances, if any hopcount rows meet a criteria that is about to be used to reset
+  * distances to "infinity".  This is the only way a distance ever increases, so it is the only change the distance
+  * cache needs to hear about.  The check comes before the reset, so that the cache lock is taken before we lock
+  * any of the rows.
+  *@return true if the cached distances were invalidated.
+  */
+  protected boolean invalidateDistancesIfMatching(Long jobID, String whereClause, ArrayList whereParams)
+    throws ManifoldCFException
+  {
+    IResultSet set = performQuery("SELECT "+idField+" FROM "+getTableName()+" "+whereClause+" "+
+      constructOffsetLimitClause(0,1),whereParams,null,null,1);
+    if (set.getRowCount() == 0)
+      return false;
+    invalidateDistances(jobID);
+    return true;
+  }
+
+  /** Invalidate all of a job's cached distances.  Within a transaction, this takes effect when the transaction
+  * commits, and until then readers of the job's distances wait.
+  */
+  protected void invalidateDistances(Long jobID)
+    throws ManifoldCFException
+  {
+    StringSet invKeys = new StringSet(getDistancesKey(jobID));
+    ICacheHandle ch = cacheManager.enterCache(null,invKeys,getTransactionID());
+    try
+    {
+      cacheManager.invalidateKeys(ch);
+    }
+    finally
+    {
+      cacheManager.leaveCache(ch);
+    }
   }
 
   /** Get document's children.
@@ -1714,8 +1885,12 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
   }
 
   /** Write a distance into the cache.
+  *@param pendingDequeues collects the ids of rows whose distance did not change, and so only need to be taken off the queue.
+  * These are written later, in bulk, by flushDequeues().  Any other write made here flushes them first.  If null, every row
+  * is written immediately.
   */
-  protected void writeCachedDistance(Long jobID, String[] legalLinkTypes, DocumentNode dn, int hopcountMethod)
+  protected void writeCachedDistance(Long jobID, String[] legalLinkTypes, DocumentNode dn, int hopcountMethod,
+    ArrayList pendingDequeues)
     throws ManifoldCFException
   {
     Question q = dn.getQuestion();
@@ -1754,6 +1929,7 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
         if (Logging.hopcount.isDebugEnabled())
           Logging.hopcount.debug("Caching infinity for document '"+parentIDHash+"' linktype '"+linkType+"' answer="+Integer.toString(answer.getAnswer()));
 
+        flushDequeues(pendingDequeues);
         beginTransaction();
         try
         {
@@ -1805,6 +1981,8 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
         if (Logging.hopcount.isDebugEnabled())
           Logging.hopcount.debug("Updating answer for document '"+parentIDHash+"' linktype '"+linkType+"' answer="+Integer.toString(answer.getAnswer()));
 
+        // Queuing the targets may requeue rows we have yet to take off the queue, so those go first.
+        flushDequeues(pendingDequeues);
         beginTransaction();
         try
         {
@@ -1929,6 +2107,11 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
         }
 
       }
+      else if (pendingDequeues != null)
+      {
+        // Take the row off the queue, later.
+        pendingDequeues.add(existingID);
+      }
       else
       {
         // Take the row off the queue.
@@ -1960,6 +2143,7 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
     if (Logging.hopcount.isDebugEnabled())
       Logging.hopcount.debug("Caching answer for document '"+parentIDHash+"' linktype '"+linkType+"' answer="+Integer.toString(answer.getAnswer()));
 
+    flushDequeues(pendingDequeues);
     beginTransaction();
     try
     {
@@ -2003,6 +2187,112 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
     }
   }
 
+  /** Take a set of rows off the queue, without changing their distances.
+  *@param pendingDequeues is the list of row ids, which is emptied.  May be null.
+  */
+  protected void flushDequeues(ArrayList pendingDequeues)
+    throws ManifoldCFException
+  {
+    if (pendingDequeues == null || pendingDequeues.size() == 0)
+      return;
+
+    if (Logging.hopcount.isDebugEnabled())
+      Logging.hopcount.debug("Taking "+Integer.toString(pendingDequeues.size())+" unchanged rows off the queue");
+
+    HashMap map = new HashMap();
+    map.put(markForDeathField,markToString(MARK_NORMAL));
+    int maxClause = findConjunctionClauseMax(new ClauseDescription[]{});
+    ArrayList idList = new ArrayList();
+    int i = 0;
+    while (i < pendingDequeues.size())
+    {
+      if (idList.size() == maxClause)
+      {
+        performDequeue(map,idList);
+        idList.clear();
+      }
+      idList.add(pendingDequeues.get(i++));
+    }
+    if (idList.size() > 0)
+      performDequeue(map,idList);
+    noteModifications(0,pendingDequeues.size(),0);
+    pendingDequeues.clear();
+  }
+
+  /** Do the work of taking a batch of rows off the queue. */
+  protected void performDequeue(Map map, ArrayList idList)
+    throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildConjunctionClause(list,new ClauseDescription[]{
+      new MultiClause(idField,idList)});
+    performUpdate(map,"WHERE "+query,list,null);
+  }
+
+  /** Get the cache key for a job's cached distances.
+  */
+  protected static String getDistancesKey(Long jobID)
+  {
+    return CacheKeyFactory.makeHopCountDistancesKey(jobID.toString());
+  }
+
+  /** This is the description of a cached distance, for a document identifier hash and a link type.
+  * All of a job's cached distances share a single invalidation key.
+  */
+  protected static class DistanceDescription extends org.apache.manifoldcf.core.cachemanager.BaseDescription
+  {
+    protected Long jobID;
+    protected String linkType;
+    protected String parentIDHash;
+    protected String criticalSectionName;
+    protected StringSet cacheKeys;
+
+    public DistanceDescription(Long jobID, String linkType, String parentIDHash)
+    {
+      super("hopcountdistancecache",MAX_CACHED_DISTANCES);
+      this.jobID = jobID;
+      // An empty link type is stored as null
+      this.linkType = (linkType == null)?"":linkType;
+      this.parentIDHash = parentIDHash;
+      criticalSectionName = getClass().getName()+"-"+jobID.toString()+"-"+this.linkType+"-"+parentIDHash;
+      cacheKeys = new StringSet(getDistancesKey(jobID));
+    }
+
+    public String getParentIDHash()
+    {
+      return parentIDHash;
+    }
+
+    public int hashCode()
+    {
+      return jobID.hashCode() + linkType.hashCode() + parentIDHash.hashCode();
+    }
+
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof DistanceDescription))
+        return false;
+      DistanceDescription d = (DistanceDescription)o;
+      return d.jobID.equals(jobID) && d.linkType.equals(linkType) && d.parentIDHash.equals(parentIDHash);
+    }
+
+    public String getCriticalSectionName()
+    {
+      return criticalSectionName;
+    }
+
+    /** Get the cache keys for an object (which may or may not exist yet in
+    * the cache).  This method is called in order for cache manager to throw the correct locks.
+    * @return the object's cache keys, or null if the object should not
+    * be cached.
+    */
+    public StringSet getObjectKeys()
+    {
+      return cacheKeys;
+    }
+
+  }
+
   /** A class describing a document identifier and a link type, to be used in looking up the appropriate node in
   * the hash.
   */
@@ -2671,6 +2961,9 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
     /** The hopcount method */
     protected int hopcountMethod;
 
+    /** Ids of rows that are complete with unchanged distances, waiting to be taken off the queue in bulk */
+    protected ArrayList pendingDequeues = new ArrayList();
+
     /** Constructor */
     public DocumentHash(Long jobID, String[] legalLinkTypes, int hopcountMethod)
     {
@@ -2800,6 +3093,8 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
         else
           Logging.hopcount.debug("Done (because answers already available)");
 
+        flushDequeues(pendingDequeues);
+
         if (Logging.hopcount.isDebugEnabled())
         {
           Logging.hopcount.debug("Answers returned as follows:");
@@ -3313,7 +3608,7 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
       {
         // The answer did not not change, so notification of parents is unnecessary.
         // But, we need to write this value to the database now.
-        writeCachedDistance(jobID,legalLinkTypes,node,hopcountMethod);
+        writeCachedDistance(jobID,legalLinkTypes,node,hopcountMethod,pendingDequeues);
         node.clearWriteNeeded();
       }
     }
@@ -3399,7 +3694,8 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
         unansweredQuestions[z++] = q;
       }
 
-      // Look up the cached distances in bulk
+      // Look up the cached distances in bulk.  The marks we read must be current.
+      flushDequeues(pendingDequeues);
       DocumentNode[] nodes = readCachedNodes(jobID,unansweredQuestions);
       z = 0;
       while (z < nodes.length)
@@ -125,6 +125,16 @@ public class HopDeleteDeps extends org.apache.manifoldcf.core.database.BaseTable
     performDrop(null);
   }
 
+  /** Convert the hashes stored in this table between hexadecimal and compact form.
+  *@param toCompact is true to convert to compact form, false to convert to hexadecimal form.
+  */
+  public void convertHashes(boolean toCompact)
+    throws ManifoldCFException
+  {
+    convertHashColumn(parentIDHashField,toCompact);
+    convertHashColumn(childIDHashField,toCompact);
+  }
+
   /** Analyze job tables that need analysis.
   */
   public void analyzeTables()
@@ -227,18 +237,38 @@ public class HopDeleteDeps extends org.apache.manifoldcf.core.database.BaseTable
   public void writeDependency(Long ownerID, Long jobID, DeleteDependency dd)
     throws ManifoldCFException
   {
-    HashMap map = new HashMap();
-    map.put(jobIDField,jobID);
-    map.put(ownerIDField,ownerID);
-    if (dd.getLinkType().length() > 0)
-      map.put(linkTypeField,dd.getLinkType());
-    map.put(parentIDHashField,dd.getParentIDHash());
-    if (dd.getChildIDHash().length() > 0)
+    writeDependencies(new Long[]{ownerID},jobID,new DeleteDependency[]{dd});
+  }
+
+  /** Write a number of delete dependencies, all at once.
+  *@param ownerIDs are the owners, one for each dependency.
+  *@param dds are the dependencies.
+  */
+  public void writeDependencies(Long[] ownerIDs, Long jobID, DeleteDependency[] dds)
+    throws ManifoldCFException
+  {
+    ArrayList insertList = new ArrayList();
+    int i = 0;
+    while (i < dds.length)
+    {
+      DeleteDependency dd = dds[i];
+      HashMap map = new HashMap();
+      map.put(jobIDField,jobID);
+      map.put(ownerIDField,ownerIDs[i++]);
+      if (dd.getLinkType().length() > 0)
+        map.put(linkTypeField,dd.getLinkType());
+      map.put(parentIDHashField,dd.getParentIDHash());
+      if (dd.getChildIDHash().length() > 0)
+      {
+        map.put(childIDHashField,dd.getChildIDHash());
+      }
+      insertList.add(map);
+    }
+    if (insertList.size() > 0)
     {
-      map.put(childIDHashField,dd.getChildIDHash());
+      performInsertMultiple(insertList,null);
+      noteModifications(insertList.size(),0,0);
     }
-    performInsert(map,null);
-    noteModifications(1,0,0);
   }
 
 }
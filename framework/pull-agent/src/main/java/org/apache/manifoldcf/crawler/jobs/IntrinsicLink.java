@@ -152,6 +152,16 @@ public class IntrinsicLink extends org.apache.manifoldcf.core.database.BaseTable
     performDrop(null);
   }
 
+  /** Convert the hashes stored in this table between hexadecimal and compact form.
+  *@param toCompact is true to convert to compact form, false to convert to hexadecimal form.
+  */
+  public void convertHashes(boolean toCompact)
+    throws ManifoldCFException
+  {
+    convertHashColumn(parentIDHashField,toCompact);
+    convertHashColumn(childIDHashField,toCompact);
+  }
+
   /** Analyze job tables that need analysis.
   */
   public void analyzeTables()
@@ -245,7 +255,9 @@ public class IntrinsicLink extends org.apache.manifoldcf.core.database.BaseTable
       }
       String[] newReferences = new String[count];
       int j = 0;
-      // Note: May be able to make this more efficient if we update things in batches...
+      // Insert the new links all at once, and flip the existing ones in batches.
+      ArrayList insertList = new ArrayList();
+      ArrayList existingList = new ArrayList();
       iter = duplicateRemoval.keySet().iterator();
       while (iter.hasNext())
       {
@@ -260,23 +272,25 @@ public class IntrinsicLink extends org.apache.manifoldcf.core.database.BaseTable
           map.put(childIDHashField,sourceDocumentIDHash);
           map.put(linkTypeField,linkType);
           map.put(newField,statusToString(LINKSTATUS_NEW));
-          performInsert(map,null);
-          noteModifications(1,0,0);
+          insertList.add(map);
         }
         else
         {
-          HashMap map = new HashMap();
-          map.put(newField,statusToString(LINKSTATUS_EXISTING));
-          ArrayList updateList = new ArrayList();
-          String query = buildConjunctionClause(updateList,new ClauseDescription[]{
-            new UnitaryClause(jobIDField,jobID),
-            new UnitaryClause(parentIDHashField,targetDocumentIDHash),
-            new UnitaryClause(linkTypeField,linkType),
-            new UnitaryClause(childIDHashField,sourceDocumentIDHash)});
-          performUpdate(map,"WHERE "+query,updateList,null);
-          noteModifications(0,1,0);
+          if (existingList.size() == maxClause)
+          {
+            performMarkExisting(jobID,linkType,sourceDocumentIDHash,existingList);
+            existingList.clear();
+          }
+          existingList.add(targetDocumentIDHash);
         }
       }
+      if (existingList.size() > 0)
+        performMarkExisting(jobID,linkType,sourceDocumentIDHash,existingList);
+      if (insertList.size() > 0)
+      {
+        performInsertMultiple(insertList,null);
+        noteModifications(insertList.size(),0,0);
+      }
       return newReferences;
     }
     catch (ManifoldCFException e)
@@ -296,6 +310,22 @@ public class IntrinsicLink extends org.apache.manifoldcf.core.database.BaseTable
 
   }
 
+  /** Mark a set of existing links from a child as "existing". */
+  protected void performMarkExisting(Long jobID, String linkType, String childIDHash, ArrayList list)
+    throws ManifoldCFException
+  {
+    HashMap map = new HashMap();
+    map.put(newField,statusToString(LINKSTATUS_EXISTING));
+    ArrayList updateList = new ArrayList();
+    String query = buildConjunctionClause(updateList,new ClauseDescription[]{
+      new UnitaryClause(jobIDField,jobID),
+      new MultiClause(parentIDHashField,list),
+      new UnitaryClause(linkTypeField,linkType),
+      new UnitaryClause(childIDHashField,childIDHash)});
+    performUpdate(map,"WHERE "+query,updateList,null);
+    noteModifications(0,list.size(),0);
+  }
+
   /** Calculate the max clauses for the exists check
   */
   protected int maxClausePerformExistsCheck(Long jobID, String linkType, String childIDHash)
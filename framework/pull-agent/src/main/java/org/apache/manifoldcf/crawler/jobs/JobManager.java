@@ -61,7 +61,7 @@ public class JobManager implements IJobManager
     jobs = new Jobs(threadContext,database);
     jobQueue = new JobQueue(threadContext,database);
     hopCount = new HopCount(threadContext,database);
-    carryDown = new Carrydown(database);
+    carryDown = new Carrydown(threadContext,database);
     eventManager = new EventManager(database);
     outputMgr = OutputConnectionManagerFactory.make(threadContext);
     connectionMgr = RepositoryConnectionManagerFactory.make(threadContext);
@@ -93,6 +93,18 @@ public class JobManager implements IJobManager
     jobs.deinstall();
   }
 
+  /** Convert the document identifier hashes in the job manager's tables between hexadecimal and compact
+  * form.  This should only be done while the crawler is not running.
+  *@param toCompact is true to convert to compact form, false to convert to hexadecimal form.
+  */
+  public void convertDocumentHashes(boolean toCompact)
+    throws ManifoldCFException
+  {
+    jobQueue.convertHashes(toCompact);
+    hopCount.convertHashes(toCompact);
+    carryDown.convertHashes(toCompact);
+  }
+
   /** Export configuration */
   public void exportConfiguration(java.io.OutputStream os)
     throws java.io.IOException, ManifoldCFException
@@ -3463,6 +3475,7 @@ public class JobManager implements IJobManager
 
         // Go through document id's one at a time, in order - mainly to prevent deadlock as much as possible.  Search for any existing row in jobqueue first (for update)
         boolean[] reorderedRval = new boolean[reorderedDocIDHashes.length];
+        ArrayList insertIndexes = new ArrayList();
         int z = 0;
         while (z < reorderedDocIDHashes.length)
         {
@@ -3503,14 +3516,31 @@ public class JobManager implements IJobManager
           }
           else
           {
-            // Not found.  Attempt an insert instead.  This may fail due to constraints, but if this happens, the whole transaction will be retried.
-            jobQueue.insertNewRecordInitial(jobID,docIDHash,docID,docPriority,executeTime,currentTime,docPrereqs);
+            // Not found.  Attempt an insert instead (below, along with all the others).  This may fail due to constraints, but if this happens, the whole transaction will be retried.
+            insertIndexes.add(new Integer(z));
             priorityUsed = true;
           }
 
           reorderedRval[z++] = priorityUsed;
         }
 
+        if (insertIndexes.size() > 0)
+        {
+          String[] insertDocIDHashes = new String[insertIndexes.size()];
+          String[] insertDocIDs = new String[insertIndexes.size()];
+          double[] insertPriorities = new double[insertIndexes.size()];
+          String[][] insertPrereqs = new String[insertIndexes.size()][];
+          for (int q = 0; q < insertDocIDHashes.length; q++)
+          {
+            int index = ((Integer)insertIndexes.get(q)).intValue();
+            insertDocIDHashes[q] = reorderedDocIDHashes[index];
+            insertDocIDs[q] = reorderedDocumentIdentifiers[index];
+            insertPriorities[q] = reorderedDocumentPriorities[index];
+            insertPrereqs[q] = reorderedDocumentPrerequisites[index];
+          }
+          jobQueue.insertNewRecordsInitial(jobID,insertDocIDHashes,insertDocIDs,insertPriorities,overrideSchedule?0L:-1L,currentTime,insertPrereqs);
+        }
+
         if (Logging.perf.isDebugEnabled())
           Logging.perf.debug("Took "+new Long(System.currentTimeMillis()-startTime).toString()+" ms to add "+Integer.toString(reorderedDocIDHashes.length)+
           " initial docs for job "+jobID.toString());
@@ -3972,13 +4002,15 @@ public class JobManager implements IJobManager
           String valueHash;
           if (values[y] instanceof CharacterInput)
           {
-            // It's a CharacterInput object.
+            // It's a CharacterInput object.  Its hash is always hexadecimal, but this one goes in a hash column.
             valueHash = ((CharacterInput)values[y]).getHashValue();
+            if (ManifoldCF.getCompactHashes())
+              valueHash = ManifoldCF.convertHashToCompact(valueHash);
           }
           else
           {
             // It better be a String.
-            valueHash = ManifoldCF.hash((String)values[y]);
+            valueHash = ManifoldCF.compactHash((String)values[y]);
           }
           valueMap.put(valueHash,values[y]);
           y++;
@@ -4068,6 +4100,7 @@ public class JobManager implements IJobManager
 
         // Go through document id's one at a time, in order - mainly to prevent deadlock as much as possible.  Search for any existing row in jobqueue first (for update)
         HashMap existingRows = new HashMap();
+        ArrayList insertIndexes = new ArrayList();
 
         for (int z = 0; z < reorderedDocIDHashes.length; z++)
         {
@@ -4104,12 +4137,29 @@ public class JobManager implements IJobManager
           }
           else
           {
-            // Not found.  Attempt an insert instead.  This may fail due to constraints, but if this happens, the whole transaction will be retried.
-            jobQueue.insertNewRecord(jobID,docIDHash,reorderedDocumentIdentifiers[z],reorderedDocumentPriorities[z],0L,currentTime,reorderedDocumentPrerequisites[z]);
+            // Not found.  Attempt an insert instead (below, along with all the others).  This may fail due to constraints, but if this happens, the whole transaction will be retried.
+            insertIndexes.add(new Integer(z));
           }
 
         }
 
+        if (insertIndexes.size() > 0)
+        {
+          String[] insertDocIDHashes = new String[insertIndexes.size()];
+          String[] insertDocIDs = new String[insertIndexes.size()];
+          double[] insertPriorities = new double[insertIndexes.size()];
+          String[][] insertPrereqs = new String[insertIndexes.size()][];
+          for (int q = 0; q < insertDocIDHashes.length; q++)
+          {
+            int index = ((Integer)insertIndexes.get(q)).intValue();
+            insertDocIDHashes[q] = reorderedDocIDHashes[index];
+            insertDocIDs[q] = reorderedDocumentIdentifiers[index];
+            insertPriorities[q] = reorderedDocumentPriorities[index];
+            insertPrereqs[q] = reorderedDocumentPrerequisites[index];
+          }
+          jobQueue.insertNewRecords(jobID,insertDocIDHashes,insertDocIDs,insertPriorities,0L,currentTime,insertPrereqs);
+        }
+
         // Update all the carrydown data at once, for greatest efficiency.
         boolean[] carrydownChangesSeen = carryDown.recordCarrydownDataMultiple(jobID,parentIdentifierHash,reorderedDocIDHashes,dataNames,dataHashValues,dataValues);
 
@@ -7192,12 +7242,42 @@ public class JobManager implements IJobManager
   public IResultSet genDocumentStatus(String connectionName, StatusFilterCriteria filterCriteria, SortOrder sortOrder,
     int startRow, int rowCount)
     throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildDocumentStatusQuery(list,connectionName,filterCriteria,sortOrder,startRow,rowCount);
+    return database.performQuery(query,list,null,null,rowCount,null);
+  }
+
+  /** Run a 'document status' report, reading the rows through a cursor.  Use this rather than genDocumentStatus()
+  * when the report may be very large.
+  *@param connectionName is the name of the connection.
+  *@param filterCriteria are the criteria used to limit the records considered for the report.
+  *@param sortOrder is the specified sort order of the final report.
+  *@param startRow is the first row to include.
+  *@param rowCount is the number of rows to include, or -1 for all.
+  *@return a cursor over the results, which the caller must close.  The columns are as for genDocumentStatus().
+  */
+  public IResultCursor genDocumentStatusCursor(String connectionName, StatusFilterCriteria filterCriteria, SortOrder sortOrder,
+    int startRow, int rowCount)
+    throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildDocumentStatusQuery(list,connectionName,filterCriteria,sortOrder,startRow,rowCount);
+    return database.performQueryCursor(query,list,null);
+  }
+
+  /** Build the query for a 'document status' report.
+  *@param list is the list to put the query parameters into.
+  *@return the query.
+  */
+  protected String buildDocumentStatusQuery(ArrayList list, String connectionName, StatusFilterCriteria filterCriteria,
+    SortOrder sortOrder, int startRow, int rowCount)
+    throws ManifoldCFException
   {
     // Build the query.
     Long currentTime = new Long(System.currentTimeMillis());
     
     StringBuilder sb = new StringBuilder("SELECT ");
-    ArrayList list = new ArrayList();
     
     sb.append("t0.").append(jobQueue.idField).append(" AS id,")
       .append("t0.").append(jobQueue.docIDField).append(" AS identifier,")
@@ -7332,7 +7412,7 @@ public class JobManager implements IJobManager
     // The intrinsic ordering is provided by the "id" column, and nothing else.
     addOrdering(sb,new String[]{"id"},sortOrder);
     addLimits(sb,startRow,rowCount);
-    return database.performQuery(sb.toString(),list,null,null,rowCount,null);
+    return sb.toString();
   }
 
   /** Run a 'queue status' report.
@@ -7348,6 +7428,38 @@ public class JobManager implements IJobManager
   public IResultSet genQueueStatus(String connectionName, StatusFilterCriteria filterCriteria, SortOrder sortOrder,
     BucketDescription idBucketDescription, int startRow, int rowCount)
     throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildQueueStatusQuery(list,connectionName,filterCriteria,sortOrder,idBucketDescription,startRow,rowCount);
+    return database.performQuery(query,list,null,null,rowCount,null);
+  }
+
+  /** Run a 'queue status' report, reading the rows through a cursor.  Use this rather than genQueueStatus()
+  * when the report may be very large.
+  *@param connectionName is the name of the connection.
+  *@param filterCriteria are the criteria used to limit the records considered for the report.
+  *@param sortOrder is the specified sort order of the final report.
+  *@param idBucketDescription is the bucket description for generating the identifier class.
+  *@param startRow is the first row to include.
+  *@param rowCount is the number of rows to include, or -1 for all.
+  *@return a cursor over the results, which the caller must close.  The columns are as for genQueueStatus().
+  */
+  public IResultCursor genQueueStatusCursor(String connectionName, StatusFilterCriteria filterCriteria, SortOrder sortOrder,
+    BucketDescription idBucketDescription, int startRow, int rowCount)
+    throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildQueueStatusQuery(list,connectionName,filterCriteria,sortOrder,idBucketDescription,startRow,rowCount);
+    return database.performQueryCursor(query,list,null);
+  }
+
+  /** Build the query for a 'queue status' report.
+  *@param list is the list to put the query parameters into.
+  *@return the query.
+  */
+  protected String buildQueueStatusQuery(ArrayList list, String connectionName, StatusFilterCriteria filterCriteria,
+    SortOrder sortOrder, BucketDescription idBucketDescription, int startRow, int rowCount)
+    throws ManifoldCFException
   {
     // SELECT substring(docid FROM '<id_regexp>') AS idbucket,
     //        substring(entityidentifier FROM '<id_regexp>') AS idbucket,
@@ -7357,7 +7469,6 @@ public class JobManager implements IJobManager
     Long currentTime = new Long(System.currentTimeMillis());
 
     StringBuilder sb = new StringBuilder("SELECT ");
-    ArrayList list = new ArrayList();
     
     sb.append("t1.idbucket,SUM(t1.inactive) AS inactive,SUM(t1.processing) AS processing,SUM(t1.expiring) AS expiring,SUM(t1.deleting) AS deleting,")
       .append("SUM(t1.processready) AS processready,SUM(t1.expireready) AS expireready,SUM(t1.processwaiting) AS processwaiting,SUM(t1.expirewaiting) AS expirewaiting,")
@@ -7483,7 +7594,7 @@ public class JobManager implements IJobManager
     sb.append(") t1 GROUP BY idbucket");
     addOrdering(sb,new String[]{"idbucket","inactive","processing","expiring","deleting","processready","expireready","processwaiting","expirewaiting","waitingforever","hopcountexceeded"},sortOrder);
     addLimits(sb,startRow,rowCount);
-    return database.performQuery(sb.toString(),list,null,null,rowCount,null);
+    return sb.toString();
   }
 
   // Protected methods for report generation
@@ -303,6 +303,15 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     }
   }
 
+  /** Convert the hashes stored in this table between hexadecimal and compact form.
+  *@param toCompact is true to convert to compact form, false to convert to hexadecimal form.
+  */
+  public void convertHashes(boolean toCompact)
+    throws ManifoldCFException
+  {
+    convertHashColumn(docHashField,toCompact);
+  }
+
   /** Restart.
   * This method should be called at initial startup time.  It resets the status of all documents to something
   * reasonable, so the jobs can be restarted and work properly to completion.
@@ -1091,27 +1100,50 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
   public void insertNewRecordInitial(Long jobID, String docHash, String docID, double desiredDocPriority,
     long desiredExecuteTime, long currentTime, String[] prereqEvents)
     throws ManifoldCFException
+  {
+    insertNewRecordsInitial(jobID,new String[]{docHash},new String[]{docID},new double[]{desiredDocPriority},
+      desiredExecuteTime,currentTime,new String[][]{prereqEvents});
+  }
+
+  /** Insert a number of new records into the jobqueue table (as part of adding initial references), all at once.
+  *
+  *@param jobID is the job identifier.
+  *@param docHashes are the hashes of the local document identifiers.
+  *@param docIDs are the local document identifiers.
+  */
+  public void insertNewRecordsInitial(Long jobID, String[] docHashes, String[] docIDs, double[] desiredDocPriorities,
+    long desiredExecuteTime, long currentTime, String[][] prereqEvents)
+    throws ManifoldCFException
   {
     // No prerequisites should be possible at this point.
-    HashMap map = new HashMap();
-    Long recordID = new Long(IDFactory.make(threadContext));
-    map.put(idField,recordID);
-    if (desiredExecuteTime == -1L)
-      map.put(checkTimeField,new Long(0L));
-    else
-      map.put(checkTimeField,new Long(desiredExecuteTime));
-    map.put(checkActionField,actionToString(ACTION_RESCAN));
-    map.put(jobIDField,jobID);
-    map.put(docHashField,docHash);
-    map.put(docIDField,docID);
-    map.put(statusField,statusToString(STATUS_PENDING));
-    map.put(isSeedField,seedstatusToString(SEEDSTATUS_NEWSEED));
-    // Set the document priority
-    map.put(docPriorityField,new Double(desiredDocPriority));
-    map.put(prioritySetField,new Long(currentTime));
-    performInsert(map,null);
-    prereqEventManager.addRows(recordID,prereqEvents);
-    noteModifications(1,0,0);
+    ArrayList insertList = new ArrayList();
+    Long[] recordIDs = new Long[docHashes.length];
+    int i = 0;
+    while (i < docHashes.length)
+    {
+      HashMap map = new HashMap();
+      Long recordID = new Long(IDFactory.make(threadContext));
+      recordIDs[i] = recordID;
+      map.put(idField,recordID);
+      if (desiredExecuteTime == -1L)
+        map.put(checkTimeField,new Long(0L));
+      else
+        map.put(checkTimeField,new Long(desiredExecuteTime));
+      map.put(checkActionField,actionToString(ACTION_RESCAN));
+      map.put(jobIDField,jobID);
+      map.put(docHashField,docHashes[i]);
+      map.put(docIDField,docIDs[i]);
+      map.put(statusField,statusToString(STATUS_PENDING));
+      map.put(isSeedField,seedstatusToString(SEEDSTATUS_NEWSEED));
+      // Set the document priority
+      map.put(docPriorityField,new Double(desiredDocPriorities[i]));
+      map.put(prioritySetField,new Long(currentTime));
+      insertList.add(map);
+      i++;
+    }
+    performInsertMultiple(insertList,null);
+    prereqEventManager.addRowsMultiple(recordIDs,prereqEvents);
+    noteModifications(insertList.size(),0,0);
   }
 
   /** Note the remaining documents that do NOT need to be queued.  These are noted so that the
@@ -1420,21 +1452,41 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     long currentTime, String[] prereqEvents)
     throws ManifoldCFException
   {
-    HashMap map = new HashMap();
-    Long recordID = new Long(IDFactory.make(threadContext));
-    map.put(idField,recordID);
-    map.put(checkTimeField,new Long(desiredExecuteTime));
-    map.put(checkActionField,actionToString(ACTION_RESCAN));
-    map.put(jobIDField,jobID);
-    map.put(docHashField,docIDHash);
-    map.put(docIDField,docID);
-    map.put(statusField,statusToString(STATUS_PENDING));
-    // Be sure to set the priority also
-    map.put(docPriorityField,new Double(desiredDocPriority));
-    map.put(prioritySetField,new Long(currentTime));
-    performInsert(map,null);
-    prereqEventManager.addRows(recordID,prereqEvents);
-    noteModifications(1,0,0);
+    insertNewRecords(jobID,new String[]{docIDHash},new String[]{docID},new double[]{desiredDocPriority},
+      desiredExecuteTime,currentTime,new String[][]{prereqEvents});
+  }
+
+  /** Insert a number of new records into the jobqueue table (as part of adding child references), all at once.
+  *
+  */
+  public void insertNewRecords(Long jobID, String[] docIDHashes, String[] docIDs, double[] desiredDocPriorities,
+    long desiredExecuteTime, long currentTime, String[][] prereqEvents)
+    throws ManifoldCFException
+  {
+    ArrayList insertList = new ArrayList();
+    Long[] recordIDs = new Long[docIDHashes.length];
+    int i = 0;
+    while (i < docIDHashes.length)
+    {
+      HashMap map = new HashMap();
+      Long recordID = new Long(IDFactory.make(threadContext));
+      recordIDs[i] = recordID;
+      map.put(idField,recordID);
+      map.put(checkTimeField,new Long(desiredExecuteTime));
+      map.put(checkActionField,actionToString(ACTION_RESCAN));
+      map.put(jobIDField,jobID);
+      map.put(docHashField,docIDHashes[i]);
+      map.put(docIDField,docIDs[i]);
+      map.put(statusField,statusToString(STATUS_PENDING));
+      // Be sure to set the priority also
+      map.put(docPriorityField,new Double(desiredDocPriorities[i]));
+      map.put(prioritySetField,new Long(currentTime));
+      insertList.add(map);
+      i++;
+    }
+    performInsertMultiple(insertList,null);
+    prereqEventManager.addRowsMultiple(recordIDs,prereqEvents);
+    noteModifications(insertList.size(),0,0);
   }
 
   // Methods to convert status strings to integers and back
@@ -1556,7 +1608,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
   public static String getHashCode(String documentIdentifier)
     throws ManifoldCFException
   {
-    return ManifoldCF.hash(documentIdentifier);
+    return ManifoldCF.compactHash(documentIdentifier);
   }
 
   // This class filters an ordered resultset to return only the duplicates
@@ -178,17 +178,35 @@ public class PrereqEventManager extends org.apache.manifoldcf.core.database.Base
   public void addRows(Long recordID, String[] eventNames)
     throws ManifoldCFException
   {
-    if (eventNames != null)
+    addRowsMultiple(new Long[]{recordID},new String[][]{eventNames});
+  }
+
+  /** Add rows pertaining to a number of entries, all at once */
+  public void addRowsMultiple(Long[] recordIDs, String[][] eventNames)
+    throws ManifoldCFException
+  {
+    ArrayList insertList = new ArrayList();
+    int i = 0;
+    while (i < recordIDs.length)
     {
-      int i = 0;
-      while (i < eventNames.length)
+      Long recordID = recordIDs[i];
+      String[] recordEventNames = eventNames[i++];
+      if (recordEventNames != null)
       {
-        HashMap map = new HashMap();
-        map.put(ownerField,recordID);
-        map.put(eventNameField,eventNames[i++]);
-        performInsert(map,null);
+        int j = 0;
+        while (j < recordEventNames.length)
+        {
+          HashMap map = new HashMap();
+          map.put(ownerField,recordID);
+          map.put(eventNameField,recordEventNames[j++]);
+          insertList.add(map);
+        }
       }
-      noteModifications(i,0,0);
+    }
+    if (insertList.size() > 0)
+    {
+      performInsertMultiple(insertList,null);
+      noteModifications(insertList.size(),0,0);
     }
   }
 
@@ -0,0 +1,229 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.repository;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.util.*;
+
+/** This class is the process-wide holding area for history rows that have been recorded but not yet
+* written to the repohistory table.  Threads that record activity add rows here, and the history flush
+* thread drains them in batches.  The buffer is bounded; when it is full, or when buffering has not been
+* turned on, the caller is expected to write the row itself.
+* Every batch that is taken must be handed back with release(), whether or not it was written.
+*/
+public class HistoryBuffer
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The lock object, also used for wait/notify */
+  protected final static Integer lock = new Integer(0);
+
+  /** Rows waiting to be written, in the order they were recorded */
+  protected static LinkedList<Map<String,Object>> pendingRows = new LinkedList<Map<String,Object>>();
+  /** The maximum number of rows to hold; zero means buffering is off */
+  protected static int maxRows = 0;
+  /** The number of rows at which the flush thread is woken early */
+  protected static int wakeRows = 0;
+  /** Batches that have been taken out of the buffer and are being written */
+  protected static List<List<Map<String,Object>>> inFlightBatches = new ArrayList<List<Map<String,Object>>>();
+
+  private HistoryBuffer()
+  {
+  }
+
+  /** Turn buffering on.
+  *@param maximum is the maximum number of rows to hold at once.
+  *@param batchSize is the number of pending rows at which a waiting flusher should wake up.
+  */
+  public static void activate(int maximum, int batchSize)
+  {
+    synchronized (lock)
+    {
+      maxRows = maximum;
+      wakeRows = batchSize;
+    }
+  }
+
+  /** Turn buffering off, and hand back whatever rows remain.
+  *@return the rows that were never written.
+  */
+  public static List<Map<String,Object>> deactivate()
+  {
+    synchronized (lock)
+    {
+      maxRows = 0;
+      List<Map<String,Object>> rval = new ArrayList<Map<String,Object>>(pendingRows);
+      pendingRows.clear();
+      lock.notifyAll();
+      return rval;
+    }
+  }
+
+  /** Add a row, if there is room.
+  *@param row is the column map for the row.
+  *@return true if the row was buffered, false if the caller must write it.
+  */
+  public static boolean add(Map<String,Object> row)
+  {
+    synchronized (lock)
+    {
+      if (pendingRows.size() >= maxRows)
+        return false;
+      pendingRows.add(row);
+      if (pendingRows.size() == wakeRows)
+        lock.notifyAll();
+      return true;
+    }
+  }
+
+  /** Put rows that could not be written back at the front of the buffer, so they are tried again first.
+  * This may exceed the maximum temporarily; new rows will then be written synchronously until the backlog clears.
+  *@param rows are the rows to put back.
+  */
+  public static void requeue(List<Map<String,Object>> rows)
+  {
+    synchronized (lock)
+    {
+      if (maxRows == 0)
+      {
+        // Buffering was turned off while the rows were out; whoever turned it off has already drained
+        // the buffer, so there is nobody left to write these.
+        return;
+      }
+      pendingRows.addAll(0,rows);
+    }
+  }
+
+  /** Remove all buffered rows for an owner, and wait until no batch being written contains any of the owner's rows.
+  * Used when the owning connection goes away, before its history is deleted.  This only reaches the buffer of the
+  * calling process.  A connection deleted from another process, such as the crawler UI, can still have rows
+  * buffered in the agents process.  Those rows fail the owner constraint when they are written, and the flush
+  * drops them one at a time after its batch insert fails.  Jobs that refer to a connection keep it from being
+  * deleted, so by then such rows can only be the last flush interval's worth.
+  *@param ownerField is the name of the owner column.
+  *@param owner is the owner.
+  */
+  public static void removeOwner(String ownerField, String owner)
+    throws ManifoldCFException
+  {
+    synchronized (lock)
+    {
+      while (true)
+      {
+        // Rows of a batch that failed may have come back, so purge every time around
+        removeRows(pendingRows,ownerField,owner);
+        boolean inFlight = false;
+        for (List<Map<String,Object>> batch : inFlightBatches)
+        {
+          if (hasOwner(batch,ownerField,owner))
+          {
+            inFlight = true;
+            break;
+          }
+        }
+        if (!inFlight)
+          return;
+        try
+        {
+          lock.wait();
+        }
+        catch (InterruptedException e)
+        {
+          throw new ManifoldCFException("Interrupted",e,ManifoldCFException.INTERRUPTED);
+        }
+      }
+    }
+  }
+
+  /** Note that a batch returned by take() is no longer being written, whether it was written or requeued.
+  *@param batch is the list take() returned.
+  */
+  public static void release(List<Map<String,Object>> batch)
+  {
+    synchronized (lock)
+    {
+      Iterator<List<Map<String,Object>>> iter = inFlightBatches.iterator();
+      while (iter.hasNext())
+      {
+        if (iter.next() == batch)
+        {
+          iter.remove();
+          lock.notifyAll();
+          return;
+        }
+      }
+    }
+  }
+
+  protected static void removeRows(List<Map<String,Object>> rows, String ownerField, String owner)
+  {
+    Iterator<Map<String,Object>> iter = rows.iterator();
+    while (iter.hasNext())
+    {
+      Map<String,Object> row = iter.next();
+      if (owner.equals(row.get(ownerField)))
+        iter.remove();
+    }
+  }
+
+  protected static boolean hasOwner(List<Map<String,Object>> rows, String ownerField, String owner)
+  {
+    for (Map<String,Object> row : rows)
+    {
+      if (owner.equals(row.get(ownerField)))
+        return true;
+    }
+    return false;
+  }
+
+  /** Take up to a given number of rows out of the buffer.  If fewer than that many are waiting, first
+  * wait up to the specified time for more to arrive.  A non-empty batch counts as being written until
+  * release() is called for it.
+  *@param maxCount is the maximum number of rows to return.
+  *@param waitTime is the longest time to wait, in milliseconds, or zero for no wait.
+  *@return the rows, which may be an empty list.
+  */
+  public static List<Map<String,Object>> take(int maxCount, long waitTime)
+    throws ManifoldCFException
+  {
+    synchronized (lock)
+    {
+      if (waitTime > 0L && pendingRows.size() < maxCount && maxRows > 0)
+      {
+        try
+        {
+          lock.wait(waitTime);
+        }
+        catch (InterruptedException e)
+        {
+          throw new ManifoldCFException("Interrupted",e,ManifoldCFException.INTERRUPTED);
+        }
+      }
+      List<Map<String,Object>> rval = new ArrayList<Map<String,Object>>();
+      while (rval.size() < maxCount && pendingRows.size() > 0)
+      {
+        rval.add(pendingRows.removeFirst());
+      }
+      if (rval.size() > 0)
+        inFlightBatches.add(rval);
+      return rval;
+    }
+  }
+
+}
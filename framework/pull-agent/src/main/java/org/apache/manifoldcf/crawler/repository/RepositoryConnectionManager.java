@@ -24,6 +24,7 @@ import org.apache.manifoldcf.crawler.interfaces.*;
 import org.apache.manifoldcf.authorities.interfaces.*;
 import org.apache.manifoldcf.crawler.interfaces.CacheKeyFactory;
 import org.apache.manifoldcf.crawler.system.ManifoldCF;
+import org.apache.manifoldcf.crawler.system.Logging;
 
 
 /** This class is the manager of the repository connection description.  Inside, multiple database tables are managed,
@@ -63,6 +64,9 @@ public class RepositoryConnectionManager extends org.apache.manifoldcf.core.data
 
   protected static Random random = new Random();
 
+  /** The most buffered history rows written in one batch */
+  protected final static int historyBatchSize = 500;
+
   // Handle for repository history manager
   protected RepositoryHistoryManager historyManager;
   // Handle for throttle spec storage
@@ -653,6 +657,72 @@ public class RepositoryConnectionManager extends org.apache.manifoldcf.core.data
     // MHL
   }
 
+  /** Start buffering history records in memory, so that recordHistory() no longer writes to the database
+  * itself.  Once buffering is on, flushHistory() must be called regularly to write the records out.
+  *@param maxRecords is the most records to hold at once; when the buffer is full, recordHistory() writes
+  *       synchronously instead.
+  */
+  public void startHistoryBuffering(int maxRecords)
+    throws ManifoldCFException
+  {
+    HistoryBuffer.activate(maxRecords,Math.min(maxRecords,historyBatchSize));
+  }
+
+  /** Write buffered history records to the database, in batches.  If fewer than a full batch of records
+  * is waiting, this first waits up to the given time for more to arrive.
+  *@param maxWaitTime is the longest time to wait for records, in milliseconds.
+  *@return the number of records written.
+  */
+  public int flushHistory(long maxWaitTime)
+    throws ManifoldCFException
+  {
+    historyManager.checkRollupBuildRequests();
+    int count = 0;
+    List<Map<String,Object>> rows = HistoryBuffer.take(historyBatchSize,maxWaitTime);
+    while (rows.size() > 0)
+    {
+      try
+      {
+        count += historyManager.writeRows(rows);
+      }
+      catch (ManifoldCFException e)
+      {
+        // Keep the rows that weren't dealt with for the next attempt (or for shutdown)
+        HistoryBuffer.requeue(rows);
+        throw e;
+      }
+      finally
+      {
+        HistoryBuffer.release(rows);
+      }
+      rows = HistoryBuffer.take(historyBatchSize,0L);
+    }
+    return count;
+  }
+
+  /** Stop buffering history records.  Records still in the buffer are either written or discarded.
+  *@param discard is true if the remaining records should be thrown away rather than written.
+  */
+  public void stopHistoryBuffering(boolean discard)
+    throws ManifoldCFException
+  {
+    List<Map<String,Object>> rows = HistoryBuffer.deactivate();
+    if (rows.size() == 0)
+      return;
+    if (discard)
+    {
+      Logging.threads.warn("Discarding "+Integer.toString(rows.size())+" unwritten history records at shutdown");
+      return;
+    }
+    int i = 0;
+    while (i < rows.size())
+    {
+      int end = Math.min(rows.size(),i + historyBatchSize);
+      historyManager.writeRows(rows.subList(i,end));
+      i = end;
+    }
+  }
+
   /** Count the number of rows specified by a given set of criteria.  This can be used to make decisions
   * as to whether a query based on those rows will complete in an acceptable amount of time.
   *@param connectionName is the name of the connection.
@@ -690,6 +760,21 @@ public class RepositoryConnectionManager extends org.apache.manifoldcf.core.data
     return historyManager.simpleReport(connectionName,criteria,sort,startRow,maxRowCount);
   }
 
+  /** Generate a simple history report, reading the rows through a cursor.  Use this rather than genHistorySimple()
+  * when the report may be very large.  The columns are as for genHistorySimple().
+  *@param connectionName is the name of the connection.
+  *@param criteria is the filtering criteria, which selects the records of interest.
+  *@param sort is the sorting order, which can specify sort based on the result columns.
+  *@param startRow is the first row to include (beginning with 0)
+  *@param maxRowCount is the maximum number of rows to include, or -1 for all.
+  *@return a cursor over the results, which the caller must close.
+  */
+  public IResultCursor genHistorySimpleCursor(String connectionName, FilterCriteria criteria, SortOrder sort, int startRow, int maxRowCount)
+    throws ManifoldCFException
+  {
+    return historyManager.simpleReportCursor(connectionName,criteria,sort,startRow,maxRowCount);
+  }
+
   /** Generate a report, listing the start time, activity count, and identifier bucket, given
   * a time slice (interval) size.
   * The records selected for this report are based on the filtering criteria object passed into this method.
@@ -758,6 +843,24 @@ public class RepositoryConnectionManager extends org.apache.manifoldcf.core.data
     return historyManager.resultCodesReport(connectionName,criteria,sort,resultCodeBucket,idBucket,startRow,maxRowCount);
   }
 
+  /** Generate a result code report, reading the rows through a cursor.  Use this rather than genHistoryResultCodes()
+  * when the report may be very large.  The columns are as for genHistoryResultCodes().
+  *@param connectionName is the name of the connection.
+  *@param criteria is the filtering criteria, which selects the records of interest.
+  *@param sort is the sorting order, which can specify sort based on the result columns.
+  *@param resultCodeBucket is the description of the bucket based on processed result codes.
+  *@param idBucket is the description of the bucket based on processed entity identifiers.
+  *@param startRow is the first row to include (beginning with 0)
+  *@param maxRowCount is the maximum number of rows to include, or -1 for all.
+  *@return a cursor over the results, which the caller must close.
+  */
+  public IResultCursor genHistoryResultCodesCursor(String connectionName, FilterCriteria criteria, SortOrder sort,
+    BucketDescription resultCodeBucket, BucketDescription idBucket, int startRow, int maxRowCount)
+    throws ManifoldCFException
+  {
+    return historyManager.resultCodesReportCursor(connectionName,criteria,sort,resultCodeBucket,idBucket,startRow,maxRowCount);
+  }
+
   // Caching strategy: Individual connection descriptions are cached, and there is a global cache key for the list of
   // repository connections.
 
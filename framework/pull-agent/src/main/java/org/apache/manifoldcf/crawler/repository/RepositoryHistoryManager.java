@@ -20,6 +20,7 @@ package org.apache.manifoldcf.crawler.repository;
 
 import org.apache.manifoldcf.core.interfaces.*;
 import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.system.Logging;
 import java.util.*;
 
 /** This class is the manager for the history records belonging to the repository connector.
@@ -59,6 +60,8 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
 
   /** Thread context */
   protected IThreadContext threadContext;
+  /** Rollup manager */
+  protected RepositoryHistoryRollupManager rollupManager;
 
   /** Constructor.
   *@param database is the database instance.
@@ -68,6 +71,7 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
   {
     super(database,"repohistory");
     this.threadContext = tc;
+    rollupManager = new RepositoryHistoryRollupManager(tc,database,getTableName());
   }
 
   /** Install or upgrade the table.
@@ -147,6 +151,8 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
       break;
 
     }
+
+    rollupManager.install(parentTable,parentField);
   }
 
   /** Uninstall the table.
@@ -154,6 +160,7 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
   public void deinstall()
     throws ManifoldCFException
   {
+    rollupManager.deinstall();
     performDrop(null);
   }
 
@@ -164,20 +171,26 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
   public void deleteOwner(String owner, StringSet invKeys)
     throws ManifoldCFException
   {
+    // Rows still in this process's buffer would violate the owner constraint when written, and rows being written
+    // right now would be missed by the delete, so get rid of the first and wait for the second before deleting.
+    // Rows buffered by another process are not reached; they are rejected and dropped when that process flushes.
+    HistoryBuffer.removeOwner(ownerNameField,owner);
     ArrayList params = new ArrayList();
     String query = buildConjunctionClause(params,new ClauseDescription[]{
       new UnitaryClause(ownerNameField,owner)});
     performDelete("WHERE "+query,params,invKeys);
+    rollupManager.deleteOwner(owner,invKeys);
   }
 
-  /** Add row to table, and reanalyze if necessary.
+  /** Add row to table, and reanalyze if necessary.  If history buffering is on and the buffer has room,
+  * the row is only queued here, and the history flush thread writes it later.
   */
   public Long addRow(String connectionName, long startTime, long endTime, long dataSize, String activityType,
     String entityIdentifier, String resultCode, String resultDescription)
     throws ManifoldCFException
   {
     Long id = new Long(IDFactory.make(threadContext));
-    HashMap map = new HashMap();
+    HashMap<String,Object> map = new HashMap<String,Object>();
     map.put(idField,id);
     map.put(ownerNameField,connectionName);
     map.put(startTimeField,new Long(startTime));
@@ -189,12 +202,199 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
       map.put(resultCodeField,resultCode);
     if (resultDescription != null)
       map.put(resultDescriptionField,resultDescription);
-    performInsert(map,null);
-    // Not accurate, but best we can do without overhead
-    noteModifications(1,0,0);
+    if (!HistoryBuffer.add(map))
+    {
+      rollupManager.checkBuildRequests();
+      Set<String> owners = new HashSet<String>();
+      owners.add(connectionName);
+      Set<String> lockedOwners = rollupManager.beginWrite(owners);
+      try
+      {
+        insertRow(map,lockedOwners);
+      }
+      finally
+      {
+        rollupManager.endWrite(lockedOwners);
+      }
+      // Not accurate, but best we can do without overhead
+      noteModifications(1,0,0);
+    }
     return id;
   }
 
+  /** Write a batch of previously buffered rows.  The rows go in as a multi-row insert, in one transaction; if that
+  * fails for any reason other than an interruption or a lost database connection, they are retried one at a time,
+  * and any row that still cannot be written (for example, because its owner has just been deleted) is logged and
+  * dropped.  If an interruption or lost connection stops the one-at-a-time writes part way, the rows already dealt
+  * with are removed from the list before the exception is thrown, so that only the remaining rows are tried again.
+  *@param rows are the rows to write.
+  *@return the number of rows written.
+  */
+  public int writeRows(List<Map<String,Object>> rows)
+    throws ManifoldCFException
+  {
+    if (rows.size() == 0)
+      return 0;
+    Set<String> owners = new HashSet<String>();
+    int j = 0;
+    while (j < rows.size())
+    {
+      owners.add((String)rows.get(j++).get(ownerNameField));
+    }
+    Set<String> lockedOwners = rollupManager.beginWrite(owners);
+    try
+    {
+      List<Map<String,Object>> writtenRows = rows;
+      try
+      {
+        insertRowsTogether(rows,lockedOwners);
+      }
+      catch (ManifoldCFException e)
+      {
+        if (isFatalWriteError(e))
+          throw e;
+        Logging.threads.warn("Batched history write of "+Integer.toString(rows.size())+" rows failed; writing rows singly: "+e.getMessage(),e);
+        writtenRows = new ArrayList<Map<String,Object>>();
+        int i = 0;
+        while (i < rows.size())
+        {
+          Map<String,Object> row = rows.get(i);
+          try
+          {
+            insertRow(row,lockedOwners);
+            writtenRows.add(row);
+          }
+          catch (ManifoldCFException e2)
+          {
+            if (isFatalWriteError(e2))
+            {
+              rows.subList(0,i).clear();
+              noteModifications(writtenRows.size(),0,0);
+              throw e2;
+            }
+            Logging.threads.warn("Dropping history row "+row.get(idField)+": "+e2.getMessage(),e2);
+          }
+          i++;
+        }
+      }
+      // Not accurate, but best we can do without overhead
+      noteModifications(writtenRows.size(),0,0);
+      return writtenRows.size();
+    }
+    finally
+    {
+      rollupManager.endWrite(lockedOwners);
+    }
+  }
+
+  /** Build the history rollups that reports have asked for, if it is time to look for such requests again.  The
+  * process that writes history must call this regularly, outside of any history write.
+  */
+  public void checkRollupBuildRequests()
+    throws ManifoldCFException
+  {
+    rollupManager.checkBuildRequests();
+  }
+
+  /** Insert one row, and add it to the rollups.  If the row can be written but the rollups can't take it, the
+  * owner's rollups are discarded instead, so that they are rebuilt from the raw history when next needed.  Must be
+  * called between the rollup manager's beginWrite() and endWrite().
+  *@param lockedOwners is the set beginWrite() returned.
+  */
+  protected void insertRow(Map<String,Object> row, Set<String> lockedOwners)
+    throws ManifoldCFException
+  {
+    List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>(1);
+    rows.add(row);
+    try
+    {
+      insertRowsTogether(rows,lockedOwners);
+      return;
+    }
+    catch (ManifoldCFException e)
+    {
+      if (isFatalWriteError(e))
+        throw e;
+      Logging.threads.debug("History row "+row.get(idField)+" could not be written with its rollups: "+e.getMessage(),e);
+    }
+    String owner = (String)row.get(ownerNameField);
+    Set<String> discardedOwners = new HashSet<String>();
+    if (lockedOwners.contains(owner))
+      discardedOwners.add(owner);
+    beginTransaction();
+    try
+    {
+      performInsert(row,null);
+      if (discardedOwners.size() > 0)
+        rollupManager.discardOwner(owner);
+    }
+    catch (ManifoldCFException e)
+    {
+      signalRollback();
+      throw e;
+    }
+    catch (Error e)
+    {
+      signalRollback();
+      throw e;
+    }
+    finally
+    {
+      endTransaction();
+    }
+    rollupManager.forgetOwners(discardedOwners);
+  }
+
+  /** Insert rows with a multi-row insert, and add them to the rollups, all or none.  Must be called between the
+  * rollup manager's beginWrite() and endWrite().
+  *@param lockedOwners is the set beginWrite() returned.
+  */
+  protected void insertRowsTogether(List<Map<String,Object>> rows, Set<String> lockedOwners)
+    throws ManifoldCFException
+  {
+    Set<String> discardedOwners;
+    beginTransaction();
+    try
+    {
+      performInsertMultiple(rows,null);
+      discardedOwners = rollupManager.addEvents(rows,lockedOwners);
+    }
+    catch (ManifoldCFException e)
+    {
+      signalRollback();
+      throw e;
+    }
+    catch (Error e)
+    {
+      signalRollback();
+      throw e;
+    }
+    finally
+    {
+      endTransaction();
+    }
+    rollupManager.forgetOwners(discardedOwners);
+  }
+
+  /** Decide whether a failed history write should be given up on and tried again later, rather than retried row by row.
+  * That is only so if the thread was interrupted, or the database can't be reached at all.  Other database errors,
+  * including the constraint violations and value errors some databases report as connection errors, are taken to be
+  * the fault of particular rows.
+  */
+  protected static boolean isFatalWriteError(ManifoldCFException e)
+  {
+    if (e.getErrorCode() == ManifoldCFException.INTERRUPTED)
+      return true;
+    if (e.getErrorCode() != ManifoldCFException.DATABASE_CONNECTION_ERROR)
+      return false;
+    Throwable cause = e.getCause();
+    if (!(cause instanceof java.sql.SQLException))
+      return true;
+    // SQLState class 08 is "connection exception"
+    String sqlState = ((java.sql.SQLException)cause).getSQLState();
+    return sqlState != null && sqlState.startsWith("08");
+  }
+
   // For result analysis, we make heavy use of Postgresql's more advanced posix regular expression
   // handling.  The queries in general are fairly messy.  There's a "front aligned" way of doing things,
   // which uses the start time of a row and finds everything that overlaps the interval from "start time"
@@ -272,10 +472,33 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
   */
   public IResultSet simpleReport(String connectionName, FilterCriteria criteria, SortOrder sort, int startRow, int maxRowCount)
     throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildSimpleReportQuery(list,connectionName,criteria,sort,startRow,maxRowCount);
+    return performQuery(query,list,null,null,maxRowCount);
+  }
+
+  /** Get a simple history, reading the rows through a cursor.  The columns are as for simpleReport().
+  *@return the cursor, which the caller must close.
+  */
+  public IResultCursor simpleReportCursor(String connectionName, FilterCriteria criteria, SortOrder sort, int startRow, int maxRowCount)
+    throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildSimpleReportQuery(list,connectionName,criteria,sort,startRow,maxRowCount);
+    return performQueryCursor(query,list);
+  }
+
+  /** Build the query for a simple history.
+  *@param list is the list to put the query parameters into.
+  *@return the query.
+  */
+  protected String buildSimpleReportQuery(ArrayList list, String connectionName, FilterCriteria criteria, SortOrder sort,
+    int startRow, int maxRowCount)
+    throws ManifoldCFException
   {
     // Build the query.
     StringBuilder sb = new StringBuilder("SELECT ");
-    ArrayList list = new ArrayList();
     sb.append(idField).append(" AS id,").append(activityTypeField).append(" AS activity,").append(startTimeField).append(" AS starttime,(")
       .append(endTimeField).append("-").append(startTimeField).append(")")
       .append(" AS elapsedtime,").append(resultCodeField).append(" AS resultcode,").append(resultDescriptionField)
@@ -286,7 +509,7 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
     // order for the OFFSET/LIMIT clause.  We include "starttime" because that's the default ordering.
     addOrdering(sb,new String[]{"starttime","id"},sort);
     addLimits(sb,startRow,maxRowCount);
-    return performQuery(sb.toString(),list,null,null,maxRowCount);
+    return sb.toString();
   }
 
   /** Count the number of rows specified by a given set of criteria.  This can be used to make decisions
@@ -323,7 +546,8 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
   /** Get a bucketed history, with sliding window, of maximum activity level.
   * The resultset returned should have the following columns: "starttime","endtime","activitycount","idbucket".
   * An activity is counted as being within the interval window on a prorated basis, which can lead to fractional
-  * counts.
+  * counts.  This report is always answered from the raw history; serving it from rollups is still open (see
+  * RepositoryHistoryRollupManager).
   */
   public IResultSet maxActivityCountReport(String connectionName, FilterCriteria filterCriteria, SortOrder sort, BucketDescription idBucket,
     long interval, int startRow, int maxRowCount)
@@ -427,6 +651,8 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
 
   /** Get a bucketed history, with sliding window, of maximum byte count.
   * The resultset returned should have the following columns: "starttime","endtime","bytecount","idbucket".
+  * This report is always answered from the raw history; serving it from rollups is still open (see
+  * RepositoryHistoryRollupManager).
   */
   public IResultSet maxByteCountReport(String connectionName, FilterCriteria filterCriteria, SortOrder sort, BucketDescription idBucket,
     long interval, int startRow, int maxRowCount)
@@ -538,6 +764,36 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
   public IResultSet resultCodesReport(String connectionName, FilterCriteria filterCriteria, SortOrder sort,
     BucketDescription resultCodeBucket, BucketDescription idBucket, int startRow, int maxRowCount)
     throws ManifoldCFException
+  {
+    if (rollupManager.canAnswer(connectionName,filterCriteria,idBucket))
+      return rollupManager.resultCodesReport(connectionName,filterCriteria,sort,resultCodeBucket,startRow,maxRowCount);
+    ArrayList list = new ArrayList();
+    String query = buildResultCodesReportQuery(list,connectionName,filterCriteria,sort,resultCodeBucket,idBucket,startRow,maxRowCount);
+    return performQuery(query,list,null,null,maxRowCount);
+  }
+
+  /** Get a bucketed history of different result code/identifier combinations, reading the rows through a cursor.
+  * The columns are as for resultCodesReport().
+  *@return the cursor, which the caller must close.
+  */
+  public IResultCursor resultCodesReportCursor(String connectionName, FilterCriteria filterCriteria, SortOrder sort,
+    BucketDescription resultCodeBucket, BucketDescription idBucket, int startRow, int maxRowCount)
+    throws ManifoldCFException
+  {
+    if (rollupManager.canAnswer(connectionName,filterCriteria,idBucket))
+      return rollupManager.resultCodesReportCursor(connectionName,filterCriteria,sort,resultCodeBucket,startRow,maxRowCount);
+    ArrayList list = new ArrayList();
+    String query = buildResultCodesReportQuery(list,connectionName,filterCriteria,sort,resultCodeBucket,idBucket,startRow,maxRowCount);
+    return performQueryCursor(query,list);
+  }
+
+  /** Build the query for a result code history.
+  *@param list is the list to put the query parameters into.
+  *@return the query.
+  */
+  protected String buildResultCodesReportQuery(ArrayList list, String connectionName, FilterCriteria filterCriteria, SortOrder sort,
+    BucketDescription resultCodeBucket, BucketDescription idBucket, int startRow, int maxRowCount)
+    throws ManifoldCFException
   {
     // The query we'll use here will be:
     //
@@ -548,7 +804,6 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
     //                      ORDER BY xxx LIMIT yyy OFFSET zzz
 
     StringBuilder sb = new StringBuilder("SELECT t1.resultcodebucket,t1.idbucket,");
-    ArrayList list = new ArrayList();
     sb.append(constructCountClause("'x'")).append(" AS eventcount FROM (SELECT ");
     addBucketExtract(sb,list,"",resultCodeField,resultCodeBucket);
     sb.append(" AS resultcodebucket, ");
@@ -558,7 +813,7 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
     sb.append(") t1 GROUP BY resultcodebucket,idbucket");
     addOrdering(sb,new String[]{"eventcount","resultcodebucket","idbucket"},sort);
     addLimits(sb,startRow,maxRowCount);
-    return performQuery(sb.toString(),list,null,null,maxRowCount);
+    return sb.toString();
   }
 
   /** Turn a bucket description into a return column.
@@ -0,0 +1,1227 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.repository;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.system.Logging;
+import org.apache.manifoldcf.crawler.system.ManifoldCF;
+import java.util.*;
+
+/** This class manages the pre-aggregated rollups of the repository history, from which the result code report can be
+* answered without reading every raw history row.  History events are counted per connection, activity type, result
+* code, entity bucket, and a pair of one-minute time buckets: the last minute boundary strictly before the event's start
+* time, and the first minute boundary at or after its end time.  For report time bounds that are whole minutes,
+* "start bucket &gt;= start" holds exactly when "start time &gt; start" does, and "end bucket &lt;= end" exactly when
+* "end time &lt;= end" does, which are the conditions the raw report applies.  The buckets and the entity bucket are
+* computed by the database, with the same expressions the raw report uses, so the two cannot disagree.
+*
+* Open: the max activity and max byte count reports are not answered from here, and no rollups are kept for them.
+* Their windows start or end at each event's own start or end time, to the millisecond, and prorate every overlapping
+* event by its exact overlap, so the counts kept here cannot reproduce them; they always read the raw history.
+* Serving them from rollups would need a second table of prorated activity and byte sums per minute, and would only
+* ever find the busiest window that starts on a minute boundary.  That is a different answer from the one those
+* reports have always given, so it needs its own change, including what the reports show.
+*
+* The entity bucket is computed with a single configured bucket description, so only reports that ask for that same
+* description can be answered from here.  All processes must be configured with the same description; rows for any
+* other description are removed the first time a process touches the rollups.
+*
+* History is only written by the agents process, and that process is the one that builds and maintains the rollups.
+* It keeps the set of connections that have rollups in memory, and history writes for any other connection take no
+* lock and run no extra queries.  A report for a connection without rollups is answered from the raw history, and
+* leaves a build request in shared data; the writing process picks the request up on its next check, and builds the
+* connection's rollups from its raw history.  Before it does, it adds the connection to the in-memory set while no
+* write is in progress, and then holds the connection's rollup lock for the build.  Writes that start after that
+* take the same lock and add their rows to the rollups in the same transaction as the raw insert.  So every raw row
+* is counted exactly once, by the build or by its writer.  A connection without rollup rows has not been built.
+*
+* <br><br>
+* <b>repohistoryrollup</b>
+* <table border="1" cellpadding="3" cellspacing="0">
+* <tr class="TableHeadingColor">
+* <th>Field</th><th>Type</th><th>Description&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;</th>
+* <tr><td>owner</td><td>VARCHAR(32)</td><td>Reference:repoconnections.connectionname</td></tr>
+* <tr><td>bucketdesc</td><td>VARCHAR(255)</td><td></td></tr>
+* <tr><td>startbucket</td><td>BIGINT</td><td></td></tr>
+* <tr><td>endbucket</td><td>BIGINT</td><td></td></tr>
+* <tr><td>activitytype</td><td>VARCHAR(64)</td><td></td></tr>
+* <tr><td>resultcode</td><td>VARCHAR(255)</td><td></td></tr>
+* <tr><td>entitybucket</td><td>VARCHAR(255)</td><td></td></tr>
+* <tr><td>eventcount</td><td>BIGINT</td><td></td></tr>
+* </table>
+* <br><br>
+*
+*/
+public class RepositoryHistoryRollupManager extends org.apache.manifoldcf.core.database.BaseTable
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  // Fields
+  protected final static String ownerNameField = "owner";
+  protected final static String bucketDescField = "bucketdesc";
+  protected final static String startBucketField = "startbucket";
+  protected final static String endBucketField = "endbucket";
+  protected final static String activityTypeField = "activitytype";
+  protected final static String resultCodeField = "resultcode";
+  protected final static String entityBucketField = "entitybucket";
+  protected final static String eventCountField = "eventcount";
+
+  /** The width of a time bucket, in milliseconds */
+  public final static long bucketInterval = 60000L;
+
+  /** The longest entity bucket value that can be stored */
+  protected final static int maxEntityBucketLength = 255;
+  /** The number of rollup rows inserted at a time when building */
+  protected final static int buildInsertBatchSize = 1000;
+
+  /** Prefix of the per-connection lock that orders history writes against rollup builds */
+  protected final static String ownerLockPrefix = "_REPOHISTORYROLLUP_";
+  /** Name of the shared data resource listing the connections whose rollups reports have asked for, and of its lock */
+  protected final static String buildRequestsResource = "_REPOHISTORYROLLUPREQUESTS_";
+  /** How often the writing process looks for build requests, in milliseconds */
+  protected final static long buildRequestCheckInterval = 10000L;
+
+  // Properties
+  protected final static String entityBucketProperty = "org.apache.manifoldcf.crawler.history.rollup.entitybucket";
+  protected final static String entityBucketInsensitiveProperty = "org.apache.manifoldcf.crawler.history.rollup.entitybucket.insensitive";
+
+  /** The configured entity bucket description, or null if it has not been read yet */
+  protected static BucketDescription entityBucket = null;
+  /** Set once this process has removed the rollups for other entity bucket descriptions */
+  protected static boolean staleRollupsRemoved = false;
+  /** Connections whose rollups can't be built, because an entity bucket value is too long to store */
+  protected static Set<String> unbuildableOwners = new HashSet<String>();
+
+  /** The lock object for the writer state below, also used for wait/notify */
+  protected final static Integer writerLock = new Integer(0);
+  /** Connections whose rollups this process maintains, or null if not yet read from the table */
+  protected static Set<String> rollupOwners = null;
+  /** The number of history writes in progress in this process */
+  protected static int activeWriters = 0;
+  /** Set while a connection is being added to rollupOwners; no write may start meanwhile */
+  protected static boolean addingOwner = false;
+  /** Connections whose build failed part way, to be tried again before any new request */
+  protected static Set<String> failedBuilds = new HashSet<String>();
+  /** The earliest time at which to look for build requests again */
+  protected static long nextBuildRequestCheck = 0L;
+
+  /** Thread context */
+  protected IThreadContext threadContext;
+  /** The name of the raw history table */
+  protected String historyTableName;
+
+  /** Constructor.
+  *@param database is the database instance.
+  *@param historyTableName is the name of the raw history table.
+  */
+  public RepositoryHistoryRollupManager(IThreadContext tc, IDBInterface database, String historyTableName)
+    throws ManifoldCFException
+  {
+    super(database,"repohistoryrollup");
+    this.threadContext = tc;
+    this.historyTableName = historyTableName;
+  }
+
+  /** Install or upgrade the table.
+  *@param parentTable is the parent table.
+  *@param parentField is the parent field.
+  */
+  public void install(String parentTable, String parentField)
+    throws ManifoldCFException
+  {
+    // Always have an outer loop, in case of upgrade
+    while (true)
+    {
+      Map existing = getTableSchema(null,null);
+      if (existing == null)
+      {
+        HashMap map = new HashMap();
+        map.put(ownerNameField,new ColumnDescription("VARCHAR(32)",false,false,parentTable,parentField,false));
+        map.put(bucketDescField,new ColumnDescription("VARCHAR(255)",false,false,null,null,false));
+        map.put(startBucketField,new ColumnDescription("BIGINT",false,false,null,null,false));
+        map.put(endBucketField,new ColumnDescription("BIGINT",false,false,null,null,false));
+        map.put(activityTypeField,new ColumnDescription("VARCHAR(64)",false,false,null,null,false));
+        map.put(resultCodeField,new ColumnDescription("VARCHAR(255)",false,true,null,null,false));
+        map.put(entityBucketField,new ColumnDescription("VARCHAR(255)",false,true,null,null,false));
+        map.put(eventCountField,new ColumnDescription("BIGINT",false,false,null,null,false));
+        performCreate(map,null);
+        resetProcessState();
+      }
+      else if (existing.get(endBucketField) == null)
+      {
+        // An earlier layout.  The rollups are derived data, so just start again; each connection's rollups are
+        // built when they are next needed.
+        performDrop(null);
+        continue;
+      }
+
+      // Index management
+      IndexDescription bucketIndex = new IndexDescription(false,new String[]{bucketDescField,ownerNameField,startBucketField});
+      IndexDescription ownerIndex = new IndexDescription(false,new String[]{ownerNameField});
+
+      // Get rid of indexes that shouldn't be there
+      Map indexes = getTableIndexes(null,null);
+      Iterator iter = indexes.keySet().iterator();
+      while (iter.hasNext())
+      {
+        String indexName = (String)iter.next();
+        IndexDescription id = (IndexDescription)indexes.get(indexName);
+
+        if (bucketIndex != null && id.equals(bucketIndex))
+          bucketIndex = null;
+        else if (ownerIndex != null && id.equals(ownerIndex))
+          ownerIndex = null;
+        else if (indexName.indexOf("_pkey") == -1)
+          // This index shouldn't be here; drop it
+          performRemoveIndex(indexName);
+      }
+
+      // Add the ones we didn't find
+      if (bucketIndex != null)
+        performAddIndex(null,bucketIndex);
+      if (ownerIndex != null)
+        performAddIndex(null,ownerIndex);
+
+      break;
+    }
+  }
+
+  /** Uninstall the table.
+  */
+  public void deinstall()
+    throws ManifoldCFException
+  {
+    performDrop(null);
+    resetProcessState();
+  }
+
+  /** Forget what this process knows about the table's contents, because the table has just been created or dropped.
+  */
+  protected static void resetProcessState()
+  {
+    synchronized (writerLock)
+    {
+      rollupOwners = null;
+    }
+    synchronized (failedBuilds)
+    {
+      failedBuilds.clear();
+    }
+    synchronized (unbuildableOwners)
+    {
+      unbuildableOwners.clear();
+    }
+    synchronized (RepositoryHistoryRollupManager.class)
+    {
+      staleRollupsRemoved = false;
+    }
+  }
+
+  /** Delete all rollups associated with given owner.
+  *@param owner is the name of the owner.
+  *@param invKeys are the invalidation keys.
+  */
+  public void deleteOwner(String owner, StringSet invKeys)
+    throws ManifoldCFException
+  {
+    ArrayList params = new ArrayList();
+    String query = buildConjunctionClause(params,new ClauseDescription[]{
+      new UnitaryClause(ownerNameField,owner)});
+    performDelete("WHERE "+query,params,invKeys);
+    Set<String> owners = new HashSet<String>();
+    owners.add(owner);
+    forgetOwners(owners);
+    synchronized (unbuildableOwners)
+    {
+      unbuildableOwners.remove(owner);
+    }
+  }
+
+  /** Start a history write for a set of connections.  Of those connections, the ones whose rollups this process
+  * maintains are returned, and their rollup locks are held until endWrite() is called; the others need no lock.
+  * Every call must be matched by a call to endWrite(), whether the write succeeds or not.
+  *@param owners are the connection names.
+  *@return the connections whose rows must be added to the rollups.
+  */
+  public Set<String> beginWrite(Set<String> owners)
+    throws ManifoldCFException
+  {
+    Set<String> rval = new HashSet<String>();
+    if (getEntityBucketKey() == null)
+      return rval;
+    loadRollupOwners();
+    synchronized (writerLock)
+    {
+      while (addingOwner)
+      {
+        try
+        {
+          writerLock.wait();
+        }
+        catch (InterruptedException e)
+        {
+          throw new ManifoldCFException("Interrupted",e,ManifoldCFException.INTERRUPTED);
+        }
+      }
+      activeWriters++;
+      Iterator<String> iter = owners.iterator();
+      while (iter.hasNext())
+      {
+        String owner = iter.next();
+        if (rollupOwners.contains(owner))
+          rval.add(owner);
+      }
+    }
+    if (rval.size() > 0)
+    {
+      try
+      {
+        ILockManager lockManager = LockManagerFactory.make(threadContext);
+        lockManager.enterLocks(null,null,getOwnerLockNames(rval));
+      }
+      catch (ManifoldCFException e)
+      {
+        leaveWriter();
+        throw e;
+      }
+      catch (Error e)
+      {
+        leaveWriter();
+        throw e;
+      }
+    }
+    return rval;
+  }
+
+  /** Finish a history write started by beginWrite().
+  *@param lockedOwners is the set beginWrite() returned.
+  */
+  public void endWrite(Set<String> lockedOwners)
+    throws ManifoldCFException
+  {
+    try
+    {
+      if (lockedOwners.size() > 0)
+      {
+        ILockManager lockManager = LockManagerFactory.make(threadContext);
+        lockManager.leaveLocks(null,null,getOwnerLockNames(lockedOwners));
+      }
+    }
+    finally
+    {
+      if (getEntityBucketKey() != null)
+        leaveWriter();
+    }
+  }
+
+  protected static void leaveWriter()
+  {
+    synchronized (writerLock)
+    {
+      activeWriters--;
+      writerLock.notifyAll();
+    }
+  }
+
+  protected static String[] getOwnerLockNames(Set<String> owners)
+  {
+    String[] rval = new String[owners.size()];
+    int i = 0;
+    Iterator<String> iter = owners.iterator();
+    while (iter.hasNext())
+    {
+      rval[i++] = ownerLockPrefix + iter.next();
+    }
+    return rval;
+  }
+
+  /** Read the connections that have rollups, the first time this process writes history.  Only this process
+  * builds rollups for the connections it writes history for, so after that the set is kept up to date in memory.
+  */
+  protected void loadRollupOwners()
+    throws ManifoldCFException
+  {
+    synchronized (writerLock)
+    {
+      if (rollupOwners != null)
+        return;
+    }
+    removeStaleRollups();
+    ArrayList list = new ArrayList();
+    String query = buildConjunctionClause(list,new ClauseDescription[]{
+      new UnitaryClause(bucketDescField,getEntityBucketKey())});
+    IResultSet set = performQuery("SELECT DISTINCT "+ownerNameField+" FROM "+getTableName()+" WHERE "+query,list,null,null);
+    Set<String> owners = new HashSet<String>();
+    int i = 0;
+    while (i < set.getRowCount())
+    {
+      owners.add((String)set.getRow(i++).getValue(ownerNameField));
+    }
+    synchronized (writerLock)
+    {
+      // Only a build can add an owner, and builds read the set first, so nobody can have beaten us to it
+      // with anything but the same answer.
+      if (rollupOwners == null)
+        rollupOwners = owners;
+    }
+  }
+
+  /** Stop maintaining the rollups of some connections, after their rollup rows have been deleted and the deletion
+  * committed.  Must be called with the connections' rollup locks held, or after their history is gone.
+  *@param owners are the connection names.
+  */
+  public void forgetOwners(Set<String> owners)
+  {
+    if (owners.size() == 0)
+      return;
+    synchronized (writerLock)
+    {
+      if (rollupOwners != null)
+        rollupOwners.removeAll(owners);
+    }
+  }
+
+  /** Add newly inserted history rows to the rollups of the connections that have them.  This must be called in the
+  * transaction that inserted the rows, between beginWrite() and endWrite().  If a row can't be added, its connection's
+  * rollups are discarded instead; the caller must pass the connections returned to forgetOwners() once the
+  * transaction has committed.
+  *@param rows are the history rows, as column maps using the repohistory column names.
+  *@param lockedOwners is the set beginWrite() returned.
+  *@return the connections whose rollups were discarded.
+  */
+  public Set<String> addEvents(List<Map<String,Object>> rows, Set<String> lockedOwners)
+    throws ManifoldCFException
+  {
+    Set<String> discardedOwners = new HashSet<String>();
+    String bucketDesc = getEntityBucketKey();
+    if (bucketDesc == null || rows.size() == 0 || lockedOwners.size() == 0)
+      return discardedOwners;
+
+    // A writer that had the lock before us may have discarded some of these rollups since beginWrite()
+    Set<String> builtOwners = new HashSet<String>();
+    synchronized (writerLock)
+    {
+      Iterator<String> iter = lockedOwners.iterator();
+      while (iter.hasNext())
+      {
+        String owner = iter.next();
+        if (rollupOwners.contains(owner))
+          builtOwners.add(owner);
+      }
+    }
+    if (builtOwners.size() == 0)
+      return discardedOwners;
+    List<Object> ids = new ArrayList<Object>();
+    int i = 0;
+    while (i < rows.size())
+    {
+      Map<String,Object> row = rows.get(i++);
+      if (builtOwners.contains(row.get(RepositoryHistoryManager.ownerNameField)))
+        ids.add(row.get(RepositoryHistoryManager.idField));
+    }
+    if (ids.size() == 0)
+      return discardedOwners;
+
+    // Sum up the events in memory first, so each rollup row is touched only once.  The keys are read back from the
+    // rows just inserted, so they are computed exactly as a build would compute them.
+    Map<String,Map<RollupKey,Long>> ownerTotals = new HashMap<String,Map<RollupKey,Long>>();
+    int maxClause = findConjunctionClauseMax(new ClauseDescription[]{});
+    int j = 0;
+    while (j < ids.size())
+    {
+      int end = Math.min(ids.size(),j + maxClause);
+      ArrayList list = new ArrayList();
+      StringBuilder sb = new StringBuilder("SELECT ");
+      sb.append(RepositoryHistoryManager.ownerNameField).append(",");
+      appendKeyColumns(sb,list);
+      sb.append(" FROM ").append(historyTableName).append(" WHERE ").append(buildConjunctionClause(list,new ClauseDescription[]{
+        new MultiClause(RepositoryHistoryManager.idField,ids.subList(j,end))}));
+      IResultSet set = performQuery(sb.toString(),list,null,null);
+      int k = 0;
+      while (k < set.getRowCount())
+      {
+        IResultRow row = set.getRow(k++);
+        String owner = (String)row.getValue(RepositoryHistoryManager.ownerNameField);
+        RollupKey key = readKey(row);
+        if (key.entityBucket != null && key.entityBucket.length() > maxEntityBucketLength)
+          discardedOwners.add(owner);
+        Map<RollupKey,Long> totals = ownerTotals.get(owner);
+        if (totals == null)
+        {
+          totals = new HashMap<RollupKey,Long>();
+          ownerTotals.put(owner,totals);
+        }
+        Long count = totals.get(key);
+        totals.put(key,new Long(((count == null)?0L:count.longValue()) + 1L));
+      }
+      j = end;
+    }
+
+    Iterator<String> ownerIter = ownerTotals.keySet().iterator();
+    while (ownerIter.hasNext())
+    {
+      String owner = ownerIter.next();
+      if (discardedOwners.contains(owner))
+        discardOwner(owner);
+      else
+        mergeTotals(owner,bucketDesc,ownerTotals.get(owner));
+    }
+    return discardedOwners;
+  }
+
+  /** Throw away a connection's rollup rows, because they can no longer be kept exact.  Reports for the connection then
+  * use the raw history.  This must be called with the connection's rollup lock held, and forgetOwners() called for
+  * the connection once the deletion has committed.
+  *@param owner is the connection name.
+  */
+  public void discardOwner(String owner)
+    throws ManifoldCFException
+  {
+    ArrayList params = new ArrayList();
+    String query = buildConjunctionClause(params,new ClauseDescription[]{
+      new UnitaryClause(ownerNameField,owner)});
+    performDelete("WHERE "+query,params,null);
+  }
+
+  /** Merge in-memory totals for one owner into the table.  Must be called in a transaction, with the owner's
+  * rollup lock held.
+  */
+  protected void mergeTotals(String owner, String bucketDesc, Map<RollupKey,Long> totals)
+    throws ManifoldCFException
+  {
+    long minBucket = Long.MAX_VALUE;
+    long maxBucket = Long.MIN_VALUE;
+    Iterator<RollupKey> keyIter = totals.keySet().iterator();
+    while (keyIter.hasNext())
+    {
+      RollupKey key = keyIter.next();
+      minBucket = Math.min(minBucket,key.startBucket);
+      maxBucket = Math.max(maxBucket,key.startBucket);
+    }
+
+    // Find the rows that already exist in the affected range
+    ArrayList list = new ArrayList();
+    String query = buildConjunctionClause(list,new ClauseDescription[]{
+      new UnitaryClause(bucketDescField,bucketDesc),
+      new UnitaryClause(ownerNameField,owner),
+      new UnitaryClause(startBucketField,">=",new Long(minBucket)),
+      new UnitaryClause(startBucketField,"<=",new Long(maxBucket))});
+    IResultSet set = performQuery("SELECT "+startBucketField+","+endBucketField+","+activityTypeField+","+resultCodeField+","+
+      entityBucketField+","+eventCountField+" FROM "+getTableName()+" WHERE "+query,list,null,null);
+    Map<RollupKey,IResultRow> existing = new HashMap<RollupKey,IResultRow>();
+    int i = 0;
+    while (i < set.getRowCount())
+    {
+      IResultRow row = set.getRow(i++);
+      existing.put(readKey(row),row);
+    }
+
+    List<Map<String,Object>> inserts = new ArrayList<Map<String,Object>>();
+    Iterator<Map.Entry<RollupKey,Long>> iter = totals.entrySet().iterator();
+    while (iter.hasNext())
+    {
+      Map.Entry<RollupKey,Long> entry = iter.next();
+      RollupKey key = entry.getKey();
+      long count = entry.getValue().longValue();
+      IResultRow row = existing.get(key);
+      if (row == null)
+        inserts.add(makeRow(owner,bucketDesc,key,count));
+      else
+      {
+        HashMap<String,Object> map = new HashMap<String,Object>();
+        map.put(eventCountField,new Long(asLong(row.getValue(eventCountField)) + count));
+        ArrayList whereList = new ArrayList();
+        String whereClause = buildKeyClause(whereList,owner,bucketDesc,key);
+        performUpdate(map,"WHERE "+whereClause,whereList,null);
+      }
+    }
+    if (inserts.size() > 0)
+      performInsertMultiple(inserts,null);
+  }
+
+  /** Build a where clause that selects exactly one rollup row.  Nullable columns need IS NULL.
+  */
+  protected String buildKeyClause(ArrayList list, String owner, String bucketDesc, RollupKey key)
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append(bucketDescField).append("=? AND ").append(ownerNameField).append("=? AND ")
+      .append(startBucketField).append("=? AND ").append(endBucketField).append("=? AND ")
+      .append(activityTypeField).append("=? AND ");
+    list.add(bucketDesc);
+    list.add(owner);
+    list.add(new Long(key.startBucket));
+    list.add(new Long(key.endBucket));
+    list.add(key.activityType);
+    if (key.resultCode == null)
+      sb.append(resultCodeField).append(" IS NULL AND ");
+    else
+    {
+      sb.append(resultCodeField).append("=? AND ");
+      list.add(key.resultCode);
+    }
+    if (key.entityBucket == null)
+      sb.append(entityBucketField).append(" IS NULL");
+    else
+    {
+      sb.append(entityBucketField).append("=?");
+      list.add(key.entityBucket);
+    }
+    return sb.toString();
+  }
+
+  /** Decide whether a result code report can be answered from the rollups.  If it could be but the connection's
+  * rollups have not been built, ask the writing process to build them, so that later reports can be.
+  *@param connectionName is the connection name.
+  *@param criteria is the report filter criteria.
+  *@param idBucket is the requested entity bucket description.
+  *@return true if the rollups give the answer.
+  */
+  public boolean canAnswer(String connectionName, FilterCriteria criteria, BucketDescription idBucket)
+    throws ManifoldCFException
+  {
+    String bucketDesc = getEntityBucketKey();
+    if (bucketDesc == null || !bucketDesc.equals(makeBucketKey(idBucket)))
+      return false;
+    // Entity filters need the raw identifiers
+    if (criteria.getEntityMatch() != null)
+      return false;
+    Long startTime = criteria.getStartTime();
+    if (startTime != null && (startTime.longValue() % bucketInterval) != 0L)
+      return false;
+    Long endTime = criteria.getEndTime();
+    if (endTime != null && (endTime.longValue() % bucketInterval) != 0L)
+      return false;
+    synchronized (unbuildableOwners)
+    {
+      if (unbuildableOwners.contains(connectionName))
+        return false;
+    }
+    removeStaleRollups();
+    if (isBuilt(connectionName,bucketDesc))
+      return true;
+    requestBuild(connectionName);
+    return false;
+  }
+
+  /** Ask the writing process to build a connection's rollups.
+  *@param owner is the connection name.
+  */
+  protected void requestBuild(String owner)
+    throws ManifoldCFException
+  {
+    ILockManager lockManager = LockManagerFactory.make(threadContext);
+    lockManager.enterWriteLock(buildRequestsResource);
+    try
+    {
+      Set<String> requests = readBuildRequests(lockManager);
+      if (requests.add(owner))
+        writeBuildRequests(lockManager,requests);
+    }
+    finally
+    {
+      lockManager.leaveWriteLock(buildRequestsResource);
+    }
+  }
+
+  /** Build the rollups that reports have asked for, if it is time to look for requests again.  Called by the
+  * process that writes history, outside of any history write.
+  */
+  public void checkBuildRequests()
+    throws ManifoldCFException
+  {
+    if (getEntityBucketKey() == null)
+      return;
+    long currentTime = System.currentTimeMillis();
+    synchronized (writerLock)
+    {
+      if (currentTime < nextBuildRequestCheck)
+        return;
+      nextBuildRequestCheck = currentTime + buildRequestCheckInterval;
+    }
+    buildRequested();
+  }
+
+  /** Build the rollups that reports have asked for, and any whose build failed earlier.  Called by the process that
+  * writes history, outside of any history write.
+  */
+  public void buildRequested()
+    throws ManifoldCFException
+  {
+    String bucketDesc = getEntityBucketKey();
+    if (bucketDesc == null)
+      return;
+    Set<String> owners;
+    synchronized (failedBuilds)
+    {
+      owners = new HashSet<String>(failedBuilds);
+    }
+    ILockManager lockManager = LockManagerFactory.make(threadContext);
+    // Look without the lock first; there is usually nothing there
+    if (lockManager.readData(buildRequestsResource) != null)
+    {
+      lockManager.enterWriteLock(buildRequestsResource);
+      try
+      {
+        owners.addAll(readBuildRequests(lockManager));
+        lockManager.writeData(buildRequestsResource,null);
+      }
+      finally
+      {
+        lockManager.leaveWriteLock(buildRequestsResource);
+      }
+    }
+    if (owners.size() == 0)
+      return;
+
+    loadRollupOwners();
+    Iterator<String> iter = owners.iterator();
+    while (iter.hasNext())
+    {
+      String owner = iter.next();
+      synchronized (unbuildableOwners)
+      {
+        if (unbuildableOwners.contains(owner))
+          continue;
+      }
+      boolean retry;
+      synchronized (failedBuilds)
+      {
+        retry = failedBuilds.remove(owner);
+      }
+      try
+      {
+        build(owner,bucketDesc,retry);
+      }
+      catch (ManifoldCFException e)
+      {
+        if (e.getErrorCode() != ManifoldCFException.INTERRUPTED)
+        {
+          synchronized (failedBuilds)
+          {
+            failedBuilds.add(owner);
+          }
+        }
+        throw e;
+      }
+    }
+  }
+
+  protected static Set<String> readBuildRequests(ILockManager lockManager)
+    throws ManifoldCFException
+  {
+    Set<String> rval = new HashSet<String>();
+    byte[] data = lockManager.readData(buildRequestsResource);
+    if (data == null)
+      return rval;
+    try
+    {
+      String[] names = new String(data,"utf-8").split("\n");
+      int i = 0;
+      while (i < names.length)
+      {
+        String name = names[i++];
+        if (name.length() > 0)
+          rval.add(name);
+      }
+      return rval;
+    }
+    catch (java.io.UnsupportedEncodingException e)
+    {
+      throw new ManifoldCFException(e.getMessage(),e);
+    }
+  }
+
+  protected static void writeBuildRequests(ILockManager lockManager, Set<String> requests)
+    throws ManifoldCFException
+  {
+    StringBuilder sb = new StringBuilder();
+    Iterator<String> iter = requests.iterator();
+    while (iter.hasNext())
+    {
+      sb.append(iter.next()).append("\n");
+    }
+    try
+    {
+      lockManager.writeData(buildRequestsResource,sb.toString().getBytes("utf-8"));
+    }
+    catch (java.io.UnsupportedEncodingException e)
+    {
+      throw new ManifoldCFException(e.getMessage(),e);
+    }
+  }
+
+  /** Build a connection's rollups from its raw history, and start maintaining them.  Must not be called from within
+  * a history write.
+  *@param retry is true if an earlier build for the connection failed part way, in which case it may still be in the
+  *  set, with incomplete rollups.
+  */
+  protected void build(String owner, String bucketDesc, boolean retry)
+    throws ManifoldCFException
+  {
+    // Writes that are already under way won't add their rows to the rollups, so wait for them to finish, and keep
+    // new ones from starting until the connection is in the set.  From then on they wait for its rollup lock.
+    synchronized (writerLock)
+    {
+      if (rollupOwners.contains(owner) && !retry)
+        return;
+      try
+      {
+        while (addingOwner)
+        {
+          writerLock.wait();
+        }
+        addingOwner = true;
+        try
+        {
+          while (activeWriters > 0)
+          {
+            writerLock.wait();
+          }
+          rollupOwners.add(owner);
+        }
+        finally
+        {
+          addingOwner = false;
+          writerLock.notifyAll();
+        }
+      }
+      catch (InterruptedException e)
+      {
+        throw new ManifoldCFException("Interrupted",e,ManifoldCFException.INTERRUPTED);
+      }
+    }
+
+    Set<String> owners = new HashSet<String>();
+    owners.add(owner);
+    ILockManager lockManager = LockManagerFactory.make(threadContext);
+    String lockName = ownerLockPrefix + owner;
+    lockManager.enterWriteLock(lockName);
+    try
+    {
+      boolean built = false;
+      try
+      {
+        built = buildRows(owner,bucketDesc);
+      }
+      finally
+      {
+        if (!built)
+        {
+          // Whatever writers have added since the connection went into the set is not the whole story.  If this
+          // delete fails too, the build is tried again later, and starts with the same delete.
+          discardOwner(owner);
+          forgetOwners(owners);
+        }
+      }
+    }
+    finally
+    {
+      lockManager.leaveWriteLock(lockName);
+    }
+  }
+
+  /** Rebuild a connection's rollup rows from its raw history.  Must be called with the connection's rollup lock held.
+  *@return true if the rollups are now complete; false if they can't be built.
+  */
+  protected boolean buildRows(String owner, String bucketDesc)
+    throws ManifoldCFException
+  {
+    while (true)
+    {
+      long sleepAmt = 0L;
+      beginTransaction();
+      try
+      {
+        // Rows for other bucket descriptions, or added by writers before the build, are of no further use
+        discardOwner(owner);
+
+        ArrayList list = new ArrayList();
+        StringBuilder sb = new StringBuilder("SELECT ");
+        sb.append(startBucketField).append(",").append(endBucketField).append(",").append(activityTypeField).append(",")
+          .append(resultCodeField).append(",").append(entityBucketField).append(",").append(constructCountClause("'x'"))
+          .append(" AS ").append(eventCountField).append(" FROM (SELECT ");
+        appendKeyColumns(sb,list);
+        sb.append(" FROM ").append(historyTableName).append(" WHERE ").append(buildConjunctionClause(list,new ClauseDescription[]{
+          new UnitaryClause(RepositoryHistoryManager.ownerNameField,owner)}));
+        sb.append(") t0 GROUP BY ").append(startBucketField).append(",").append(endBucketField).append(",")
+          .append(activityTypeField).append(",").append(resultCodeField).append(",").append(entityBucketField);
+        IResultSet set = performQuery(sb.toString(),list,null,null);
+
+        List<Map<String,Object>> inserts = new ArrayList<Map<String,Object>>();
+        int i = 0;
+        while (i < set.getRowCount())
+        {
+          IResultRow row = set.getRow(i++);
+          RollupKey key = readKey(row);
+          if (key.entityBucket != null && key.entityBucket.length() > maxEntityBucketLength)
+          {
+            Logging.threads.warn("History rollups for connection '"+owner+"' can't be built, because an entity bucket value is longer than "+
+              Integer.toString(maxEntityBucketLength)+" characters; reports will use the raw history");
+            synchronized (unbuildableOwners)
+            {
+              unbuildableOwners.add(owner);
+            }
+            performCommit();
+            return false;
+          }
+          inserts.add(makeRow(owner,bucketDesc,key,asLong(row.getValue(eventCountField))));
+          if (inserts.size() == buildInsertBatchSize)
+          {
+            performInsertMultiple(inserts,null);
+            inserts.clear();
+          }
+        }
+        if (inserts.size() > 0)
+          performInsertMultiple(inserts,null);
+        performCommit();
+        return true;
+      }
+      catch (ManifoldCFException e)
+      {
+        signalRollback();
+        if (e.getErrorCode() == e.DATABASE_TRANSACTION_ABORT)
+        {
+          sleepAmt = getSleepAmt();
+          continue;
+        }
+        throw e;
+      }
+      catch (Error e)
+      {
+        signalRollback();
+        throw e;
+      }
+      finally
+      {
+        endTransaction();
+        sleepFor(sleepAmt);
+      }
+    }
+  }
+
+  /** Append the rollup key columns, computed from the raw history columns, to a select list.
+  */
+  protected void appendKeyColumns(StringBuilder sb, ArrayList list)
+  {
+    String startTimeColumn = RepositoryHistoryManager.startTimeField;
+    String endTimeColumn = RepositoryHistoryManager.endTimeField;
+    String intervalString = Long.toString(bucketInterval);
+    // The last boundary before the start time, and the first boundary at or after the end time
+    sb.append("(").append(startTimeColumn).append("-1)-MOD(").append(startTimeColumn).append("-1,").append(intervalString)
+      .append(") AS ").append(startBucketField).append(",")
+      .append(endTimeColumn).append("+MOD(").append(intervalString).append("-MOD(").append(endTimeColumn).append(",")
+      .append(intervalString).append("),").append(intervalString).append(") AS ").append(endBucketField).append(",")
+      .append(RepositoryHistoryManager.activityTypeField).append(" AS ").append(activityTypeField).append(",")
+      .append(RepositoryHistoryManager.resultCodeField).append(" AS ").append(resultCodeField).append(",")
+      .append(constructSubstringClause(RepositoryHistoryManager.entityIdentifierField,"?",!entityBucket.isSensitive()))
+      .append(" AS ").append(entityBucketField);
+    list.add(entityBucket.getRegexp());
+  }
+
+  /** Read the key columns of a result row.
+  */
+  protected static RollupKey readKey(IResultRow row)
+  {
+    return new RollupKey(asLong(row.getValue(startBucketField)),asLong(row.getValue(endBucketField)),
+      (String)row.getValue(activityTypeField),(String)row.getValue(resultCodeField),(String)row.getValue(entityBucketField));
+  }
+
+  /** Make the column map for a new rollup row.
+  */
+  protected static Map<String,Object> makeRow(String owner, String bucketDesc, RollupKey key, long count)
+  {
+    HashMap<String,Object> map = new HashMap<String,Object>();
+    map.put(ownerNameField,owner);
+    map.put(bucketDescField,bucketDesc);
+    map.put(startBucketField,new Long(key.startBucket));
+    map.put(endBucketField,new Long(key.endBucket));
+    map.put(activityTypeField,key.activityType);
+    if (key.resultCode != null)
+      map.put(resultCodeField,key.resultCode);
+    if (key.entityBucket != null)
+      map.put(entityBucketField,key.entityBucket);
+    map.put(eventCountField,new Long(count));
+    return map;
+  }
+
+  /** Check whether a connection's rollups have been built.
+  */
+  protected boolean isBuilt(String owner, String bucketDesc)
+    throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildConjunctionClause(list,new ClauseDescription[]{
+      new UnitaryClause(bucketDescField,bucketDesc),
+      new UnitaryClause(ownerNameField,owner)});
+    IResultSet set = performQuery("SELECT "+ownerNameField+" FROM "+getTableName()+" WHERE "+query+" "+
+      constructOffsetLimitClause(0,1),list,null,null,1);
+    return set.getRowCount() > 0;
+  }
+
+  /** Remove the rollups for every entity bucket description other than the configured one, once per process.
+  * They are not kept up to date, so they could be wrong if that description were ever configured again.
+  */
+  protected void removeStaleRollups()
+    throws ManifoldCFException
+  {
+    synchronized (RepositoryHistoryRollupManager.class)
+    {
+      if (staleRollupsRemoved)
+        return;
+    }
+    String bucketDesc = getEntityBucketKey();
+    if (bucketDesc == null)
+      performDelete(null,null,null);
+    else
+    {
+      ArrayList list = new ArrayList();
+      list.add(bucketDesc);
+      list.add(bucketDesc);
+      performDelete("WHERE "+bucketDescField+"<? OR "+bucketDescField+">?",list,null);
+    }
+    synchronized (RepositoryHistoryRollupManager.class)
+    {
+      staleRollupsRemoved = true;
+    }
+  }
+
+  /** Build the query for a result code history.  The columns are as for the raw history version.
+  *@param list is the list to put the query parameters into.
+  *@return the query.
+  */
+  public String buildResultCodesReportQuery(ArrayList list, String connectionName, FilterCriteria filterCriteria, SortOrder sort,
+    BucketDescription resultCodeBucket, int startRow, int maxRowCount)
+    throws ManifoldCFException
+  {
+    String bucketDesc = getEntityBucketKey();
+    StringBuilder sb = new StringBuilder("SELECT t1.resultcodebucket,t1.idbucket,");
+    sb.append(constructSumClause("t1."+eventCountField)).append(" AS eventcount FROM (SELECT ");
+    sb.append(constructSubstringClause(resultCodeField,"?",!resultCodeBucket.isSensitive()));
+    list.add(resultCodeBucket.getRegexp());
+    sb.append(" AS resultcodebucket, ").append(entityBucketField).append(" AS idbucket, ").append(eventCountField)
+      .append(" FROM ").append(getTableName());
+    addCriteria(sb,list,connectionName,bucketDesc,filterCriteria);
+    sb.append(") t1 GROUP BY resultcodebucket,idbucket");
+    addOrdering(sb,new String[]{"eventcount","resultcodebucket","idbucket"},sort);
+    addLimits(sb,startRow,maxRowCount);
+    return sb.toString();
+  }
+
+  /** Get a result code history.
+  */
+  public IResultSet resultCodesReport(String connectionName, FilterCriteria filterCriteria, SortOrder sort,
+    BucketDescription resultCodeBucket, int startRow, int maxRowCount)
+    throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildResultCodesReportQuery(list,connectionName,filterCriteria,sort,resultCodeBucket,startRow,maxRowCount);
+    return performQuery(query,list,null,null,maxRowCount);
+  }
+
+  /** Get a result code history, reading the rows through a cursor.
+  *@return the cursor, which the caller must close.
+  */
+  public IResultCursor resultCodesReportCursor(String connectionName, FilterCriteria filterCriteria, SortOrder sort,
+    BucketDescription resultCodeBucket, int startRow, int maxRowCount)
+    throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildResultCodesReportQuery(list,connectionName,filterCriteria,sort,resultCodeBucket,startRow,maxRowCount);
+    return performQueryCursor(query,list);
+  }
+
+  /** Add criteria clauses to a rollup query.  The time criteria are exact because canAnswer() only accepts times
+  * that fall on bucket boundaries.
+  */
+  protected void addCriteria(StringBuilder sb, ArrayList list, String connectionName, String bucketDesc,
+    FilterCriteria criteria)
+  {
+    sb.append(" WHERE ").append(bucketDescField).append("=? AND ").append(ownerNameField).append("=?");
+    list.add(bucketDesc);
+    list.add(connectionName);
+
+    String[] activities = criteria.getActivities();
+    if (activities != null)
+    {
+      sb.append(" AND ");
+      if (activities.length == 0)
+      {
+        sb.append("0>1");
+      }
+      else
+      {
+        sb.append(activityTypeField).append(" IN(");
+        int i = 0;
+        while (i < activities.length)
+        {
+          if (i > 0)
+            sb.append(",");
+          String activity = activities[i++];
+          sb.append("?");
+          list.add(activity);
+        }
+        sb.append(")");
+      }
+    }
+
+    Long startTime = criteria.getStartTime();
+    if (startTime != null)
+      sb.append(" AND ").append(startBucketField).append(">=").append(startTime.toString());
+
+    Long endTime = criteria.getEndTime();
+    if (endTime != null)
+      sb.append(" AND ").append(endBucketField).append("<=").append(endTime.toString());
+
+    RegExpCriteria resultCodeMatch = criteria.getResultCodeMatch();
+    if (resultCodeMatch != null)
+    {
+      sb.append(" AND ").append(constructRegexpClause(resultCodeField,"?",resultCodeMatch.isInsensitive()));
+      list.add(resultCodeMatch.getRegexpString());
+    }
+  }
+
+  /** Add ordering.
+  */
+  protected void addOrdering(StringBuilder sb, String[] completeFieldList, SortOrder sort)
+  {
+    // Keep track of the fields we've seen
+    Map hash = new HashMap();
+
+    // Emit the "Order by"
+    sb.append(" ORDER BY ");
+
+    // Go through the specified list
+    int i = 0;
+    int count = sort.getCount();
+    while (i < count)
+    {
+      if (i > 0)
+        sb.append(",");
+      String column = sort.getColumn(i);
+      sb.append(column);
+      if (sort.getDirection(i) == sort.SORT_ASCENDING)
+        sb.append(" ASC");
+      else
+        sb.append(" DESC");
+      hash.put(column,column);
+      i++;
+    }
+
+    // Now, go through the complete field list, and emit sort criteria for everything
+    // not actually specified.  This is so LIMIT and OFFSET give consistent results.
+
+    int j = 0;
+    while (j < completeFieldList.length)
+    {
+      String field = completeFieldList[j];
+      if (hash.get(field) == null)
+      {
+        if (i > 0)
+          sb.append(",");
+        sb.append(field);
+        // Always make it DESC order...
+        sb.append(" DESC");
+        i++;
+      }
+      j++;
+    }
+  }
+
+  /** Add limit and offset.
+  */
+  protected void addLimits(StringBuilder sb, int startRow, int maxRowCount)
+  {
+    sb.append(" ").append(constructOffsetLimitClause(startRow,maxRowCount));
+  }
+
+  /** Get the key under which rollups for the configured entity bucket are stored.
+  *@return the key, or null if the configured bucket cannot be used for rollups.
+  */
+  protected static synchronized String getEntityBucketKey()
+    throws ManifoldCFException
+  {
+    if (entityBucket == null)
+    {
+      String regexp = ManifoldCF.getProperty(entityBucketProperty);
+      if (regexp == null)
+        regexp = "()";
+      boolean insensitive = ManifoldCF.getBooleanProperty(entityBucketInsensitiveProperty,false);
+      entityBucket = new BucketDescription(regexp,!insensitive);
+    }
+    return makeBucketKey(entityBucket);
+  }
+
+  /** Turn a bucket description into the string stored in the bucketdesc column.
+  *@return the string, or null if it is too long to store.
+  */
+  protected static String makeBucketKey(BucketDescription bucketDesc)
+  {
+    String rval = (bucketDesc.isSensitive()?"s:":"i:") + bucketDesc.getRegexp();
+    if (rval.length() > 255)
+      return null;
+    return rval;
+  }
+
+  /** Convert a computed integer column value to a long, whatever form the database returned it in.
+  */
+  protected static long asLong(Object o)
+  {
+    if (o instanceof Number)
+      return ((Number)o).longValue();
+    return new Long(o.toString()).longValue();
+  }
+
+  /** The identifying part of a rollup row, for one owner and bucket description.
+  */
+  protected static class RollupKey
+  {
+    protected final long startBucket;
+    protected final long endBucket;
+    protected final String activityType;
+    protected final String resultCode;
+    protected final String entityBucket;
+
+    public RollupKey(long startBucket, long endBucket, String activityType, String resultCode, String entityBucket)
+    {
+      this.startBucket = startBucket;
+      this.endBucket = endBucket;
+      this.activityType = activityType;
+      this.resultCode = resultCode;
+      this.entityBucket = entityBucket;
+    }
+
+    public int hashCode()
+    {
+      return ((int)(startBucket ^ (startBucket >>> 32))) + ((int)(endBucket ^ (endBucket >>> 32))) * 7 + activityType.hashCode() +
+        ((resultCode==null)?0:resultCode.hashCode() * 31) + ((entityBucket==null)?0:entityBucket.hashCode() * 17);
+    }
+
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof RollupKey))
+        return false;
+      RollupKey other = (RollupKey)o;
+      return startBucket == other.startBucket && endBucket == other.endBucket && activityType.equals(other.activityType) &&
+        ((resultCode==null)?other.resultCode==null:resultCode.equals(other.resultCode)) &&
+        ((entityBucket==null)?other.entityBucket==null:entityBucket.equals(other.entityBucket));
+    }
+  }
+
+}
@@ -26,13 +26,30 @@ import java.util.*;
 * The queue manages thread synchronization so that (a) the "stuffer" thread blocks until queue is empty, and
 * (b) the "reader" threads block if queue is empty.
 * The objects being queued are all QueuedDocumentSet objects.
+*
+* Readers are always handed the queued set with the best assignment rating, with ties going to the set that
+* was queued first.  Ratings only change when the QueueTracker's active bin counts change, so rather than
+* rating every queued set each time a reader asks for one, the queue keeps the sets in a heap ordered by rating,
+* and listens for bin count changes so that only the sets sharing a changed bin need to be re-rated.
 */
-public class DocumentQueue
+public class DocumentQueue implements QueueTracker.ActiveBinCountListener
 {
   public static final String _rcsid = "@(#)$Id: DocumentQueue.java 988245 2010-08-23 18:39:35Z kwright $";
 
-  // Since the queue has a maximum size, an ArrayList is a fine way to keep it
-  protected ArrayList queue = new ArrayList();
+  // The rated entries, as a heap with the best-rated entry at index 0.  This is also the lock object for the queue.
+  protected ArrayList<QueueEntry> queue = new ArrayList<QueueEntry>();
+  // Entries that have been added but not yet rated, in the order they were added
+  protected ArrayList<QueueEntry> unratedEntries = new ArrayList<QueueEntry>();
+  // The queued entries belonging to each bin, keyed by bin name
+  protected HashMap<String,Set<QueueEntry>> binEntries = new HashMap<String,Set<QueueEntry>>();
+  // Bins whose active counts have changed since the ratings were last brought up to date.  This has its own lock.
+  protected HashSet<String> changedBins = new HashSet<String>();
+  // The queue tracker we are listening to, if any
+  protected QueueTracker queueTracker = null;
+  // The sequence number to give the next entry, so that ties can be broken in queue order
+  protected long nextSequenceNumber = 0L;
+  // The current re-rating pass, so an entry sharing several changed bins is only rated once per pass
+  protected long ratingPass = 0L;
   // This flag gets set to 'true' if the queue is being cleared due to a reset
   protected boolean resetFlag = false;
 
@@ -60,6 +77,12 @@ public class DocumentQueue
     synchronized (queue)
     {
       queue.clear();
+      unratedEntries.clear();
+      binEntries.clear();
+      synchronized (changedBins)
+      {
+        changedBins.clear();
+      }
       resetFlag = false;
     }
   }
@@ -71,7 +94,7 @@ public class DocumentQueue
   {
     synchronized (queue)
     {
-      if (queue.size() <= n)
+      if (queue.size() + unratedEntries.size() <= n)
         return true;
     }
     return false;
@@ -85,7 +108,21 @@ public class DocumentQueue
   {
     synchronized (queue)
     {
-      queue.add(dd);
+      // Rating is deferred until a reader needs it, so the stuffer does not have to wait for it
+      QueueEntry entry = new QueueEntry(dd,nextSequenceNumber++);
+      unratedEntries.add(entry);
+      Iterator<String> iter = entry.binNames.iterator();
+      while (iter.hasNext())
+      {
+        String binName = iter.next();
+        Set<QueueEntry> entries = binEntries.get(binName);
+        if (entries == null)
+        {
+          entries = new HashSet<QueueEntry>();
+          binEntries.put(binName,entries);
+        }
+        entries.add(entry);
+      }
       queue.notify();
     }
   }
@@ -106,35 +143,262 @@ public class DocumentQueue
         return null;
 
       // If queue is empty, go to sleep
-      while (queue.size() == 0 && resetFlag == false)
+      while (queue.size() + unratedEntries.size() == 0 && resetFlag == false)
         queue.wait();
 
       // If we've been awakened, there's either an entry to grab, or we've been
       // awakened because it's time to reset.
-      if (queue.size() == 0)
+      if (queue.size() + unratedEntries.size() == 0)
         return null;
 
-      // Go through all the documents and pick the one with the best rating
+      // Bring the ratings up to date
+      if (overlapCalculator != queueTracker)
+        attach(overlapCalculator);
+      else
+        rerateChangedEntries();
       int i = 0;
-      int bestIndex = -1;
-      double bestRating = Double.NEGATIVE_INFINITY;
-      while (i < queue.size())
+      while (i < unratedEntries.size())
       {
-        QueuedDocumentSet dd = (QueuedDocumentSet)queue.get(i);
-        // Evaluate each document's bins.  These will be saved in the QueuedDocumentSet.
-        double rating = dd.calculateAssignmentRating(overlapCalculator);
-        if (bestIndex == -1 || rating > bestRating)
+        QueueEntry entry = unratedEntries.get(i++);
+        entry.rating = rate(entry);
+        entry.heapIndex = queue.size();
+        queue.add(entry);
+        siftUp(entry.heapIndex);
+      }
+      unratedEntries.clear();
+
+      // Pull off the best one
+      QueueEntry best = queue.get(0);
+      removeFromHeap(0);
+      Iterator<String> iter = best.binNames.iterator();
+      while (iter.hasNext())
+      {
+        String binName = iter.next();
+        Set<QueueEntry> entries = binEntries.get(binName);
+        entries.remove(best);
+        if (entries.size() == 0)
+          binEntries.remove(binName);
+      }
+      return best.documentSet;
+    }
+  }
+
+  /** Note that the active counts for some bins have changed.  Called by the QueueTracker.
+  *@param binNames are the bins whose counts changed.
+  */
+  public void activeBinCountsChanged(String[] binNames)
+  {
+    synchronized (changedBins)
+    {
+      int i = 0;
+      while (i < binNames.length)
+      {
+        changedBins.add(binNames[i++]);
+      }
+    }
+  }
+
+  /** Start listening to a different queue tracker, and re-rate everything against it.
+  * Call only while synchronized on the queue.
+  */
+  protected void attach(QueueTracker overlapCalculator)
+  {
+    if (queueTracker != null)
+      queueTracker.removeActiveBinCountListener(this);
+    queueTracker = overlapCalculator;
+    // Listen first, so no change can slip in between the rating and the registration
+    queueTracker.addActiveBinCountListener(this);
+    synchronized (changedBins)
+    {
+      changedBins.clear();
+    }
+    rerateAll();
+  }
+
+  /** Re-rate every rated entry, and rebuild the heap.
+  * Call only while synchronized on the queue.
+  */
+  protected void rerateAll()
+  {
+    int i = 0;
+    while (i < queue.size())
+    {
+      QueueEntry entry = queue.get(i);
+      entry.rating = rate(entry);
+      i++;
+    }
+    // Re-establish the heap property from scratch
+    i = queue.size() / 2;
+    while (i > 0)
+    {
+      siftDown(--i);
+    }
+  }
+
+  /** Re-rate the entries that share a bin with a changed active bin count.
+  * Call only while synchronized on the queue.
+  */
+  protected void rerateChangedEntries()
+  {
+    String[] binNames;
+    synchronized (changedBins)
+    {
+      if (changedBins.size() == 0)
+        return;
+      binNames = changedBins.toArray(new String[0]);
+      changedBins.clear();
+    }
+    // If most of the queue would be touched anyway, re-rating everything and rebuilding the heap is cheaper
+    int affectedCount = 0;
+    int i = 0;
+    while (i < binNames.length)
+    {
+      Set<QueueEntry> entries = binEntries.get(binNames[i++]);
+      if (entries != null)
+        affectedCount += entries.size();
+    }
+    if (affectedCount >= queue.size())
+    {
+      rerateAll();
+      return;
+    }
+
+    ratingPass++;
+    i = 0;
+    while (i < binNames.length)
+    {
+      Set<QueueEntry> entries = binEntries.get(binNames[i++]);
+      if (entries == null)
+        continue;
+      Iterator<QueueEntry> iter = entries.iterator();
+      while (iter.hasNext())
+      {
+        QueueEntry entry = iter.next();
+        // Unrated entries will be rated anyway, and an entry only needs rating once per pass
+        if (entry.heapIndex == -1 || entry.ratingPass == ratingPass)
+          continue;
+        entry.ratingPass = ratingPass;
+        double oldRating = entry.rating;
+        entry.rating = rate(entry);
+        if (entry.rating > oldRating)
+          siftUp(entry.heapIndex);
+        else if (entry.rating < oldRating)
+          siftDown(entry.heapIndex);
+      }
+    }
+  }
+
+  /** Calculate the assignment rating for an entry.
+  * A set whose documents have no bins has no meaningful rating; it is treated as having
+  * the worst possible rating, so that the heap ordering stays consistent and such a set never goes ahead of a
+  * rated one.
+  */
+  protected double rate(QueueEntry entry)
+  {
+    double rating = entry.documentSet.calculateAssignmentRating(queueTracker);
+    if (Double.isNaN(rating))
+      return Double.NEGATIVE_INFINITY;
+    return rating;
+  }
+
+  /** Remove the entry at a given heap position. */
+  protected void removeFromHeap(int index)
+  {
+    QueueEntry entry = queue.get(index);
+    entry.heapIndex = -1;
+    QueueEntry last = queue.remove(queue.size()-1);
+    if (last != entry)
+    {
+      last.heapIndex = index;
+      queue.set(index,last);
+      siftDown(index);
+      siftUp(last.heapIndex);
+    }
+  }
+
+  /** Move the entry at a heap position up until it is in order. */
+  protected void siftUp(int index)
+  {
+    QueueEntry entry = queue.get(index);
+    while (index > 0)
+    {
+      int parentIndex = (index - 1) / 2;
+      QueueEntry parent = queue.get(parentIndex);
+      if (!entry.isBetterThan(parent))
+        break;
+      parent.heapIndex = index;
+      queue.set(index,parent);
+      index = parentIndex;
+    }
+    entry.heapIndex = index;
+    queue.set(index,entry);
+  }
+
+  /** Move the entry at a heap position down until it is in order. */
+  protected void siftDown(int index)
+  {
+    QueueEntry entry = queue.get(index);
+    int size = queue.size();
+    while (true)
+    {
+      int childIndex = index * 2 + 1;
+      if (childIndex >= size)
+        break;
+      QueueEntry child = queue.get(childIndex);
+      if (childIndex + 1 < size)
+      {
+        QueueEntry otherChild = queue.get(childIndex + 1);
+        if (otherChild.isBetterThan(child))
         {
-          bestIndex = i;
-          bestRating = rating;
+          childIndex++;
+          child = otherChild;
         }
-        i++;
       }
-      // Pull off the best one.  DON'T REORDER!!
-      QueuedDocumentSet rval = (QueuedDocumentSet)queue.remove(bestIndex);
-      return rval;
+      if (!child.isBetterThan(entry))
+        break;
+      child.heapIndex = index;
+      queue.set(index,child);
+      index = childIndex;
     }
+    entry.heapIndex = index;
+    queue.set(index,entry);
   }
 
+  /** A queued document set, plus what we need to keep it in rating order.
+  */
+  protected static class QueueEntry
+  {
+    public final QueuedDocumentSet documentSet;
+    public final long sequenceNumber;
+    public final Set<String> binNames = new HashSet<String>();
+    public double rating = 0.0;
+    public int heapIndex = -1;
+    public long ratingPass = 0L;
+
+    public QueueEntry(QueuedDocumentSet documentSet, long sequenceNumber)
+    {
+      this.documentSet = documentSet;
+      this.sequenceNumber = sequenceNumber;
+      int i = 0;
+      while (i < documentSet.getCount())
+      {
+        String[] docBins = documentSet.getDocument(i++).getBinNames();
+        int j = 0;
+        while (j < docBins.length)
+        {
+          binNames.add(docBins[j++]);
+        }
+      }
+    }
+
+    /** Check whether this entry should be handed out before another one.
+    */
+    public boolean isBetterThan(QueueEntry other)
+    {
+      if (rating != other.rating)
+        return rating > other.rating;
+      return sequenceNumber < other.sequenceNumber;
+    }
+  }
 
 }
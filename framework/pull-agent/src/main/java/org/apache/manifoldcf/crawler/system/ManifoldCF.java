@@ -58,6 +58,8 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
   protected static InitializationThread initializationThread = null;
   protected static JobStartThread jobStartThread = null;
   protected static StufferThread stufferThread = null;
+  protected static StufferStatusThread stufferStatusThread = null;
+  protected static StufferBinThread stufferBinThread = null;
   protected static FinisherThread finisherThread = null;
   protected static JobNotificationThread notificationThread = null;
   protected static StartupThread startupThread = null;
@@ -74,6 +76,7 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
   protected static SeedingThread seedingThread = null;
   protected static IdleCleanupThread idleCleanupThread = null;
   protected static SetPriorityThread setPriorityThread = null;
+  protected static HistoryFlushThread historyFlushThread = null;
 
   // Reset managers
   /** Worker thread pool reset manager */
@@ -95,6 +98,10 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
   protected static float lowWaterFactor = 5.0f;
   // Factor in amount to stuff
   protected static float stuffAmtFactor = 0.5f;
+  // Maximum number of buffered history records; zero means history is written synchronously
+  protected static int historyBufferSize = 0;
+  // True if buffered history records are thrown away, rather than written, at shutdown
+  protected static boolean historyDiscardOnShutdown = false;
 
   // Properties
   protected static final String workerThreadCountProperty = "org.apache.manifoldcf.crawler.threads";
@@ -103,6 +110,9 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
   protected static final String expireThreadCountProperty = "org.apache.manifoldcf.crawler.expirethreads";
   protected static final String lowWaterFactorProperty = "org.apache.manifoldcf.crawler.lowwaterfactor";
   protected static final String stuffAmtFactorProperty = "org.apache.manifoldcf.crawler.stuffamountfactor";
+  protected static final String historyBufferSizeProperty = "org.apache.manifoldcf.crawler.history.buffersize";
+  protected static final String historyFlushIntervalProperty = "org.apache.manifoldcf.crawler.history.flushinterval";
+  protected static final String historyShutdownPolicyProperty = "org.apache.manifoldcf.crawler.history.shutdownpolicy";
   protected static final String connectorsConfigurationFileProperty = "org.apache.manifoldcf.connectorsconfigurationfile";
   protected static final String databaseSuperuserNameProperty = "org.apache.manifoldcf.dbsuperusername";
   protected static final String databaseSuperuserPasswordProperty = "org.apache.manifoldcf.dbsuperuserpassword";
@@ -572,6 +582,25 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
       stuffAmtFactor = new Float(stuffAmtFactorString).floatValue();
       if (stuffAmtFactor < 0.1 || stuffAmtFactor > 1000.0)
         throw new ManifoldCFException("Illegal value for the stuffing amount factor");
+      String historyBufferSizeString = getProperty(historyBufferSizeProperty);
+      if (historyBufferSizeString == null)
+        historyBufferSizeString = "10000";
+      historyBufferSize = new Integer(historyBufferSizeString).intValue();
+      if (historyBufferSize < 0 || historyBufferSize > 1000000)
+        throw new ManifoldCFException("Illegal value for the history buffer size");
+      String historyFlushIntervalString = getProperty(historyFlushIntervalProperty);
+      if (historyFlushIntervalString == null)
+        historyFlushIntervalString = "1000";
+      long historyFlushInterval = new Long(historyFlushIntervalString).longValue();
+      if (historyFlushInterval < 10L || historyFlushInterval > 3600000L)
+        throw new ManifoldCFException("Illegal value for the history flush interval");
+      String historyShutdownPolicy = getProperty(historyShutdownPolicyProperty);
+      if (historyShutdownPolicy == null || historyShutdownPolicy.equals("flush"))
+        historyDiscardOnShutdown = false;
+      else if (historyShutdownPolicy.equals("discard"))
+        historyDiscardOnShutdown = true;
+      else
+        throw new ManifoldCFException("Illegal value for the history shutdown policy: '"+historyShutdownPolicy+"'");
 
 
       // Create the threads and objects.  This MUST be completed before there is any chance of "shutdownSystem" getting called.
@@ -580,13 +609,14 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
 
 
       DocumentQueue documentQueue = new DocumentQueue();
+      StuffingPipeline stuffingPipeline = new StuffingPipeline();
       DocumentDeleteQueue documentDeleteQueue = new DocumentDeleteQueue();
       DocumentCleanupQueue documentCleanupQueue = new DocumentCleanupQueue();
       DocumentCleanupQueue expireQueue = new DocumentCleanupQueue();
 
       BlockingDocuments blockingDocuments = new BlockingDocuments();
 
-      workerResetManager = new WorkerResetManager(documentQueue,expireQueue);
+      workerResetManager = new WorkerResetManager(documentQueue,expireQueue,stuffingPipeline);
       docDeleteResetManager = new DocDeleteResetManager(documentDeleteQueue);
       docCleanupResetManager = new DocCleanupResetManager(documentCleanupQueue);
 
@@ -596,9 +626,13 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
       finisherThread = new FinisherThread();
       notificationThread = new JobNotificationThread();
       jobDeleteThread = new JobDeleteThread();
-      stufferThread = new StufferThread(documentQueue,numWorkerThreads,workerResetManager,queueTracker,blockingDocuments,lowWaterFactor,stuffAmtFactor);
+      stufferThread = new StufferThread(documentQueue,stuffingPipeline,numWorkerThreads,workerResetManager,queueTracker,blockingDocuments,lowWaterFactor,stuffAmtFactor);
+      stufferStatusThread = new StufferStatusThread(stuffingPipeline,numWorkerThreads,workerResetManager);
+      stufferBinThread = new StufferBinThread(stuffingPipeline,documentQueue,workerResetManager,queueTracker);
       expireStufferThread = new ExpireStufferThread(expireQueue,numExpireThreads,workerResetManager);
       setPriorityThread = new SetPriorityThread(queueTracker,numWorkerThreads,blockingDocuments);
+      if (historyBufferSize > 0)
+        historyFlushThread = new HistoryFlushThread(historyFlushInterval);
 
       workerThreads = new WorkerThread[numWorkerThreads];
       int i = 0;
@@ -701,6 +735,13 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
 
         Logging.threads.debug("Agents process initialization complete!");
 
+        // Start buffering history before anything can record it
+        if (historyFlushThread != null)
+        {
+          mgr.startHistoryBuffering(historyBufferSize);
+          historyFlushThread.start();
+        }
+
         // Start all the threads
         jobStartThread.start();
         startupThread.start();
@@ -709,6 +750,8 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
         notificationThread.start();
         jobDeleteThread.start();
         stufferThread.start();
+        stufferStatusThread.start();
+        stufferBinThread.start();
         expireStufferThread.start();
         setPriorityThread.start();
 
@@ -772,11 +815,12 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
     synchronized (startupLock)
     {
       while (initializationThread != null || jobDeleteThread != null || startupThread != null || startDeleteThread != null ||
-        jobStartThread != null || stufferThread != null ||
+        jobStartThread != null || stufferThread != null || stufferStatusThread != null || stufferBinThread != null ||
         finisherThread != null || notificationThread != null || workerThreads != null || expireStufferThread != null || expireThreads != null ||
         deleteStufferThread != null || deleteThreads != null ||
         cleanupStufferThread != null || cleanupThreads != null ||
-        jobResetThread != null || seedingThread != null || idleCleanupThread != null || setPriorityThread != null)
+        jobResetThread != null || seedingThread != null || idleCleanupThread != null || setPriorityThread != null ||
+        historyFlushThread != null)
       {
         // Send an interrupt to all threads that are still there.
         // In theory, this only needs to be done once.  In practice, I have seen cases where the thread loses track of the fact that it has been
@@ -809,6 +853,14 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
         {
           stufferThread.interrupt();
         }
+        if (stufferStatusThread != null)
+        {
+          stufferStatusThread.interrupt();
+        }
+        if (stufferBinThread != null)
+        {
+          stufferBinThread.interrupt();
+        }
         if (expireStufferThread != null)
         {
           expireStufferThread.interrupt();
@@ -881,6 +933,10 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
         {
           idleCleanupThread.interrupt();
         }
+        if (historyFlushThread != null)
+        {
+          historyFlushThread.interrupt();
+        }
 
         // Now, wait for all threads to die.
         try
@@ -927,6 +983,16 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
           if (!stufferThread.isAlive())
             stufferThread = null;
         }
+        if (stufferStatusThread != null)
+        {
+          if (!stufferStatusThread.isAlive())
+            stufferStatusThread = null;
+        }
+        if (stufferBinThread != null)
+        {
+          if (!stufferBinThread.isAlive())
+            stufferBinThread = null;
+        }
         if (expireStufferThread != null)
         {
           if (!expireStufferThread.isAlive())
@@ -1046,8 +1112,16 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
           if (!idleCleanupThread.isAlive())
             idleCleanupThread = null;
         }
+        if (historyFlushThread != null)
+        {
+          if (!historyFlushThread.isAlive())
+            historyFlushThread = null;
+        }
       }
 
+      // Nothing can record history any more; write or discard what is still buffered
+      RepositoryConnectionManagerFactory.make(threadContext).stopHistoryBuffering(historyDiscardOnShutdown);
+
       // Threads are down; release connectors
       RepositoryConnectorFactory.closeAllConnectors(threadContext);
       numWorkerThreads = 0;
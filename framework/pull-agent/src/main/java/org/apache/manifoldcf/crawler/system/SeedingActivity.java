@@ -94,7 +94,7 @@ public class SeedingActivity implements ISeedingActivity
       writeSeedDocuments(documentHashList,documentList,documentPrereqList);
       documentCount = 0;
     }
-    documentHashList[documentCount] = ManifoldCF.hash(documentIdentifier);
+    documentHashList[documentCount] = ManifoldCF.compactHash(documentIdentifier);
     documentList[documentCount] = documentIdentifier;
     if (prereqEventNames != null)
       documentPrereqList[documentCount] = prereqEventNames;
@@ -142,7 +142,7 @@ public class SeedingActivity implements ISeedingActivity
       jobManager.addRemainingDocumentsInitial(jobID,legalLinkTypes,remainingDocumentHashList,hopcountMethod);
       remainingDocumentCount = 0;
     }
-    remainingDocumentHashList[remainingDocumentCount++] = ManifoldCF.hash(documentIdentifier);
+    remainingDocumentHashList[remainingDocumentCount++] = ManifoldCF.compactHash(documentIdentifier);
   }
 
   /** Finish a seeding pass */
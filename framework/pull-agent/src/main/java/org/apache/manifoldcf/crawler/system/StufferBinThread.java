@@ -0,0 +1,335 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.system;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.system.Logging;
+import java.util.*;
+
+/** This class represents the stuffer bin thread.  This thread takes the chunks prepared by the stuffer status thread,
+* works out the bins for each document, assembles the documents into document sets, and adds those sets to the document queue.
+*/
+public class StufferBinThread extends Thread
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  // Local data
+  /** The pipeline we take chunks from */
+  protected StuffingPipeline pipeline;
+  // This is a reference to the static main document queue
+  protected DocumentQueue documentQueue;
+  /** Worker thread pool reset manager */
+  protected WorkerResetManager resetManager;
+  // This is the queue tracker object.
+  protected QueueTracker queueTracker;
+
+  /** Constructor.
+  *@param pipeline is the stuffing pipeline.
+  *@param documentQueue is the document queue we'll be stuffing.
+  */
+  public StufferBinThread(StuffingPipeline pipeline, DocumentQueue documentQueue, WorkerResetManager resetManager, QueueTracker qt)
+    throws ManifoldCFException
+  {
+    super();
+    this.pipeline = pipeline;
+    this.documentQueue = documentQueue;
+    this.resetManager = resetManager;
+    this.queueTracker = qt;
+    setName("Stuffer bin thread");
+    setDaemon(true);
+    // Same priority as the stuffer thread, for the same reason.
+    setPriority(getPriority()+1);
+  }
+
+  public void run()
+  {
+    resetManager.registerMe();
+
+    try
+    {
+      // Create a thread context object.
+      IThreadContext threadContext = ThreadContextFactory.make();
+
+      // Hashmap keyed by jobid and containing PendingSets.
+      // This way we can guarantee priority will do the right thing, because the
+      // priority is per-job.  We CANNOT guarantee anything about scheduling order, however,
+      // other than that it falls in the time window.
+      // Partial sets are carried from chunk to chunk within a batch, so that chunking does not make sets smaller.
+      HashMap documentSets = new HashMap();
+
+      // Loop
+      while (true)
+      {
+        // Do another try/catch around everything in the loop
+        try
+        {
+          if (Thread.currentThread().isInterrupted())
+            throw new ManifoldCFException("Interrupted",ManifoldCFException.INTERRUPTED);
+
+          // Check if we're okay
+          resetManager.waitForReset(threadContext);
+
+          StuffingPipeline.DocumentChunk chunk = pipeline.getChunk();
+          if (chunk == null)
+          {
+            // It's a reset; anything we were holding will be requeued by it
+            documentSets.clear();
+            continue;
+          }
+
+          // Work out the maximum document count and the bins for every document in the chunk.  The documents are
+          // grouped by connection, so that each connector is grabbed only once and can compute all its bins at once.
+          int[] maxDocuments = new int[chunk.getCount()];
+          String[][] binNames = new String[chunk.getCount()][];
+          HashMap connectionDocuments = new HashMap();
+          ArrayList connectionNames = new ArrayList();
+          int i = 0;
+          while (i < chunk.getCount())
+          {
+            String connectionName = chunk.getConnection(i).getName();
+            ArrayList indexes = (ArrayList)connectionDocuments.get(connectionName);
+            if (indexes == null)
+            {
+              indexes = new ArrayList();
+              connectionDocuments.put(connectionName,indexes);
+              connectionNames.add(connectionName);
+            }
+            indexes.add(new Integer(i));
+            i++;
+          }
+
+          i = 0;
+          while (i < connectionNames.size())
+          {
+            ArrayList indexes = (ArrayList)connectionDocuments.get(connectionNames.get(i));
+            calculateBins(threadContext,chunk,indexes,maxDocuments,binNames);
+            i++;
+          }
+
+          // We need to go through the list, and segregate them by job, so the individual
+          // connectors can work in batch.
+          i = 0;
+          while (i < chunk.getCount())
+          {
+            IJobDescription job = chunk.getJob(i);
+            Long jobID = job.getID();
+
+            QueuedDocument qd = new QueuedDocument(chunk.getDocumentDescription(i),chunk.getVersion(i),binNames[i]);
+
+            // Grab the set that's there, or create it.
+            PendingSet set = (PendingSet)documentSets.get(jobID);
+            if (set == null)
+            {
+              set = new PendingSet(job,chunk.getConnection(i));
+              documentSets.put(jobID,set);
+            }
+            set.documents.add(qd);
+
+            // Note the queuing activity
+            queueTracker.addRecord(binNames[i]);
+
+            if (set.documents.size() >= maxDocuments[i])
+            {
+              // Create and queue this as a document set
+              documentQueue.addDocument(new QueuedDocumentSet(set.documents,set.job,set.connection));
+              documentSets.remove(jobID);
+            }
+            i++;
+          }
+
+          // Stuff everything left into the queue, if the batch is done or if the workers would otherwise have to wait for
+          // the next chunk to get at these documents.
+          if (chunk.isLastInBatch() || !pipeline.hasChunk())
+          {
+            Iterator iter = documentSets.values().iterator();
+            while (iter.hasNext())
+            {
+              PendingSet set = (PendingSet)iter.next();
+              documentQueue.addDocument(new QueuedDocumentSet(set.documents,set.job,set.connection));
+            }
+            documentSets.clear();
+          }
+        }
+        catch (ManifoldCFException e)
+        {
+          if (e.getErrorCode() == ManifoldCFException.INTERRUPTED)
+            break;
+
+          if (e.getErrorCode() == ManifoldCFException.DATABASE_CONNECTION_ERROR)
+          {
+            resetManager.noteEvent();
+
+            Logging.threads.error("Stuffer bin thread aborting and restarting due to database connection reset: "+e.getMessage(),e);
+            try
+            {
+              // Give the database a chance to catch up/wake up
+              ManifoldCF.sleep(10000L);
+            }
+            catch (InterruptedException se)
+            {
+              break;
+            }
+            continue;
+          }
+
+          // Log it, but keep the thread alive
+          Logging.threads.error("Exception tossed: "+e.getMessage(),e);
+
+          if (e.getErrorCode() == ManifoldCFException.SETUP_ERROR)
+          {
+            System.exit(1);
+          }
+
+        }
+        catch (InterruptedException e)
+        {
+          // We're supposed to quit
+          break;
+        }
+        catch (OutOfMemoryError e)
+        {
+          System.err.println("agents process ran out of memory - shutting down");
+          e.printStackTrace(System.err);
+          System.exit(-200);
+        }
+        catch (Throwable e)
+        {
+          // A more severe error - but stay alive
+          Logging.threads.fatal("Error tossed: "+e.getMessage(),e);
+        }
+      }
+    }
+    catch (Throwable e)
+    {
+      // Severe error on initialization
+      System.err.println("agents process could not start - shutting down");
+      Logging.threads.fatal("StufferBinThread initialization error tossed: "+e.getMessage(),e);
+      System.exit(-300);
+    }
+  }
+
+  /** Calculate the maximum document count and the bin names for the documents of a chunk that share a connection.
+  * The connector is grabbed once for all of them.  This method does not throw anything but interruption, since that
+  * could leave dangling active jobqueue entries around; instead, it falls back to the default bin.
+  *@param indexes are the indexes (Integers) of the documents within the chunk.
+  *@param maxDocuments is filled in with the maximum document count for each of those documents.
+  *@param binNames is filled in with the bin names for each of those documents.
+  */
+  protected static void calculateBins(IThreadContext threadContext, StuffingPipeline.DocumentChunk chunk, ArrayList indexes,
+    int[] maxDocuments, String[][] binNames)
+    throws ManifoldCFException
+  {
+    // We have to see how we are doing with respect to the limit for this connector.
+    // We also need to log the queuing activity to the queue tracker, so that
+    // the priority setter thread can do its thing properly.
+    IRepositoryConnection connection = chunk.getConnection(((Integer)indexes.get(0)).intValue());
+    int connectorMaxDocuments;
+    String[][] connectorBinNames;
+    try
+    {
+      // Grab a connector handle
+      IRepositoryConnector connector = RepositoryConnectorFactory.grab(threadContext,
+        connection.getClassName(),
+        connection.getConfigParams(),
+        connection.getMaxConnections());
+      if (connector == null)
+      {
+        connectorMaxDocuments = 1;
+        connectorBinNames = null;
+      }
+      else
+      {
+        try
+        {
+          String[] documentIdentifiers = new String[indexes.size()];
+          int i = 0;
+          while (i < documentIdentifiers.length)
+          {
+            documentIdentifiers[i] = chunk.getDocumentDescription(((Integer)indexes.get(i)).intValue()).getDocumentIdentifier();
+            i++;
+          }
+          connectorMaxDocuments = connector.getMaxDocumentRequest();
+          // Get the bins for the document identifiers
+          connectorBinNames = connector.getBinNames(documentIdentifiers);
+        }
+        finally
+        {
+          RepositoryConnectorFactory.release(connector);
+        }
+      }
+    }
+    catch (ManifoldCFException e)
+    {
+      // If we were interrupted, then we are allowed to leave, because the process is terminating, but that's the only exception to the rule
+      if (e.getErrorCode() == ManifoldCFException.INTERRUPTED)
+        throw e;
+
+      // Note: We really should never leave this block by throwing an exception, since that could easily leave dangling
+      // active jobqueue entries around.  Instead, log the error and continue IN ALL CASES.
+      Logging.threads.error("Stuffer bin thread ManifoldCF Exception thrown: "+e.getMessage()+" - continuing",
+        e);
+      connectorMaxDocuments = 1;
+      connectorBinNames = null;
+    }
+    catch (OutOfMemoryError e)
+    {
+      System.err.println("agents process ran out of memory - shutting down");
+      e.printStackTrace(System.err);
+      System.exit(-200);
+      // These are needed because the compiler doesn't know System.exit ends the thread.
+      connectorMaxDocuments = 1;
+      connectorBinNames = null;
+    }
+    catch (Throwable e)
+    {
+      // Note: We really should never leave this block by throwing an exception, since that could easily leave dangling
+      // active jobqueue entries around.  Instead, log the error and continue IN ALL CASES.
+      Logging.threads.fatal("Stuffer bin thread Throwable thrown: "+e.getMessage()+" - continuing",
+        e);
+      connectorMaxDocuments = 1;
+      connectorBinNames = null;
+    }
+
+    int i = 0;
+    while (i < indexes.size())
+    {
+      int index = ((Integer)indexes.get(i)).intValue();
+      maxDocuments[index] = connectorMaxDocuments;
+      binNames[index] = (connectorBinNames == null)?new String[]{""}:connectorBinNames[i];
+      i++;
+    }
+  }
+
+  /** A document set being assembled for one job. */
+  protected static class PendingSet
+  {
+    public final ArrayList documents = new ArrayList();
+    public final IJobDescription job;
+    public final IRepositoryConnection connection;
+
+    public PendingSet(IJobDescription job, IRepositoryConnection connection)
+    {
+      this.job = job;
+      this.connection = connection;
+    }
+  }
+
+}
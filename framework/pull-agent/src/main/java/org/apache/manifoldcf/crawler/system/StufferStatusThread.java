@@ -0,0 +1,217 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.system;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.system.Logging;
+import java.util.*;
+
+/** This class represents the stuffer status thread.  This thread takes the batches of documents selected by the stuffer thread,
+* and, a chunk at a time, looks up the job, connection, and last ingestion status of each document.  Each chunk is then handed to
+* the stuffer bin thread, so that it can be queued for the workers while the next chunk is being looked up.
+*/
+public class StufferStatusThread extends Thread
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  // Local data
+  /** The pipeline we take batches from and hand chunks to */
+  protected StuffingPipeline pipeline;
+  /** Worker thread pool reset manager */
+  protected WorkerResetManager resetManager;
+  /** The number of documents per chunk */
+  protected int chunkSize;
+
+  /** Constructor.
+  *@param pipeline is the stuffing pipeline.
+  *@param n represents the number of threads that will be processing queued stuff; this is used as the
+  * chunk size, so a chunk has about enough documents to go around.
+  */
+  public StufferStatusThread(StuffingPipeline pipeline, int n, WorkerResetManager resetManager)
+    throws ManifoldCFException
+  {
+    super();
+    this.pipeline = pipeline;
+    this.chunkSize = (n < 1)?1:n;
+    this.resetManager = resetManager;
+    setName("Stuffer status thread");
+    setDaemon(true);
+    // Same priority as the stuffer thread, for the same reason.
+    setPriority(getPriority()+1);
+  }
+
+  public void run()
+  {
+    resetManager.registerMe();
+
+    try
+    {
+      // Create a thread context object.
+      IThreadContext threadContext = ThreadContextFactory.make();
+      IRepositoryConnectionManager mgr = RepositoryConnectionManagerFactory.make(threadContext);
+      IIncrementalIngester ingester = IncrementalIngesterFactory.make(threadContext);
+      IJobManager jobManager = JobManagerFactory.make(threadContext);
+
+      // Job description map (local) - designed to improve performance.
+      // Cleared and reloaded on every batch of documents.
+      HashMap jobDescriptionMap = new HashMap();
+
+      // Repository connection map (local) - designed to improve performance.
+      // Cleared and reloaded on every batch of documents.
+      HashMap connectionMap = new HashMap();
+
+      // Loop
+      while (true)
+      {
+        // Do another try/catch around everything in the loop
+        try
+        {
+          if (Thread.currentThread().isInterrupted())
+            throw new ManifoldCFException("Interrupted",ManifoldCFException.INTERRUPTED);
+
+          // Check if we're okay
+          resetManager.waitForReset(threadContext);
+
+          DocumentDescription[] batch = pipeline.getBatch();
+          if (batch == null)
+            // It's a reset, so recycle
+            continue;
+
+          // Clear the job description map and connection map
+          jobDescriptionMap.clear();
+          connectionMap.clear();
+
+          int chunkStart = 0;
+          while (chunkStart < batch.length)
+          {
+            if (Thread.currentThread().isInterrupted())
+              throw new ManifoldCFException("Interrupted",ManifoldCFException.INTERRUPTED);
+
+            int chunkEnd = chunkStart + chunkSize;
+            if (chunkEnd > batch.length)
+              chunkEnd = batch.length;
+            int chunkLength = chunkEnd - chunkStart;
+
+            // We need to get the last ingested version string for all of these documents, in bulk!
+
+            DocumentDescription[] descs = new DocumentDescription[chunkLength];
+            IJobDescription[] jobs = new IJobDescription[chunkLength];
+            IRepositoryConnection[] connections = new IRepositoryConnection[chunkLength];
+            String[] outputConnectionNames = new String[chunkLength];
+            String[] documentClasses = new String[chunkLength];
+            String[] documentIDHashes = new String[chunkLength];
+
+            // Go through the documents and set up jobs, prefixed id's
+            int i = 0;
+            while (i < chunkLength)
+            {
+              DocumentDescription dd = batch[chunkStart + i];
+              descs[i] = dd;
+              IJobDescription job = (IJobDescription)jobDescriptionMap.get(dd.getJobID());
+              if (job == null)
+              {
+                job = jobManager.load(dd.getJobID(),true);
+                jobDescriptionMap.put(dd.getJobID(),job);
+              }
+              jobs[i] = job;
+              String connectionName = job.getConnectionName();
+              documentClasses[i] = connectionName;
+              outputConnectionNames[i] = job.getOutputConnectionName();
+              IRepositoryConnection connection = (IRepositoryConnection)connectionMap.get(connectionName);
+              if (connection == null)
+              {
+                connection = mgr.load(connectionName);
+                connectionMap.put(connectionName,connection);
+              }
+              connections[i] = connection;
+              documentIDHashes[i] = dd.getDocumentIdentifierHash();
+
+              i++;
+            }
+
+            DocumentIngestStatus[] versions = ingester.getDocumentIngestDataMultiple(outputConnectionNames,documentClasses,documentIDHashes);
+
+            if (!pipeline.addChunk(new StuffingPipeline.DocumentChunk(descs,jobs,connections,versions,chunkEnd == batch.length)))
+              // It's a reset; the rest of the batch will be requeued by it
+              break;
+
+            chunkStart = chunkEnd;
+          }
+        }
+        catch (ManifoldCFException e)
+        {
+          if (e.getErrorCode() == ManifoldCFException.INTERRUPTED)
+            break;
+
+          if (e.getErrorCode() == ManifoldCFException.DATABASE_CONNECTION_ERROR)
+          {
+            resetManager.noteEvent();
+
+            Logging.threads.error("Stuffer status thread aborting and restarting due to database connection reset: "+e.getMessage(),e);
+            try
+            {
+              // Give the database a chance to catch up/wake up
+              ManifoldCF.sleep(10000L);
+            }
+            catch (InterruptedException se)
+            {
+              break;
+            }
+            continue;
+          }
+
+          // Log it, but keep the thread alive
+          Logging.threads.error("Exception tossed: "+e.getMessage(),e);
+
+          if (e.getErrorCode() == ManifoldCFException.SETUP_ERROR)
+          {
+            System.exit(1);
+          }
+
+        }
+        catch (InterruptedException e)
+        {
+          // We're supposed to quit
+          break;
+        }
+        catch (OutOfMemoryError e)
+        {
+          System.err.println("agents process ran out of memory - shutting down");
+          e.printStackTrace(System.err);
+          System.exit(-200);
+        }
+        catch (Throwable e)
+        {
+          // A more severe error - but stay alive
+          Logging.threads.fatal("Error tossed: "+e.getMessage(),e);
+        }
+      }
+    }
+    catch (Throwable e)
+    {
+      // Severe error on initialization
+      System.err.println("agents process could not start - shutting down");
+      Logging.threads.fatal("StufferStatusThread initialization error tossed: "+e.getMessage(),e);
+      System.exit(-300);
+    }
+  }
+
+}
@@ -25,8 +25,9 @@ import org.apache.manifoldcf.crawler.system.Logging;
 import java.util.*;
 import java.lang.reflect.*;
 
-/** This class represents the stuffer thread.  This thread's job is to request documents from the database and add them to the
-* document queue.  The thread then sleeps until the document queue is empty again.
+/** This class represents the stuffer thread.  This thread's job is to request documents from the database and hand them, via the
+* stuffing pipeline, to the stuffer status thread and the stuffer bin thread, which add them to the document queue.  The thread
+* then sleeps until the document queue is empty again.
 */
 public class StufferThread extends Thread
 {
@@ -47,18 +48,22 @@ public class StufferThread extends Thread
   protected QueueTracker queueTracker;
   // Blocking documents object.
   protected BlockingDocuments blockingDocuments;
+  // The pipeline that carries selected documents on to the document queue.
+  protected StuffingPipeline pipeline;
 
   /** Constructor.
   *@param documentQueue is the document queue we'll be stuffing.
+  *@param pipeline is the pipeline the selected documents are handed to.
   *@param n represents the number of threads that will be processing queued stuff, NOT the
   * number of documents to be done at once!
   */
-  public StufferThread(DocumentQueue documentQueue, int n, WorkerResetManager resetManager, QueueTracker qt,
+  public StufferThread(DocumentQueue documentQueue, StuffingPipeline pipeline, int n, WorkerResetManager resetManager, QueueTracker qt,
     BlockingDocuments blockingDocuments, float lowWaterFactor, float stuffSizeFactor)
     throws ManifoldCFException
   {
     super();
     this.documentQueue = documentQueue;
+    this.pipeline = pipeline;
     this.lowWaterMark = (int)(lowWaterFactor * (float)n);
     this.lowestStuffAmt = (int)(stuffSizeFactor * (float)n);
     this.stuffAmt = lowestStuffAmt;
@@ -80,8 +85,6 @@ public class StufferThread extends Thread
     {
       // Create a thread context object.
       IThreadContext threadContext = ThreadContextFactory.make();
-      IRepositoryConnectionManager mgr = RepositoryConnectionManagerFactory.make(threadContext);
-      IIncrementalIngester ingester = IncrementalIngesterFactory.make(threadContext);
       IJobManager jobManager = JobManagerFactory.make(threadContext);
 
       Logging.threads.debug("Stuffer thread: Low water mark is "+Integer.toString(lowWaterMark)+"; amount per stuffing is "+Integer.toString(stuffAmt));
@@ -90,21 +93,6 @@ public class StufferThread extends Thread
       // that are throttled.
       long lastTime = System.currentTimeMillis();
 
-      // Hashmap keyed by jobid and containing ArrayLists.
-      // This way we can guarantee priority will do the right thing, because the
-      // priority is per-job.  We CANNOT guarantee anything about scheduling order, however,
-      // other than that it falls in the time window.
-      HashMap documentSets = new HashMap();
-      ArrayList versionMap = new ArrayList();
-
-      // Job description map (local) - designed to improve performance.
-      // Cleared and reloaded on every batch of documents.
-      HashMap jobDescriptionMap = new HashMap();
-
-      // Repository connection map (local) - designed to improve performance.
-      // Cleared and reloaded on every batch of documents.
-      HashMap connectionMap = new HashMap();
-
       // Parameters we need in order to adjust the number of documents we fetch.  We base the number on how long it took to queue documents vs.
       // how long it took to need to queue again.
       long lastQueueStart = -1L;
@@ -125,8 +113,10 @@ public class StufferThread extends Thread
 
           // System.out.println("Waiting...");
           // Wait until queue is below low water mark.
+          // Don't select another batch until the status stage is ready for it; otherwise we would just hold
+          // documents back from the other agents.
           boolean isEmpty = documentQueue.checkIfEmpty(lowWaterMark);
-          if (isEmpty == false)
+          if (isEmpty == false || pipeline.isReadyForBatch() == false)
           {
             ManifoldCF.sleep(1000L);
             continue;
@@ -179,171 +169,9 @@ public class StufferThread extends Thread
             continue;
           }
 
-          // if (Logging.threads.isDebugEnabled())
-          //      Logging.threads.debug("Found "+Integer.toString(descs.length)+" documents to stuff");
-
-          // Clear the job description map and connection map
-          jobDescriptionMap.clear();
-          connectionMap.clear();
-
-          // We need to get the last ingested version string for all of these documents, in bulk!
-
-          IJobDescription[] jobs = new IJobDescription[descs.length];
-          IRepositoryConnection[] connections = new IRepositoryConnection[descs.length];
-          DocumentIngestStatus[] versions = new DocumentIngestStatus[descs.length];
-          String[] outputConnectionNames = new String[descs.length];
-          String[] documentClasses = new String[descs.length];
-          String[] documentIDHashes = new String[descs.length];
-
-          // Go through the documents and set up jobs, prefixed id's
-          int i = 0;
-          while (i < descs.length)
-          {
-            DocumentDescription dd = descs[i];
-            IJobDescription job = (IJobDescription)jobDescriptionMap.get(dd.getJobID());
-            if (job == null)
-            {
-              job = jobManager.load(dd.getJobID(),true);
-              jobDescriptionMap.put(dd.getJobID(),job);
-            }
-            jobs[i] = job;
-            String connectionName = job.getConnectionName();
-            documentClasses[i] = connectionName;
-            outputConnectionNames[i] = job.getOutputConnectionName();
-            IRepositoryConnection connection = (IRepositoryConnection)connectionMap.get(connectionName);
-            if (connection == null)
-            {
-              connection = mgr.load(connectionName);
-              connectionMap.put(connectionName,connection);
-            }
-            connections[i] = connection;
-            documentIDHashes[i] = dd.getDocumentIdentifierHash();
-
-            i++;
-          }
-
-          versions = ingester.getDocumentIngestDataMultiple(outputConnectionNames,documentClasses,documentIDHashes);
-
-          // Now, do the incremental ingestion version request.
-
-          // We need to go through the list, and segregate them by job, so the individual
-          // connectors can work in batch.
-          documentSets.clear();
-          i = 0;
-          while (i < descs.length)
-          {
-            Long jobID = jobs[i].getID();
-
-            // We have to see how we are doing with respect to the limit for this connector.
-            // We also need to log the queuing activity to the queue tracker, so that
-            // the priority setter thread can do its thing properly.
-
-            // Get a repository connection appropriate for this document.
-            IRepositoryConnection connection = connections[i];
-            int maxDocuments;
-            String[] binNames;
-            try
-            {
-              // Grab a connector handle
-              IRepositoryConnector connector = RepositoryConnectorFactory.grab(threadContext,
-                connection.getClassName(),
-                connection.getConfigParams(),
-                connection.getMaxConnections());
-              if (connector == null)
-              {
-                maxDocuments = 1;
-                binNames = new String[]{""};
-              }
-              else
-              {
-                try
-                {
-                  // Convert the document identifier to a URI
-                  maxDocuments = connector.getMaxDocumentRequest();
-                  // Get the bins for the document identifier
-                  binNames = connector.getBinNames(descs[i].getDocumentIdentifier());
-                }
-                finally
-                {
-                  RepositoryConnectorFactory.release(connector);
-                }
-              }
-            }
-            catch (ManifoldCFException e)
-            {
-              // If we were interrupted, then we are allowed to leave, because the process is terminating, but that's the only exception to the rule
-              if (e.getErrorCode() == ManifoldCFException.INTERRUPTED)
-                throw e;
-
-              // Note: We really should never leave this block by throwing an exception, since that could easily leave dangling
-              // active jobqueue entries around.  Instead, log the error and continue IN ALL CASES.
-              Logging.threads.error("Stuffer thread ManifoldCF Exception thrown: "+e.getMessage()+" - continuing",
-                e);
-              maxDocuments = 1;
-              binNames = new String[]{""};
-            }
-            catch (OutOfMemoryError e)
-            {
-              System.err.println("agents process ran out of memory - shutting down");
-              e.printStackTrace(System.err);
-              System.exit(-200);
-              // These are needed because the compiler doesn't know System.exit ends the thread.
-              maxDocuments = 1;
-              binNames = new String[]{""};
-            }
-            catch (Throwable e)
-            {
-              // Note: We really should never leave this block by throwing an exception, since that could easily leave dangling
-              // active jobqueue entries around.  Instead, log the error and continue IN ALL CASES.
-              Logging.threads.fatal("Stuffer thread Throwable thrown: "+e.getMessage()+" - continuing",
-                e);
-              maxDocuments = 1;
-              binNames = new String[]{""};
-            }
-
-            QueuedDocument qd = new QueuedDocument(descs[i],versions[i],binNames);
-
-            // Grab the arraylist that's there, or create it.
-            ArrayList set = (ArrayList)documentSets.get(jobID);
-            if (set == null)
-            {
-              set = new ArrayList();
-              documentSets.put(jobID,set);
-            }
-            set.add(qd);
-
-            // Note the queuing activity
-            queueTracker.addRecord(binNames);
-
-            if (set.size() >= maxDocuments)
-            {
-              // Create and queue this as a document set
-              // if (Logging.threads.isDebugEnabled())
-              //      Logging.threads.debug("Queuing "+Integer.toString(set.size())+" documents in one request");
-              QueuedDocumentSet qds = new QueuedDocumentSet(set,jobs[i],connections[i]);
-              documentQueue.addDocument(qds);
-              set.clear();
-            }
-            i++;
-          }
-
-          // Stuff everything left into the queue.
-          i = 0;
-          while (i < descs.length)
-          {
-            Long jobID = jobs[i].getID();
-            ArrayList x = (ArrayList)documentSets.get(jobID);
-            if (x != null && x.size() > 0)
-            {
-              QueuedDocumentSet set = new QueuedDocumentSet(x,jobs[i],connections[i]);
-              documentQueue.addDocument(set);
-              documentSets.remove(jobID);
-            }
-            i++;
-          }
-
-          // If we don't wait here, the other threads don't seem to have a chance to queue anything else up.
-          //Thread.yield();
+          // Hand the batch on to the status stage.  If a reset is in progress, the batch is dropped; the reset
+          // will requeue the documents.
+          pipeline.addBatch(descs);
         }
         catch (ManifoldCFException e)
         {
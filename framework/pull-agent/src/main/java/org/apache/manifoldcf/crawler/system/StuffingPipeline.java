@@ -0,0 +1,205 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.system;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import java.util.*;
+
+/** This class connects the stages of document stuffing.  The stuffer thread selects batches of documents from the job queue
+* and hands them to the stuffer status thread, which looks up the jobs, connections, and ingestion status for the documents a chunk
+* at a time, and hands each chunk on to the stuffer bin thread.  That thread works out the bins, assembles document sets, and puts
+* them on the document queue.  Each stage therefore works concurrently with the others, and workers are fed as soon as each
+* chunk is ready rather than when the whole batch is.
+*
+* Both hand-offs are bounded, so that the amount of work in flight stays limited.  Like the document queue, the pipeline is
+* woken up at the beginning of a worker reset, and cleared during the reset itself; the documents it held are returned to
+* the job queue by the reset.
+*/
+public class StuffingPipeline
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The number of selected batches that may wait for the status stage */
+  protected final static int MAX_WAITING_BATCHES = 1;
+  /** The number of chunks that may wait for the bin stage */
+  protected final static int MAX_WAITING_CHUNKS = 2;
+
+  // Batches waiting for the status stage
+  protected LinkedList<DocumentDescription[]> batches = new LinkedList<DocumentDescription[]>();
+  // Chunks waiting for the bin stage
+  protected LinkedList<DocumentChunk> chunks = new LinkedList<DocumentChunk>();
+  // This flag gets set to 'true' if the pipeline is being cleared due to a reset
+  protected boolean resetFlag = false;
+
+  /** Constructor.
+  */
+  public StuffingPipeline()
+  {
+  }
+
+  /** Wake up all threads waiting on this pipeline.  This happens at the beginning of a reset.
+  */
+  public synchronized void reset()
+  {
+    resetFlag = true;
+    notifyAll();
+  }
+
+  /** Clear the pipeline.  This happens during a reset.
+  */
+  public synchronized void clear()
+  {
+    batches.clear();
+    chunks.clear();
+    resetFlag = false;
+    notifyAll();
+  }
+
+  /** Check whether the status stage is ready for another batch, so that it is worth selecting one.
+  *@return true if no selected batch is waiting.
+  */
+  public synchronized boolean isReadyForBatch()
+  {
+    return batches.size() < MAX_WAITING_BATCHES;
+  }
+
+  /** Hand a selected batch of documents to the status stage, waiting for room if necessary.
+  *@param batch is the batch.
+  *@return false if a reset is in progress, and the batch was not accepted.
+  */
+  public synchronized boolean addBatch(DocumentDescription[] batch)
+    throws InterruptedException
+  {
+    while (!resetFlag && batches.size() >= MAX_WAITING_BATCHES)
+      wait();
+    if (resetFlag)
+      return false;
+    batches.addLast(batch);
+    notifyAll();
+    return true;
+  }
+
+  /** Get the next selected batch, waiting if there is none.
+  *@return the batch, or null if a reset is in progress.
+  */
+  public synchronized DocumentDescription[] getBatch()
+    throws InterruptedException
+  {
+    while (!resetFlag && batches.size() == 0)
+      wait();
+    if (resetFlag)
+      return null;
+    DocumentDescription[] rval = batches.removeFirst();
+    notifyAll();
+    return rval;
+  }
+
+  /** Hand a chunk to the bin stage, waiting for room if necessary.
+  *@param chunk is the chunk.
+  *@return false if a reset is in progress, and the chunk was not accepted.
+  */
+  public synchronized boolean addChunk(DocumentChunk chunk)
+    throws InterruptedException
+  {
+    while (!resetFlag && chunks.size() >= MAX_WAITING_CHUNKS)
+      wait();
+    if (resetFlag)
+      return false;
+    chunks.addLast(chunk);
+    notifyAll();
+    return true;
+  }
+
+  /** Get the next chunk, waiting if there is none.
+  *@return the chunk, or null if a reset is in progress.
+  */
+  public synchronized DocumentChunk getChunk()
+    throws InterruptedException
+  {
+    while (!resetFlag && chunks.size() == 0)
+      wait();
+    if (resetFlag)
+      return null;
+    DocumentChunk rval = chunks.removeFirst();
+    notifyAll();
+    return rval;
+  }
+
+  /** Check whether there is a chunk ready for the bin stage.
+  */
+  public synchronized boolean hasChunk()
+  {
+    return chunks.size() > 0;
+  }
+
+  /** A chunk of a selected batch, with everything the status stage looked up for it.
+  */
+  public static class DocumentChunk
+  {
+    protected final DocumentDescription[] descs;
+    protected final IJobDescription[] jobs;
+    protected final IRepositoryConnection[] connections;
+    protected final DocumentIngestStatus[] versions;
+    protected final boolean lastInBatch;
+
+    public DocumentChunk(DocumentDescription[] descs, IJobDescription[] jobs, IRepositoryConnection[] connections,
+      DocumentIngestStatus[] versions, boolean lastInBatch)
+    {
+      this.descs = descs;
+      this.jobs = jobs;
+      this.connections = connections;
+      this.versions = versions;
+      this.lastInBatch = lastInBatch;
+    }
+
+    public int getCount()
+    {
+      return descs.length;
+    }
+
+    public DocumentDescription getDocumentDescription(int index)
+    {
+      return descs[index];
+    }
+
+    public IJobDescription getJob(int index)
+    {
+      return jobs[index];
+    }
+
+    public IRepositoryConnection getConnection(int index)
+    {
+      return connections[index];
+    }
+
+    public DocumentIngestStatus getVersion(int index)
+    {
+      return versions[index];
+    }
+
+    /** Check whether this is the last chunk of its batch. */
+    public boolean isLastInBatch()
+    {
+      return lastInBatch;
+    }
+  }
+
+}
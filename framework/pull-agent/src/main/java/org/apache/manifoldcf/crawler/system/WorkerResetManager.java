@@ -34,13 +34,16 @@ public class WorkerResetManager extends ResetManager
   protected DocumentQueue dq;
   /** The expiration queue */
   protected DocumentCleanupQueue eq;
+  /** The stuffing pipeline */
+  protected StuffingPipeline sp;
 
   /** Constructor. */
-  public WorkerResetManager(DocumentQueue dq, DocumentCleanupQueue eq)
+  public WorkerResetManager(DocumentQueue dq, DocumentCleanupQueue eq, StuffingPipeline sp)
   {
     super();
     this.dq = dq;
     this.eq = eq;
+    this.sp = sp;
   }
 
   /** Reset */
@@ -51,6 +54,7 @@ public class WorkerResetManager extends ResetManager
     jobManager.resetDocumentWorkerStatus();
     dq.clear();
     eq.clear();
+    sp.clear();
   }
   
   /** Do the wakeup logic.
@@ -60,6 +64,7 @@ public class WorkerResetManager extends ResetManager
     // Wake up all sleeping worker threads
     dq.reset();
     eq.reset();
+    sp.reset();
   }
 }
 
@@ -284,6 +284,7 @@ public class WorkerThread extends Thread
                     String[] currentDocIDHashArray = new String[activeDocuments.size()];
                     String[] currentDocIDArray = new String[activeDocuments.size()];
                     String[] oldVersionStringArray = new String[activeDocuments.size()];
+                    Map<String,DocumentIngestStatus> oldStatusMap = new HashMap<String,DocumentIngestStatus>();
 
                     for (int i = 0; i < activeDocuments.size(); i++)
                     {
@@ -291,6 +292,8 @@ public class WorkerThread extends Thread
                       currentDocIDHashArray[i] = qd.getDocumentDescription().getDocumentIdentifierHash();
                       currentDocIDArray[i] = qd.getDocumentDescription().getDocumentIdentifier();
                       DocumentIngestStatus dis = qd.getLastIngestedStatus();
+                      if (dis != null)
+                        oldStatusMap.put(currentDocIDArray[i],dis);
                       if (dis == null)
                         oldVersionStringArray[i] = null;
                       else
@@ -305,11 +308,12 @@ public class WorkerThread extends Thread
                     String outputVersion = ingester.getOutputDescription(outputName,outputSpec);
                       
                     HashMap abortSet = new HashMap();
-                    VersionActivity versionActivity = new VersionActivity(connectionName,connMgr,jobManager,job,ingester,abortSet,outputVersion);
-
                     String aclAuthority = connection.getACLAuthority();
                     boolean isDefaultAuthority = (aclAuthority == null || aclAuthority.length() == 0);
 
+                    VersionActivity versionActivity = new VersionActivity(connectionName,connMgr,jobManager,job,ingester,abortSet,outputVersion,
+                      aclAuthority,oldStatusMap);
+
                     if (Logging.threads.isDebugEnabled())
                       Logging.threads.debug("Worker thread getting versions for "+Integer.toString(currentDocIDArray.length)+" documents");
 
@@ -1183,12 +1187,14 @@ public class WorkerThread extends Thread
     protected IIncrementalIngester ingester;
     protected HashMap abortSet;
     protected String outputVersion;
+    protected String aclAuthority;
+    protected Map<String,DocumentIngestStatus> oldStatusMap;
 
     /** Constructor.
     */
     public VersionActivity(String connectionName, IRepositoryConnectionManager connMgr,
       IJobManager jobManager, IJobDescription job, IIncrementalIngester ingester, HashMap abortSet,
-      String outputVersion)
+      String outputVersion, String aclAuthority, Map<String,DocumentIngestStatus> oldStatusMap)
     {
       this.connectionName = connectionName;
       this.connMgr = connMgr;
@@ -1197,6 +1203,39 @@ public class WorkerThread extends Thread
       this.ingester = ingester;
       this.abortSet = abortSet;
       this.outputVersion = outputVersion;
+      this.aclAuthority = aclAuthority;
+      this.oldStatusMap = oldStatusMap;
+    }
+
+    /** Check whether a document would only be scanned if its version string came back unchanged, and whether it would
+    * then keep the links it had before, even those that processing does not report again.
+    *@param localIdentifier is the document identifier.
+    *@return true if an unchanged version of the document needs neither its content nor its links.
+    */
+    public boolean checkUnchangedDocumentKeepsLinks(String localIdentifier)
+      throws ManifoldCFException
+    {
+      // Links that are not seen again are only kept if the job never deletes on the basis of hopcount; and if there are
+      // hopcount filters, the distances still need the links to be seen.
+      if (job.getHopcountMode() != IJobDescription.HOPCOUNT_NEVERDELETE || job.getHopCountFilters().size() > 0)
+        return false;
+      // Same comparison as the worker thread makes when deciding whether to ingest
+      DocumentIngestStatus oldDocStatus = oldStatusMap.get(localIdentifier);
+      if (oldDocStatus == null)
+        return false;
+      String oldAuthorityName = oldDocStatus.getDocumentAuthorityNameString();
+      if (oldAuthorityName == null)
+        oldAuthorityName = "";
+      String oldOutputVersion = oldDocStatus.getOutputVersion();
+      if (oldOutputVersion == null)
+        oldOutputVersion = "";
+      String newAuthorityName = aclAuthority;
+      if (newAuthorityName == null)
+        newAuthorityName = "";
+      String newOutputVersion = outputVersion;
+      if (newOutputVersion == null)
+        newOutputVersion = "";
+      return oldAuthorityName.equals(newAuthorityName) && oldOutputVersion.equals(newOutputVersion);
     }
 
     /** Check whether a mime type is indexable by the currently specified output connector.
@@ -1272,7 +1311,7 @@ public class WorkerThread extends Thread
     public String[] retrieveParentData(String localIdentifier, String dataName)
       throws ManifoldCFException
     {
-      return jobManager.retrieveParentData(job.getID(),ManifoldCF.hash(localIdentifier),dataName);
+      return jobManager.retrieveParentData(job.getID(),ManifoldCF.compactHash(localIdentifier),dataName);
     }
 
     /** Retrieve data passed from parents to a specified child document.
@@ -1283,7 +1322,7 @@ public class WorkerThread extends Thread
     public CharacterInput[] retrieveParentDataAsFiles(String localIdentifier, String dataName)
       throws ManifoldCFException
     {
-      return jobManager.retrieveParentDataAsFiles(job.getID(),ManifoldCF.hash(localIdentifier),dataName);
+      return jobManager.retrieveParentDataAsFiles(job.getID(),ManifoldCF.compactHash(localIdentifier),dataName);
     }
 
     /** Check whether current job is still active.
@@ -1452,10 +1491,10 @@ public class WorkerThread extends Thread
       String[] dataNames, Object[][] dataValues, Long originationTime, String[] prereqEventNames)
       throws ManifoldCFException
     {
-      String localIdentifierHash = ManifoldCF.hash(localIdentifier);
+      String localIdentifierHash = ManifoldCF.compactHash(localIdentifier);
       String parentIdentifierHash = null;
       if (parentIdentifier != null && parentIdentifier.length() > 0)
-        parentIdentifierHash = ManifoldCF.hash(parentIdentifier);
+        parentIdentifierHash = ManifoldCF.compactHash(parentIdentifier);
 
       if (Logging.threads.isDebugEnabled())
         Logging.threads.debug("Adding document reference, from "+((parentIdentifier==null)?"no parent":"'"+parentIdentifier+"'")
@@ -1605,7 +1644,7 @@ public class WorkerThread extends Thread
     public String[] retrieveParentData(String localIdentifier, String dataName)
       throws ManifoldCFException
     {
-      return jobManager.retrieveParentData(job.getID(),ManifoldCF.hash(localIdentifier),dataName);
+      return jobManager.retrieveParentData(job.getID(),ManifoldCF.compactHash(localIdentifier),dataName);
     }
 
     /** Retrieve data passed from parents to a specified child document.
@@ -1616,7 +1655,7 @@ public class WorkerThread extends Thread
     public CharacterInput[] retrieveParentDataAsFiles(String localIdentifier, String dataName)
       throws ManifoldCFException
     {
-      return jobManager.retrieveParentDataAsFiles(job.getID(),ManifoldCF.hash(localIdentifier),dataName);
+      return jobManager.retrieveParentDataAsFiles(job.getID(),ManifoldCF.compactHash(localIdentifier),dataName);
     }
 
     /** Record a document version, but don't ingest it.
@@ -1627,7 +1666,7 @@ public class WorkerThread extends Thread
     public void recordDocument(String documentIdentifier, String version)
       throws ManifoldCFException, ServiceInterruption
     {
-      String documentIdentifierHash = ManifoldCF.hash(documentIdentifier);
+      String documentIdentifierHash = ManifoldCF.compactHash(documentIdentifier);
       ingester.documentRecord(job.getOutputConnectionName(),job.getConnectionName(),documentIdentifierHash,version,currentTime,ingestLogger);
     }
 
@@ -1646,7 +1685,7 @@ public class WorkerThread extends Thread
       // connector cannot distinguish between versions - in which case it must
       // always ingest (essentially)
 
-      String documentIdentifierHash = ManifoldCF.hash(documentIdentifier);
+      String documentIdentifierHash = ManifoldCF.compactHash(documentIdentifier);
 
       // First, we need to add into the metadata the stuff from the job description.
       ingester.documentIngest(job.getOutputConnectionName(),
@@ -1682,7 +1721,7 @@ public class WorkerThread extends Thread
     public void deleteDocument(String documentIdentifier)
       throws ManifoldCFException, ServiceInterruption
     {
-      String documentIdentifierHash = ManifoldCF.hash(documentIdentifier);
+      String documentIdentifierHash = ManifoldCF.compactHash(documentIdentifier);
       ingester.documentDelete(job.getOutputConnectionName(),
         job.getConnectionName(),documentIdentifierHash,
         ingestLogger);
@@ -0,0 +1,160 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.jobs.Carrydown;
+import org.apache.manifoldcf.crawler.system.ManifoldCF;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Check that cached carrydown values are thrown away by every operation that removes or replaces them.
+* Each test reads a child's values once, so that they are cached, changes the table, and reads them again.
+*/
+public class CarrydownCacheTest extends BaseHSQLDB
+{
+  protected final static String dataName = "name";
+
+  protected IJobManager jobManager;
+  protected Carrydown carrydown;
+  protected String parentHash;
+  protected String childHash;
+
+  @Before
+  public void createConnections()
+    throws Exception
+  {
+    IThreadContext tc = ThreadContextFactory.make();
+    IRepositoryConnectionManager connMgr = RepositoryConnectionManagerFactory.make(tc);
+    IRepositoryConnection conn = connMgr.create();
+    conn.setName("test");
+    conn.setDescription("test");
+    conn.setClassName("org.apache.manifoldcf.crawler.tests.TestConnector");
+    conn.setMaxConnections(1);
+    connMgr.save(conn);
+    IOutputConnectionManager outputMgr = OutputConnectionManagerFactory.make(tc);
+    IOutputConnection outputConn = outputMgr.create();
+    outputConn.setName("test");
+    outputConn.setDescription("test");
+    outputConn.setClassName("org.apache.manifoldcf.agents.tests.TestOutputConnector");
+    outputConn.setMaxConnections(1);
+    outputMgr.save(outputConn);
+    jobManager = JobManagerFactory.make(tc);
+    IDBInterface database = DBInterfaceFactory.make(tc,
+      ManifoldCF.getMasterDatabaseName(),
+      ManifoldCF.getMasterDatabaseUsername(),
+      ManifoldCF.getMasterDatabasePassword());
+    carrydown = new Carrydown(tc,database);
+    parentHash = ManifoldCF.compactHash("http://localhost/");
+    childHash = ManifoldCF.compactHash("http://localhost/a");
+  }
+
+  @Test
+  public void restoreRecordsDropsOldValues()
+    throws Exception
+  {
+    Long jobID = crawlParent("old");
+    // The next pass over the parent finds a different value
+    record(jobID,"new");
+    assertValues(jobID,new String[]{"new","old"});
+    carrydown.restoreRecords(jobID,new String[]{parentHash});
+    assertValues(jobID,new String[]{"new"});
+  }
+
+  @Test
+  public void deleteRecordsDropsValues()
+    throws Exception
+  {
+    Long jobID = crawlParent("old");
+    carrydown.deleteRecords(jobID,new String[]{parentHash});
+    assertValues(jobID,new String[0]);
+  }
+
+  @Test
+  public void resetDropsNewValues()
+    throws Exception
+  {
+    Long jobID = crawlParent("old");
+    // A pass that is interrupted before the parent is finished
+    record(jobID,"new");
+    assertValues(jobID,new String[]{"new","old"});
+    carrydown.reset();
+    assertValues(jobID,new String[]{"old"});
+  }
+
+  @Test
+  public void deleteOwnerDropsValues()
+    throws Exception
+  {
+    Long jobID = crawlParent("old");
+    carrydown.deleteOwner(jobID);
+    assertValues(jobID,new String[0]);
+  }
+
+  /** Create a job, and complete one pass over the parent, which hands the child one value.  The value is then
+  * read, which caches it.
+  */
+  protected Long crawlParent(String value)
+    throws Exception
+  {
+    Long jobID = createJob();
+    record(jobID,value);
+    carrydown.restoreRecords(jobID,new String[]{parentHash});
+    assertValues(jobID,new String[]{value});
+    // The second read comes from the cache
+    long hits = Carrydown.getCacheHits();
+    assertValues(jobID,new String[]{value});
+    assertEquals(hits+1L,Carrydown.getCacheHits());
+    return jobID;
+  }
+
+  protected void record(Long jobID, String value)
+    throws Exception
+  {
+    carrydown.recordCarrydownData(jobID,parentHash,childHash,new String[]{dataName},
+      new String[][]{new String[]{ManifoldCF.hash(value)}},new Object[][]{new Object[]{value}});
+  }
+
+  protected void assertValues(Long jobID, String[] expected)
+    throws Exception
+  {
+    String[] values = carrydown.getDataValues(jobID,childHash,dataName);
+    Arrays.sort(values);
+    assertEquals(Arrays.asList(expected),Arrays.asList(values));
+  }
+
+  protected Long createJob()
+    throws Exception
+  {
+    IJobDescription job = jobManager.createJob();
+    job.setDescription("test");
+    job.setConnectionName("test");
+    job.setOutputConnectionName("test");
+    job.setType(IJobDescription.TYPE_SPECIFIED);
+    job.setStartMethod(IJobDescription.START_DISABLE);
+    job.setHopcountMode(IJobDescription.HOPCOUNT_ACCURATE);
+    jobManager.save(job);
+    return job.getID();
+  }
+
+}
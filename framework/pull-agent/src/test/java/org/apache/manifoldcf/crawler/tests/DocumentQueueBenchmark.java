@@ -0,0 +1,296 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.tests;
+
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.system.*;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import org.junit.*;
+
+/** Microbenchmark comparing the heap-based DocumentQueue against the old approach of rating every
+* queued set on every request, at several worker thread counts.  DocumentQueueTest checks that the two
+* hand out document sets in the same order.  This is not part of the normal build; run it with
+* "mvn test -Pbenchmark", or on its own with "mvn test -Dtest=DocumentQueueBenchmark".
+*/
+public class DocumentQueueBenchmark
+{
+  protected final static int[] workerCounts = new int[]{10,100,500};
+  protected final static int binCount = 200;
+  protected final static int documentsPerSet = 10;
+  protected final static long runTime = 2000L;
+
+  @BeforeClass
+  public static void setupLogging()
+  {
+    if (Logging.scheduling == null)
+    {
+      Logging.scheduling = Logger.getLogger("org.apache.manifoldcf.scheduling");
+      Logging.scheduling.setLevel(Level.WARN);
+    }
+  }
+
+  @Test
+  public void throughput()
+    throws Exception
+  {
+    // Documents in a set spread over all bins: nearly every bin count change affects most of the queue
+    runComparison("scattered",false);
+    // Documents in a set drawn from one or two bins, as is typical when a set comes from a few hosts
+    runComparison("clustered",true);
+  }
+
+  protected static void runComparison(String description, boolean clustered)
+    throws Exception
+  {
+    for (int workerCount : workerCounts)
+    {
+      QueueTracker scanTracker = new QueueTracker();
+      double scanRate = runBenchmark(new ScanQueue(scanTracker),scanTracker,workerCount,clustered);
+      QueueTracker heapTracker = new QueueTracker();
+      double heapRate = runBenchmark(new HeapQueue(heapTracker),heapTracker,workerCount,clustered);
+      System.out.println("DocumentQueue benchmark ("+description+"), "+workerCount+" workers: full rescan "+
+        (long)scanRate+" sets/sec, heap "+(long)heapRate+" sets/sec");
+    }
+  }
+
+  protected static double runBenchmark(final BenchmarkQueue queue, final QueueTracker queueTracker, int workerCount,
+    final boolean clustered)
+    throws Exception
+  {
+    // The stuffer keeps the queue at about the size the real stuffer would
+    final int stuffAmount = workerCount * 2;
+    final long[] processed = new long[1];
+    final boolean[] stop = new boolean[1];
+    final Random random = new Random(workerCount);
+
+    Thread stuffer = new Thread()
+    {
+      public void run()
+      {
+        while (true)
+        {
+          synchronized (stop)
+          {
+            if (stop[0])
+              return;
+          }
+          if (queue.checkIfEmpty(stuffAmount / 2))
+          {
+            for (int i = 0; i < stuffAmount; i++)
+            {
+              queue.add(clustered?makeClusteredSet(random,binCount,2):makeSet(random,binCount));
+            }
+          }
+          else
+            Thread.yield();
+        }
+      }
+    };
+
+    Thread[] workers = new Thread[workerCount];
+    for (int i = 0; i < workerCount; i++)
+    {
+      workers[i] = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            while (true)
+            {
+              QueuedDocumentSet qds = queue.get();
+              if (qds == null)
+                return;
+              qds.beginProcessing(queueTracker);
+              qds.endProcessing(queueTracker);
+              synchronized (processed)
+              {
+                processed[0]++;
+              }
+            }
+          }
+          catch (InterruptedException e)
+          {
+          }
+        }
+      };
+    }
+
+    stuffer.start();
+    for (Thread worker : workers)
+    {
+      worker.start();
+    }
+    Thread.sleep(runTime);
+    long count;
+    synchronized (processed)
+    {
+      count = processed[0];
+    }
+    synchronized (stop)
+    {
+      stop[0] = true;
+    }
+    stuffer.join();
+    queue.reset();
+    for (Thread worker : workers)
+    {
+      worker.join();
+    }
+    return (double)count * 1000.0 / (double)runTime;
+  }
+
+  protected static QueuedDocumentSet makeSet(Random random, int bins)
+  {
+    ArrayList documents = new ArrayList();
+    for (int i = 0; i < documentsPerSet; i++)
+    {
+      documents.add(new QueuedDocument(null,null,new String[]{"bin"+random.nextInt(bins)}));
+    }
+    return new QueuedDocumentSet(documents,null,null);
+  }
+
+  protected static QueuedDocumentSet makeClusteredSet(Random random, int bins, int binsPerSet)
+  {
+    String[] setBins = new String[binsPerSet];
+    for (int i = 0; i < binsPerSet; i++)
+    {
+      setBins[i] = "bin"+random.nextInt(bins);
+    }
+    ArrayList documents = new ArrayList();
+    for (int i = 0; i < documentsPerSet; i++)
+    {
+      documents.add(new QueuedDocument(null,null,new String[]{setBins[random.nextInt(binsPerSet)]}));
+    }
+    return new QueuedDocumentSet(documents,null,null);
+  }
+
+  protected static interface BenchmarkQueue
+  {
+    public void add(QueuedDocumentSet qds);
+    public boolean checkIfEmpty(int n);
+    public QueuedDocumentSet get() throws InterruptedException;
+    public void reset();
+  }
+
+  /** The real DocumentQueue */
+  protected static class HeapQueue implements BenchmarkQueue
+  {
+    protected final DocumentQueue queue = new DocumentQueue();
+    protected final QueueTracker queueTracker;
+
+    public HeapQueue(QueueTracker queueTracker)
+    {
+      this.queueTracker = queueTracker;
+    }
+
+    public void add(QueuedDocumentSet qds)
+    {
+      queue.addDocument(qds);
+    }
+
+    public boolean checkIfEmpty(int n)
+    {
+      return queue.checkIfEmpty(n);
+    }
+
+    public QueuedDocumentSet get()
+      throws InterruptedException
+    {
+      return queue.getDocument(queueTracker);
+    }
+
+    public void reset()
+    {
+      queue.reset();
+    }
+  }
+
+  /** The previous DocumentQueue algorithm: rate every set on every request */
+  protected static class ScanQueue implements BenchmarkQueue
+  {
+    protected final ArrayList queue = new ArrayList();
+    protected final QueueTracker queueTracker;
+    protected boolean resetFlag = false;
+
+    public ScanQueue(QueueTracker queueTracker)
+    {
+      this.queueTracker = queueTracker;
+    }
+
+    public void add(QueuedDocumentSet qds)
+    {
+      synchronized (queue)
+      {
+        queue.add(qds);
+        queue.notify();
+      }
+    }
+
+    public boolean checkIfEmpty(int n)
+    {
+      synchronized (queue)
+      {
+        return queue.size() <= n;
+      }
+    }
+
+    public QueuedDocumentSet get()
+      throws InterruptedException
+    {
+      synchronized (queue)
+      {
+        if (resetFlag)
+          return null;
+        while (queue.size() == 0 && resetFlag == false)
+          queue.wait();
+        if (queue.size() == 0)
+          return null;
+        int i = 0;
+        int bestIndex = -1;
+        double bestRating = Double.NEGATIVE_INFINITY;
+        while (i < queue.size())
+        {
+          QueuedDocumentSet dd = (QueuedDocumentSet)queue.get(i);
+          double rating = dd.calculateAssignmentRating(queueTracker);
+          if (bestIndex == -1 || rating > bestRating)
+          {
+            bestIndex = i;
+            bestRating = rating;
+          }
+          i++;
+        }
+        return (QueuedDocumentSet)queue.remove(bestIndex);
+      }
+    }
+
+    public void reset()
+    {
+      synchronized (queue)
+      {
+        resetFlag = true;
+        queue.notifyAll();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,186 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.tests;
+
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.system.*;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Check that the heap-based document queue hands out document sets in the same order as rating every queued
+* set on every request would.
+*/
+public class DocumentQueueTest
+{
+
+  @BeforeClass
+  public static void setupLogging()
+  {
+    if (Logging.scheduling == null)
+    {
+      Logging.scheduling = Logger.getLogger("org.apache.manifoldcf.scheduling");
+      Logging.scheduling.setLevel(Level.WARN);
+    }
+  }
+
+  @Test
+  public void sameOrderAsRatingEverySet()
+    throws Exception
+  {
+    Random random = new Random(42L);
+    QueueTracker queueTracker = new QueueTracker();
+    QueueTracker scanTracker = new QueueTracker();
+    DocumentQueue queue = new DocumentQueue();
+    List<QueuedDocumentSet> scanQueue = new ArrayList<QueuedDocumentSet>();
+    List<QueuedDocumentSet> active = new ArrayList<QueuedDocumentSet>();
+    for (int i = 0; i < 5000; i++)
+    {
+      QueuedDocumentSet qds = makeSet(random,20);
+      queue.addDocument(qds);
+      scanQueue.add(qds);
+      if (random.nextInt(3) != 0)
+      {
+        QueuedDocumentSet fromQueue = queue.getDocument(queueTracker);
+        QueuedDocumentSet fromScan = removeBest(scanQueue,scanTracker);
+        assertSame(fromScan,fromQueue);
+        fromQueue.beginProcessing(queueTracker);
+        fromQueue.beginProcessing(scanTracker);
+        active.add(fromQueue);
+      }
+      if (active.size() > 0 && random.nextInt(2) == 0)
+      {
+        QueuedDocumentSet done = active.remove(random.nextInt(active.size()));
+        done.endProcessing(queueTracker);
+        done.endProcessing(scanTracker);
+      }
+    }
+  }
+
+  @Test
+  public void resetWakesWaitingReaders()
+    throws Exception
+  {
+    final DocumentQueue queue = new DocumentQueue();
+    final QueueTracker queueTracker = new QueueTracker();
+    final Object[] result = new Object[]{"nothing yet"};
+    Thread reader = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          QueuedDocumentSet qds = queue.getDocument(queueTracker);
+          synchronized (result)
+          {
+            result[0] = qds;
+          }
+        }
+        catch (InterruptedException e)
+        {
+        }
+      }
+    };
+    reader.setDaemon(true);
+    reader.start();
+    reader.join(200L);
+    assertTrue("Reader did not wait for a document",reader.isAlive());
+    queue.reset();
+    reader.join(10000L);
+    assertFalse(reader.isAlive());
+    synchronized (result)
+    {
+      assertNull(result[0]);
+    }
+
+    // Once cleared, the queue works again
+    queue.clear();
+    QueuedDocumentSet qds = makeSet(new Random(1L),5);
+    queue.addDocument(qds);
+    assertSame(qds,queue.getDocument(queueTracker));
+  }
+
+  @Test
+  public void unratedSetsCountTowardsSize()
+    throws Exception
+  {
+    DocumentQueue queue = new DocumentQueue();
+    Random random = new Random(7L);
+    assertTrue(queue.checkIfEmpty(0));
+    queue.addDocument(makeSet(random,5));
+    queue.addDocument(makeSet(random,5));
+    assertFalse(queue.checkIfEmpty(1));
+    assertTrue(queue.checkIfEmpty(2));
+    queue.getDocument(new QueueTracker());
+    assertTrue(queue.checkIfEmpty(1));
+    assertFalse(queue.checkIfEmpty(0));
+  }
+
+  @Test
+  public void unbinnedSetsGoLast()
+    throws Exception
+  {
+    DocumentQueue queue = new DocumentQueue();
+    QueueTracker queueTracker = new QueueTracker();
+    ArrayList documents = new ArrayList();
+    documents.add(new QueuedDocument(null,null,new String[0]));
+    QueuedDocumentSet unbinned = new QueuedDocumentSet(documents,null,null);
+    queue.addDocument(unbinned);
+    QueuedDocumentSet busy = makeSet(new Random(3L),1);
+    queue.addDocument(busy);
+    busy.beginProcessing(queueTracker);
+    QueuedDocumentSet rated = makeSet(new Random(3L),1);
+    queue.addDocument(rated);
+    // Even a set whose only bin is busy is handed out before one that cannot be rated
+    assertSame(busy,queue.getDocument(queueTracker));
+    assertSame(rated,queue.getDocument(queueTracker));
+    assertSame(unbinned,queue.getDocument(queueTracker));
+  }
+
+  /** Pick the best-rated set the way the queue used to: rate every set, and take the first of the best. */
+  protected static QueuedDocumentSet removeBest(List<QueuedDocumentSet> scanQueue, QueueTracker queueTracker)
+  {
+    int bestIndex = -1;
+    double bestRating = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < scanQueue.size(); i++)
+    {
+      double rating = scanQueue.get(i).calculateAssignmentRating(queueTracker);
+      if (bestIndex == -1 || rating > bestRating)
+      {
+        bestIndex = i;
+        bestRating = rating;
+      }
+    }
+    return scanQueue.remove(bestIndex);
+  }
+
+  protected static QueuedDocumentSet makeSet(Random random, int bins)
+  {
+    ArrayList documents = new ArrayList();
+    for (int i = 0; i < 10; i++)
+    {
+      documents.add(new QueuedDocument(null,null,new String[]{"bin"+random.nextInt(bins)}));
+    }
+    return new QueuedDocumentSet(documents,null,null);
+  }
+
+}
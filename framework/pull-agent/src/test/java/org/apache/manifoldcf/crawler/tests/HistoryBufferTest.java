@@ -0,0 +1,189 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.tests;
+
+import org.apache.manifoldcf.crawler.repository.HistoryBuffer;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Tests for the history row buffer */
+public class HistoryBufferTest
+{
+
+  @Before
+  public void setUp()
+  {
+    HistoryBuffer.deactivate();
+    HistoryBuffer.activate(10,5);
+  }
+
+  @After
+  public void tearDown()
+  {
+    HistoryBuffer.deactivate();
+  }
+
+  @Test
+  public void addRefusesWhenFull()
+    throws Exception
+  {
+    for (int i = 0; i < 10; i++)
+    {
+      assertTrue(HistoryBuffer.add(row("owner",i)));
+    }
+    assertFalse(HistoryBuffer.add(row("owner",10)));
+    assertEquals(10,HistoryBuffer.deactivate().size());
+    // Once buffering is off, nothing is buffered
+    assertFalse(HistoryBuffer.add(row("owner",11)));
+  }
+
+  @Test
+  public void requeuePutsRowsBackFirst()
+    throws Exception
+  {
+    for (int i = 0; i < 4; i++)
+    {
+      HistoryBuffer.add(row("owner",i));
+    }
+    List<Map<String,Object>> batch = HistoryBuffer.take(2,0L);
+    assertEquals(2,batch.size());
+    HistoryBuffer.add(row("owner",4));
+    HistoryBuffer.requeue(batch);
+    HistoryBuffer.release(batch);
+    List<Map<String,Object>> all = HistoryBuffer.take(10,0L);
+    assertEquals(5,all.size());
+    for (int i = 0; i < 5; i++)
+    {
+      assertEquals(new Integer(i),all.get(i).get("id"));
+    }
+    HistoryBuffer.release(all);
+  }
+
+  @Test
+  public void requeueAfterDeactivateDropsRows()
+    throws Exception
+  {
+    HistoryBuffer.add(row("owner",0));
+    List<Map<String,Object>> batch = HistoryBuffer.take(10,0L);
+    HistoryBuffer.deactivate();
+    HistoryBuffer.requeue(batch);
+    HistoryBuffer.release(batch);
+    assertEquals(0,HistoryBuffer.take(10,0L).size());
+  }
+
+  @Test
+  public void removeOwnerPurgesPendingRows()
+    throws Exception
+  {
+    HistoryBuffer.add(row("a",0));
+    HistoryBuffer.add(row("b",1));
+    HistoryBuffer.add(row("a",2));
+    HistoryBuffer.removeOwner("owner","a");
+    List<Map<String,Object>> rows = HistoryBuffer.take(10,0L);
+    assertEquals(1,rows.size());
+    assertEquals("b",rows.get(0).get("owner"));
+    HistoryBuffer.release(rows);
+  }
+
+  @Test
+  public void removeOwnerIgnoresOtherOwnersInFlight()
+    throws Exception
+  {
+    HistoryBuffer.add(row("b",0));
+    List<Map<String,Object>> batch = HistoryBuffer.take(10,0L);
+    // Must not wait, since the batch being written has no rows for "a"
+    HistoryBuffer.removeOwner("owner","a");
+    HistoryBuffer.release(batch);
+  }
+
+  @Test
+  public void removeOwnerWaitsForInFlightRows()
+    throws Exception
+  {
+    HistoryBuffer.add(row("a",0));
+    HistoryBuffer.add(row("b",1));
+    List<Map<String,Object>> batch = HistoryBuffer.take(10,0L);
+
+    RemoveThread t = new RemoveThread("a");
+    t.start();
+    try
+    {
+      t.join(500L);
+      assertTrue("removeOwner returned while the owner's rows were being written",t.isAlive());
+
+      // The write fails and the rows come back; the waiting remover must purge them again
+      HistoryBuffer.requeue(batch);
+    }
+    finally
+    {
+      // Always hand the batch back, so that no later test waits on it
+      HistoryBuffer.release(batch);
+    }
+    t.join(10000L);
+    assertFalse(t.isAlive());
+    if (t.getException() != null)
+      throw t.getException();
+
+    List<Map<String,Object>> rows = HistoryBuffer.take(10,0L);
+    assertEquals(1,rows.size());
+    assertEquals("b",rows.get(0).get("owner"));
+    HistoryBuffer.release(rows);
+  }
+
+  protected static Map<String,Object> row(String owner, int id)
+  {
+    Map<String,Object> rval = new HashMap<String,Object>();
+    rval.put("owner",owner);
+    rval.put("id",new Integer(id));
+    return rval;
+  }
+
+  protected static class RemoveThread extends Thread
+  {
+    protected final String owner;
+    protected Exception exception = null;
+
+    public RemoveThread(String owner)
+    {
+      super();
+      setDaemon(true);
+      this.owner = owner;
+    }
+
+    public void run()
+    {
+      try
+      {
+        HistoryBuffer.removeOwner("owner",owner);
+      }
+      catch (Exception e)
+      {
+        exception = e;
+      }
+    }
+
+    public Exception getException()
+    {
+      return exception;
+    }
+  }
+
+}
@@ -0,0 +1,163 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.jobs.HopCount;
+import org.apache.manifoldcf.crawler.system.ManifoldCF;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Check that a cached distance is not answered once the distance in the table has been reset to "infinity".
+* Each test links a seed to a child, reads the child's distance once, so that it is cached, and then removes the
+* child's only path to the root.
+*/
+public class HopCountCacheTest extends BaseHSQLDB
+{
+  protected final static String[] legalLinkTypes = new String[]{"link"};
+  protected final static int hopcountMode = IJobDescription.HOPCOUNT_ACCURATE;
+
+  protected IJobManager jobManager;
+  protected HopCount hopCount;
+  protected String seedHash;
+  protected String childHash;
+
+  @Before
+  public void createConnections()
+    throws Exception
+  {
+    IThreadContext tc = ThreadContextFactory.make();
+    IRepositoryConnectionManager connMgr = RepositoryConnectionManagerFactory.make(tc);
+    IRepositoryConnection conn = connMgr.create();
+    conn.setName("test");
+    conn.setDescription("test");
+    conn.setClassName("org.apache.manifoldcf.crawler.tests.TestConnector");
+    conn.setMaxConnections(1);
+    connMgr.save(conn);
+    IOutputConnectionManager outputMgr = OutputConnectionManagerFactory.make(tc);
+    IOutputConnection outputConn = outputMgr.create();
+    outputConn.setName("test");
+    outputConn.setDescription("test");
+    outputConn.setClassName("org.apache.manifoldcf.agents.tests.TestOutputConnector");
+    outputConn.setMaxConnections(1);
+    outputMgr.save(outputConn);
+    jobManager = JobManagerFactory.make(tc);
+    IDBInterface database = DBInterfaceFactory.make(tc,
+      ManifoldCF.getMasterDatabaseName(),
+      ManifoldCF.getMasterDatabaseUsername(),
+      ManifoldCF.getMasterDatabasePassword());
+    hopCount = new HopCount(tc,database);
+    seedHash = ManifoldCF.compactHash("http://localhost/");
+    childHash = ManifoldCF.compactHash("http://localhost/a");
+  }
+
+  @Test
+  public void linkNotFoundAgain()
+    throws Exception
+  {
+    Long jobID = crawlSeed();
+    // The seed is processed again and no longer has the link
+    hopCount.finishParents(jobID,legalLinkTypes,new String[]{seedHash},hopcountMode);
+    assertEquals(-1,findDistance(jobID));
+    processQueue(jobID);
+    assertEquals(-1,findDistance(jobID));
+  }
+
+  @Test
+  public void sourceDocumentDeleted()
+    throws Exception
+  {
+    Long jobID = crawlSeed();
+    hopCount.deleteDocumentIdentifiers(jobID,legalLinkTypes,new String[]{seedHash},hopcountMode);
+    assertEquals(-1,findDistance(jobID));
+    processQueue(jobID);
+    assertEquals(-1,findDistance(jobID));
+  }
+
+  @Test
+  public void ownerDeleted()
+    throws Exception
+  {
+    Long jobID = crawlSeed();
+    hopCount.deleteOwner(jobID);
+    assertEquals(-1,findDistance(jobID));
+  }
+
+  @Test
+  public void resetKeepsDistances()
+    throws Exception
+  {
+    Long jobID = crawlSeed();
+    // Reset only returns links to their base state, so no distance changes and the cached one still holds
+    hopCount.reset();
+    assertEquals(1,findDistance(jobID));
+    // ... and a later pass that drops the link still reaches the cache
+    hopCount.finishParents(jobID,legalLinkTypes,new String[]{seedHash},hopcountMode);
+    assertEquals(-1,findDistance(jobID));
+  }
+
+  /** Create a job, and crawl its seed, which links to the child.  The child's distance is then read, which
+  * caches it.
+  */
+  protected Long crawlSeed()
+    throws Exception
+  {
+    Long jobID = createJob();
+    hopCount.recordSeedReferences(jobID,legalLinkTypes,new String[]{seedHash},hopcountMode);
+    hopCount.finishSeedReferences(jobID,legalLinkTypes,hopcountMode);
+    hopCount.recordReferences(jobID,legalLinkTypes,seedHash,new String[]{childHash},"link",hopcountMode);
+    hopCount.finishParents(jobID,legalLinkTypes,new String[]{seedHash},hopcountMode);
+    processQueue(jobID);
+    assertEquals(1,findDistance(jobID));
+    return jobID;
+  }
+
+  protected int findDistance(Long jobID)
+    throws Exception
+  {
+    return hopCount.findHopCounts(jobID,new String[]{childHash},"link")[0];
+  }
+
+  protected void processQueue(Long jobID)
+    throws Exception
+  {
+    while (!hopCount.processQueue(jobID,legalLinkTypes,hopcountMode))
+    {
+    }
+  }
+
+  protected Long createJob()
+    throws Exception
+  {
+    IJobDescription job = jobManager.createJob();
+    job.setDescription("test");
+    job.setConnectionName("test");
+    job.setOutputConnectionName("test");
+    job.setType(IJobDescription.TYPE_SPECIFIED);
+    job.setStartMethod(IJobDescription.START_DISABLE);
+    job.setHopcountMode(hopcountMode);
+    jobManager.save(job);
+    return job.getID();
+  }
+
+}
@@ -0,0 +1,151 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.repository.*;
+import org.apache.manifoldcf.crawler.system.ManifoldCF;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Check that result code reports answered from the history rollups match the ones answered from the raw history */
+public class RepositoryHistoryRollupTest extends BaseHSQLDB
+{
+  protected final static long minute = RepositoryHistoryRollupManager.bucketInterval;
+  protected final static long base = 1000L * minute;
+
+  protected RepositoryHistoryManager historyManager;
+  protected RepositoryHistoryRollupManager rollupManager;
+
+  @Before
+  public void createConnection()
+    throws Exception
+  {
+    IThreadContext tc = ThreadContextFactory.make();
+    IRepositoryConnectionManager connMgr = RepositoryConnectionManagerFactory.make(tc);
+    IRepositoryConnection conn = connMgr.create();
+    conn.setName("test");
+    conn.setDescription("test");
+    conn.setClassName("org.apache.manifoldcf.crawler.tests.TestConnector");
+    conn.setMaxConnections(1);
+    connMgr.save(conn);
+    IDBInterface database = DBInterfaceFactory.make(tc,
+      ManifoldCF.getMasterDatabaseName(),
+      ManifoldCF.getMasterDatabaseUsername(),
+      ManifoldCF.getMasterDatabasePassword());
+    historyManager = new RepositoryHistoryManager(tc,database);
+    // The set of owners with rollups is kept per process, so this sees what the history manager's own instance does
+    rollupManager = new RepositoryHistoryRollupManager(tc,database,historyManager.getTableName());
+  }
+
+  @Test
+  public void rollupsMatchRawHistory()
+    throws Exception
+  {
+    // Events that start and end on, just before, and just after bucket boundaries
+    addRows(0);
+    compareReports();
+    // These arrive after the rollups were built by the reports above
+    addRows(1);
+    compareReports();
+  }
+
+  @Test
+  public void deletedHistoryLosesRollups()
+    throws Exception
+  {
+    addRows(0);
+    compareReports();
+    historyManager.deleteOwner("test",null);
+    addRows(1);
+    compareReports();
+  }
+
+  protected void addRows(int variant)
+    throws Exception
+  {
+    long[] offsets = new long[]{0L,1L,minute-1L,minute,minute+1L,2L*minute,5L*minute-1L};
+    String[] resultCodes = new String[]{"OK","200","404",null};
+    int i = 0;
+    while (i < offsets.length)
+    {
+      int j = 0;
+      while (j < offsets.length)
+      {
+        long startTime = base + offsets[i];
+        long endTime = startTime + offsets[j];
+        String resultCode = resultCodes[(i + j + variant) % resultCodes.length];
+        String activity = ((i + variant) % 2 == 0)?"fetch":"process";
+        historyManager.addRow("test",startTime,endTime,10L,activity,"http://host"+Integer.toString(j % 2)+"/doc"+Integer.toString(i),
+          resultCode,null);
+        j++;
+      }
+      i++;
+    }
+  }
+
+  protected void compareReports()
+    throws Exception
+  {
+    Long[] times = new Long[]{null,new Long(base-minute),new Long(base),new Long(base+minute),new Long(base+2L*minute),
+      new Long(base+10L*minute)};
+    String[][] activityLists = new String[][]{null,new String[]{"fetch"}};
+    BucketDescription idBucket = new BucketDescription("()",true);
+    BucketDescription resultCodeBucket = new BucketDescription("(.*)",false);
+    // A report that could use rollups asks for them, and the writing process then builds them
+    rollupManager.canAnswer("test",new FilterCriteria(null,null,null,null,null),idBucket);
+    rollupManager.buildRequested();
+    for (Long startTime : times)
+    {
+      for (Long endTime : times)
+      {
+        for (String[] activities : activityLists)
+        {
+          FilterCriteria rollupCriteria = new FilterCriteria(activities,startTime,endTime,null,null);
+          assertTrue(rollupManager.canAnswer("test",rollupCriteria,idBucket));
+          IResultSet rollupSet = historyManager.resultCodesReport("test",rollupCriteria,new SortOrder(),
+            resultCodeBucket,idBucket,0,-1);
+          // Every identifier matches, but an identifier filter can only be answered from the raw history
+          FilterCriteria rawCriteria = new FilterCriteria(activities,startTime,endTime,new RegExpCriteria(".*host.*",false),null);
+          assertFalse(rollupManager.canAnswer("test",rawCriteria,idBucket));
+          IResultSet rawSet = historyManager.resultCodesReport("test",rawCriteria,new SortOrder(),
+            resultCodeBucket,idBucket,0,-1);
+          assertEquals("start="+startTime+" end="+endTime,describe(rawSet),describe(rollupSet));
+        }
+      }
+    }
+  }
+
+  protected static Set<String> describe(IResultSet set)
+  {
+    Set<String> rval = new HashSet<String>();
+    int i = 0;
+    while (i < set.getRowCount())
+    {
+      IResultRow row = set.getRow(i++);
+      rval.add(row.getValue("resultcodebucket")+"|"+row.getValue("idbucket")+"|"+
+        Long.toString(((Number)row.getValue("eventcount")).longValue()));
+    }
+    return rval;
+  }
+
+}
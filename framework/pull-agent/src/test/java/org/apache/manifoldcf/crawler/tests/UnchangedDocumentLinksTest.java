@@ -0,0 +1,122 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.jobs.HopCount;
+import org.apache.manifoldcf.crawler.jobs.IntrinsicLink;
+import org.apache.manifoldcf.crawler.system.ManifoldCF;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Check what happens to the links of a document that is processed again without reporting any of them, as happens
+* when a conditional fetch finds the document unchanged and it is not parsed.
+*/
+public class UnchangedDocumentLinksTest extends BaseHSQLDB
+{
+  protected final static String[] legalLinkTypes = new String[]{"link"};
+
+  protected IJobManager jobManager;
+  protected HopCount hopCount;
+  protected IntrinsicLink intrinsicLink;
+
+  @Before
+  public void createConnections()
+    throws Exception
+  {
+    IThreadContext tc = ThreadContextFactory.make();
+    IRepositoryConnectionManager connMgr = RepositoryConnectionManagerFactory.make(tc);
+    IRepositoryConnection conn = connMgr.create();
+    conn.setName("test");
+    conn.setDescription("test");
+    conn.setClassName("org.apache.manifoldcf.crawler.tests.TestConnector");
+    conn.setMaxConnections(1);
+    connMgr.save(conn);
+    IOutputConnectionManager outputMgr = OutputConnectionManagerFactory.make(tc);
+    IOutputConnection outputConn = outputMgr.create();
+    outputConn.setName("test");
+    outputConn.setDescription("test");
+    outputConn.setClassName("org.apache.manifoldcf.agents.tests.TestOutputConnector");
+    outputConn.setMaxConnections(1);
+    outputMgr.save(outputConn);
+    jobManager = JobManagerFactory.make(tc);
+    IDBInterface database = DBInterfaceFactory.make(tc,
+      ManifoldCF.getMasterDatabaseName(),
+      ManifoldCF.getMasterDatabaseUsername(),
+      ManifoldCF.getMasterDatabasePassword());
+    hopCount = new HopCount(tc,database);
+    intrinsicLink = new IntrinsicLink(database);
+  }
+
+  @Test
+  public void neverDeleteKeepsLinks()
+    throws Exception
+  {
+    assertEquals(2,recrawlUnchanged(IJobDescription.HOPCOUNT_NEVERDELETE));
+  }
+
+  @Test
+  public void accurateLosesLinks()
+    throws Exception
+  {
+    // This is why a connector may only skip parsing an unchanged document when the job never deletes by hopcount
+    assertEquals(0,recrawlUnchanged(IJobDescription.HOPCOUNT_ACCURATE));
+  }
+
+  /** Crawl a document with two links, then process it again as an unchanged document would be.
+  *@return the number of links the document has afterwards.
+  */
+  protected int recrawlUnchanged(int hopcountMode)
+    throws Exception
+  {
+    Long jobID = createJob(hopcountMode);
+    String parentHash = ManifoldCF.compactHash("http://localhost/");
+    String[] childHashes = new String[]{ManifoldCF.compactHash("http://localhost/a"),ManifoldCF.compactHash("http://localhost/b")};
+
+    // First crawl sees the links
+    hopCount.recordSeedReferences(jobID,legalLinkTypes,new String[]{parentHash},hopcountMode);
+    hopCount.finishSeedReferences(jobID,legalLinkTypes,hopcountMode);
+    hopCount.recordReferences(jobID,legalLinkTypes,parentHash,childHashes,"link",hopcountMode);
+    hopCount.finishParents(jobID,legalLinkTypes,new String[]{parentHash},hopcountMode);
+    assertEquals(2,intrinsicLink.getDocumentChildren(jobID,parentHash).getRowCount());
+
+    // The recrawl reports nothing
+    hopCount.finishParents(jobID,legalLinkTypes,new String[]{parentHash},hopcountMode);
+    return intrinsicLink.getDocumentChildren(jobID,parentHash).getRowCount();
+  }
+
+  protected Long createJob(int hopcountMode)
+    throws Exception
+  {
+    IJobDescription job = jobManager.createJob();
+    job.setDescription("test");
+    job.setConnectionName("test");
+    job.setOutputConnectionName("test");
+    job.setType(IJobDescription.TYPE_SPECIFIED);
+    job.setStartMethod(IJobDescription.START_DISABLE);
+    job.setHopcountMode(hopcountMode);
+    jobManager.save(job);
+    return job.getID();
+  }
+
+}